@@ -30,6 +30,15 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -80,6 +89,12 @@ import com.qut.middleware.saml2.validator.SAMLValidator;
 
 public class PolicyCacheProcessorImpl extends Thread implements PolicyCacheProcessor, MonitorThread
 {
+	/** Default number of SPEP endpoints sent cache clear requests at once */
+	public static final int DEFAULT_BROADCAST_THREADS = 10;
+
+	/** Default time in seconds to wait for a single SPEP endpoint to respond to a cache clear request */
+	public static final int DEFAULT_ENDPOINT_TIMEOUT = 30;
+
 	// the cache is a map of policy ID -> PolicyType objects
 	private AuthzPolicyCache globalCache;
 	private AuthzCacheUpdateFailureRepository failureRep;
@@ -102,6 +117,18 @@ public class PolicyCacheProcessorImpl extends Thread implements PolicyCacheProce
 	private SAMLValidator samlValidator;
 	private WSClient wsClient;
 
+	// sends cache clear requests to SPEP endpoints, bounded to a fixed number at a time
+	private ThreadPoolExecutor broadcastExecutor;
+	private long endpointTimeout;
+	private final Object failureLock = new Object();
+
+	// propagation metrics, see the accessors below
+	private volatile long lastPropagationTime;
+	private volatile long lastSlowestEndpointTime;
+	private AtomicLong endpointsNotified = new AtomicLong();
+	private AtomicLong endpointsFailed = new AtomicLong();
+	private AtomicLong endpointsTimedOut = new AtomicLong();
+
 	private final String UNMAR_PKGNAMES = ClearAuthzCacheResponse.class.getPackage().getName();
 	private final String MAR_PKGNAMES = ClearAuthzCacheRequest.class.getPackage().getName() + ":" + GroupTarget.class.getPackage().getName(); //$NON-NLS-1$
 	private final String UNMAR_PKGNAMES2 = Policy.class.getPackage().getName();
@@ -140,6 +167,21 @@ public class PolicyCacheProcessorImpl extends Thread implements PolicyCacheProce
 	 * 
 	 */
 	public PolicyCacheProcessorImpl(AuthzCacheUpdateFailureRepository failureRep, AuthzPolicyCache cache, MetadataProcessor metadata, PolicyCacheDao sqlConfig, WSClient wsClient, KeystoreResolver keyStoreResolver, IdentifierGenerator identifierGenerator, SAMLValidator samlValidator, int pollInterval, String esoeIdentifier) throws MarshallerException, UnmarshallerException
+	{
+		this(failureRep, cache, metadata, sqlConfig, wsClient, keyStoreResolver, identifierGenerator, samlValidator, pollInterval, esoeIdentifier, DEFAULT_BROADCAST_THREADS, DEFAULT_ENDPOINT_TIMEOUT);
+	}
+
+	/**
+	 * Constructor which also sets how cache clear requests are broadcast to SPEPs when policies change. Parameters
+	 * other than those below are as for the constructor above.
+	 * 
+	 * @param broadcastThreads
+	 *            The maximum number of SPEP endpoints to send cache clear requests to at once. 1 sends them in turn.
+	 * @param endpointTimeout
+	 *            The time in seconds to wait for a single SPEP endpoint to respond. Endpoints which do not respond in
+	 *            time are handed to the failure repository for retry.
+	 */
+	public PolicyCacheProcessorImpl(AuthzCacheUpdateFailureRepository failureRep, AuthzPolicyCache cache, MetadataProcessor metadata, PolicyCacheDao sqlConfig, WSClient wsClient, KeystoreResolver keyStoreResolver, IdentifierGenerator identifierGenerator, SAMLValidator samlValidator, int pollInterval, String esoeIdentifier, int broadcastThreads, int endpointTimeout) throws MarshallerException, UnmarshallerException
 	{
 		/* Ensure that a stable base is created when this Processor is setup */
 		if (failureRep == null)
@@ -172,6 +214,12 @@ public class PolicyCacheProcessorImpl extends Thread implements PolicyCacheProce
 		if (pollInterval <= 0 || (pollInterval > Integer.MAX_VALUE / 1000))
 			throw new IllegalArgumentException(Messages.getString("PolicyCacheProcessorImpl.9")); //$NON-NLS-1$
 
+		if (broadcastThreads <= 0)
+			throw new IllegalArgumentException(Messages.getString("PolicyCacheProcessorImpl.49")); //$NON-NLS-1$
+
+		if (endpointTimeout <= 0)
+			throw new IllegalArgumentException(Messages.getString("PolicyCacheProcessorImpl.50")); //$NON-NLS-1$
+
 		this.failureRep = failureRep;
 		this.globalCache = cache;
 		this.metadata = metadata;
@@ -182,6 +230,10 @@ public class PolicyCacheProcessorImpl extends Thread implements PolicyCacheProce
 		this.samlValidator = samlValidator;
 		this.cacheInitialized = false;
 		this.esoeIdentifier = esoeIdentifier;
+		this.endpointTimeout = endpointTimeout * 1000L;
+
+		this.broadcastExecutor = new ThreadPoolExecutor(broadcastThreads, broadcastThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		this.broadcastExecutor.allowCoreThreadTimeOut(true);
 
 		this.clearAuthzCacheRequestMarshaller = new MarshallerImpl<ClearAuthzCacheRequest>(this.MAR_PKGNAMES, this.schemas, keyStoreResolver);
 		this.clearAuthzCacheResponseUnmarshaller = new UnmarshallerImpl<ClearAuthzCacheResponse>(this.UNMAR_PKGNAMES, this.schemas, this.metadata);
@@ -395,15 +447,13 @@ public class PolicyCacheProcessorImpl extends Thread implements PolicyCacheProce
 			{
 				String currentKey = iter.next();
 				modifiedDescriptors.add(currentKey);
-
-				// add or replace real time cache policy with updated policies
-				this.globalCache.add(currentKey, databasePolicies.get(currentKey));
 				
 				this.logger.info(MessageFormat.format("Updated Policies for {0}. ({1} Policies total).", currentKey, databasePolicies.get(currentKey).size()) );
 			}
 
-			// update cache sequence id
-			this.globalCache.setBuildSequenceId(latestSequenceId);
+			// add or replace real time cache policies with updated policies, and update the cache sequence id, as
+			// one new generation of the cache
+			this.globalCache.update(databasePolicies, latestSequenceId);
 
 			this.logger.info(MessageFormat.format(Messages.getString("PolicyCacheProcessorImpl.39"), this.globalCache.getSize()));//$NON-NLS-1$
 
@@ -422,22 +472,21 @@ public class PolicyCacheProcessorImpl extends Thread implements PolicyCacheProce
 	}
 
 	/*
-	 * Notify ALL SPEP end point of a cache update.
+	 * Notify ALL SPEP end point of a cache update. Requests are sent to a bounded number of endpoints at once, and
+	 * endpoints which fail or do not respond within the endpoint timeout are recorded for retry.
 	 * 
-	 * @param authzRequest The request document to send to the SPEP @param endPoint The end point node of the SPEP
-	 * @param spepStartup Whether or not it is an SPEP starting up request, in which case we do not record failed
-	 * updates.
+	 * @param entities The entities whose policies have changed.
 	 */
 	private void notifyCacheUpdate(List<String> entities)
 	{
+		List<CacheClearTask> tasks = new Vector<CacheClearTask>();
+
 		// iterate through list of SPEPS (obtained from SPEP processor)
 		Iterator<String> entityIter = entities.iterator();
 
 		while (entityIter.hasNext())
 		{
 			String entityID = entityIter.next();
-			result updateResult = result.Failure;
-			Element authzClearCacheRequest = null;
 
 			try
 			{
@@ -445,44 +494,23 @@ public class PolicyCacheProcessorImpl extends Thread implements PolicyCacheProce
 				if (entityData == null)
 				{
 					this.logger.error("Couldn't find entity data for SPEP when attempting to perform cache clear. Entity ID presented was: " + entityID);
-					return;
+					continue;
 				}
 				
 				SPEPRole spepRole = entityData.getRoleData(SPEPRole.class);
 				if (spepRole == null)
 				{
 					this.logger.error("Target entity for cache clear request was not identified as an SPEP by the metadata processor. Entity ID: " + entityID);
-					return;
+					continue;
 				}
 
 				List<IndexedEndpoint> endpoints = spepRole.getCacheClearServiceEndpointList();
 
-				//Iterator<String> endpointIter = endpoints.values().iterator();
-
 				for (IndexedEndpoint endpoint : endpoints)
 				{
-					// get associated policies and create AuthzClearCache Request AND generate the request
-					authzClearCacheRequest = this.generateClearCacheRequest(entityID, endpoint.getLocation(), Messages.getString("PolicyCacheProcessorImpl.4")); //$NON-NLS-1$
-
-					// if the returned request string is null, then a problem occured retrieving policy data. Don't send
-					// request.
-					if (authzClearCacheRequest == null)
-						this.logger.warn(MessageFormat.format(Messages.getString("PolicyCacheProcessorImpl.21"), entityID)); //$NON-NLS-1$
-					else
-						updateResult = this.sendCacheUpdateRequest(authzClearCacheRequest, endpoint.getLocation());
-
-					if (!updateResult.equals(result.Success))
-					{
-						this.recordFailure(authzClearCacheRequest, endpoint.getLocation());
-					}
+					tasks.add(new CacheClearTask(entityID, endpoint.getLocation()));
 				}
 			}
-			// response from SPEP could not be deciphered
-			catch (MarshallerException e)
-			{
-				this.logger.warn(Messages.getString("PolicyCacheProcessorImpl.24") + entityID); //$NON-NLS-1$
-				this.logger.trace(e.getLocalizedMessage(), e);
-			}
 			catch (MetadataStateException e)
 			{
 				this.logger.error("Metadata process reported an invalid state. Error was: " + e.getMessage());
@@ -490,6 +518,104 @@ public class PolicyCacheProcessorImpl extends Thread implements PolicyCacheProce
 			}
 		}
 
+		if (!tasks.isEmpty())
+			this.broadcast(tasks);
+	}
+
+	/*
+	 * Send each cache clear request on the broadcast executor and wait for them all, up to the endpoint timeout for
+	 * each. Waiting keeps one broadcast from overlapping the next, so an SPEP never receives an older policy set after
+	 * a newer one.
+	 */
+	private void broadcast(List<CacheClearTask> tasks)
+	{
+		long startTime = System.currentTimeMillis();
+		int failed = 0;
+		List<Future<result>> futures = new Vector<Future<result>>();
+
+		for (CacheClearTask task : tasks)
+		{
+			try
+			{
+				futures.add(this.broadcastExecutor.submit(task));
+			}
+			catch (RejectedExecutionException e)
+			{
+				// executor is shutting down, send this one from the poll thread
+				futures.add(null);
+			}
+		}
+
+		for (int i = 0; i < tasks.size(); i++)
+		{
+			CacheClearTask task = tasks.get(i);
+			Future<result> future = futures.get(i);
+
+			result updateResult = (future == null ? task.call() : this.awaitCacheClear(task, future));
+			if (!updateResult.equals(result.Success))
+				failed++;
+		}
+
+		this.lastPropagationTime = System.currentTimeMillis() - startTime;
+		long slowest = 0;
+		for (CacheClearTask task : tasks)
+		{
+			slowest = Math.max(slowest, task.elapsed);
+		}
+		this.lastSlowestEndpointTime = slowest;
+
+		this.endpointsNotified.addAndGet(tasks.size());
+		this.endpointsFailed.addAndGet(failed);
+
+		this.logger.info(MessageFormat.format("Cache clear broadcast to {0} endpoints completed in {1} ms, slowest endpoint {2} ms. {3} endpoints failed and were queued for retry.", tasks.size(), this.lastPropagationTime, slowest, failed));
+	}
+
+	/*
+	 * Wait for a single cache clear request until the endpoint timeout, measured from when the request started. A
+	 * request still queued behind others has its timeout fixed once it starts. A request which times out is recorded
+	 * for retry and left to complete.
+	 */
+	private result awaitCacheClear(CacheClearTask task, Future<result> future)
+	{
+		try
+		{
+			while (true)
+			{
+				long now = System.currentTimeMillis();
+				long started = task.started;
+				long deadline = (started > 0 ? started : now) + this.endpointTimeout;
+
+				try
+				{
+					return future.get(Math.max(0, deadline - now), TimeUnit.MILLISECONDS);
+				}
+				catch (TimeoutException e)
+				{
+					if (started > 0)
+						break;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// shutting down, leave the remaining requests to complete or fail on their own
+			Thread.currentThread().interrupt();
+			return result.Failure;
+		}
+		catch (ExecutionException e)
+		{
+			this.logger.warn(MessageFormat.format("Sending cache clear request to {0} failed. Error was: {1}", task.endPoint, e.getCause()));
+			this.logger.debug(e.getLocalizedMessage(), e);
+
+			task.recordFailure();
+			return result.Failure;
+		}
+
+		this.logger.warn(MessageFormat.format("Cache clear request to {0} did not respond within {1} ms. Queued for retry.", task.endPoint, this.endpointTimeout));
+		this.endpointsTimedOut.incrementAndGet();
+
+		task.recordFailure();
+		return result.Failure;
 	}
 
 	/*
@@ -593,22 +719,25 @@ public class PolicyCacheProcessorImpl extends Thread implements PolicyCacheProce
 		failure.setTimeStamp(new Date(System.currentTimeMillis()));
 		
 		// If the repo already contains a failure for the currently processed update, we need to replace it with the new one
-		if(this.failureRep.containsFailure(failure))
+		synchronized (this.failureLock)
 		{
-			this.logger.info(MessageFormat.format("New AuthzCacheUpdateFailure for {0} matches an existing one. Replacing old record.", endPoint) );
+			if(this.failureRep.containsFailure(failure))
+			{
+				this.logger.info(MessageFormat.format("New AuthzCacheUpdateFailure for {0} matches an existing one. Replacing old record.", endPoint) );
 			
-			// remove old matching failure (See FailedAuthzCacheUpdate.equals() for comparison logic).
-			this.failureRep.remove(failure);
+				// remove old matching failure (See FailedAuthzCacheUpdate.equals() for comparison logic).
+				this.failureRep.remove(failure);
 			
-			// add new failure (the request documents will differ)
-			this.failureRep.add(failure);
-		}
-		else
-		{
-			this.logger.info(Messages.getString("PolicyCacheProcessorImpl.46") + endPoint); //$NON-NLS-1$
+				// add new failure (the request documents will differ)
+				this.failureRep.add(failure);
+			}
+			else
+			{
+				this.logger.info(Messages.getString("PolicyCacheProcessorImpl.46") + endPoint); //$NON-NLS-1$
 			
-			// add it to failure repository
-			this.failureRep.add(failure);
+				// add it to failure repository
+				this.failureRep.add(failure);
+			}
 		}
 
 	}
@@ -935,11 +1064,54 @@ public class PolicyCacheProcessorImpl extends Thread implements PolicyCacheProce
 		return null;
 	}
 
+	/**
+	 * @return The time in milliseconds the most recent cache clear broadcast took to reach every SPEP endpoint, or to
+	 *         give up on those which did not respond.
+	 */
+	public long getLastPropagationTime()
+	{
+		return this.lastPropagationTime;
+	}
+
+	/**
+	 * @return The time in milliseconds taken by the slowest SPEP endpoint in the most recent broadcast.
+	 */
+	public long getLastSlowestEndpointTime()
+	{
+		return this.lastSlowestEndpointTime;
+	}
+
+	/**
+	 * @return The total number of cache clear requests broadcast to SPEP endpoints.
+	 */
+	public long getEndpointsNotified()
+	{
+		return this.endpointsNotified.get();
+	}
+
+	/**
+	 * @return The total number of broadcast cache clear requests which failed or timed out and were queued for retry.
+	 */
+	public long getEndpointsFailed()
+	{
+		return this.endpointsFailed.get();
+	}
+
+	/**
+	 * @return The total number of broadcast cache clear requests which did not complete within the endpoint timeout.
+	 */
+	public long getEndpointsTimedOut()
+	{
+		return this.endpointsTimedOut.get();
+	}
+
 	public void shutdown()
 	{
 		this.setRunning(false);
 
 		this.interrupt();
+
+		this.broadcastExecutor.shutdown();
 	}
 
 	protected synchronized boolean isRunning()
@@ -951,4 +1123,67 @@ public class PolicyCacheProcessorImpl extends Thread implements PolicyCacheProce
 	{
 		this.running = running;
 	}
+
+	/*
+	 * Generates and sends the cache clear request for one SPEP endpoint, recording it for retry if it fails.
+	 */
+	private class CacheClearTask implements Callable<result>
+	{
+		final String entityID;
+		final String endPoint;
+		volatile Element request;
+		volatile long started;
+		volatile long elapsed;
+		private boolean recorded;
+
+		CacheClearTask(String entityID, String endPoint)
+		{
+			this.entityID = entityID;
+			this.endPoint = endPoint;
+		}
+
+		public result call()
+		{
+			this.started = System.currentTimeMillis();
+			result updateResult = result.Failure;
+
+			try
+			{
+				// get associated policies and create AuthzClearCache Request AND generate the request
+				this.request = generateClearCacheRequest(this.entityID, this.endPoint, Messages.getString("PolicyCacheProcessorImpl.4")); //$NON-NLS-1$
+
+				// if the returned request string is null, then a problem occured retrieving policy data. Don't send
+				// request.
+				if (this.request == null)
+					PolicyCacheProcessorImpl.this.logger.warn(MessageFormat.format(Messages.getString("PolicyCacheProcessorImpl.21"), this.entityID)); //$NON-NLS-1$
+				else
+					updateResult = sendCacheUpdateRequest(this.request, this.endPoint);
+
+				if (!updateResult.equals(result.Success))
+					this.recordFailure();
+			}
+			// response from SPEP could not be deciphered
+			catch (MarshallerException e)
+			{
+				PolicyCacheProcessorImpl.this.logger.warn(Messages.getString("PolicyCacheProcessorImpl.24") + this.entityID); //$NON-NLS-1$
+				PolicyCacheProcessorImpl.this.logger.trace(e.getLocalizedMessage(), e);
+			}
+			finally
+			{
+				this.elapsed = System.currentTimeMillis() - this.started;
+			}
+
+			return updateResult;
+		}
+
+		/* Hand the request to the failure repository, once only, if it was generated. */
+		synchronized void recordFailure()
+		{
+			if (this.request != null && !this.recorded)
+			{
+				this.recorded = true;
+				PolicyCacheProcessorImpl.this.recordFailure(this.request, this.endPoint);
+			}
+		}
+	}
 }
@@ -2,7 +2,6 @@ package com.qut.middleware.esoe.logout;
 
 import java.util.List;
 import java.util.concurrent.Executor;
-import java.util.concurrent.RejectedExecutionException;
 
 import com.qut.middleware.esoe.logout.bean.SSOLogoutState;
 import com.qut.middleware.esoe.sessions.Principal;
@@ -13,7 +12,17 @@ import com.qut.middleware.esoe.sessions.Principal;
  */
 public interface LogoutThreadPool extends Executor
 {
+	/** Scheduling priorities of logout tasks. Queued user tasks are always started before queued background tasks. */
+	public static enum priority
+	{
+		/** A logout requested by, or on behalf of, a user who is waiting on it. LogoutProcessorImpl does not use the
+		 * pool, so user initiated logouts are not currently scheduled with this priority. */
+		UserLogout,
+		/** A logout made by the ESOE itself, such as for an idle session */
+		BackgroundLogout
+	};
 	
+
 	/** Retrieve a list of logout states for the given task. The task ID is returned to the caller when
 	 * a LogoutThread is submitted for processing via the createTask() method. 
 	 * 
@@ -24,7 +33,8 @@ public interface LogoutThreadPool extends Executor
 	public List<SSOLogoutState> getLogoutStates(String TaskID);
 		
 	
-	/** Creates a task Thread to perform the logout process for the given params.
+	/** Creates a task Thread to perform the logout process for the given params. The task is scheduled with
+	 * BackgroundLogout priority.
 	 * 
 	 * @param principal The Principal to logout.
 	 * @param storeState Whether to store logout state data from the created task. If set to true, the state
@@ -33,4 +43,26 @@ public interface LogoutThreadPool extends Executor
 	 */
 	public String createLogoutTask(Principal principal, boolean storeState);
 	
+	
+	/** Creates a task Thread to perform the logout process for the given params, with the given priority. If the 
+	 * pool has no room for another task of that priority, the caller waits a limited time for room before the task
+	 * is rejected.
+	 * 
+	 * @param principal The Principal to logout.
+	 * @param storeState Whether to store logout state data from the created task. See above.
+	 * @param taskPriority The priority to schedule the task with.
+	 * @return A String identifier, unique within the pool, for the submitted task if the task is not rejected, else null.
+	 */
+	public String createLogoutTask(Principal principal, boolean storeState, priority taskPriority);
+	
+	
+	/** Creates a logout task for each of the given principals, with BackgroundLogout priority. Tasks are submitted
+	 * in list order as the pool has room for them.
+	 * 
+	 * @param principals The Principals to logout.
+	 * @param storeState Whether to store logout state data from the created tasks. See createLogoutTask().
+	 * @return The identifiers of the submitted tasks, in list order. An entry is null if its task was rejected.
+	 */
+	public List<String> createLogoutTasks(List<Principal> principals, boolean storeState);
+	
 }
@@ -5,6 +5,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,12 +26,20 @@ import com.qut.middleware.esoe.sessions.exception.InvalidDescriptorIdentifierExc
  * return. For use with thread pools to increase logout throughtput. On completion, the call method will return a list
  * of logouts states for each active SPEP.
  * 
+ * When constructed with an endpoint executor the task fans the logout out, sending the request to every endpoint
+ * concurrently. Each endpoint is given its own deadline, measured from when its request is actually sent, and the task
+ * as a whole gives up waiting once the overall logout deadline passes. An endpoint which misses its deadline is
+ * reported as failed but its request is left to complete, so the logout mechanism still records it in the failed logout
+ * repository if it ultimately fails.
  */
 public class LogoutTask implements Callable<List<SSOLogoutState>>
 {
 	private String name;
 	private Principal principal;
 	private LogoutMechanism logoutMechanism ;
+	private ExecutorService endpointExecutor;
+	private long endpointTimeout;
+	private long logoutTimeout;
 	
 	/* Local logging instance */
 	Logger logger = LoggerFactory.getLogger(this.getClass().getName());
@@ -43,6 +57,28 @@ public class LogoutTask implements Callable<List<SSOLogoutState>>
 		this.name = new Integer(principal.hashCode()).toString();
 	}
 	
+	/** Constructor for a task which logs out of every endpoint concurrently.
+	 * 
+	 * @param logoutMechanism The logout mechanism to use for logging out principal sessions.
+	 * @param principal The principal to logout.
+	 * @param endpointExecutor The executor to send the logout request for each endpoint on.
+	 * @param endpointTimeout The time in milliseconds to wait for a single endpoint, from when its request is sent.
+	 * @param logoutTimeout The time in milliseconds to wait for all endpoints, from when this task starts.
+	 */
+	public LogoutTask(LogoutMechanism logoutMechanism, Principal principal, ExecutorService endpointExecutor, long endpointTimeout, long logoutTimeout)
+	{
+		this(logoutMechanism, principal);
+		
+		if(endpointExecutor == null)
+			throw new IllegalArgumentException("Param endpointExecutor MUST NOT be null.");
+		if(endpointTimeout <= 0 || logoutTimeout <= 0)
+			throw new IllegalArgumentException("Logout timeouts MUST be greater than 0.");
+		
+		this.endpointExecutor = endpointExecutor;
+		this.endpointTimeout = endpointTimeout;
+		this.logoutTimeout = logoutTimeout;
+	}
+	
 	public List<SSOLogoutState> call() throws Exception 
 	{
 		this.logger.trace(this.getName() + " calling logout mechanism ...");
@@ -70,6 +106,8 @@ public class LogoutTask implements Callable<List<SSOLogoutState>>
 		{
 			this.logger.debug("Principal has {} active entity sessions.", activeDescriptors.size());
 			
+			List<EndpointLogout> endpointLogouts = new Vector<EndpointLogout>();
+			
 			Iterator<String> entitiesIterator = activeDescriptors.iterator();
 			while(entitiesIterator.hasNext())
 			{
@@ -88,10 +126,22 @@ public class LogoutTask implements Callable<List<SSOLogoutState>>
 					List<String> indicies = null;
 					indicies = principal.getActiveEntitySessionIndices(entity);
 				
-					// call the logout code and add the result
-					logoutStates.add(this.performAndRecordLogout(endPoint , indicies, principal.getSAMLAuthnIdentifier()) );						
+					endpointLogouts.add(new EndpointLogout(endPoint, indicies, principal.getSAMLAuthnIdentifier()));
+				}
+			}
+			
+			if(this.endpointExecutor == null || endpointLogouts.size() < 2)
+			{
+				// call the logout code for each endpoint in turn and add the result
+				for(EndpointLogout endpointLogout : endpointLogouts)
+				{
+					logoutStates.add(endpointLogout.call());
 				}
-			}			
+			}
+			else
+			{
+				logoutStates.addAll(this.fanOut(endpointLogouts, startTime + this.logoutTimeout));
+			}
 		}		
 		else
 			this.logger.debug("User has no active SPEP sessions ?");
@@ -104,6 +154,100 @@ public class LogoutTask implements Callable<List<SSOLogoutState>>
 	}
 		
 
+	/* Send every endpoint logout on the endpoint executor and collect the results in order. Endpoints which do not
+	 * respond before their deadline are reported as failed.
+	 */
+	private List<SSOLogoutState> fanOut(List<EndpointLogout> endpointLogouts, long logoutDeadline)
+	{
+		List<SSOLogoutState> logoutStates = new Vector<SSOLogoutState>();
+		List<Future<SSOLogoutState>> futures = new Vector<Future<SSOLogoutState>>();
+		
+		for(EndpointLogout endpointLogout : endpointLogouts)
+		{
+			try
+			{
+				futures.add(this.endpointExecutor.submit(endpointLogout));
+			}
+			catch(RejectedExecutionException e)
+			{
+				// executor saturated or shutting down, send this one from the current thread
+				this.logger.debug(MessageFormat.format("{0} endpoint executor rejected logout for {1}, sending from task thread.", this.getName(), endpointLogout.endPoint) );
+				futures.add(null);
+			}
+		}
+		
+		for(int i = 0; i < endpointLogouts.size(); i++)
+		{
+			EndpointLogout endpointLogout = endpointLogouts.get(i);
+			Future<SSOLogoutState> future = futures.get(i);
+			
+			if(future == null)
+				logoutStates.add(endpointLogout.call());
+			else
+				logoutStates.add(this.awaitLogout(endpointLogout, future, logoutDeadline));
+		}
+		
+		return logoutStates;
+	}
+	
+	
+	/* Wait for a single endpoint logout until its own deadline or the overall deadline, whichever is sooner. An
+	 * endpoint still queued on the executor has not had its request sent yet, so its deadline is only fixed once it starts.
+	 */
+	private SSOLogoutState awaitLogout(EndpointLogout endpointLogout, Future<SSOLogoutState> future, long logoutDeadline)
+	{
+		try
+		{
+			while(true)
+			{
+				long now = System.currentTimeMillis();
+				long started = endpointLogout.started;
+				long deadline = Math.min(logoutDeadline, (started > 0 ? started : now) + this.endpointTimeout);
+				
+				try
+				{
+					// a request which completed while waiting on earlier endpoints is collected even if its deadline has passed
+					return future.get(Math.max(0, deadline - now), TimeUnit.MILLISECONDS);
+				}
+				catch(TimeoutException e)
+				{
+					// loop again if the request was still queued, so it is given its full endpoint deadline once sent
+					if(started > 0 || System.currentTimeMillis() >= logoutDeadline)
+						break;
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch(ExecutionException e)
+		{
+			this.logger.warn(MessageFormat.format("{0} Failed to log {1} out of {2}.", this.getName(), endpointLogout.principalAuthnIdentifier, endpointLogout.endPoint) ) ;
+			this.logger.trace("Trace: - ", e.getCause());
+			
+			return this.failedState(endpointLogout.endPoint, "Logout Failed");
+		}
+		
+		// The request is left to complete, the logout mechanism records it as a failure if it does not succeed.
+		this.logger.warn(MessageFormat.format("{0} Timed out logging {1} out of {2}.", this.getName(), endpointLogout.principalAuthnIdentifier, endpointLogout.endPoint) ) ;
+		
+		return this.failedState(endpointLogout.endPoint, "Logout Timed Out");
+	}
+	
+	
+	private SSOLogoutState failedState(String endPoint, String description)
+	{
+		SSOLogoutState logoutState = new SSOLogoutStateImpl();
+		
+		logoutState.setSPEPURL(endPoint);
+		logoutState.setLogoutState(false);
+		logoutState.setLogoutStateDescription(description);
+		
+		return logoutState;
+	}
+	
+
 	private SSOLogoutState performAndRecordLogout(String endPoint , List<String> indicies, String principalAuthnIdentifier)
 	{
 		// store the state of the logout request for reporting if required
@@ -129,6 +273,31 @@ public class LogoutTask implements Callable<List<SSOLogoutState>>
 		return logoutState;
 	}
 	
+	/* The logout of a principal from a single endpoint. Records when its request was sent so the caller can apply
+	 * the endpoint deadline from that point.
+	 */
+	private class EndpointLogout implements Callable<SSOLogoutState>
+	{
+		final String endPoint;
+		final List<String> indicies;
+		final String principalAuthnIdentifier;
+		volatile long started;
+		
+		EndpointLogout(String endPoint, List<String> indicies, String principalAuthnIdentifier)
+		{
+			this.endPoint = endPoint;
+			this.indicies = indicies;
+			this.principalAuthnIdentifier = principalAuthnIdentifier;
+		}
+		
+		public SSOLogoutState call()
+		{
+			this.started = System.currentTimeMillis();
+			
+			return performAndRecordLogout(this.endPoint , this.indicies, this.principalAuthnIdentifier);
+		}
+	}
+	
 	/* Set the list of Logout states to use.
 	 * 
 	 */
@@ -1,15 +1,23 @@
 package com.qut.middleware.esoe.logout.impl;
 
 import java.text.MessageFormat;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,15 +27,44 @@ import com.qut.middleware.esoe.logout.LogoutThreadPool;
 import com.qut.middleware.esoe.logout.bean.SSOLogoutState;
 import com.qut.middleware.esoe.sessions.Principal;
 
+/** Runs logout tasks on a pool of threads, taking queued tasks in priority order and in order of submission within
+ * a priority.
+ * 
+ * The number of tasks of each priority waiting to start is bounded by maxQueueSize. A caller submitting a task when
+ * its priority is full waits up to the admission timeout for room, then the task is rejected. So a sweep of idle 
+ * sessions is held back when logouts can't keep up, and can't crowd out UserLogout tasks. A task which has waited longer
+ * than the task deadline by the time a thread is free for it is not run. Queue depth, waiting and running times are
+ * recorded for monitoring.
+ */
 public class LogoutThreadPoolImpl extends ThreadPoolExecutor implements LogoutThreadPool{
 
 	private static long defaultThreadIdleTimeout = 60L;
+	private static long defaultAdmissionTimeout = 60L;
 
 	private LogoutMechanism logoutMechanism;
 	private Map<String, Future<List<SSOLogoutState>>> taskFutures;	
 	// this queue is used to control the bounds of the Future map, as maps cannot be bounded (yet we want fast access).
 	private LinkedBlockingQueue<String> taskList;
 	
+	// used to send logout requests to each endpoint concurrently, null when endpoints are logged out in turn
+	private ThreadPoolExecutor endpointExecutor;
+	private long endpointTimeout;
+	private long logoutTimeout;
+	
+	// room for tasks waiting to start, for each priority
+	private Map<priority, Semaphore> admission;
+	private long admissionTimeout;
+	private long taskDeadline;
+	
+	private AtomicLong taskSequence;
+	private AtomicLong submitted;
+	private AtomicLong rejected;
+	private AtomicLong expired;
+	private AtomicLong completed;
+	private AtomicLong totalQueueTime;
+	private AtomicLong maxQueueTime;
+	private AtomicLong totalRunTime;
+	
 	/* Local logging instance */
 	Logger logger = LoggerFactory.getLogger(LogoutThreadPoolImpl.class.getName());
 	
@@ -38,24 +75,86 @@ public class LogoutThreadPoolImpl extends ThreadPoolExecutor implements LogoutTh
 	 * @param maxThreads Maximum number of threads to have active in the thread pool.
 	 * @param maxQueueSize The maximum size of the task queue. The task queue is used to store Logout
 	 * state data for submitted tasks, which can later be retrieved via getLogoutStates(). This data is stored in a FIFO 
-	 * queue, whereby the oldest entries are purged if the queue reaches this maximum size.
+	 * queue, whereby the oldest entries are purged if the queue reaches this maximum size. It is also the number of
+	 * tasks of each priority which may wait for a thread.
 	 */
 	public LogoutThreadPoolImpl(LogoutMechanism logoutMechanism, int minThreads, int maxThreads, int maxQueueSize)
 	{
-		// super constructor will take care of  param checking
-		super(minThreads, maxThreads,  defaultThreadIdleTimeout, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		// minThreads are core threads and stay resident. The queue turns tasks away while every thread is busy, so
+		// the pool grows towards maxThreads, and admission control bounds the queue instead.
+		super(minThreads, maxThreads,  defaultThreadIdleTimeout, TimeUnit.SECONDS, new ThreadGrowingQueue(), new QueueWhenFull());
+		((ThreadGrowingQueue)this.getQueue()).pool = this;
 		
 		if(logoutMechanism == null)
 			throw new IllegalArgumentException("Param logoutMechanism MUST NOT be null.");
+		
+		if(minThreads < 0 || minThreads > maxThreads)
+			throw new IllegalArgumentException("Param minThreads MUST be between 0 and maxThreads.");
+		
+		if(maxQueueSize <= 0)
+			throw new IllegalArgumentException("Param maxQueueSize MUST be greater than 0.");
 			
 		this.logoutMechanism = logoutMechanism;
 		this.taskList = new LinkedBlockingQueue<String>(maxQueueSize);
-		this.taskFutures = new HashMap<String, Future<List<SSOLogoutState>>>();
+		this.taskFutures = new ConcurrentHashMap<String, Future<List<SSOLogoutState>>>();
+		
+		this.admission = new ConcurrentHashMap<priority, Semaphore>();
+		for(priority taskPriority : priority.values())
+			this.admission.put(taskPriority, new Semaphore(maxQueueSize));
+		this.admissionTimeout = defaultAdmissionTimeout * 1000;
+		
+		this.taskSequence = new AtomicLong();
+		this.submitted = new AtomicLong();
+		this.rejected = new AtomicLong();
+		this.expired = new AtomicLong();
+		this.completed = new AtomicLong();
+		this.totalQueueTime = new AtomicLong();
+		this.maxQueueTime = new AtomicLong();
+		this.totalRunTime = new AtomicLong();
+		
+		// Threads beyond minThreads are only kept while there is work for them.
+		this.prestartAllCoreThreads();
 		
 		this.logger.info(MessageFormat.format("Successfully created LogoutThreadPool. Min thread count {0}. Max thread count {1}. Task queue size max is {2}.", minThreads, maxThreads, maxQueueSize) );
 	}
 	
 	
+	/** Creates a pool whose tasks log a principal out of all their SPEP endpoints concurrently, rather than one
+	 * endpoint at a time.
+	 * 
+	 * @param logoutMechanism The Logout mechanism to use for logging out of principals.
+	 * @param minThreads Minumum number of threads to keep active in the thread pool.
+	 * @param maxThreads Maximum number of threads to have active in the thread pool.
+	 * @param maxQueueSize The maximum size of the task queue. See above.
+	 * @param fanOutThreads The number of threads shared by all tasks for sending logout requests to endpoints. If 0,
+	 * each task logs out of its endpoints in turn as with the standard constructor.
+	 * @param endpointTimeout Time in seconds to wait for a single endpoint to respond to a logout request.
+	 * @param logoutTimeout Time in seconds to wait for all endpoints of a principal to respond.
+	 */
+	public LogoutThreadPoolImpl(LogoutMechanism logoutMechanism, int minThreads, int maxThreads, int maxQueueSize, int fanOutThreads, long endpointTimeout, long logoutTimeout)
+	{
+		this(logoutMechanism, minThreads, maxThreads, maxQueueSize);
+		
+		if(fanOutThreads < 0)
+			throw new IllegalArgumentException("Param fanOutThreads MUST NOT be negative.");
+		
+		if(fanOutThreads > 0)
+		{
+			if(endpointTimeout <= 0 || logoutTimeout <= 0)
+				throw new IllegalArgumentException("Logout timeouts MUST be greater than 0.");
+			
+			this.endpointTimeout = endpointTimeout * 1000;
+			this.logoutTimeout = logoutTimeout * 1000;
+			
+			// endpoint requests queue rather than being rejected, a queued request's deadline only starts once it is sent
+			this.endpointExecutor = new ThreadPoolExecutor(fanOutThreads, fanOutThreads, defaultThreadIdleTimeout, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			this.endpointExecutor.allowCoreThreadTimeOut(true);
+			
+			this.logger.info(MessageFormat.format("Logout of endpoints will be sent concurrently. Fan out thread count {0}. Endpoint timeout {1} seconds. Logout timeout {2} seconds.", fanOutThreads, endpointTimeout, logoutTimeout) );
+		}
+	}
+	
+	
 	/* NOTE: The implementation of this method ensures that the task is complete for the given taskID. This being
 	 *  the case, calls to this method will block on the given task thread, if found, until it is complete.
 	 * 
@@ -76,6 +175,11 @@ public class LogoutThreadPoolImpl extends ThreadPoolExecutor implements LogoutTh
 					// blocks until task is complete
 					return task.get();
 				}
+				catch(CancellationException e)
+				{
+					this.logger.debug("Task {} was not run as it waited past its deadline.", taskID);
+					return null;
+				}
 				catch(Exception e)
 				{
 					e.printStackTrace();
@@ -96,53 +200,359 @@ public class LogoutThreadPoolImpl extends ThreadPoolExecutor implements LogoutTh
 	
 	/*
 	 * (non-Javadoc)
-	 * @see com.qut.middleware.esoe.logout.LogoutThreadPool#createLogoutTask(com.qut.middleware.esoe.sessions.Principal)
+	 * @see com.qut.middleware.esoe.logout.LogoutThreadPool#createLogoutTask(com.qut.middleware.esoe.sessions.Principal, boolean)
 	 */	
 	public String createLogoutTask(Principal principal, boolean storeState) 
 	{
-		String taskID = null;
+		return this.createLogoutTask(principal, storeState, priority.BackgroundLogout);
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.esoe.logout.LogoutThreadPool#createLogoutTask(com.qut.middleware.esoe.sessions.Principal, boolean, com.qut.middleware.esoe.logout.LogoutThreadPool.priority)
+	 */	
+	public String createLogoutTask(Principal principal, boolean storeState, priority taskPriority) 
+	{
+		if(taskPriority == null)
+			throw new IllegalArgumentException("Param taskPriority MUST NOT be null.");
 		
-		int activeThreads = this.getActiveCount();
-		int totalThreads = this.getPoolSize();
+		this.logger.debug(MessageFormat.format("Logout Thread pool size is {0}. Currently active threads is {1}. Queued tasks is {2}.", this.getPoolSize(), this.getActiveCount(), this.getQueueDepth()) );
 		
-		this.logger.debug(MessageFormat.format("Logout Thread pool size is {0}. Currently active threads is {1}.", totalThreads, activeThreads) );
-				
+		// Wait for room rather than queueing without bound.
+		Semaphore room = this.admission.get(taskPriority);
 		try
-		{			
-			// Block until threads are available to minimize Rejected Tasks.
-			while(activeThreads >= this.getMaximumPoolSize() - 1)
+		{
+			if(!room.tryAcquire(this.admissionTimeout, TimeUnit.MILLISECONDS))
 			{
-				activeThreads = this.getActiveCount();
+				this.rejected.incrementAndGet();
+				this.logger.warn(MessageFormat.format("LogoutTask Rejected - no room for {0} task after waiting {1} ms. {2} tasks queued.", taskPriority, this.admissionTimeout, this.getQueueDepth()) );
+				return null;
 			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			this.rejected.incrementAndGet();
+			this.logger.warn("LogoutTask Rejected - interrupted while waiting for room in the thread pool.");
+			return null;
+		}
+		
+		LogoutTask lTask;
+		if(this.endpointExecutor == null)
+			lTask = new LogoutTask(this.logoutMechanism, principal);
+		else
+			lTask = new LogoutTask(this.logoutMechanism, principal, this.endpointExecutor, this.endpointTimeout, this.logoutTimeout);
+		
+		long sequence = this.taskSequence.incrementAndGet();
+		String taskID = Long.toString(sequence);
+		ScheduledLogout<List<SSOLogoutState>> futureTask = new ScheduledLogout<List<SSOLogoutState>>(lTask, taskPriority, sequence, true);
 		
-			LogoutTask lTask = new LogoutTask(this.logoutMechanism, principal);
-			Future<List<SSOLogoutState>> futureTask =  super.submit(lTask);
-			taskID = new Integer(futureTask.hashCode()).toString();
+		if(storeState)
+		{	
+			this.taskFutures.put(taskID, futureTask);
 			
-			if(storeState)
-			{	
-				this.taskFutures.put(taskID, futureTask);
-				
-				// if the queue is full, adjust size of the future list
-				if( ! this.taskList.offer(taskID) )
-				{
-					// remove head of queue, then add new to tail, then removed corresponding future
-					String removed = this.taskList.poll();
-					this.taskList.add(taskID);
+			// if the queue is full, adjust size of the future list
+			if( ! this.taskList.offer(taskID) )
+			{
+				// remove head of queue, then add new to tail, then removed corresponding future
+				String removed = this.taskList.poll();
+				this.taskList.offer(taskID);
+				if(removed != null)
 					this.taskFutures.remove(removed);			
-				}
-					
-				this.logger.debug(MessageFormat.format("Added task {0} to Thread pool. Currently {1} task Futures stored.", taskID, this.taskList.size()) );
-			}			
+			}
+		}
+		
+		try
+		{
+			super.execute(futureTask);
+			this.submitted.incrementAndGet();
+			
+			this.logger.debug(MessageFormat.format("Added {0} task {1} to Thread pool. Currently {2} task Futures stored.", taskPriority, taskID, this.taskList.size()) );
 		}
 		catch(RejectedExecutionException e)
 		{
 			// an error occured schedluing the task
+			room.release();
+			this.rejected.incrementAndGet();
+			if(storeState)
+			{
+				this.taskList.remove(taskID);
+				this.taskFutures.remove(taskID);
+			}
+			
 			this.logger.error("LogoutTask Rejected - " + e.fillInStackTrace());
 			this.logger.trace("Trace: - ", e);
+			return null;
 		}
 		
 		return taskID;
 	}	
 	
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.esoe.logout.LogoutThreadPool#createLogoutTasks(java.util.List, boolean)
+	 */
+	public List<String> createLogoutTasks(List<Principal> principals, boolean storeState)
+	{
+		this.logger.debug(MessageFormat.format("Creating logout tasks for {0} principals.", principals.size()) );
+		
+		List<String> taskIDs = new ArrayList<String>(principals.size());
+		for(Principal principal : principals)
+			taskIDs.add(this.createLogoutTask(principal, storeState));
+		
+		return taskIDs;
+	}
+	
+	
+	/* Runnables submitted directly are queued as background tasks, so everything in the queue is comparable. They
+	 * are not subject to admission control.
+	 */
+	@Override
+	public void execute(Runnable command)
+	{
+		if(command instanceof ScheduledLogout)
+			super.execute(command);
+		else
+			super.execute(new ScheduledLogout<Object>(command, null, priority.BackgroundLogout, this.taskSequence.incrementAndGet()));
+	}
+	
+	
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable)
+	{
+		return new ScheduledLogout<T>(callable, priority.BackgroundLogout, this.taskSequence.incrementAndGet(), false);
+	}
+	
+	
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value)
+	{
+		return new ScheduledLogout<T>(runnable, value, priority.BackgroundLogout, this.taskSequence.incrementAndGet());
+	}
+	
+	
+	/** Sets the time a caller waits for room in the pool before its task is rejected.
+	 * 
+	 * @param admissionTimeout Time in seconds to wait, 0 rejects immediately. Defaults to 60.
+	 */
+	public void setAdmissionTimeout(long admissionTimeout)
+	{
+		if(admissionTimeout < 0)
+			throw new IllegalArgumentException("Param admissionTimeout MUST NOT be negative.");
+		
+		this.admissionTimeout = admissionTimeout * 1000;
+	}
+	
+	
+	/** Sets the longest time a task may wait for a thread. A task still waiting after this time is not run.
+	 * 
+	 * @param taskDeadline Time in seconds, 0 runs every task however long it waits. Defaults to 0.
+	 */
+	public void setTaskDeadline(long taskDeadline)
+	{
+		if(taskDeadline < 0)
+			throw new IllegalArgumentException("Param taskDeadline MUST NOT be negative.");
+		
+		this.taskDeadline = taskDeadline * 1000;
+	}
+	
+	
+	/**
+	 * @return The number of tasks waiting for a thread.
+	 */
+	public int getQueueDepth()
+	{
+		return this.getQueue().size();
+	}
+	
+	
+	/**
+	 * @return The number of logout tasks accepted since the pool was created.
+	 */
+	public long getSubmittedCount()
+	{
+		return this.submitted.get();
+	}
+	
+	
+	/**
+	 * @return The number of logout tasks rejected since the pool was created.
+	 */
+	public long getRejectedCount()
+	{
+		return this.rejected.get();
+	}
+	
+	
+	/**
+	 * @return The number of tasks not run because they waited past the task deadline.
+	 */
+	public long getExpiredCount()
+	{
+		return this.expired.get();
+	}
+	
+	
+	/**
+	 * @return The number of tasks which have been run.
+	 */
+	public long getCompletedCount()
+	{
+		return this.completed.get();
+	}
+	
+	
+	/**
+	 * @return The total time in milliseconds tasks have waited for a thread.
+	 */
+	public long getTotalQueueTime()
+	{
+		return this.totalQueueTime.get();
+	}
+	
+	
+	/**
+	 * @return The longest time in milliseconds a task has waited for a thread.
+	 */
+	public long getMaxQueueTime()
+	{
+		return this.maxQueueTime.get();
+	}
+	
+	
+	/**
+	 * @return The total time in milliseconds tasks have taken to run.
+	 */
+	public long getTotalRunTime()
+	{
+		return this.totalRunTime.get();
+	}
+	
+	
+	/* A queued task, ordered by priority then by submission. Admission room is released when the task leaves the 
+	 * queue, and the deadline is checked once a thread takes it.
+	 */
+	private class ScheduledLogout<T> extends FutureTask<T> implements Comparable<ScheduledLogout<?>>
+	{
+		private final priority taskPriority;
+		private final long sequence;
+		private final long queued;
+		private final boolean admitted;
+		
+		public ScheduledLogout(Callable<T> callable, priority taskPriority, long sequence, boolean admitted)
+		{
+			super(callable);
+			this.taskPriority = taskPriority;
+			this.sequence = sequence;
+			this.queued = System.currentTimeMillis();
+			this.admitted = admitted;
+		}
+		
+		public ScheduledLogout(Runnable runnable, T value, priority taskPriority, long sequence)
+		{
+			super(runnable, value);
+			this.taskPriority = taskPriority;
+			this.sequence = sequence;
+			this.queued = System.currentTimeMillis();
+			this.admitted = false;
+		}
+		
+		@Override
+		public void run()
+		{
+			if(this.admitted)
+				LogoutThreadPoolImpl.this.admission.get(this.taskPriority).release();
+			
+			long started = System.currentTimeMillis();
+			long waited = started - this.queued;
+			LogoutThreadPoolImpl.this.totalQueueTime.addAndGet(waited);
+			
+			long max = LogoutThreadPoolImpl.this.maxQueueTime.get();
+			while(waited > max && !LogoutThreadPoolImpl.this.maxQueueTime.compareAndSet(max, waited))
+				max = LogoutThreadPoolImpl.this.maxQueueTime.get();
+			
+			if(LogoutThreadPoolImpl.this.taskDeadline > 0 && waited > LogoutThreadPoolImpl.this.taskDeadline)
+			{
+				LogoutThreadPoolImpl.this.expired.incrementAndGet();
+				LogoutThreadPoolImpl.this.logger.warn(MessageFormat.format("{0} task {1} waited {2} ms for a thread, past its deadline. Task will not be run.", this.taskPriority, this.sequence, waited) );
+				this.cancel(false);
+				return;
+			}
+			
+			super.run();
+			
+			LogoutThreadPoolImpl.this.completed.incrementAndGet();
+			LogoutThreadPoolImpl.this.totalRunTime.addAndGet(System.currentTimeMillis() - started);
+		}
+		
+		public int compareTo(ScheduledLogout<?> other)
+		{
+			if(this.taskPriority != other.taskPriority)
+				return this.taskPriority.compareTo(other.taskPriority);
+			
+			return this.sequence < other.sequence ? -1 : (this.sequence == other.sequence ? 0 : 1);
+		}
+	}
+	
+	
+	/* Priority queue which refuses a task while every thread is busy and the pool is below maxThreads, so the
+	 * executor starts a thread for it rather than leaving it to wait.
+	 */
+	private static class ThreadGrowingQueue extends PriorityBlockingQueue<Runnable>
+	{
+		private static final long serialVersionUID = -3158712419856201034L;
+		
+		volatile LogoutThreadPoolImpl pool;
+		
+		@Override
+		public boolean offer(Runnable task)
+		{
+			LogoutThreadPoolImpl executor = this.pool;
+			if(executor != null)
+			{
+				int poolSize = executor.getPoolSize();
+				if(executor.getActiveCount() + this.size() >= poolSize && poolSize < executor.getMaximumPoolSize())
+					return false;
+			}
+			
+			return super.offer(task);
+		}
+		
+		/* Queues the task regardless of idle threads */
+		boolean force(Runnable task)
+		{
+			return super.offer(task);
+		}
+	}
+	
+	
+	/* The pool reached maxThreads between the queue refusing a task and a thread being started for it, so the
+	 * task waits in the queue after all.
+	 */
+	private static class QueueWhenFull implements RejectedExecutionHandler
+	{
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor)
+		{
+			if(executor.isShutdown())
+				throw new RejectedExecutionException("Logout thread pool has been shut down.");
+			
+			((ThreadGrowingQueue)executor.getQueue()).force(task);
+		}
+	}
+	
+	
+	/* Stop the endpoint executor along with the pool. Requests already sent are allowed to complete so failures are
+	 * still recorded.
+	 */
+	@Override
+	protected void terminated()
+	{
+		super.terminated();
+		
+		if(this.endpointExecutor != null)
+			this.endpointExecutor.shutdown();
+	}
+	
 }
@@ -0,0 +1,450 @@
+/* Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 14/10/2008
+ *
+ * Purpose: Implements the session cache interface using a single session map, a SAML ID
+ * index and a deadline ordered wheel so that cleanup only visits sessions that are due.
+ */
+package com.qut.middleware.esoe.sessions.cache.impl;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qut.middleware.esoe.logout.LogoutThreadPool;
+import com.qut.middleware.esoe.sessions.Messages;
+import com.qut.middleware.esoe.sessions.Principal;
+import com.qut.middleware.esoe.sessions.cache.SessionCache;
+import com.qut.middleware.esoe.sessions.exception.SessionCacheUpdateException;
+
+/**
+ * Implements the session cache interface with a single primary map keyed by session ID and a secondary index from
+ * SAML authn ID to session ID.
+ *
+ * Each session is held in a deadline ordered wheel of time slots at the earlier of its notOnOrAfter time and the time
+ * it would become idle. A cleanup pass only visits the slots that have fallen due. Sessions that were accessed since
+ * they were scheduled are lazily moved to a later slot, so the cost of a cleanup is proportional to the number of
+ * sessions that are due rather than the total number of sessions in the cache.
+ *
+ * The wheel is only ever touched by the thread holding the cleanup lock. Newly added sessions are handed over through
+ * a lock free queue and placed into the wheel at the start of the next cleanup pass.
+ */
+public class DeadlineSessionCacheImpl implements SessionCache
+{
+	/** Default width of a single wheel slot in milliseconds */
+	public static final long DEFAULT_SLOT_RESOLUTION = 1000;
+
+	private ConcurrentMap<String, SessionEntry> sessionMap;
+	private ConcurrentMap<String, String> samlIDIndex;
+	private ConcurrentLinkedQueue<SessionEntry> pending;
+	private TreeMap<Long, List<SessionEntry>> wheel;
+	private ReentrantLock lock;
+	private LogoutThreadPool logoutPool;
+
+	private long slotResolution;
+	private long idleTimeout;
+
+	private volatile long lastCleaned;
+
+	/* Local logging instance */
+	private Logger logger = LoggerFactory.getLogger(DeadlineSessionCacheImpl.class.getName());
+
+	/**
+	 * Constructor using the default slot resolution.
+	 *
+	 * @param logoutThreadPool
+	 *            The logout pool to use when logging idle sessions out of SPEPs.
+	 * @param timeout
+	 *            The expected idle timeout in seconds, as supplied to the sessions monitor. Used to schedule sessions
+	 *            before the first cleanup pass.
+	 */
+	public DeadlineSessionCacheImpl(LogoutThreadPool logoutThreadPool, int timeout)
+	{
+		this(logoutThreadPool, timeout, DEFAULT_SLOT_RESOLUTION);
+	}
+
+	/**
+	 * @param logoutThreadPool
+	 *            The logout pool to use when logging idle sessions out of SPEPs.
+	 * @param timeout
+	 *            The expected idle timeout in seconds, as supplied to the sessions monitor. Used to schedule sessions
+	 *            before the first cleanup pass.
+	 * @param slotResolution
+	 *            The width of a single wheel slot in milliseconds. Sessions become eligible for cleanup at most this
+	 *            long after their deadline.
+	 */
+	public DeadlineSessionCacheImpl(LogoutThreadPool logoutThreadPool, int timeout, long slotResolution)
+	{
+		if (logoutThreadPool == null)
+			throw new IllegalArgumentException("Param logoutThreadPool MUST NOT be null.");
+
+		if (timeout < 0 || (timeout > Integer.MAX_VALUE / 1000))
+			throw new IllegalArgumentException("Param timeout must be a positive number of seconds.");
+
+		if (slotResolution <= 0)
+			throw new IllegalArgumentException("Param slotResolution must be greater than 0.");
+
+		this.logoutPool = logoutThreadPool;
+		this.idleTimeout = timeout * 1000L;
+		this.slotResolution = slotResolution;
+
+		this.lock = new ReentrantLock();
+		this.lastCleaned = System.currentTimeMillis();
+		this.sessionMap = new ConcurrentHashMap<String, SessionEntry>();
+		this.samlIDIndex = new ConcurrentHashMap<String, String>();
+		this.pending = new ConcurrentLinkedQueue<SessionEntry>();
+		this.wheel = new TreeMap<Long, List<SessionEntry>>();
+
+		this.logger.info("Successfully created deadline Session Cache using a threaded logout pool. Slot resolution is {} ms.", slotResolution);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.esoe.sessions.cache.SessionCache#addSession(com.qut.middleware.esoe.sessions.Principal)
+	 */
+	public void addSession(Principal data) throws SessionCacheUpdateException
+	{
+		if (data == null || data.getSessionID() == null || data.getSAMLAuthnIdentifier() == null)
+			throw new IllegalArgumentException("Supplied principal was null or contains null required fields. Unable to add to session cache.");
+
+		String sessionID = data.getSessionID();
+		String samlID = data.getSAMLAuthnIdentifier();
+		String principalName = data.getPrincipalAuthnIdentifier();
+		if (sessionID.length() == 0)
+		{
+			this.logger.error(Messages.getString("SessionCacheImpl.0")); //$NON-NLS-1$
+			throw new IllegalArgumentException(Messages.getString("SessionCacheImpl.0")); //$NON-NLS-1$
+		}
+		if (principalName == null || principalName.length() == 0)
+		{
+			this.logger.error(Messages.getString("SessionCacheImpl.1")); //$NON-NLS-1$
+			throw new IllegalArgumentException(Messages.getString("SessionCacheImpl.1")); //$NON-NLS-1$
+		}
+
+		if (this.logger.isDebugEnabled())
+			this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.6"), principalName, sessionID)); //$NON-NLS-1$
+
+		SessionEntry entry = new SessionEntry(data);
+
+		if (this.sessionMap.putIfAbsent(sessionID, entry) != null)
+		{
+			this.logger.error(Messages.getString("SessionCacheImpl.7")); //$NON-NLS-1$
+			throw new SessionCacheUpdateException(MessageFormat.format("Attempt to add a session that already exist: {0}.", sessionID));
+		}
+
+		if (this.samlIDIndex.putIfAbsent(samlID, sessionID) != null)
+		{
+			this.sessionMap.remove(sessionID, entry);
+			this.logger.error(Messages.getString("SessionCacheImpl.9")); //$NON-NLS-1$
+			throw new SessionCacheUpdateException(MessageFormat.format("Attempt to add a session with a SAML ID that already exist: {0}.", samlID));
+		}
+
+		this.pending.add(entry);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.esoe.sessions.cache.SessionCache#getSession(java.lang.String)
+	 */
+	public Principal getSession(String sessionID)
+	{
+		if (sessionID == null)
+			return null;
+
+		SessionEntry entry = this.sessionMap.get(sessionID);
+		if (entry == null)
+			return null;
+
+		entry.principal.setLastAccessed(System.currentTimeMillis());
+		return entry.principal;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.esoe.sessions.cache.SessionCache#getSessionBySAMLID(java.lang.String)
+	 */
+	public Principal getSessionBySAMLID(String samlID)
+	{
+		if (samlID == null)
+			return null;
+
+		String sessionID = this.samlIDIndex.get(samlID);
+		if (sessionID == null)
+			return null;
+
+		return getSession(sessionID);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.esoe.sessions.cache.SessionCache#removeSession(java.lang.String)
+	 */
+	public void removeSession(String sessionID)
+	{
+		if (sessionID == null)
+			return;
+
+		if (this.logger.isDebugEnabled())
+			this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.11"), sessionID)); //$NON-NLS-1$
+
+		// The wheel entry is left behind and discarded when its slot falls due.
+		SessionEntry entry = this.sessionMap.remove(sessionID);
+		if (entry != null)
+			this.samlIDIndex.remove(entry.principal.getSAMLAuthnIdentifier(), sessionID);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.esoe.sessions.cache.SessionCache#validSession(java.lang.String)
+	 */
+	public boolean validSession(String sessionID)
+	{
+		if (sessionID == null)
+			return false;
+
+		return this.sessionMap.containsKey(sessionID);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.esoe.sessions.cache.SessionCache#getLastCleaned()
+	 */
+	public long getLastCleaned()
+	{
+		return this.lastCleaned;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.esoe.sessions.cache.SessionCache#getSize()
+	 */
+	public int getSize()
+	{
+		return this.sessionMap.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.esoe.sessions.cache.SessionCache#cleanCache(int)
+	 *
+	 * Clean up algorithm is as follows:
+	 *
+	 * Move newly added sessions into the wheel
+	 * For each session in a wheel slot that has fallen due
+	 * 		if the session has since been removed, discard it
+	 * 		if expired
+	 * 			remove from cache
+	 * 		else if idle time exceeds set limit
+	 * 			if no active SPEP sessions
+	 * 				remove from cache
+	 * 			else
+	 * 				logout any active SPEP sessions and check the session again on the next pass
+	 * 		else
+	 * 			reschedule at the new idle or expiry deadline, whichever is first
+	 */
+	public int cleanCache(int age)
+	{
+		this.logger.trace("Clean cache called ...");
+
+		// we only want one thread to call clean at any one time
+		if (!this.lock.tryLock())
+		{
+			this.logger.debug("Lock is already held by another thread. Ignoring cleanup call.");
+			return 0;
+		}
+
+		try
+		{
+			long start = System.currentTimeMillis();
+			this.lastCleaned = start;
+
+			int idleRemoved = 0;
+			int expiredRemoved = 0;
+			int logouts = 0;
+			int visited = 0;
+
+			if (age < this.idleTimeout)
+			{
+				// Sessions may have been scheduled against a longer timeout, so they have to be placed again.
+				this.logger.info("Idle timeout reduced from {} to {} ms. Rescheduling all sessions.", this.idleTimeout, age);
+				this.idleTimeout = age;
+				this.pending.clear();
+				this.wheel.clear();
+				for (SessionEntry entry : this.sessionMap.values())
+					schedule(entry, nextDeadline(entry.principal));
+			}
+			else
+			{
+				this.idleTimeout = age;
+			}
+
+			SessionEntry added;
+			while ((added = this.pending.poll()) != null)
+			{
+				// May already have been placed by a reschedule that raced with addSession
+				if (!added.scheduled)
+					schedule(added, nextDeadline(added.principal));
+			}
+
+			long now = System.currentTimeMillis();
+			long dueSlot = now / this.slotResolution;
+
+			List<SessionEntry> deferred = new ArrayList<SessionEntry>();
+
+			Map.Entry<Long, List<SessionEntry>> slot;
+			while ((slot = this.wheel.firstEntry()) != null && slot.getKey().longValue() <= dueSlot)
+			{
+				this.wheel.remove(slot.getKey());
+
+				Iterator<SessionEntry> entries = slot.getValue().iterator();
+				while (entries.hasNext())
+				{
+					SessionEntry entry = entries.next();
+					entry.scheduled = false;
+					visited++;
+
+					Principal principal = entry.principal;
+					String sessionID = principal.getSessionID();
+
+					// Removed or replaced since it was scheduled, nothing to do
+					if (this.sessionMap.get(sessionID) != entry)
+						continue;
+
+					if (now > principal.getSessionNotOnOrAfter())
+					{
+						this.logger.debug("Session ID {} has passed the maximum valid time.", sessionID);
+						removeSession(sessionID);
+						expiredRemoved++;
+						continue;
+					}
+
+					long idle = now - principal.getLastAccessed();
+					if (idle > age)
+					{
+						if (principal.getActiveEntityList().size() == 0)
+						{
+							this.logger.debug("Idle Session {} has no active descriptors. Removing from cache.", sessionID);
+							removeSession(sessionID);
+							idleRemoved++;
+							continue;
+						}
+
+						this.logger.debug("Logging idle session {} out of active descriptors.", sessionID);
+
+						// don't store any logout states, we don't care.
+						if (this.logoutPool.createLogoutTask(principal, false) != null)
+						{
+							this.logger.debug("Successfully added LogoutTask to thread pool.");
+							logouts++;
+						}
+						else
+						{
+							this.logger.warn("Failed to add LogoutTask to thread pool. Consider increasing thread limit to increase throughput.");
+						}
+
+						// Check the session again on the next pass, it will be removed once no descriptors remain.
+						deferred.add(entry);
+						continue;
+					}
+
+					schedule(entry, nextDeadline(principal));
+				}
+			}
+
+			long nextPass = now + this.slotResolution;
+			for (SessionEntry entry : deferred)
+				schedule(entry, nextPass);
+
+			long duration = System.currentTimeMillis() - start;
+			this.logger.info(MessageFormat.format("Completed cache cleanup in {0} milliseconds. {1} sessions visited. {2} Idle, {3} Expired sessions removed. {4} sessions logged out. Current Map size is {5}.", duration, visited, idleRemoved, expiredRemoved, logouts, this.sessionMap.size()));
+
+			this.lastCleaned = System.currentTimeMillis();
+
+			return (expiredRemoved + idleRemoved);
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	public void addEntitySessionIndex(Principal principal, String entityID, String sessionIndex) throws SessionCacheUpdateException
+	{
+		// This method intentionally left blank
+	}
+
+	public void updatePrincipalAttributes(Principal principal) throws SessionCacheUpdateException
+	{
+		// This method intentionally left blank
+	}
+
+	/*
+	 * Returns the earlier of the session expiry and the time at which the session will be idle for longer than the
+	 * current idle timeout.
+	 */
+	private long nextDeadline(Principal principal)
+	{
+		long idleDeadline = principal.getLastAccessed() + this.idleTimeout + 1;
+		return Math.min(principal.getSessionNotOnOrAfter() + 1, idleDeadline);
+	}
+
+	/* Must only be called while holding the cleanup lock */
+	private void schedule(SessionEntry entry, long deadline)
+	{
+		// Round up, so that a session is never visited before its deadline has passed.
+		Long slot = Long.valueOf((deadline + this.slotResolution - 1) / this.slotResolution);
+
+		List<SessionEntry> entries = this.wheel.get(slot);
+		if (entries == null)
+		{
+			entries = new ArrayList<SessionEntry>();
+			this.wheel.put(slot, entries);
+		}
+
+		entries.add(entry);
+		entry.scheduled = true;
+	}
+
+	/* Holder placed in both the primary map and the wheel, used to detect stale wheel entries by identity. */
+	private static final class SessionEntry
+	{
+		final Principal principal;
+
+		/* Whether the entry currently sits in a wheel slot. Only accessed while holding the cleanup lock. */
+		boolean scheduled;
+
+		SessionEntry(Principal principal)
+		{
+			this.principal = principal;
+		}
+	}
+}
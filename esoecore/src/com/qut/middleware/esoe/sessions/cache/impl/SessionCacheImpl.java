@@ -21,7 +21,6 @@ package com.qut.middleware.esoe.sessions.cache.impl;
 
 import java.text.MessageFormat;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -30,8 +29,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantLock;
 
-import javax.xml.datatype.XMLGregorianCalendar;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -75,7 +72,7 @@ public class SessionCacheImpl implements SessionCache
 		this.logoutPool = logoutThreadPool;
 		
 		this.lock = new ReentrantLock();
-		this.lastCleaned = System.currentTimeMillis();
+		this.lastCleaned = CalendarUtils.currentTimeMillis();
 		this.sessionMap = new ConcurrentHashMap<String, Principal>();
 		
 		this.logger.info("Successfully created Session Cache using a threaded logout pool." ); 
@@ -138,7 +135,7 @@ public class SessionCacheImpl implements SessionCache
 		Principal princ = this.sessionMap.get(sessionID);
 		
 		if(null != princ)
-			princ.setLastAccessed(System.currentTimeMillis());
+			princ.setLastAccessed(CalendarUtils.currentTimeMillis());
 		
 		return princ;
 	}
@@ -156,7 +153,7 @@ public class SessionCacheImpl implements SessionCache
 		Principal princ = this.sessionMap.get(samlID);
 		
 		if(null != princ)
-			princ.setLastAccessed(System.currentTimeMillis());
+			princ.setLastAccessed(CalendarUtils.currentTimeMillis());
 		
 		return princ;
 	}
@@ -238,15 +235,14 @@ public class SessionCacheImpl implements SessionCache
 			try
 			{			
 				// we'll set at start and end to stop any other processes cleaning it at random intervals.
-				this.setLastCleaned(System.currentTimeMillis());
+				this.setLastCleaned(CalendarUtils.currentTimeMillis());
 				
 				this.logger.debug(MessageFormat.format("Starting cache clean. Current Map size is {0}." , this.sessionMap.size()) );
 				
 				Set<Entry<String, Principal>> entryList = this.sessionMap.entrySet();
 				Iterator<Entry<String, Principal>> entryIterator = entryList.iterator();
 				
-				XMLGregorianCalendar thisXmlCal = CalendarUtils.generateXMLCalendar();
-				GregorianCalendar thisCal = thisXmlCal.toGregorianCalendar();
+				long cleanStart = CalendarUtils.currentTimeMillis();
 				
 				int numIterations = 0;
 				while (entryIterator.hasNext())
@@ -256,7 +252,7 @@ public class SessionCacheImpl implements SessionCache
 					Entry<String, Principal> entry = entryIterator.next();
 					if(entry != null)
 					{						
-						long now = System.currentTimeMillis();
+						long now = CalendarUtils.currentTimeMillis();
 						long idle = (now - entry.getValue().getLastAccessed());
 						
 						long notOnOrAfter = entry.getValue().getSessionNotOnOrAfter();
@@ -274,9 +270,9 @@ public class SessionCacheImpl implements SessionCache
 						this.logger.trace(MessageFormat.format("Processing session {0} with principal ID {1}", entry.getKey(), principalSessionID) );
 						
 						// Remove any sessions that have been idle too long
-						this.logger.trace(MessageFormat.format("Comparing Session notOnOrAfter time of {0} against current time of {1}.",  new Date(notOnOrAfter), thisCal.getTime()) ); //$NON-NLS-1$
+						this.logger.trace(MessageFormat.format("Comparing Session notOnOrAfter time of {0} against current time of {1}.",  new Date(notOnOrAfter), new Date(cleanStart)) ); //$NON-NLS-1$
 					
-						if (thisCal.getTimeInMillis() > notOnOrAfter)
+						if (cleanStart > notOnOrAfter)
 						{			
 							this.logger.debug(MessageFormat.format("Session ID {0} has passed the maximum valid time. ", entry.getKey()) ); //$NON-NLS-1$
 							
@@ -326,11 +322,11 @@ public class SessionCacheImpl implements SessionCache
 				this.logger.debug(MessageFormat.format("Cleanup process did {0} iterations over cache Map.", numIterations) );
 				
 				
-				long duration = System.currentTimeMillis() - thisCal.getTimeInMillis();
+				long duration = CalendarUtils.currentTimeMillis() - cleanStart;
 		
 				this.logger.info(MessageFormat.format("Completed cache cleanup in {0} milliseconds. {1} Idle, {2} Expired sessions removed. {3} sessions logged out. Current Map size is {4}.", duration ,  idleRemoved, expiredRemoved, logouts,  this.sessionMap.size()) );
 			
-				this.setLastCleaned(System.currentTimeMillis());
+				this.setLastCleaned(CalendarUtils.currentTimeMillis());
 
 				return (expiredRemoved + idleRemoved);
 			}
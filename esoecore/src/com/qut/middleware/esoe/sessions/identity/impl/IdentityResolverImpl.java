@@ -21,9 +21,22 @@
 package com.qut.middleware.esoe.sessions.identity.impl;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +45,7 @@ import com.qut.middleware.esoe.sessions.Messages;
 import com.qut.middleware.esoe.sessions.bean.IdentityAttribute;
 import com.qut.middleware.esoe.sessions.bean.IdentityData;
 import com.qut.middleware.esoe.sessions.bean.impl.IdentityAttributeImpl;
+import com.qut.middleware.esoe.sessions.bean.impl.IdentityDataImpl;
 import com.qut.middleware.esoe.sessions.exception.DataSourceException;
 import com.qut.middleware.esoe.sessions.exception.DuplicateSessionException;
 import com.qut.middleware.esoe.sessions.exception.HandlerRegistrationException;
@@ -40,10 +54,28 @@ import com.qut.middleware.esoe.sessions.identity.pipeline.Handler;
 import com.qut.middleware.saml2.schemas.esoe.sessions.AttributeType;
 import com.qut.middleware.saml2.schemas.esoe.sessions.IdentityType;
 
-/** */
+/**
+ * Implements the IdentityResolver interface to resolve identities using supplied handlers.
+ * 
+ * By default each handler is executed in turn against the identity data. When constructed with handler threads the
+ * handlers are treated as independent and executed concurrently, each against its own copy of the identity data. The
+ * values each handler resolves are then merged into the identity data in handler registration order, so the result is
+ * the same as if the handlers had been executed in turn. A handler which does not complete within the handler timeout,
+ * measured from when it starts executing, fails the resolution with a DataSourceException.
+ * 
+ * When a cache timeout is set the values resolved for a principal are kept for that long, and a principal who logs in
+ * again within that time is given them without the handlers being executed.
+ */
 public class IdentityResolverImpl implements IdentityResolver
 {
+	/** Maximum number of principals kept in the identity cache */
+	public static final int MAX_CACHE_SIZE = 10000;
+
 	private List<Handler> handlers;
+	private ThreadPoolExecutor handlerExecutor;
+	private long handlerTimeout;
+	private long cacheTimeout;
+	private ConcurrentMap<String, CachedIdentity> identityCache;
 	
 	/* Local logging instance */
 	private Logger logger = LoggerFactory.getLogger(IdentityResolverImpl.class.getName());
@@ -53,14 +85,40 @@ public class IdentityResolverImpl implements IdentityResolver
 	 * @param handlers The list of handlers to use for resolving identity.
 	 */
 	public IdentityResolverImpl(List<Handler> handlers)
+	{
+		this(handlers, 0, 0, 0);
+	}
+
+	/**
+	 * Constructor
+	 * @param handlers The list of handlers to use for resolving identity.
+	 * @param handlerThreads The number of threads used to execute handlers concurrently. 0 executes each handler in turn.
+	 * @param handlerTimeout Time in seconds a handler may execute for when executed concurrently. 0 waits indefinitely.
+	 * @param cacheTimeout Time in seconds resolved identities are cached for each principal. 0 disables the cache.
+	 */
+	public IdentityResolverImpl(List<Handler> handlers, int handlerThreads, int handlerTimeout, int cacheTimeout)
 	{
 		if (handlers == null)
 		{
 			throw new IllegalArgumentException(Messages.getString("IdentityResolverImpl.0")); //$NON-NLS-1$
 		}
+		if (handlerThreads < 0 || handlerTimeout < 0 || cacheTimeout < 0)
+		{
+			throw new IllegalArgumentException(Messages.getString("IdentityResolverImpl.8")); //$NON-NLS-1$
+		}
 		this.handlers = Collections.synchronizedList(handlers);
 		
+		if (handlerThreads > 0)
+		{
+			this.handlerExecutor = new ThreadPoolExecutor(handlerThreads, handlerThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			this.handlerExecutor.allowCoreThreadTimeOut(true);
+		}
+		this.handlerTimeout = handlerTimeout * 1000L;
+		this.cacheTimeout = cacheTimeout * 1000L;
+		this.identityCache = new ConcurrentHashMap<String, CachedIdentity>();
+		
 		this.logger.info(MessageFormat.format(Messages.getString("IdentityResolverImpl.1"), Integer.toString(handlers.size()))); //$NON-NLS-1$
+		this.logger.info(MessageFormat.format(Messages.getString("IdentityResolverImpl.9"), Integer.toString(handlerThreads), Integer.toString(handlerTimeout), Integer.toString(cacheTimeout))); //$NON-NLS-1$
 	}
 
 	/*
@@ -136,28 +194,369 @@ public class IdentityResolverImpl implements IdentityResolver
 		
 		this.logger.debug(MessageFormat.format(Messages.getString("IdentityResolverImpl.4"), Integer.toString(attributeCount))); //$NON-NLS-1$
 
-		Iterator<Handler> handlerIterator = this.handlers.iterator();
-		if (!handlerIterator.hasNext())
+		List<Handler> registeredHandlers;
+		synchronized (this.handlers)
+		{
+			registeredHandlers = new ArrayList<Handler>(this.handlers);
+		}
+		
+		if (registeredHandlers.isEmpty())
 		{
 			this.logger.error(Messages.getString("IdentityResolverImpl.5")); //$NON-NLS-1$
 
 			// Doesn't have any handlers. That's a problem.
 			throw new HandlerRegistrationException();
 		}
-		while (handlerIterator.hasNext())
+		
+		String principal = data.getPrincipalAuthnIdentifier();
+		if (this.cacheTimeout > 0 && principal != null)
+		{
+			CachedIdentity cachedIdentity = this.identityCache.get(principal);
+			if (cachedIdentity != null)
+			{
+				if (cachedIdentity.expiry > System.currentTimeMillis())
+				{
+					merge(data, cachedIdentity.resolved);
+					
+					this.logger.debug(MessageFormat.format(Messages.getString("IdentityResolverImpl.10"), principal)); //$NON-NLS-1$
+					return;
+				}
+				
+				this.identityCache.remove(principal, cachedIdentity);
+			}
+		}
+		
+		List<ResolvedAttributes> resolved;
+		if (this.handlerExecutor != null && registeredHandlers.size() > 1)
+		{
+			resolved = executeConcurrently(registeredHandlers, data);
+			merge(data, resolved);
+		}
+		else
+		{
+			resolved = executeInTurn(registeredHandlers, data);
+		}
+		
+		if (this.cacheTimeout > 0 && principal != null)
+		{
+			cache(principal, resolved);
+		}
+		
+		this.logger.debug(MessageFormat.format(Messages.getString("IdentityResolverImpl.7"), data.getPrincipalAuthnIdentifier())); //$NON-NLS-1$
+	}
+	
+	/**
+	 * Removes any cached identity for the principal, so it is resolved by the handlers on their next login.
+	 * 
+	 * @param principalAuthnIdentifier The principal to remove.
+	 */
+	public void invalidate(String principalAuthnIdentifier)
+	{
+		this.identityCache.remove(principalAuthnIdentifier);
+	}
+	
+	/* Execute each handler in turn directly against the identity data, recording what each resolved only if it will
+	 * be cached.
+	 */
+	private List<ResolvedAttributes> executeInTurn(List<Handler> registeredHandlers, IdentityData data) throws DataSourceException
+	{
+		List<ResolvedAttributes> resolved = new ArrayList<ResolvedAttributes>();
+		
+		for (Handler handler : registeredHandlers)
 		{
-			// Loop through all handlers
-			Handler handler = handlerIterator.next();
+			Map<String, Integer> valueCounts = (this.cacheTimeout > 0) ? countValues(data) : null;
+			
 			data.setCurrentHandler(handler.getHandlerName());
-			Handler.result result = handler.execute(data);
-			if (!result.equals(Handler.result.Successful))
+			executeHandler(handler, data);
+			
+			if (valueCounts != null)
 			{
-				// Should never happen.
-				this.logger.error(MessageFormat.format(Messages.getString("IdentityResolverImpl.6"), handler.getHandlerName())); //$NON-NLS-1$
+				resolved.add(new ResolvedAttributes(handler.getHandlerName(), data, valueCounts));
 			}
 		}
 		
-		this.logger.debug(MessageFormat.format(Messages.getString("IdentityResolverImpl.7"), data.getPrincipalAuthnIdentifier())); //$NON-NLS-1$
+		return resolved;
+	}
+	
+	/* Execute every handler on the handler executor against its own copy of the identity data, and collect what each
+	 * resolved in handler order.
+	 */
+	private List<ResolvedAttributes> executeConcurrently(List<Handler> registeredHandlers, IdentityData data) throws DataSourceException
+	{
+		Map<String, Integer> valueCounts = countValues(data);
+		List<HandlerExecution> executions = new ArrayList<HandlerExecution>();
+		List<Future<ResolvedAttributes>> futures = new ArrayList<Future<ResolvedAttributes>>();
+		
+		try
+		{
+			for (Handler handler : registeredHandlers)
+			{
+				HandlerExecution execution = new HandlerExecution(handler, copy(data, handler.getHandlerName()), valueCounts);
+				executions.add(execution);
+				
+				try
+				{
+					futures.add(this.handlerExecutor.submit(execution));
+				}
+				catch (RejectedExecutionException e)
+				{
+					// Executor is no longer accepting work, resolve on this thread instead
+					futures.add(null);
+				}
+			}
+			
+			List<ResolvedAttributes> resolved = new ArrayList<ResolvedAttributes>();
+			for (int i = 0; i < executions.size(); i++)
+			{
+				HandlerExecution execution = executions.get(i);
+				Future<ResolvedAttributes> future = futures.get(i);
+				
+				resolved.add((future == null) ? execution.call() : awaitHandler(execution, future));
+			}
+			
+			return resolved;
+		}
+		finally
+		{
+			// Results are discarded once one handler has failed, so there is no point letting the others continue.
+			for (Future<ResolvedAttributes> future : futures)
+			{
+				if (future != null)
+				{
+					future.cancel(true);
+				}
+			}
+		}
+	}
+	
+	/* Wait for a handler until its timeout passes. A handler still queued on the executor has not started yet, so its
+	 * timeout is only fixed once it starts.
+	 */
+	private ResolvedAttributes awaitHandler(HandlerExecution execution, Future<ResolvedAttributes> future) throws DataSourceException
+	{
+		try
+		{
+			if (this.handlerTimeout == 0)
+			{
+				return future.get();
+			}
+			
+			while (true)
+			{
+				long now = System.currentTimeMillis();
+				long started = execution.started;
+				long deadline = (started > 0 ? started : now) + this.handlerTimeout;
+				
+				try
+				{
+					return future.get(Math.max(0, deadline - now), TimeUnit.MILLISECONDS);
+				}
+				catch (TimeoutException e)
+				{
+					// loop again if the handler was still queued, so it is given its full timeout once started
+					if (started > 0)
+					{
+						String message = MessageFormat.format(Messages.getString("IdentityResolverImpl.11"), execution.handler.getHandlerName(), Long.toString(this.handlerTimeout)); //$NON-NLS-1$
+						this.logger.error(message);
+						throw new DataSourceException(message);
+					}
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new DataSourceException(e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof DataSourceException)
+			{
+				throw (DataSourceException) cause;
+			}
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+			throw new DataSourceException((Exception) cause);
+		}
+	}
+	
+	private void executeHandler(Handler handler, IdentityData data) throws DataSourceException
+	{
+		Handler.result result = handler.execute(data);
+		if (!result.equals(Handler.result.Successful))
+		{
+			// Should never happen.
+			this.logger.error(MessageFormat.format(Messages.getString("IdentityResolverImpl.6"), handler.getHandlerName())); //$NON-NLS-1$
+		}
+	}
+	
+	/* Merge the values resolved by each handler into the identity data, in handler order */
+	private void merge(IdentityData data, List<ResolvedAttributes> resolved)
+	{
+		for (ResolvedAttributes resolvedAttributes : resolved)
+		{
+			data.setCurrentHandler(resolvedAttributes.handlerName);
+			
+			for (Map.Entry<String, IdentityAttribute> entry : resolvedAttributes.attributes.entrySet())
+			{
+				IdentityAttribute resolvedAttribute = entry.getValue();
+				IdentityAttribute identityAttribute = data.getAttributes().get(entry.getKey());
+				
+				if (identityAttribute == null)
+				{
+					// A handler may add attributes which were not configured for the identity
+					data.getAttributes().put(entry.getKey(), copy(resolvedAttribute, 0));
+				}
+				else
+				{
+					identityAttribute.getValues().addAll(resolvedAttribute.getValues());
+				}
+			}
+		}
+	}
+	
+	private void cache(String principal, List<ResolvedAttributes> resolved)
+	{
+		long now = System.currentTimeMillis();
+		
+		if (this.identityCache.size() >= MAX_CACHE_SIZE)
+		{
+			Iterator<CachedIdentity> cacheIterator = this.identityCache.values().iterator();
+			while (cacheIterator.hasNext())
+			{
+				if (cacheIterator.next().expiry <= now)
+				{
+					cacheIterator.remove();
+				}
+			}
+			
+			if (this.identityCache.size() >= MAX_CACHE_SIZE)
+			{
+				this.logger.warn(MessageFormat.format(Messages.getString("IdentityResolverImpl.12"), principal)); //$NON-NLS-1$
+				return;
+			}
+		}
+		
+		this.identityCache.put(principal, new CachedIdentity(now + this.cacheTimeout, resolved));
+	}
+	
+	/* The number of values each attribute has before a handler is executed */
+	private static Map<String, Integer> countValues(IdentityData data)
+	{
+		Map<String, Integer> valueCounts = new HashMap<String, Integer>();
+		for (Map.Entry<String, IdentityAttribute> entry : data.getAttributes().entrySet())
+		{
+			valueCounts.put(entry.getKey(), Integer.valueOf(entry.getValue().getValues().size()));
+		}
+		
+		return valueCounts;
+	}
+	
+	/* Copy the identity data for a handler to execute against */
+	private static IdentityData copy(IdentityData data, String handlerName)
+	{
+		IdentityData handlerData = new IdentityDataImpl();
+		handlerData.setIdentity(data.getIdentity());
+		handlerData.setPrincipalAuthnIdentifier(data.getPrincipalAuthnIdentifier());
+		handlerData.setSessionID(data.getSessionID());
+		handlerData.setCurrentHandler(handlerName);
+		
+		for (Map.Entry<String, IdentityAttribute> entry : data.getAttributes().entrySet())
+		{
+			handlerData.getAttributes().put(entry.getKey(), copy(entry.getValue(), 0));
+		}
+		
+		return handlerData;
+	}
+	
+	/* Copy an attribute, keeping the values from the given index onwards */
+	private static IdentityAttribute copy(IdentityAttribute attribute, int fromValue)
+	{
+		IdentityAttribute identityAttribute = new IdentityAttributeImpl();
+		identityAttribute.setType(attribute.getType());
+		
+		List<Object> values = attribute.getValues();
+		synchronized (values)
+		{
+			identityAttribute.getValues().addAll(values.subList(Math.min(fromValue, values.size()), values.size()));
+		}
+		identityAttribute.getHandlers().addAll(attribute.getHandlers());
+		
+		return identityAttribute;
+	}
+	
+	/* The attribute values added by a single handler. */
+	private static class ResolvedAttributes
+	{
+		final String handlerName;
+		final Map<String, IdentityAttribute> attributes;
+		
+		ResolvedAttributes(String handlerName, IdentityData data, Map<String, Integer> valueCounts)
+		{
+			this.handlerName = handlerName;
+			this.attributes = new HashMap<String, IdentityAttribute>();
+			
+			for (Map.Entry<String, IdentityAttribute> entry : data.getAttributes().entrySet())
+			{
+				Integer valueCount = valueCounts.get(entry.getKey());
+				IdentityAttribute attribute = entry.getValue();
+				
+				if (valueCount == null)
+				{
+					this.attributes.put(entry.getKey(), copy(attribute, 0));
+				}
+				else if (attribute.getValues().size() > valueCount.intValue())
+				{
+					this.attributes.put(entry.getKey(), copy(attribute, valueCount.intValue()));
+				}
+			}
+		}
+	}
+	
+	/* The attribute values resolved for a principal, and when they expire */
+	private static class CachedIdentity
+	{
+		final long expiry;
+		final List<ResolvedAttributes> resolved;
+		
+		CachedIdentity(long expiry, List<ResolvedAttributes> resolved)
+		{
+			this.expiry = expiry;
+			this.resolved = resolved;
+		}
+	}
+	
+	/* The execution of a single handler against its own copy of the identity data. Records when it started so the
+	 * caller can apply the handler timeout from that point.
+	 */
+	private class HandlerExecution implements Callable<ResolvedAttributes>
+	{
+		final Handler handler;
+		final IdentityData handlerData;
+		final Map<String, Integer> valueCounts;
+		volatile long started;
+		
+		HandlerExecution(Handler handler, IdentityData handlerData, Map<String, Integer> valueCounts)
+		{
+			this.handler = handler;
+			this.handlerData = handlerData;
+			this.valueCounts = valueCounts;
+		}
+		
+		public ResolvedAttributes call() throws DataSourceException
+		{
+			this.started = System.currentTimeMillis();
+			
+			executeHandler(this.handler, this.handlerData);
+			
+			return new ResolvedAttributes(this.handler.getHandlerName(), this.handlerData, this.valueCounts);
+		}
 	}
-
 }
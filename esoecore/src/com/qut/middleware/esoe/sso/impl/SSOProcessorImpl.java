@@ -131,8 +131,6 @@ public class SSOProcessorImpl implements SSOProcessor
 	private final String UTF16 = "UTF-16";
 	private final String UTF16LE = "UTF-16LE";
 	private final String UTF16BE = "UTF-16BE";
-	
-	private final String DEFAULT_CHARSET = UTF16;
 
 	private String sessionTokenName;
 
@@ -674,12 +672,12 @@ public class SSOProcessorImpl implements SSOProcessor
 	{
 		byte[] responseDocument;
 		
+		/* Without a charset the marshaller's configured wire encoding is used */
 		if (charset == null)
 		{
-			charset = DEFAULT_CHARSET;
+			responseDocument = signed ? this.marshaller.marshallSigned(responseObject) : this.marshaller.marshallUnSigned(responseObject);
 		}
-		
-		if (signed)
+		else if (signed)
 		{
 			responseDocument = this.marshaller.marshallSigned(responseObject, charset);
 		}
@@ -702,12 +700,12 @@ public class SSOProcessorImpl implements SSOProcessor
 	{
 		Element responseDocument;
 		
+		/* Without a charset the marshaller's configured wire encoding is used */
 		if (charset == null)
 		{
-			charset = DEFAULT_CHARSET;
+			responseDocument = signed ? this.marshaller.marshallSignedElement(responseObject) : this.marshaller.marshallUnSignedElement(responseObject);
 		}
-		
-		if (signed)
+		else if (signed)
 		{
 			responseDocument = this.marshaller.marshallSignedElement(responseObject, charset);
 		}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Sends SOAP documents over HTTP connections which are kept alive and reused for each endpoint
+ */
+package com.qut.middleware.esoe.ws.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.icu.text.CharsetDetector;
+import com.ibm.icu.text.CharsetMatch;
+import com.qut.middleware.esoe.ws.WSTransport;
+import com.qut.middleware.esoe.ws.exception.WSClientException;
+
+/**
+ * Sends SOAP documents over HTTP connections which are kept alive and reused for each endpoint.
+ *
+ * Idle connections are pooled by the JVM keep alive cache, which holds up to <code>http.maxConnections</code>
+ * connections (default 5) for each host and port. A connection is only returned to that cache once its response has
+ * been read to the end and closed, so every exchange here drains the response, including error responses. The number
+ * of requests in flight to one endpoint is bounded so that bursts reuse pooled connections rather than opening new
+ * ones the cache will discard.
+ */
+public class HttpWSTransportImpl implements WSTransport
+{
+	/** Default time to wait for a connection to be established, in seconds */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10;
+	/** Default time to wait for response data, in seconds */
+	public static final int DEFAULT_READ_TIMEOUT = 60;
+	/** Default number of requests in flight to each endpoint, matches the JVM default for http.maxConnections */
+	public static final int DEFAULT_MAX_CONNECTIONS = 5;
+	/** Default largest response accepted from an endpoint, in bytes */
+	public static final int DEFAULT_MAX_RESPONSE_SIZE = 4 * 1024 * 1024;
+
+	private static final String CONTENT_TYPE = "Content-Type";
+	// SOAP Action is specified for backward compatibility with Axis-based SPEP web services.
+	private static final String SOAP_ACTION = "SOAPAction";
+	private static final String POST = "POST";
+	private static final String CHARSET = "charset=";
+	private static final String XML_PROLOG = "<?xml";
+	private static final String XML_ENCODING = "encoding";
+	private static final String XML_DEFAULT_CHARSET = "UTF-8";
+	private static final int PROLOG_SIZE = 256;
+	private static final int BUF_SIZE = 8192;
+
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int maxConnections;
+	private final int maxResponseSize;
+	private final ConcurrentMap<String, Semaphore> endpointPermits;
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	/**
+	 * Creates a transport with the default timeouts, connection limit and response size limit.
+	 */
+	public HttpWSTransportImpl()
+	{
+		this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * Creates a transport with the default response size limit.
+	 *
+	 * @param connectTimeout Time to wait for a connection to be established, in seconds. 0 waits indefinitely.
+	 * @param readTimeout Time to wait for response data, in seconds. 0 waits indefinitely.
+	 * @param maxConnections Number of requests allowed in flight to each endpoint. 0 is unbounded.
+	 */
+	public HttpWSTransportImpl(int connectTimeout, int readTimeout, int maxConnections)
+	{
+		this(connectTimeout, readTimeout, maxConnections, DEFAULT_MAX_RESPONSE_SIZE);
+	}
+
+	/**
+	 * @param connectTimeout Time to wait for a connection to be established, in seconds. 0 waits indefinitely.
+	 * @param readTimeout Time to wait for response data, in seconds. 0 waits indefinitely.
+	 * @param maxConnections Number of requests allowed in flight to each endpoint. 0 is unbounded.
+	 * @param maxResponseSize Largest response accepted from an endpoint, in bytes. Larger responses fail the request.
+	 */
+	public HttpWSTransportImpl(int connectTimeout, int readTimeout, int maxConnections, int maxResponseSize)
+	{
+		if (connectTimeout < 0)
+			throw new IllegalArgumentException("Connect timeout must not be negative");
+
+		if (readTimeout < 0)
+			throw new IllegalArgumentException("Read timeout must not be negative");
+
+		if (maxConnections < 0)
+			throw new IllegalArgumentException("Max connections must not be negative");
+
+		if (maxResponseSize <= 0)
+			throw new IllegalArgumentException("Max response size must be positive");
+
+		this.connectTimeout = connectTimeout * 1000;
+		this.readTimeout = readTimeout * 1000;
+		this.maxConnections = maxConnections;
+		this.maxResponseSize = maxResponseSize;
+		this.endpointPermits = new ConcurrentHashMap<String, Semaphore>();
+
+		this.logger.info("Created HttpWSTransportImpl with connect timeout {}s, read timeout {}s, {} connections per endpoint and maximum response size {} bytes", new Object[] { connectTimeout, readTimeout, maxConnections, maxResponseSize });
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.esoe.ws.WSTransport#invoke(java.lang.String, java.lang.String, java.lang.String, byte[])
+	 */
+	public byte[] invoke(String endpoint, String soapAction, String contentType, byte[] request) throws WSClientException
+	{
+		URL url;
+		try
+		{
+			url = new URL(endpoint);
+		}
+		catch (MalformedURLException e)
+		{
+			this.logger.debug("WS endpoint URL {} was malformed. Unable to perform query", new Object[] { endpoint }, e);
+			throw new WSClientException("WS endpoint URL " + endpoint + " was malformed. Error was: " + e.getMessage());
+		}
+
+		Semaphore permit = acquire(url);
+		try
+		{
+			return exchange(url, soapAction, contentType, request);
+		}
+		finally
+		{
+			if (permit != null)
+				permit.release();
+		}
+	}
+
+	/**
+	 * Detects the character set of an XML document. The charset parameter of the content type is preferred, then a
+	 * byte order mark or the encoding declared by the XML prolog, and finally statistical detection of the content.
+	 *
+	 * @param document The XML document.
+	 * @param contentType The content type the document was received with, may be null.
+	 * @return The name of a supported character set, or null if none could be determined.
+	 */
+	public static String detectCharset(byte[] document, String contentType)
+	{
+		String charset = supported(contentTypeCharset(contentType));
+
+		if (charset == null)
+			charset = supported(prologCharset(document));
+
+		if (charset == null)
+		{
+			CharsetDetector detector = new CharsetDetector();
+			detector.setText(document);
+			CharsetMatch match = detector.detect();
+			if (match != null)
+				charset = supported(match.getName());
+		}
+
+		return charset;
+	}
+
+	/* Waits for a free connection to the endpoint, for no longer than it would wait to connect. */
+	private Semaphore acquire(URL url) throws WSClientException
+	{
+		if (this.maxConnections == 0)
+			return null;
+
+		String key = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+		Semaphore permit = this.endpointPermits.get(key);
+		if (permit == null)
+		{
+			Semaphore created = new Semaphore(this.maxConnections, true);
+			permit = this.endpointPermits.putIfAbsent(key, created);
+			if (permit == null)
+				permit = created;
+		}
+
+		try
+		{
+			if (this.connectTimeout == 0)
+			{
+				permit.acquire();
+				return permit;
+			}
+
+			if (permit.tryAcquire(this.connectTimeout, TimeUnit.MILLISECONDS))
+				return permit;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new WSClientException("Interrupted while waiting for a connection to " + url);
+		}
+
+		throw new WSClientException("Timed out waiting for a connection to " + url);
+	}
+
+	private byte[] exchange(URL url, String soapAction, String contentType, byte[] request) throws WSClientException
+	{
+		HttpURLConnection connection = null;
+		try
+		{
+			URLConnection urlConnection = url.openConnection();
+			if (!(urlConnection instanceof HttpURLConnection))
+				throw new WSClientException("WS endpoint URL " + url + " is not an HTTP endpoint");
+
+			connection = (HttpURLConnection) urlConnection;
+			connection.setConnectTimeout(this.connectTimeout);
+			connection.setReadTimeout(this.readTimeout);
+			connection.setUseCaches(false);
+			connection.setDoInput(true);
+			connection.setDoOutput(true);
+			connection.setRequestMethod(POST);
+			connection.setFixedLengthStreamingMode(request.length);
+			connection.setRequestProperty(CONTENT_TYPE, contentType);
+			connection.setRequestProperty(SOAP_ACTION, soapAction);
+
+			OutputStream out = connection.getOutputStream();
+			try
+			{
+				out.write(request);
+			}
+			finally
+			{
+				out.close();
+			}
+
+			int status = connection.getResponseCode();
+			if (status >= HttpURLConnection.HTTP_BAD_REQUEST)
+			{
+				// Read the error body so the connection can still be reused
+				InputStream error = connection.getErrorStream();
+				if (error != null)
+					read(error, connection.getContentLength());
+
+				throw new WSClientException("WS endpoint " + url + " returned HTTP status " + status);
+			}
+
+			byte[] response = read(connection.getInputStream(), connection.getContentLength());
+
+			if (this.logger.isTraceEnabled())
+			{
+				String charset = detectCharset(response, connection.getContentType());
+				this.logger.trace(charset == null ? new String(response) : new String(response, Charset.forName(charset)));
+			}
+
+			return response;
+		}
+		catch (IOException e)
+		{
+			// The connection may be part way through a response, so it must not be reused
+			if (connection != null)
+				connection.disconnect();
+
+			this.logger.debug("IO exception occurred while communicating with WS endpoint " + url, e);
+			throw new WSClientException("IO exception occurred while communicating with WS endpoint " + url + ". Error was: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Reads the stream to the end and closes it, sizing the buffer from the content length when it is known. The
+	 * content length is only trusted once it is within the maximum response size, and a response of unknown length
+	 * stops being read as soon as it passes that size.
+	 */
+	private byte[] read(InputStream in, int contentLength) throws IOException
+	{
+		try
+		{
+			if (contentLength > this.maxResponseSize)
+				throw new IOException("Response content length of " + contentLength + " bytes exceeds the maximum response size of " + this.maxResponseSize + " bytes");
+
+			if (contentLength >= 0)
+			{
+				byte[] buf = new byte[contentLength];
+				int offset = 0;
+				int count;
+				while (offset < contentLength && (count = in.read(buf, offset, contentLength - offset)) >= 0)
+					offset += count;
+
+				if (offset < contentLength)
+					throw new IOException("Response ended after " + offset + " of " + contentLength + " bytes");
+
+				return buf;
+			}
+
+			ByteArrayOutputStream responseStream = new ByteArrayOutputStream(BUF_SIZE);
+			byte[] buf = new byte[BUF_SIZE];
+			int count;
+			while ((count = in.read(buf)) >= 0)
+			{
+				if (responseStream.size() + count > this.maxResponseSize)
+					throw new IOException("Response exceeds the maximum response size of " + this.maxResponseSize + " bytes");
+
+				responseStream.write(buf, 0, count);
+			}
+
+			return responseStream.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static String contentTypeCharset(String contentType)
+	{
+		if (contentType == null)
+			return null;
+
+		int start = contentType.toLowerCase().indexOf(CHARSET);
+		if (start < 0)
+			return null;
+
+		start += CHARSET.length();
+		int end = contentType.indexOf(';', start);
+		String charset = (end < 0 ? contentType.substring(start) : contentType.substring(start, end)).trim();
+
+		if (charset.length() > 1 && charset.charAt(0) == '"' && charset.charAt(charset.length() - 1) == '"')
+			charset = charset.substring(1, charset.length() - 1);
+
+		return charset;
+	}
+
+	private static String prologCharset(byte[] document)
+	{
+		if (document.length >= 3 && (document[0] & 0xFF) == 0xEF && (document[1] & 0xFF) == 0xBB && (document[2] & 0xFF) == 0xBF)
+			return "UTF-8";
+
+		if (document.length >= 2)
+		{
+			int first = document[0] & 0xFF;
+			int second = document[1] & 0xFF;
+			if ((first == 0xFE && second == 0xFF) || (first == 0 && second == '<'))
+				return "UTF-16BE";
+			if ((first == 0xFF && second == 0xFE) || (first == '<' && second == 0))
+				return "UTF-16LE";
+		}
+
+		// Everything else that can start with an XML prolog is ASCII compatible up to the end of the prolog
+		String prolog = new String(document, 0, Math.min(document.length, PROLOG_SIZE), Charset.forName("ISO-8859-1"));
+		if (!prolog.startsWith(XML_PROLOG))
+			return null;
+
+		int end = prolog.indexOf("?>");
+		if (end > 0)
+			prolog = prolog.substring(0, end);
+
+		int index = prolog.indexOf(XML_ENCODING);
+		if (index < 0)
+			return XML_DEFAULT_CHARSET;
+
+		index = prolog.indexOf('=', index + XML_ENCODING.length());
+		if (index < 0)
+			return null;
+
+		int start = index + 1;
+		while (start < prolog.length() && Character.isWhitespace(prolog.charAt(start)))
+			start++;
+
+		if (start >= prolog.length())
+			return null;
+
+		char quote = prolog.charAt(start);
+		if (quote != '"' && quote != '\'')
+			return null;
+
+		int close = prolog.indexOf(quote, start + 1);
+		if (close < 0)
+			return null;
+
+		return prolog.substring(start + 1, close);
+	}
+
+	private static String supported(String charset)
+	{
+		if (charset == null || charset.length() == 0)
+			return null;
+
+		try
+		{
+			return Charset.isSupported(charset) ? charset : null;
+		}
+		catch (IllegalCharsetNameException e)
+		{
+			return null;
+		}
+	}
+}
@@ -19,20 +19,14 @@
  */
 package com.qut.middleware.esoe.ws.impl;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.charset.Charset;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 
-import com.ibm.icu.text.CharsetDetector;
 import com.qut.middleware.esoe.ws.WSClient;
+import com.qut.middleware.esoe.ws.WSTransport;
 import com.qut.middleware.esoe.ws.exception.WSClientException;
 import com.qut.middleware.saml2.exception.SOAPException;
 import com.qut.middleware.saml2.handler.SOAPHandler;
@@ -40,11 +34,8 @@ import com.qut.middleware.saml2.handler.SOAPHandler;
 /** Implements web services client logic. */
 public class WSClientImpl implements WSClient
 {
-	private static final String CONTENT_TYPE = "Content-Type";
-	// SOAP Action is specified for backward compatibility with Axis-based SPEP web services.
-	private static final String SOAP_ACTION = "SOAPAction";
-	private static final int BUF_SIZE = 1024;
 	private SOAPHandler soapHandler;
+	private WSTransport transport;
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 
 	/**
@@ -52,7 +43,22 @@ public class WSClientImpl implements WSClient
 	 */
 	public WSClientImpl(SOAPHandler soapHandler)
 	{
+		this(soapHandler, new HttpWSTransportImpl());
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param soapHandler The SOAP handler used to wrap requests and unwrap responses.
+	 * @param transport The transport used to exchange documents with remote endpoints.
+	 */
+	public WSClientImpl(SOAPHandler soapHandler, WSTransport transport)
+	{
+		if (transport == null)
+			throw new IllegalArgumentException("Transport cannot be null");
+
 		this.soapHandler = soapHandler;
+		this.transport = transport;
 	}
 
 	/*
@@ -141,46 +147,15 @@ public class WSClientImpl implements WSClient
 			throw new WSClientException("SOAP exception occurred while trying to wrap the request document. Error was: " + e.getMessage());
 		}
 
-		CharsetDetector detector = new CharsetDetector();
-		this.logger.trace(detector.getString(requestBytes, null));
+		String encoding = this.soapHandler.getDefaultEncoding();
+		if (this.logger.isTraceEnabled())
+			this.logger.trace(new String(requestBytes, Charset.forName(encoding)));
 
-		ByteArrayOutputStream responseStream;
-		try
-		{
-			URL url = new URL(endpoint);
-			URLConnection connection = url.openConnection();
-			connection.setDoInput(true);
-			connection.setDoOutput(true);
-
-			this.setContentType(connection);
-			connection.setRequestProperty(SOAP_ACTION, soapAction);
-
-			OutputStream out = connection.getOutputStream();
-			out.write(requestBytes);
-
-			InputStream in = connection.getInputStream();
-			responseStream = new ByteArrayOutputStream();
-			byte[] buf = new byte[BUF_SIZE];
-			int count;
-			while ((count = in.read(buf)) > 0)
-			{
-				responseStream.write(buf, 0, count);
-			}
-		}
-		catch (MalformedURLException e)
-		{
-			this.logger.debug("WS endpoint URL {} was malformed. Unable to perform query", new Object[]{endpoint}, e);
-			throw new WSClientException("SOAP exception occurred while trying to wrap the request document. Error was: " + e.getMessage());
-		}
-		catch (IOException e)
-		{
-			this.logger.debug("SOAP exception occurred while trying to wrap the request document.", e);
-			throw new WSClientException("SOAP exception occurred while trying to wrap the request document. Error was: " + e.getMessage());
-		}
+		byte[] responseDocument = this.transport.invoke(endpoint, soapAction, this.soapHandler.getContentType(encoding), requestBytes);
 
 		try
 		{
-			return this.soapHandler.unwrapDocument(responseStream.toByteArray());
+			return this.soapHandler.unwrapDocument(responseDocument);
 		}
 		catch (SOAPException e)
 		{
@@ -188,10 +163,4 @@ public class WSClientImpl implements WSClient
 			throw new WSClientException("SOAP exception occurred while trying to unwrap the response document. Error was: " + e.getMessage());
 		}
 	}
-
-	private void setContentType(URLConnection connection)
-	{
-		String encoding = this.soapHandler.getDefaultEncoding();
-		connection.setRequestProperty(CONTENT_TYPE, this.soapHandler.getContentType(encoding));
-	}
 }
@@ -19,6 +19,8 @@
  */
 package com.qut.middleware.esoe.ws.impl;
 
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -135,7 +137,7 @@ public class WSProcessorImpl implements WSProcessor
 			if (data.getResponseDocument() != null)
 			{
 				this.logger.debug(Messages.getString("WSProcessorImpl.4")); //$NON-NLS-1$
-				String responseEncoding = this.getEncoding(handler, attributeQuery);
+				String responseEncoding = this.getEncoding(handler, contentType, attributeQuery);
 				return generateResponse(data.getResponseDocument(), handler, responseEncoding);
 			}
 
@@ -149,7 +151,7 @@ public class WSProcessorImpl implements WSProcessor
 			if (data.getResponseDocument() != null)
 			{
 				this.logger.debug(Messages.getString("WSProcessorImpl.7")); //$NON-NLS-1$
-				String responseEncoding = this.getEncoding(handler, attributeQuery);
+				String responseEncoding = this.getEncoding(handler, contentType, attributeQuery);
 				return generateResponse(data.getResponseDocument(), handler, responseEncoding);
 			}
 
@@ -163,7 +165,7 @@ public class WSProcessorImpl implements WSProcessor
 			if (data.getResponseDocument() != null)
 			{
 				this.logger.debug(Messages.getString("WSProcessorImpl.10")); //$NON-NLS-1$
-				String responseEncoding = this.getEncoding(handler, attributeQuery);
+				String responseEncoding = this.getEncoding(handler, contentType, attributeQuery);
 				return generateResponse(data.getResponseDocument(), handler, responseEncoding);
 			}
 
@@ -193,7 +195,7 @@ public class WSProcessorImpl implements WSProcessor
 			if (data.getResponseDocument() != null)
 			{
 				this.logger.debug(Messages.getString("WSProcessorImpl.13")); //$NON-NLS-1$
-				String responseEncoding = this.getEncoding(handler, decisionRequest);
+				String responseEncoding = this.getEncoding(handler, contentType, decisionRequest);
 				return generateResponse(data.getResponseDocument(), handler, responseEncoding);
 			}
 
@@ -207,7 +209,7 @@ public class WSProcessorImpl implements WSProcessor
 			if (data.getResponseDocument() != null)
 			{
 				this.logger.debug(Messages.getString("WSProcessorImpl.16")); //$NON-NLS-1$
-				String responseEncoding = this.getEncoding(handler, decisionRequest);
+				String responseEncoding = this.getEncoding(handler, contentType, decisionRequest);
 				return generateResponse(data.getResponseDocument(), handler, responseEncoding);
 			}
 
@@ -240,7 +242,7 @@ public class WSProcessorImpl implements WSProcessor
 			if (data.getResponseDocument() != null)
 			{
 				this.logger.debug(Messages.getString("WSProcessorImpl.19")); //$NON-NLS-1$
-				String responseEncoding = this.getEncoding(handler, spepStartup);
+				String responseEncoding = this.getEncoding(handler, contentType, spepStartup);
 				return generateResponse(data.getResponseDocument(), handler, responseEncoding);
 			}
 
@@ -254,7 +256,7 @@ public class WSProcessorImpl implements WSProcessor
 			if (data.getResponseDocument() != null)
 			{
 				this.logger.debug(Messages.getString("WSProcessorImpl.22")); //$NON-NLS-1$
-				String responseEncoding = this.getEncoding(handler, spepStartup);
+				String responseEncoding = this.getEncoding(handler, contentType, spepStartup);
 				return generateResponse(data.getResponseDocument(), handler, responseEncoding);
 			}
 
@@ -268,7 +270,7 @@ public class WSProcessorImpl implements WSProcessor
 			if (data.getResponseDocument() != null)
 			{
 				this.logger.debug(Messages.getString("WSProcessorImpl.25")); //$NON-NLS-1$
-				String responseEncoding = this.getEncoding(handler, spepStartup);
+				String responseEncoding = this.getEncoding(handler, contentType, spepStartup);
 				return generateResponse(data.getResponseDocument(), handler, responseEncoding);
 			}
 
@@ -282,7 +284,7 @@ public class WSProcessorImpl implements WSProcessor
 			if (data.getResponseDocument() != null)
 			{
 				this.logger.debug(Messages.getString("WSProcessorImpl.28")); //$NON-NLS-1$
-				String responseEncoding = this.getEncoding(handler, spepStartup);
+				String responseEncoding = this.getEncoding(handler, contentType, spepStartup);
 				return generateResponse(data.getResponseDocument(), handler, responseEncoding);
 			}
 
@@ -296,7 +298,7 @@ public class WSProcessorImpl implements WSProcessor
 			if (data.getResponseDocument() != null)
 			{
 				this.logger.debug(Messages.getString("WSProcessorImpl.30")); //$NON-NLS-1$
-				String responseEncoding = this.getEncoding(handler, spepStartup);
+				String responseEncoding = this.getEncoding(handler, contentType, spepStartup);
 				return generateResponse(data.getResponseDocument(), handler, responseEncoding);
 			}
 
@@ -330,7 +332,7 @@ public class WSProcessorImpl implements WSProcessor
 		{
 			this.logger.debug(Messages.getString("WSProcessorImpl.49")); //$NON-NLS-1$
 			
-			String responseEncoding = this.getEncoding(handler, registerPrincipal);
+			String responseEncoding = this.getEncoding(handler, contentType, registerPrincipal);
 			return generateResponse(data.getResponseDocument(), handler, responseEncoding);
 		}
 
@@ -345,7 +347,7 @@ public class WSProcessorImpl implements WSProcessor
 		SOAPHandler handler = this.getHandler(contentType);
 		this.logger.debug("Got SOAP handler of class {} for content type {}", handler.getClass(), contentType);
 
-		String requestEncoding = this.getEncoding(handler, artifactResolve);
+		String requestEncoding = this.getEncoding(handler, contentType, artifactResolve);
 		Element artifactRequest = readRequest(artifactResolve, handler);
 
 		this.logger.debug("Read artifact resolve request successfully");
@@ -373,8 +375,23 @@ public class WSProcessorImpl implements WSProcessor
 		throw new WSProcessorException("No registered SOAPHandler available to handle Content-Type: " + contentType);
 	}
 	
-	private String getEncoding(SOAPHandler handler, byte[] document)
+	private String getEncoding(SOAPHandler handler, String contentType, byte[] document)
 	{
+		/* Peers name the encoding of their request in the content type, and are answered in the same encoding */
+		String encoding = handler.getEncoding(contentType);
+		try
+		{
+			if (encoding != null && Charset.isSupported(encoding))
+			{
+				return encoding;
+			}
+		}
+		catch (IllegalCharsetNameException e)
+		{
+			this.logger.debug("Ignoring illegal charset {} in content type", encoding);
+		}
+		
+		/* Older peers may not, so make a best effort determination from the document itself */
 		CharsetDetector detector = new CharsetDetector();
 		detector.setText(document);
 		CharsetMatch match = detector.detect();
@@ -399,8 +416,11 @@ public class WSProcessorImpl implements WSProcessor
 	{
 		try
 		{
-			CharsetDetector detector = new CharsetDetector();
-			this.logger.trace(detector.getString(requestDocument, null));
+			if (this.logger.isTraceEnabled())
+			{
+				CharsetDetector detector = new CharsetDetector();
+				this.logger.trace(detector.getString(requestDocument, null));
+			}
 			
 			return handler.unwrapDocument(requestDocument);
 		}
@@ -423,8 +443,11 @@ public class WSProcessorImpl implements WSProcessor
 		{
 			byte[] document = handler.wrapDocument(responseDocument, encoding);
 			
-			CharsetDetector detector = new CharsetDetector();
-			this.logger.trace(detector.getString(document, null));
+			if (this.logger.isTraceEnabled())
+			{
+				CharsetDetector detector = new CharsetDetector();
+				this.logger.trace(detector.getString(document, null));
+			}
 			
 			return document;
 		}
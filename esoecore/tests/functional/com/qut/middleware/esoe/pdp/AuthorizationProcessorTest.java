@@ -19,7 +19,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.SimpleTimeZone;
 import java.util.TimeZone;
-import java.util.Vector;
 
 import javax.xml.datatype.XMLGregorianCalendar;
 
@@ -38,7 +37,9 @@ import com.qut.middleware.esoe.authz.bean.impl.AuthorizationProcessorDataImpl;
 import com.qut.middleware.esoe.authz.exception.InvalidRequestException;
 import com.qut.middleware.esoe.authz.impl.AuthorizationProcessorImpl;
 import com.qut.middleware.esoe.pdp.cache.AuthzPolicyCache;
+import com.qut.middleware.esoe.pdp.cache.AuthzPolicySnapshot;
 import com.qut.middleware.esoe.pdp.processor.DecisionPoint;
+import com.qut.middleware.esoe.pdp.processor.impl.CompiledPolicySet;
 import com.qut.middleware.esoe.pdp.processor.impl.DecisionPointImpl;
 import com.qut.middleware.esoe.sessions.Principal;
 import com.qut.middleware.esoe.sessions.Query;
@@ -88,6 +89,7 @@ public class AuthorizationProcessorTest
 	AuthorizationProcessorImpl authProcessor;
 
 	AuthzPolicyCache cache;
+	AuthzPolicySnapshot snapshot;
 	DecisionPoint pdp;
 	SessionsProcessor sessionsProcessor;
 	Principal principal;
@@ -120,6 +122,7 @@ public class AuthorizationProcessorTest
 		this.query = createMock(Query.class);
 		this.sessionsProcessor = createMock(SessionsProcessor.class);
 		this.cache = createMock(AuthzPolicyCache.class);
+		this.snapshot = createMock(AuthzPolicySnapshot.class);
 		this.metadata = createMock(MetadataProcessor.class);
 		this.spepProcessor = createMock(SPEPProcessor.class);
 
@@ -170,8 +173,10 @@ public class AuthorizationProcessorTest
 	private void setupMock()
 	{
 		/* Start the replay for all our configured mock objects */
+		expect(this.cache.getSnapshot()).andReturn(this.snapshot).anyTimes();
 		replay(this.sessionsProcessor);
 		replay(this.cache);
+		replay(this.snapshot);
 		replay(this.principal);
 		replay(query);
 	}
@@ -192,8 +197,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("urn:test:spep:id:s")).andReturn(new Vector(this.database.get("urn:test:spep:id:s"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:s")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:s"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// TEST case 1 . Request a resource that should eval to PERMIT. Unmarshall and check response
@@ -327,8 +332,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("urn:test:spep:id:1")).andReturn(new Vector(this.database.get("urn:test:spep:id:1"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:1")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:1"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// TEST CASE 1. Rule 1 should allow access for user 'zitelli' to default policy target of /default/*.
@@ -483,8 +488,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("urn:test:spep:id:2")).andReturn(new Vector(this.database.get("urn:test:spep:id:2"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:2")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:2"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// TEST CASE 1 RULE 2 (complexity:2-12) All rules bar one should eval to PERMIT. This test is essentially
@@ -550,8 +555,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("urn:test:spep:id:3")).andReturn(new Vector(this.database.get("urn:test:spep:id:3"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:3")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:3"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// for these test we will be resetting the identity of the requestor
@@ -637,8 +642,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("urn:test:spep:id:3")).andReturn(new Vector(this.database.get("urn:test:spep:id:3"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:3")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:3"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// No email attribute in above fake principal means the condition will return false and this Rule
@@ -687,8 +692,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("urn:test:spep:id:3")).andReturn(new Vector(this.database.get("urn:test:spep:id:3"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:3")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:3"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// Contrary to test 4b, this one should PERMIT, as the 3 required attributes in the second OR block
@@ -736,8 +741,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("urn:test:spep:id:s2")).andReturn(new Vector(this.database.get("urn:test:spep:id:s2"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:s2")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:s2"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// The user created above will not match any conditions specified in the permit rule, therefore
@@ -774,8 +779,8 @@ public class AuthorizationProcessorTest
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query);
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal);
 		// Mocked return here indicates NO policies found
-		expect(this.cache.getPolicies("urn:test:spep:id:3")).andReturn(null).atLeastOnce();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:3")).andReturn(null).atLeastOnce();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		requestResult = this.authProcessor.execute(authData);
@@ -807,8 +812,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query);
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal);
-		expect(this.cache.getPolicies("urn:test:spep:id:1")).andReturn(new Vector(this.database.get("urn:test:spep:id:1"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:1")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:1"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// TEST CASE 1. Rule complexity:1-3 in PolicySetComplexity1.xml is the inverse of a Rule complexity:1-1.
@@ -847,8 +852,8 @@ public class AuthorizationProcessorTest
 			expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 			expect(this.sessionsProcessor.getQuery()).andReturn(this.query);
 			expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal);
-			expect(this.cache.getPolicies("urn:test:spep:id:3")).andReturn(null);
-			expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+			expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:3")).andReturn(null);
+			expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 			setupMock();
 
 			Element bodgyRequest = createRequestXml("/test/staff.txt", "urn:test:spep:id:3");
@@ -907,8 +912,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("urn:test:spep:id:4")).andReturn(new Vector(this.database.get("urn:test:spep:id:4"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:4")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:4"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// for these test we will be resetting the identity of the requestor
@@ -998,8 +1003,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("urn:test:spep:id:5")).andReturn(new Vector(this.database.get("urn:test:spep:id:5"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:5")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:5"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// for these test we will be resetting the identity of the requestor
@@ -1117,8 +1122,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("urn:test:spep:id:6")).andReturn(new Vector(this.database.get("urn:test:spep:id:6"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:6")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:6"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// TEST CASE 1 - (rule complexity:3-136) DENY zitelli access to crontab if passing the switch -e as an action
@@ -1214,8 +1219,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("urn:test:spep:id:6")).andReturn(new Vector(this.database.get("urn:test:spep:id:6"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:6")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:6"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// TEST CASE 1 - (rule complexity:3-136) Permit beddoes access to crontab if passing the switch -e as an action
@@ -1253,8 +1258,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("urn:test:spep:id:6")).andReturn(new Vector(this.database.get("urn:test:spep:id:6"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("urn:test:spep:id:6")).andReturn(new CompiledPolicySet(this.database.get("urn:test:spep:id:6"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// TEST CASE 1 - (rule complexity:3-136) Permit beddoes access to crontab if passing the switch -e as an action
@@ -1461,8 +1466,8 @@ public class AuthorizationProcessorTest
 		expect(this.principal.getAttributes()).andReturn(this.attributeList).anyTimes();
 		expect(this.sessionsProcessor.getQuery()).andReturn(this.query).anyTimes();
 		expect(this.query.querySAMLSession((String) notNull())).andReturn(this.principal).anyTimes();
-		expect(this.cache.getPolicies("access")).andReturn(new Vector(this.database.get("access"))).anyTimes();
-		expect(this.cache.getSize()).andReturn(this.database.size()).anyTimes();
+		expect(this.snapshot.getCompiledPolicies("access")).andReturn(new CompiledPolicySet(this.database.get("access"))).anyTimes();
+		expect(this.snapshot.getSize()).andReturn(this.database.size()).anyTimes();
 		setupMock();
 
 		// TEST CASE 1 RULE 2 (complexity:2-12) All rules bar one should eval to PERMIT. This test is essentially
@@ -326,6 +326,36 @@ public class PolicyCacheProcessorTest
 	}
 	
 	
+	/** Test that the cache clear broadcast after a rebuild reaches every endpoint, hands failed endpoints to the
+	 * failure repository and reports its metrics.
+	 * 
+	 */
+	@Test
+	public final void testPolicycacheBroadcast() throws Exception
+	{
+		replay(this.policyCacheDao);
+	
+		PolicyCacheProcessorImpl processor = new PolicyCacheProcessorImpl(failureRep, testCache, metadata, 
+				policyCacheDao, webServiceClient, keyStoreResolver, idGenerator, validator, 1, esoeKeyAlias, 4, 5);
+		
+		try
+		{
+			Thread.sleep(2000);
+			
+			// every SPEP except the one with no metadata is notified, none can validate the test response
+			assertTrue(processor.getEndpointsNotified() >= 3);
+			assertEquals(processor.getEndpointsNotified(), processor.getEndpointsFailed());
+			assertEquals(0, processor.getEndpointsTimedOut());
+			assertTrue(processor.getLastPropagationTime() >= processor.getLastSlowestEndpointTime());
+			assertTrue(this.failureRep.getSize() > 0);
+		}
+		finally
+		{
+			processor.shutdown();
+		}
+	}
+	
+	
 	/** Test that updated policies are being rebuilt correctly. This test is aimed at ensuring that a policy change
 	 * for a specified entity is replaced in the cache by the new policy.
 	 * 
@@ -342,6 +372,7 @@ public class PolicyCacheProcessorTest
 		testPolicy.setEntityID(this.validSpep);
 		testPolicy.setPolicyId("urn:policy:complexity:1");
 		testPolicy.setPollAction("U");
+		testPolicy.setActiveStatus("Y");
 		testPolicy.setSequenceId(new BigDecimal(333333l));
 		updateList.add(testPolicy);
 			
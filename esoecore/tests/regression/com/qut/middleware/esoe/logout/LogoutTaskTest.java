@@ -0,0 +1,205 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Runs tests to ensure LogoutTask sequential and concurrent logout of SPEP endpoints.
+ */
+package com.qut.middleware.esoe.logout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qut.middleware.esoe.logout.bean.SSOLogoutState;
+import com.qut.middleware.esoe.logout.impl.LogoutTask;
+import com.qut.middleware.esoe.sessions.impl.PrincipalImpl;
+
+/** */
+@SuppressWarnings("nls")
+public class LogoutTaskTest
+{
+	private ExecutorService executor;
+	private DelayedLogoutMechanism logoutMechanism;
+	private PrincipalImpl principal;
+
+	/* Logout mechanism which takes a configured time to respond from each endpoint */
+	private static class DelayedLogoutMechanism implements LogoutMechanism
+	{
+		Map<String, Long> delays = new ConcurrentHashMap<String, Long>();
+		List<String> failing = new Vector<String>();
+		List<String> completed = new Vector<String>();
+		AtomicInteger active = new AtomicInteger();
+		AtomicInteger maxActive = new AtomicInteger();
+
+		public List<String> getEndPoints(String entityID)
+		{
+			List<String> endPoints = new Vector<String>();
+			endPoints.add("https://" + entityID + "/logout");
+			return endPoints;
+		}
+
+		public result performSingleLogout(String samlAuthnID, List<String> sessionIDs, String endpoint, boolean storeFailedLogout)
+		{
+			int now = this.active.incrementAndGet();
+			synchronized (this.maxActive)
+			{
+				if (now > this.maxActive.get())
+					this.maxActive.set(now);
+			}
+
+			try
+			{
+				Long delay = this.delays.get(endpoint);
+				if (delay != null)
+					Thread.sleep(delay.longValue());
+			}
+			catch (InterruptedException e)
+			{
+				return result.LogoutRequestFailed;
+			}
+			finally
+			{
+				this.active.decrementAndGet();
+			}
+
+			this.completed.add(endpoint);
+			return this.failing.contains(endpoint) ? result.LogoutRequestFailed : result.LogoutSuccessful;
+		}
+	}
+
+	@Before
+	public void setUp()
+	{
+		this.executor = Executors.newFixedThreadPool(8);
+		this.logoutMechanism = new DelayedLogoutMechanism();
+
+		this.principal = new PrincipalImpl();
+		this.principal.setSAMLAuthnIdentifier("_samlid");
+		this.principal.setPrincipalAuthnIdentifier("beddoes");
+		for (int i = 0; i < 5; i++)
+		{
+			this.principal.addEntitySessionIndex("spep" + i, "index" + i);
+			this.logoutMechanism.delays.put("https://spep" + i + "/logout", Long.valueOf(200));
+		}
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * Tests that the standard task logs out of every endpoint in turn and reports each result in order.
+	 */
+	@Test
+	public void testSequential() throws Exception
+	{
+		this.logoutMechanism.delays.clear();
+		this.logoutMechanism.failing.add("https://spep3/logout");
+
+		List<SSOLogoutState> states = new LogoutTask(this.logoutMechanism, this.principal).call();
+
+		assertEquals(5, states.size());
+		assertEquals(1, this.logoutMechanism.maxActive.get());
+		for (int i = 0; i < 5; i++)
+		{
+			assertEquals("https://spep" + i + "/logout", states.get(i).getSPEPURL());
+			assertEquals(i != 3, states.get(i).getLogoutState());
+		}
+	}
+
+	/**
+	 * Tests that fanning out sends to every endpoint concurrently, and keeps the result order.
+	 */
+	@Test
+	public void testFanOut() throws Exception
+	{
+		this.logoutMechanism.failing.add("https://spep1/logout");
+
+		long start = System.currentTimeMillis();
+		List<SSOLogoutState> states = new LogoutTask(this.logoutMechanism, this.principal, this.executor, 5000, 10000).call();
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("Endpoints were not logged out concurrently, took " + elapsed, elapsed < 800);
+		assertTrue(this.logoutMechanism.maxActive.get() > 1);
+		assertEquals(5, states.size());
+		for (int i = 0; i < 5; i++)
+		{
+			assertEquals("https://spep" + i + "/logout", states.get(i).getSPEPURL());
+			assertEquals(i != 1, states.get(i).getLogoutState());
+		}
+	}
+
+	/**
+	 * Tests that a slow endpoint is reported as failed once its deadline passes, without holding up the others, and
+	 * that its request is still allowed to complete.
+	 */
+	@Test
+	public void testEndpointDeadline() throws Exception
+	{
+		this.logoutMechanism.delays.put("https://spep2/logout", Long.valueOf(1500));
+
+		long start = System.currentTimeMillis();
+		List<SSOLogoutState> states = new LogoutTask(this.logoutMechanism, this.principal, this.executor, 500, 10000).call();
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("Task waited past endpoint deadline, took " + elapsed, elapsed < 1200);
+		assertEquals(5, states.size());
+		assertFalse(states.get(2).getLogoutState());
+		assertEquals("https://spep2/logout", states.get(2).getSPEPURL());
+		assertTrue(states.get(0).getLogoutState());
+		assertTrue(states.get(4).getLogoutState());
+
+		Thread.sleep(1500);
+		assertTrue("Timed out request should be left to complete", this.logoutMechanism.completed.contains("https://spep2/logout"));
+	}
+
+	/**
+	 * Tests that the overall deadline bounds the task even when endpoints are queued behind each other.
+	 */
+	@Test
+	public void testLogoutDeadline() throws Exception
+	{
+		ExecutorService single = Executors.newSingleThreadExecutor();
+		try
+		{
+			long start = System.currentTimeMillis();
+			List<SSOLogoutState> states = new LogoutTask(this.logoutMechanism, this.principal, single, 5000, 500).call();
+			long elapsed = System.currentTimeMillis() - start;
+
+			assertTrue("Task waited past logout deadline, took " + elapsed, elapsed < 1000);
+			assertEquals(5, states.size());
+			assertTrue(states.get(0).getLogoutState());
+			assertFalse(states.get(4).getLogoutState());
+		}
+		finally
+		{
+			single.shutdownNow();
+		}
+	}
+}
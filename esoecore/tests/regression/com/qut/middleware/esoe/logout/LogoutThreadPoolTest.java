@@ -0,0 +1,256 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Runs tests to ensure LogoutThreadPoolImpl admission, priority order and task deadlines.
+ */
+package com.qut.middleware.esoe.logout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qut.middleware.esoe.logout.impl.LogoutThreadPoolImpl;
+import com.qut.middleware.esoe.sessions.Principal;
+import com.qut.middleware.esoe.sessions.impl.PrincipalImpl;
+
+/** */
+@SuppressWarnings("nls")
+public class LogoutThreadPoolTest
+{
+	private BlockingLogoutMechanism logoutMechanism;
+	private LogoutThreadPoolImpl pool;
+
+	/* Logout mechanism which holds every logout until released, and records the order of logouts */
+	private static class BlockingLogoutMechanism implements LogoutMechanism
+	{
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		List<String> completed = new Vector<String>();
+
+		public List<String> getEndPoints(String entityID)
+		{
+			List<String> endPoints = new Vector<String>();
+			endPoints.add("https://" + entityID + "/logout");
+			return endPoints;
+		}
+
+		public result performSingleLogout(String samlAuthnID, List<String> sessionIDs, String endpoint, boolean storeFailedLogout)
+		{
+			this.started.countDown();
+			try
+			{
+				this.release.await();
+			}
+			catch (InterruptedException e)
+			{
+				return result.LogoutRequestFailed;
+			}
+
+			this.completed.add(samlAuthnID);
+			return result.LogoutSuccessful;
+		}
+	}
+
+	private static Principal principal(String samlID)
+	{
+		PrincipalImpl principal = new PrincipalImpl();
+		principal.setSAMLAuthnIdentifier(samlID);
+		principal.setPrincipalAuthnIdentifier("beddoes");
+		principal.addEntitySessionIndex("spep", "index");
+		return principal;
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		this.logoutMechanism = new BlockingLogoutMechanism();
+
+		// a single thread, and room for two waiting tasks of each priority
+		this.pool = new LogoutThreadPoolImpl(this.logoutMechanism, 1, 1, 2);
+		this.pool.setAdmissionTimeout(0);
+
+		// occupy the thread
+		assertNotNull(this.pool.createLogoutTask(principal("_running"), false));
+		assertTrue(this.logoutMechanism.started.await(5, TimeUnit.SECONDS));
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.pool.shutdownNow();
+	}
+
+	/**
+	 * Tests that user logouts are run before background logouts queued ahead of them, and each priority in order.
+	 */
+	@Test
+	public void testPriorityOrder() throws Exception
+	{
+		assertNotNull(this.pool.createLogoutTask(principal("_idle1"), false));
+		assertNotNull(this.pool.createLogoutTask(principal("_idle2"), false, LogoutThreadPool.priority.BackgroundLogout));
+		assertNotNull(this.pool.createLogoutTask(principal("_user1"), false, LogoutThreadPool.priority.UserLogout));
+		String taskID = this.pool.createLogoutTask(principal("_user2"), true, LogoutThreadPool.priority.UserLogout);
+		assertNotNull(taskID);
+		assertEquals(4, this.pool.getQueueDepth());
+
+		this.logoutMechanism.release.countDown();
+
+		assertEquals(1, this.pool.getLogoutStates(taskID).size());
+		this.pool.shutdown();
+		assertTrue(this.pool.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertEquals("[_running, _user1, _user2, _idle1, _idle2]", this.logoutMechanism.completed.toString());
+		assertEquals(5, this.pool.getSubmittedCount());
+		assertEquals(5, this.pool.getCompletedCount());
+		assertEquals(0, this.pool.getQueueDepth());
+		assertTrue(this.pool.getMaxQueueTime() <= this.pool.getTotalQueueTime());
+	}
+
+	/**
+	 * Tests that a full priority rejects further tasks without affecting the other priority, and has room again
+	 * once its tasks start.
+	 */
+	@Test
+	public void testAdmission() throws Exception
+	{
+		assertNotNull(this.pool.createLogoutTask(principal("_idle1"), false));
+		assertNotNull(this.pool.createLogoutTask(principal("_idle2"), false));
+		assertNull("Background tasks are full", this.pool.createLogoutTask(principal("_idle3"), false));
+		assertEquals(1, this.pool.getRejectedCount());
+
+		assertNotNull("User tasks have their own room", this.pool.createLogoutTask(principal("_user1"), false, LogoutThreadPool.priority.UserLogout));
+
+		// a caller given time to wait is admitted once a task starts
+		this.pool.setAdmissionTimeout(5);
+		Thread releaser = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(200);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				LogoutThreadPoolTest.this.logoutMechanism.release.countDown();
+			}
+		};
+		releaser.start();
+
+		long start = System.currentTimeMillis();
+		assertNotNull(this.pool.createLogoutTask(principal("_idle4"), false));
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		releaser.join();
+
+		this.pool.shutdown();
+		assertTrue(this.pool.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(5, this.pool.getCompletedCount());
+	}
+
+	/**
+	 * Tests that tasks waiting past their deadline are not run.
+	 */
+	@Test
+	public void testDeadline() throws Exception
+	{
+		this.pool.setTaskDeadline(1);
+		assertNotNull(this.pool.createLogoutTask(principal("_idle1"), false));
+		String taskID = this.pool.createLogoutTask(principal("_user1"), true, LogoutThreadPool.priority.UserLogout);
+
+		Thread.sleep(1200);
+		this.logoutMechanism.release.countDown();
+
+		assertNull("Expired task has no states", this.pool.getLogoutStates(taskID));
+		this.pool.shutdown();
+		assertTrue(this.pool.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertEquals(2, this.pool.getExpiredCount());
+		assertEquals("[_running]", this.logoutMechanism.completed.toString());
+	}
+
+	/**
+	 * Tests that the pool grows to maxThreads while every thread is busy, and keeps minThreads once idle past the
+	 * keep alive time.
+	 */
+	@Test
+	public void testMinThreadsResident() throws Exception
+	{
+		BlockingLogoutMechanism mechanism = new BlockingLogoutMechanism();
+		LogoutThreadPoolImpl growingPool = new LogoutThreadPoolImpl(mechanism, 2, 4, 10);
+		try
+		{
+			growingPool.setAdmissionTimeout(0);
+			growingPool.setKeepAliveTime(100, TimeUnit.MILLISECONDS);
+			assertEquals(2, growingPool.getPoolSize());
+			
+			for (int i = 0; i < 5; i++)
+				assertNotNull(growingPool.createLogoutTask(principal("_p" + i), false));
+			
+			long deadline = System.currentTimeMillis() + 5000;
+			while (growingPool.getActiveCount() < 4 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals("A thread is started for each task until maxThreads", 4, growingPool.getActiveCount());
+			assertEquals(1, growingPool.getQueueDepth());
+			
+			mechanism.release.countDown();
+			deadline = System.currentTimeMillis() + 5000;
+			while (growingPool.getCompletedCount() < 5 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(5, growingPool.getCompletedCount());
+			
+			// idle well past the keep alive time
+			Thread.sleep(1000);
+			assertTrue(growingPool.getPoolSize() >= 2);
+			assertEquals("Threads beyond minThreads time out", 2, growingPool.getPoolSize());
+		}
+		finally
+		{
+			growingPool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that task identifiers are unique.
+	 */
+	@Test
+	public void testUniqueTaskIDs() throws Exception
+	{
+		this.logoutMechanism.release.countDown();
+		this.pool.setAdmissionTimeout(5);
+
+		Set<String> taskIDs = new HashSet<String>();
+		for (int i = 0; i < 100; i++)
+			assertTrue(taskIDs.add(this.pool.createLogoutTask(principal("_p" + i), false)));
+
+		assertFalse(taskIDs.contains(null));
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Tests that the metadata source defined in the ESOE application context can be constructed.
+ */
+package com.qut.middleware.esoe.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinitionHolder;
+import org.springframework.beans.factory.config.ConstructorArgumentValues.ValueHolder;
+import org.springframework.beans.factory.config.PropertyPlaceholderConfigurer;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.core.io.FileSystemResource;
+
+import com.qut.middleware.metadata.constants.FormatConstants;
+import com.qut.middleware.metadata.source.saml.impl.SAMLURLMetadataSource;
+
+@SuppressWarnings("nls")
+public class MetadataContextTest
+{
+	private static final String METADATA_CONTEXT = "webapp/applicationContext/resources/metadata.xml";
+
+	/**
+	 * Tests that the SAML URL metadata source bean resolves a constructor for the configured URL and local copy.
+	 */
+	@Test
+	public void testMetadataSourceDefinition() throws Exception
+	{
+		DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+		new XmlBeanDefinitionReader(beanFactory).loadBeanDefinitions(new FileSystemResource(METADATA_CONTEXT));
+
+		Properties properties = new Properties();
+		properties.setProperty("metadata.url", "http://esoe.example.com/metadata.xml");
+		properties.setProperty("metadata.localCopy", "/opt/esoe/config/metadata-copy.xml");
+		properties.setProperty("metadata.negativeCacheInterval", "60");
+		properties.setProperty("metadata.negativeCacheSize", "100");
+		properties.setProperty("metadata.networkUpdateInterval", "120");
+		properties.setProperty("metadata.esoeIdentifier", "_esoe");
+
+		PropertyPlaceholderConfigurer configurer = new PropertyPlaceholderConfigurer();
+		configurer.setProperties(properties);
+		configurer.postProcessBeanFactory(beanFactory);
+
+		// The source is an inner bean of the metadata processor, so register it alone to avoid starting the processor
+		BeanDefinition processor = beanFactory.getBeanDefinition("metadata");
+		ValueHolder sources = processor.getConstructorArgumentValues().getIndexedArgumentValue(2, List.class);
+		BeanDefinitionHolder source = (BeanDefinitionHolder) ((List<?>) sources.getValue()).get(0);
+		beanFactory.registerBeanDefinition("metadataSource", source.getBeanDefinition());
+
+		Object bean = beanFactory.getBean("metadataSource");
+		assertTrue(bean instanceof SAMLURLMetadataSource);
+
+		SAMLURLMetadataSource metadataSource = (SAMLURLMetadataSource) bean;
+		assertEquals(FormatConstants.SAML2, metadataSource.getFormat());
+		assertEquals("http://esoe.example.com/metadata.xml", metadataSource.getLocation());
+		assertEquals(new File("/opt/esoe/config/metadata-copy.xml"), metadataSource.getLocalCopy());
+	}
+}
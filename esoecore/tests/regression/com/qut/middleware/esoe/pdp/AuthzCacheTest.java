@@ -1,6 +1,7 @@
 package com.qut.middleware.esoe.pdp;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.HashMap;
@@ -13,6 +14,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.qut.middleware.esoe.pdp.cache.AuthzPolicyCache;
+import com.qut.middleware.esoe.pdp.cache.AuthzPolicySnapshot;
 import com.qut.middleware.esoe.pdp.cache.impl.AuthzPolicyCacheImpl;
 import com.qut.middleware.saml2.schemas.esoe.lxacml.Policy;
 
@@ -132,6 +134,51 @@ public class AuthzCacheTest
 	}
 
 
+	@Test
+	public void testSnapshot()
+	{
+		this.testSetCache();
+		this.testCache.setBuildSequenceId(10);
+		
+		AuthzPolicySnapshot snapshot = this.testCache.getSnapshot();
+		assertSame("Snapshot should not change without an update", snapshot, this.testCache.getSnapshot());
+		
+		Policy replacement = new Policy();
+		replacement.setPolicyId("4");
+		Vector<Policy> policies = new Vector<Policy>();
+		policies.add(replacement);
+		
+		Map<String, List<Policy>> changes = new HashMap<String, List<Policy>>();
+		changes.put("1", policies);
+		changes.put("3", policies);
+		this.testCache.update(changes, 11);
+		
+		// an in-flight decision still sees the generation it started with
+		assertEquals(10, snapshot.getBuildSequenceId());
+		assertEquals(2, snapshot.getSize());
+		assertEquals(3, snapshot.getPolicies("1").size());
+		assertEquals(3, snapshot.getCompiledPolicies("1").size());
+		assertEquals(0, snapshot.getPolicies("3").size());
+		
+		AuthzPolicySnapshot updated = this.testCache.getSnapshot();
+		assertEquals(11, updated.getBuildSequenceId());
+		assertEquals(3, updated.getSize());
+		assertEquals("4", updated.getPolicies("1").get(0).getPolicyId());
+		assertEquals(1, updated.getCompiledPolicies("3").size());
+		assertEquals(3, updated.getPolicies("2").size());
+		
+		// modifying the list given to the cache does not change the stored generation
+		policies.clear();
+		assertEquals(1, updated.getPolicies("3").size());
+	}
+	
+	@Test(expected = UnsupportedOperationException.class)
+	public void testSnapshotImmutable()
+	{
+		this.testSetCache();
+		this.testCache.getSnapshot().getPolicies("1").clear();
+	}
+
 	@Test
 	public void testConcurrency() throws Exception 
 	{
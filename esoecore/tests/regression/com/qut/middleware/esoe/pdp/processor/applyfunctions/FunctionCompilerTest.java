@@ -0,0 +1,112 @@
+package com.qut.middleware.esoe.pdp.processor.applyfunctions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Tests the literal analysis FunctionCompiler uses to index resource targets.
+ */
+@SuppressWarnings("nls")
+public class FunctionCompilerTest
+{
+	/* U+1D11E, a character outside the BMP which is held as a surrogate pair */
+	private static final String CLEF = "\uD834\uDD1E";
+
+	@Test
+	public void testIsLiteral()
+	{
+		assertTrue(FunctionCompiler.isLiteral(""));
+		assertTrue(FunctionCompiler.isLiteral("/secure/index_jsp"));
+		assertTrue(FunctionCompiler.isLiteral("/path-with_punct/~user/#anchor,x=y&z:1"));
+		assertTrue(FunctionCompiler.isLiteral("/music/" + CLEF));
+
+		assertFalse(FunctionCompiler.isLiteral("/secure/index.jsp"));
+		assertFalse(FunctionCompiler.isLiteral("/abc?"));
+		assertFalse(FunctionCompiler.isLiteral("/abc*"));
+		assertFalse(FunctionCompiler.isLiteral("/abc+"));
+		assertFalse(FunctionCompiler.isLiteral("/ab{1,2}"));
+		assertFalse(FunctionCompiler.isLiteral("/a|/b"));
+		assertFalse(FunctionCompiler.isLiteral("(?i)/abc"));
+		assertFalse(FunctionCompiler.isLiteral("/ab\\.c"));
+		assertFalse(FunctionCompiler.isLiteral("^/abc$"));
+		assertFalse(FunctionCompiler.isLiteral("/[abc]"));
+	}
+
+	@Test
+	public void testLiteralPrefixQuantifiers()
+	{
+		// quantifiers allowing zero occurrences make the preceding character optional
+		assertPrefix("/ab", "/abc?", "/ab", "/abc");
+		assertPrefix("/ab", "/abc*", "/ab", "/abccc");
+		assertPrefix("/a", "/ab{1,2}", "/ab", "/abb");
+		assertPrefix("/a", "/ab{0,2}", "/a", "/abb");
+
+		// one or more occurrences keeps the preceding character
+		assertPrefix("/abc", "/abc+", "/abc", "/abccc");
+
+		// a reluctant or possessive suffix comes after the first quantifier
+		assertPrefix("/ab", "/abc*?d", "/abd", "/abcd");
+		assertPrefix("/abc", "/abc++", "/abc");
+
+		// a quantifier at the start leaves nothing to keep
+		assertPrefix("", "a?bc", "bc", "abc");
+	}
+
+	@Test
+	public void testLiteralPrefixAlternationAndGroups()
+	{
+		// alternation anywhere may discard any leading content
+		assertPrefix("", "/a|/b", "/a", "/b");
+		assertPrefix("", "/secure/(x|y)", "/secure/x", "/secure/y");
+
+		// inline flags change how the literal characters match
+		assertPrefix("", "(?i)/abc", "/abc", "/ABC");
+
+		assertPrefix("/secure/", "/secure/(docs)?", "/secure/", "/secure/docs");
+		assertPrefix("", ".*", "", "/anything");
+	}
+
+	@Test
+	public void testLiteralPrefixEscapes()
+	{
+		assertPrefix("/ab", "/ab\\.c", "/ab.c");
+		assertPrefix("/ab", "/ab\\d?", "/ab", "/ab1");
+		assertPrefix("/ab", "/ab\\Q.*\\E", "/ab.*");
+		assertPrefix("/secure/index", "/secure/index.jsp", "/secure/index.jsp", "/secure/indexxjsp");
+	}
+
+	@Test
+	public void testLiteralPrefixSurrogatePairs()
+	{
+		// an optional supplementary character is dropped whole, never leaving half a surrogate pair
+		assertPrefix("/", "/" + CLEF + "?x", "/x", "/" + CLEF + "x");
+		assertPrefix("/", "/" + CLEF + "*", "/", "/" + CLEF + CLEF);
+		assertPrefix("/a", "/a" + CLEF + "{0,1}", "/a", "/a" + CLEF);
+
+		// a required supplementary character is kept whole
+		assertPrefix("/" + CLEF, "/" + CLEF + "+", "/" + CLEF, "/" + CLEF + CLEF);
+		assertPrefix("/" + CLEF + "/", "/" + CLEF + "/.*", "/" + CLEF + "/x");
+	}
+
+	@Test
+	public void testLiteralPrefixOfLiteral()
+	{
+		assertEquals("/secure/index_jsp", FunctionCompiler.getLiteralPrefix("/secure/index_jsp"));
+		assertEquals("", FunctionCompiler.getLiteralPrefix(""));
+	}
+
+	/* Assert the expected prefix, and that every sample matched by the regex starts with it */
+	private void assertPrefix(String expected, String regex, String... samples)
+	{
+		String prefix = FunctionCompiler.getLiteralPrefix(regex);
+		assertEquals("Incorrect literal prefix for " + regex, expected, prefix);
+
+		for (String sample : samples)
+		{
+			assertTrue("Sample " + sample + " does not match " + regex, sample.matches(regex));
+			assertTrue("Sample " + sample + " of " + regex + " does not start with " + prefix, sample.startsWith(prefix));
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package com.qut.middleware.esoe.pdp.processor.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qut.middleware.esoe.pdp.cache.impl.AuthzPolicyCacheImpl;
+import com.qut.middleware.esoe.pdp.processor.impl.CompiledPolicySet.CompiledTarget;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.AttributeValueType;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.EffectType;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.Policy;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.Resource;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.Resources;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.Rule;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.Target;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.context.DecisionType;
+
+/** Tests that compiled policy sets make the same decisions as evaluating the source policies directly, whether a
+ * resource is found through the literal index, the prefix index or not at all.
+ */
+@SuppressWarnings("nls")
+public class CompiledPolicySetTest
+{
+	private static final String ENTITY = "https://spep.example.com";
+
+	private static final String[] TARGETS = { "/secure/index.jsp", "/secure/.*", "/secure/.*\\.pdf", "/docs/report?", "/docs/a{0,2}b", "/public/[a-z]+", "(?i)/case/.*", "/a|/b", "/x" };
+
+	private static final String[] RESOURCES = { "/secure/index.jsp", "/secure/indexxjsp", "/secure/", "/secure/doc.pdf", "/secure", "/docs/report", "/docs/repor", "/docs/reportt", "/docs/b", "/docs/aab", "/docs/aaab", "/public/page", "/public/Page", "/CASE/x", "/case/", "/a", "/b", "/a|/b", "/x", "/xy", "" };
+
+	private List<Policy> policies;
+	private Map<String, List<String>> principalAttributes;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		this.principalAttributes = new HashMap<String, List<String>>();
+
+		this.policies = new ArrayList<Policy>();
+
+		// a broad permit, evaluated before a narrower deny in a later policy
+		Policy policy1 = createPolicy("policy1", "/public/.*");
+		policy1.getRules().add(createRule("policy1-permit", EffectType.PERMIT));
+		this.policies.add(policy1);
+
+		Policy policy2 = createPolicy("policy2", "/public/secret.html", "/private/.*");
+		policy2.getRules().add(createRule("policy2-deny", EffectType.DENY, "/public/secret.html"));
+		policy2.getRules().add(createRule("policy2-permit", EffectType.PERMIT, "/private/open/.*"));
+		this.policies.add(policy2);
+
+		// a regex target with no literal prefix, indexed under the empty prefix
+		Policy policy3 = createPolicy("policy3", "(?i)/case/.*");
+		policy3.getRules().add(createRule("policy3-permit", EffectType.PERMIT));
+		this.policies.add(policy3);
+
+		// an invalid regex target, which only matches by equality
+		Policy policy4 = createPolicy("policy4", "/bad[(");
+		policy4.getRules().add(createRule("policy4-deny", EffectType.DENY));
+		this.policies.add(policy4);
+	}
+
+	/** Test that compiled targets match exactly the resources the old equals or String.matches test did.
+	 */
+	@Test
+	public void testTargetMatchesLegacyBehaviour()
+	{
+		for (String target : TARGETS)
+		{
+			CompiledTarget compiled = new CompiledTarget(target);
+
+			for (String resource : RESOURCES)
+			{
+				boolean expected = resource.equals(target) || resource.matches(target);
+				assertEquals("Incorrect match of " + resource + " against " + target, expected, compiled.matches(resource));
+			}
+		}
+	}
+
+	/** Test that a target which is not a valid regex matches by equality, where it previously threw on any other resource.
+	 */
+	@Test
+	public void testInvalidRegexTarget()
+	{
+		String target = "/a[(";
+		CompiledTarget compiled = new CompiledTarget(target);
+
+		// equal resources matched before the regex was consulted
+		assertTrue(compiled.matches("/a[("));
+
+		assertFalse(compiled.matches("/a"));
+		assertFalse(compiled.matches("/a[(x"));
+		assertFalse(compiled.matches(""));
+
+		try
+		{
+			"/a".matches(target);
+			fail("Target was expected to be an invalid regex");
+		}
+		catch (PatternSyntaxException e)
+		{
+			// expected, the old evaluator failed the whole request here
+		}
+	}
+
+	/** Test deny overrides across policies, whether the deciding target is found by value or by prefix.
+	 */
+	@Test
+	public void testDenyOverrides()
+	{
+		CompiledPolicySet compiled = new CompiledPolicySet(this.policies);
+		assertEquals(4, compiled.size());
+
+		// literal index hit in policy2 and prefix hit in policy1, the later deny wins
+		DecisionData decisionData = new DecisionData();
+		assertEquals(DecisionType.DENY, compiled.evaluate("/public/secret.html", null, this.principalAttributes, decisionData));
+		assertEquals(1, decisionData.getMatches().size());
+		assertEquals("/public/secret.html", decisionData.getMatches().get(0));
+		assertTrue(decisionData.getGroupTargets().containsKey("/public/secret.html"));
+		assertEquals("policy2", decisionData.getCurrentPolicy());
+		assertEquals("policy2-deny", decisionData.getCurrentRule());
+
+		// prefix hit only
+		assertEquals(DecisionType.PERMIT, compiled.evaluate("/public/index.html", null, this.principalAttributes, new DecisionData()));
+		assertEquals(DecisionType.PERMIT, compiled.evaluate("/private/open/doc", null, this.principalAttributes, new DecisionData()));
+		assertEquals(DecisionType.PERMIT, compiled.evaluate("/CASE/doc", null, this.principalAttributes, new DecisionData()));
+
+		// invalid regex target found through the literal index
+		assertEquals(DecisionType.DENY, compiled.evaluate("/bad[(", null, this.principalAttributes, new DecisionData()));
+	}
+
+	/** Test that resources which match no rule, inside or outside the index, still leave the decision to the default mode.
+	 */
+	@Test
+	public void testNoDecision()
+	{
+		CompiledPolicySet compiled = new CompiledPolicySet(this.policies);
+
+		// policy2 target matches but no rule target does
+		assertNull(compiled.evaluate("/private/closed", null, this.principalAttributes, new DecisionData()));
+
+		// no candidate policies at all, every policy is still recorded as processed
+		DecisionData decisionData = new DecisionData();
+		assertNull(compiled.evaluate("/other", null, this.principalAttributes, decisionData));
+		assertEquals("policy4", decisionData.getCurrentPolicy());
+		assertTrue(decisionData.getMatches().isEmpty());
+
+		assertNull(compiled.evaluate("/bad", null, this.principalAttributes, new DecisionData()));
+		assertNull(new CompiledPolicySet(null).evaluate("/public/index.html", null, this.principalAttributes, new DecisionData()));
+
+		AuthzPolicyCacheImpl cache = new AuthzPolicyCacheImpl();
+		cache.add(ENTITY, this.policies);
+		DecisionPointImpl decisionPoint = new DecisionPointImpl(cache, ProtocolTools.DENY);
+
+		assertEquals(DecisionType.DENY, decisionPoint.makeAuthzDecision("/other", ENTITY, this.principalAttributes, null, new DecisionData()));
+		assertEquals(DecisionType.DENY, decisionPoint.makeAuthzDecision("/private/closed", ENTITY, this.principalAttributes, null, new DecisionData()));
+		assertEquals(DecisionType.PERMIT, decisionPoint.makeAuthzDecision("/public/index.html", ENTITY, this.principalAttributes, null, new DecisionData()));
+	}
+
+	/** Test that decisions and decision data are identical to the old uncompiled evaluation for hits and misses.
+	 */
+	@Test
+	public void testMatchesLegacyEvaluation()
+	{
+		CompiledPolicySet compiled = new CompiledPolicySet(this.policies);
+
+		String[] resources = { "/public/secret.html", "/public/index.html", "/public/", "/private/open/doc", "/private/closed", "/case/x", "/CASE/", "/bad[(", "/other", "/", "" };
+
+		for (String resource : resources)
+		{
+			DecisionData expectedData = new DecisionData();
+			DecisionData actualData = new DecisionData();
+
+			DecisionType expected = evaluateLegacy(resource, expectedData);
+			DecisionType actual = compiled.evaluate(resource, null, this.principalAttributes, actualData);
+
+			assertEquals("Incorrect decision for " + resource, expected, actual);
+			assertEquals("Incorrect processed policies for " + resource, expectedData.getProcessedPolicies(), actualData.getProcessedPolicies());
+			assertEquals("Incorrect matches for " + resource, expectedData.getMatches(), actualData.getMatches());
+			assertEquals("Incorrect group targets for " + resource, expectedData.getGroupTargets(), actualData.getGroupTargets());
+		}
+	}
+
+	/* The policy loop DecisionPointImpl used before compilation, for rules without actions or conditions. Invalid
+	 * regex targets are treated as non matching rather than failing the request.
+	 */
+	private DecisionType evaluateLegacy(String resource, DecisionData decisionData)
+	{
+		DecisionType currentDecision = null;
+
+		for (Policy policy : this.policies)
+		{
+			List<String> policyResources = PolicyEvaluator.getPolicyTargetResources(policy);
+
+			decisionData.addProcessedPolicy(policy.getPolicyId());
+
+			for (String policyResource : policyResources)
+			{
+				if (!matchesLegacy(resource, policyResource))
+					continue;
+
+				for (Rule rule : policy.getRules())
+				{
+					decisionData.addProcessedRule(rule.getRuleId());
+
+					List<String> targetResources = PolicyEvaluator.getRuleTargetResources(rule);
+					if (targetResources == null)
+						targetResources = policyResources;
+
+					for (String ruleResource : targetResources)
+					{
+						if (!matchesLegacy(resource, ruleResource))
+							continue;
+
+						DecisionType newDecision = ProtocolTools.createDecision(rule.getEffect().value());
+						if (newDecision == DecisionType.DENY)
+						{
+							decisionData.clearTargets();
+							decisionData.addGroupTarget(policyResource);
+							decisionData.addMatch(ruleResource);
+							return DecisionType.DENY;
+						}
+
+						currentDecision = newDecision;
+						decisionData.addGroupTarget(policyResource);
+						decisionData.addMatch(ruleResource);
+					}
+				}
+			}
+		}
+
+		return currentDecision;
+	}
+
+	private boolean matchesLegacy(String resource, String target)
+	{
+		try
+		{
+			return resource.equals(target) || resource.matches(target);
+		}
+		catch (PatternSyntaxException e)
+		{
+			return false;
+		}
+	}
+
+	private Policy createPolicy(String policyId, String... resources)
+	{
+		Policy policy = new Policy();
+		policy.setPolicyId(policyId);
+		policy.setTarget(createTarget(resources));
+
+		return policy;
+	}
+
+	private Rule createRule(String ruleId, EffectType effect, String... resources)
+	{
+		Rule rule = new Rule();
+		rule.setRuleId(ruleId);
+		rule.setEffect(effect);
+
+		if (resources.length > 0)
+			rule.setTarget(createTarget(resources));
+
+		return rule;
+	}
+
+	private Target createTarget(String... resources)
+	{
+		Resources targetResources = new Resources();
+
+		for (String resource : resources)
+		{
+			AttributeValueType value = new AttributeValueType();
+			value.getContent().add(resource);
+
+			Resource targetResource = new Resource();
+			targetResource.setAttributeValue(value);
+			targetResources.getResources().add(targetResource);
+		}
+
+		Target target = new Target();
+		target.setResources(targetResources);
+
+		return target;
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Tests concurrent handler execution, handler timeouts and identity caching in the identity resolver.
+ */
+package com.qut.middleware.esoe.sessions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.qut.middleware.esoe.sessions.bean.IdentityAttribute;
+import com.qut.middleware.esoe.sessions.bean.IdentityData;
+import com.qut.middleware.esoe.sessions.bean.impl.IdentityAttributeImpl;
+import com.qut.middleware.esoe.sessions.bean.impl.IdentityDataImpl;
+import com.qut.middleware.esoe.sessions.exception.DataSourceException;
+import com.qut.middleware.esoe.sessions.identity.impl.IdentityResolverImpl;
+import com.qut.middleware.esoe.sessions.identity.pipeline.Handler;
+
+@SuppressWarnings("nls")
+public class ConcurrentIdentityResolverTest
+{
+	/* Handler which takes a configured time to add its values to the mail attribute */
+	private static class DelayedHandler implements Handler
+	{
+		final String name;
+		final long delay;
+		final Object[] values;
+		final AtomicInteger executions = new AtomicInteger();
+
+		DelayedHandler(String name, long delay, Object... values)
+		{
+			this.name = name;
+			this.delay = delay;
+			this.values = values;
+		}
+
+		public result execute(IdentityData data) throws DataSourceException
+		{
+			this.executions.incrementAndGet();
+			try
+			{
+				Thread.sleep(this.delay);
+			}
+			catch (InterruptedException e)
+			{
+				throw new DataSourceException(e);
+			}
+
+			for (Object value : this.values)
+				data.getAttributes().get("mail").addValue(value);
+
+			return result.Successful;
+		}
+
+		public String getHandlerName()
+		{
+			return this.name;
+		}
+	}
+
+	private static IdentityData createData(String principal)
+	{
+		IdentityData data = new IdentityDataImpl();
+		data.setPrincipalAuthnIdentifier(principal);
+
+		IdentityAttribute mail = new IdentityAttributeImpl();
+		mail.setType("String");
+		data.getAttributes().put("mail", mail);
+
+		return data;
+	}
+
+	/**
+	 * Tests that handlers execute concurrently and their values are merged in registration order.
+	 */
+	@Test
+	public void testConcurrentMerge() throws Exception
+	{
+		IdentityResolverImpl resolver = new IdentityResolverImpl(new Vector<Handler>(), 4, 10, 0);
+		resolver.registerHandler(new DelayedHandler("first", 400, "a1", "a2"));
+		resolver.registerHandler(new DelayedHandler("second", 100, "b1"));
+		resolver.registerHandler(new DelayedHandler("third", 300, "c1"));
+
+		IdentityData data = createData("beddoes");
+
+		long start = System.currentTimeMillis();
+		resolver.execute(data);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("Handlers were not executed concurrently, took " + elapsed, elapsed < 750);
+		assertEquals(Arrays.asList((Object) "a1", "a2", "b1", "c1"), data.getAttributes().get("mail").getValues());
+		assertEquals("third", data.getCurrentHandler());
+	}
+
+	/**
+	 * Tests that a handler which runs past its timeout fails the resolution.
+	 */
+	@Test
+	public void testHandlerTimeout() throws Exception
+	{
+		IdentityResolverImpl resolver = new IdentityResolverImpl(new Vector<Handler>(), 4, 1, 0);
+		resolver.registerHandler(new DelayedHandler("fast", 0, "a1"));
+		resolver.registerHandler(new DelayedHandler("slow", 3000, "b1"));
+
+		IdentityData data = createData("beddoes");
+
+		long start = System.currentTimeMillis();
+		try
+		{
+			resolver.execute(data);
+			fail("No exception thrown for handler past its timeout");
+		}
+		catch (DataSourceException e)
+		{
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue("Handler timeout was not applied, took " + elapsed, elapsed < 2500);
+		}
+
+		assertEquals(0, data.getAttributes().get("mail").getValues().size());
+	}
+
+	/**
+	 * Tests that a data source failure in a concurrent handler is passed on to the caller.
+	 */
+	@Test(expected = DataSourceException.class)
+	public void testHandlerFailure() throws Exception
+	{
+		IdentityResolverImpl resolver = new IdentityResolverImpl(new Vector<Handler>(), 4, 10, 0);
+		resolver.registerHandler(new DelayedHandler("working", 0, "a1"));
+		resolver.registerHandler(new Handler()
+		{
+			public result execute(IdentityData data) throws DataSourceException
+			{
+				throw new DataSourceException("Directory unavailable");
+			}
+
+			public String getHandlerName()
+			{
+				return "failing";
+			}
+		});
+
+		resolver.execute(createData("beddoes"));
+	}
+
+	/**
+	 * Tests that resolved values are reused for the same principal until invalidated, both when handlers execute
+	 * concurrently and in turn.
+	 */
+	@Test
+	public void testCache() throws Exception
+	{
+		for (int threads : new int[] { 0, 4 })
+		{
+			DelayedHandler first = new DelayedHandler("first", 0, "a1");
+			DelayedHandler second = new DelayedHandler("second", 0, "b1", "b2");
+
+			IdentityResolverImpl resolver = new IdentityResolverImpl(new Vector<Handler>(), threads, 10, 60);
+			resolver.registerHandler(first);
+			resolver.registerHandler(second);
+
+			IdentityData data = createData("beddoes");
+			resolver.execute(data);
+
+			IdentityData cached = createData("beddoes");
+			resolver.execute(cached);
+
+			assertEquals(1, first.executions.get());
+			assertEquals(1, second.executions.get());
+			assertEquals(data.getAttributes().get("mail").getValues(), cached.getAttributes().get("mail").getValues());
+			assertEquals(Arrays.asList((Object) "a1", "b1", "b2"), cached.getAttributes().get("mail").getValues());
+			assertEquals("second", cached.getCurrentHandler());
+
+			resolver.execute(createData("zedwards"));
+			assertEquals(2, first.executions.get());
+
+			resolver.invalidate("beddoes");
+			resolver.execute(createData("beddoes"));
+			assertEquals(3, first.executions.get());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidThreads()
+	{
+		new IdentityResolverImpl(new Vector<Handler>(), -1, 0, 0);
+	}
+}
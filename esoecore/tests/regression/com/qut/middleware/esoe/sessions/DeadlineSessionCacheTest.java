@@ -0,0 +1,157 @@
+/* 
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not 
+ * use this file except in compliance with the License. You may obtain a copy of 
+ * the License at 
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations under 
+ * the License.
+ * 
+ * Creation Date: 14/10/2008
+ * 
+ * Purpose: Runs tests to ensure DeadlineSessionCacheImpl functionality.
+ */
+package com.qut.middleware.esoe.sessions;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.notNull;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qut.middleware.esoe.logout.LogoutThreadPool;
+import com.qut.middleware.esoe.sessions.cache.impl.DeadlineSessionCacheImpl;
+import com.qut.middleware.esoe.sessions.exception.SessionCacheUpdateException;
+import com.qut.middleware.esoe.sessions.impl.PrincipalImpl;
+
+/** */
+@SuppressWarnings("nls")
+public class DeadlineSessionCacheTest
+{
+	private DeadlineSessionCacheImpl cache;
+	private LogoutThreadPool logout;
+
+	@Before
+	public void setUp()
+	{
+		this.logout = createMock(LogoutThreadPool.class);
+	}
+
+	private PrincipalImpl createPrincipal(String sessionID, String samlID, long lastAccessed, long notOnOrAfter)
+	{
+		PrincipalImpl data = new PrincipalImpl();
+		data.setSessionID(sessionID);
+		data.setSAMLAuthnIdentifier(samlID);
+		data.setPrincipalAuthnIdentifier("principal-" + sessionID);
+		data.setLastAccessed(lastAccessed);
+		data.setSessionNotOnOrAfter(notOnOrAfter);
+		return data;
+	}
+
+	@Test
+	public void testSingleEntryPerSession() throws Exception
+	{
+		replay(this.logout);
+		this.cache = new DeadlineSessionCacheImpl(this.logout, 60, 10);
+
+		long now = System.currentTimeMillis();
+		PrincipalImpl data = createPrincipal("98598qyu892579827398572", "_afsdkfjahsdkljfahlsdkj", now, now + 3600000);
+		this.cache.addSession(data);
+
+		assertEquals(1, this.cache.getSize());
+		assertSame(data, this.cache.getSession("98598qyu892579827398572"));
+		assertSame(data, this.cache.getSessionBySAMLID("_afsdkfjahsdkljfahlsdkj"));
+		assertTrue(this.cache.validSession("98598qyu892579827398572"));
+		assertFalse(this.cache.validSession("_afsdkfjahsdkljfahlsdkj"));
+
+		this.cache.removeSession("98598qyu892579827398572");
+
+		assertEquals(0, this.cache.getSize());
+		assertNull(this.cache.getSessionBySAMLID("_afsdkfjahsdkljfahlsdkj"));
+	}
+
+	@Test
+	public void testDuplicateSAMLID() throws Exception
+	{
+		replay(this.logout);
+		this.cache = new DeadlineSessionCacheImpl(this.logout, 60, 10);
+
+		long now = System.currentTimeMillis();
+		this.cache.addSession(createPrincipal("6987358973458979847498", "_mezxncvmzxbnioqtuwetiup", now, now + 3600000));
+
+		try
+		{
+			this.cache.addSession(createPrincipal("4980984098109519819815", "_mezxncvmzxbnioqtuwetiup", now, now + 3600000));
+			fail("Duplicate SAML ID was not rejected.");
+		}
+		catch (SessionCacheUpdateException e)
+		{
+			// expected
+		}
+
+		assertEquals(1, this.cache.getSize());
+		assertNull(this.cache.getSession("4980984098109519819815"));
+	}
+
+	@Test
+	public void testCleanCacheExpiredAndIdle() throws Exception
+	{
+		PrincipalImpl active = createPrincipal("active", "_active", 0, 0);
+
+		expect(this.logout.createLogoutTask((Principal) notNull(), eq(false))).andReturn("taskID").once();
+		replay(this.logout);
+
+		this.cache = new DeadlineSessionCacheImpl(this.logout, 60, 10);
+
+		long now = System.currentTimeMillis();
+		this.cache.addSession(createPrincipal("expired", "_expired", now, now - 1000));
+		this.cache.addSession(createPrincipal("idle", "_idle", now - 120000, now + 3600000));
+		this.cache.addSession(createPrincipal("current", "_current", now, now + 3600000));
+
+		active.setLastAccessed(now - 120000);
+		active.setSessionNotOnOrAfter(now + 3600000);
+		active.addEntitySessionIndex("http://spep.example.com", "_index");
+		this.cache.addSession(active);
+
+		assertEquals(2, this.cache.cleanCache(60000));
+
+		assertNull(this.cache.getSession("expired"));
+		assertNull(this.cache.getSession("idle"));
+		assertSame(active, this.cache.getSessionBySAMLID("_active"));
+		assertEquals(2, this.cache.getSize());
+
+		verify(this.logout);
+	}
+
+	@Test
+	public void testCleanCacheReducedTimeout() throws Exception
+	{
+		replay(this.logout);
+
+		// Scheduled against a one hour timeout, then cleaned with a zero timeout
+		this.cache = new DeadlineSessionCacheImpl(this.logout, 3600, 10);
+
+		long now = System.currentTimeMillis();
+		this.cache.addSession(createPrincipal("635472596wfd67d6", "_d8e9hf7f", now, now + 3600000));
+
+		Thread.sleep(100);
+
+		assertEquals(1, this.cache.cleanCache(0));
+		assertNull(this.cache.getSession("635472596wfd67d6"));
+	}
+}
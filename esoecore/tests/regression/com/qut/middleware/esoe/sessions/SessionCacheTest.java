@@ -39,6 +39,9 @@ import com.qut.middleware.esoe.sessions.cache.impl.SessionCacheImpl;
 import com.qut.middleware.esoe.sessions.exception.DuplicateSessionException;
 import com.qut.middleware.esoe.sessions.exception.SessionCacheUpdateException;
 import com.qut.middleware.esoe.sessions.impl.PrincipalImpl;
+import com.qut.middleware.esoe.util.CalendarUtils;
+import com.qut.middleware.saml2.time.impl.FixedClock;
+import com.qut.middleware.saml2.time.impl.SystemClock;
 
 /** */
 @SuppressWarnings("nls")
@@ -313,6 +316,56 @@ public class SessionCacheTest
 		assertEquals(null, this.cache.getSession(sessionID));
 	}
 
+	/* Tests idle and expiry removal against a fixed clock */
+	@Test
+	public void testCleanCacheFixedClock() throws Exception
+	{
+		FixedClock clock = new FixedClock(1000000000000L);
+		CalendarUtils.setClock(clock);
+		try
+		{
+			PrincipalImpl idle = new PrincipalImpl();
+			idle.setSessionID("idle");
+			idle.setPrincipalAuthnIdentifier("idle");
+			idle.setSAMLAuthnIdentifier("_idle");
+			idle.setSessionNotOnOrAfter(clock.currentTimeMillis() + 10000);
+
+			PrincipalImpl expiring = new PrincipalImpl();
+			expiring.setSessionID("expiring");
+			expiring.setPrincipalAuthnIdentifier("expiring");
+			expiring.setSAMLAuthnIdentifier("_expiring");
+			expiring.setSessionNotOnOrAfter(clock.currentTimeMillis() + 5000);
+
+			this.logout = createMock(LogoutThreadPool.class);
+			replay(this.logout);
+
+			this.cache = new SessionCacheImpl(this.logout);
+			this.cache.addSession(idle);
+			this.cache.addSession(expiring);
+			assertEquals(idle, this.cache.getSession("idle"));
+			assertEquals(expiring, this.cache.getSession("expiring"));
+
+			clock.advance(1000);
+			this.cache.cleanCache(2000);
+			assertEquals("Not idle long enough", idle, this.cache.getSession("idle"));
+			assertEquals(expiring, this.cache.getSession("expiring"));
+
+			clock.advance(3000);
+			assertEquals(expiring, this.cache.getSession("expiring"));
+			this.cache.cleanCache(2000);
+			assertNull("Idle session removed", this.cache.getSession("idle"));
+			assertEquals(expiring, this.cache.getSession("expiring"));
+
+			clock.advance(2000);
+			this.cache.cleanCache(100000);
+			assertNull("Expired session removed", this.cache.getSession("expiring"));
+		}
+		finally
+		{
+			CalendarUtils.setClock(new SystemClock());
+		}
+	}
+
 	@Test
 	public void testValidSession() throws Exception
 	{
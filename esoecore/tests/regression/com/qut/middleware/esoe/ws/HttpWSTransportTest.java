@@ -0,0 +1,241 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Tests the HTTP web services transport connection reuse, timeouts, response size limit and charset detection.
+ */
+package com.qut.middleware.esoe.ws;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qut.middleware.esoe.ws.exception.WSClientException;
+import com.qut.middleware.esoe.ws.impl.HttpWSTransportImpl;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+@SuppressWarnings("nls")
+public class HttpWSTransportTest
+{
+	private static final String CONTENT_TYPE = "application/soap+xml; charset=UTF-8";
+
+	private HttpServer server;
+	private String endpoint;
+	private Set<Integer> remotePorts;
+	private volatile int status;
+	private volatile long delay;
+	private volatile boolean chunked;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		this.status = 200;
+		this.remotePorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.createContext("/ws", new HttpHandler()
+		{
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				HttpWSTransportTest.this.remotePorts.add(exchange.getRemoteAddress().getPort());
+
+				byte[] request = readAll(exchange.getRequestBody());
+				if (HttpWSTransportTest.this.delay > 0)
+				{
+					try
+					{
+						Thread.sleep(HttpWSTransportTest.this.delay);
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+				}
+
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				exchange.sendResponseHeaders(HttpWSTransportTest.this.status, HttpWSTransportTest.this.chunked ? 0 : request.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(request);
+				out.close();
+			}
+		});
+		this.server.start();
+
+		this.endpoint = "http://127.0.0.1:" + this.server.getAddress().getPort() + "/ws";
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.server.stop(0);
+	}
+
+	/**
+	 * Tests that consecutive requests, including chunked responses, are sent over the same kept alive connection.
+	 */
+	@Test
+	public void testConnectionReuse() throws Exception
+	{
+		WSTransport transport = new HttpWSTransportImpl(5, 5, 1);
+
+		for (int i = 0; i < 5; i++)
+		{
+			this.chunked = (i % 2 == 1);
+			byte[] request = ("<request number=\"" + i + "\"/>").getBytes("UTF-8");
+			assertArrayEquals(request, transport.invoke(this.endpoint, "test", CONTENT_TYPE, request));
+		}
+
+		assertEquals("Connection was not reused " + this.remotePorts, 1, this.remotePorts.size());
+	}
+
+	/**
+	 * Tests that an error status is reported, and the error response is drained so the connection is still reused.
+	 */
+	@Test
+	public void testErrorStatus() throws Exception
+	{
+		WSTransport transport = new HttpWSTransportImpl(5, 5, 1);
+		byte[] request = "<request/>".getBytes("UTF-8");
+
+		this.status = 500;
+		try
+		{
+			transport.invoke(this.endpoint, "test", CONTENT_TYPE, request);
+			fail("No exception thrown for HTTP error status");
+		}
+		catch (WSClientException e)
+		{
+			// Expected
+		}
+
+		this.status = 200;
+		assertArrayEquals(request, transport.invoke(this.endpoint, "test", CONTENT_TYPE, request));
+		assertEquals("Connection was not reused " + this.remotePorts, 1, this.remotePorts.size());
+	}
+
+	/**
+	 * Tests that a slow endpoint fails once the read timeout passes.
+	 */
+	@Test
+	public void testReadTimeout() throws Exception
+	{
+		WSTransport transport = new HttpWSTransportImpl(5, 1, 1);
+		this.delay = 3000;
+
+		long start = System.currentTimeMillis();
+		try
+		{
+			transport.invoke(this.endpoint, "test", CONTENT_TYPE, "<request/>".getBytes("UTF-8"));
+			fail("No exception thrown for slow endpoint");
+		}
+		catch (WSClientException e)
+		{
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue("Read timeout was not applied, took " + elapsed, elapsed < 2500);
+		}
+	}
+
+	/**
+	 * Tests that responses larger than the maximum response size are rejected whether or not their length is declared.
+	 */
+	@Test
+	public void testMaxResponseSize() throws Exception
+	{
+		WSTransport transport = new HttpWSTransportImpl(5, 5, 1, 16);
+		byte[] request = "<request size=\"large\"/>".getBytes("UTF-8");
+
+		for (int i = 0; i < 2; i++)
+		{
+			this.chunked = (i == 1);
+			try
+			{
+				transport.invoke(this.endpoint, "test", CONTENT_TYPE, request);
+				fail("No exception thrown for oversized response, chunked " + this.chunked);
+			}
+			catch (WSClientException e)
+			{
+				// Expected
+			}
+		}
+
+		request = "<request-of-16/>".getBytes("UTF-8");
+		this.chunked = false;
+		assertArrayEquals(request, transport.invoke(this.endpoint, "test", CONTENT_TYPE, request));
+		this.chunked = true;
+		assertArrayEquals(request, transport.invoke(this.endpoint, "test", CONTENT_TYPE, request));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidMaxResponseSize() throws Exception
+	{
+		new HttpWSTransportImpl(5, 5, 1, 0);
+	}
+
+	@Test(expected = WSClientException.class)
+	public void testMalformedEndpoint() throws Exception
+	{
+		new HttpWSTransportImpl().invoke("not a url", "test", CONTENT_TYPE, new byte[0]);
+	}
+
+	/**
+	 * Tests charset detection from the content type, byte order marks and the XML prolog.
+	 */
+	@Test
+	public void testDetectCharset() throws Exception
+	{
+		byte[] ascii = "<?xml version=\"1.0\" encoding='ISO-8859-1'?><a/>".getBytes("ISO-8859-1");
+
+		assertEquals("UTF-16", HttpWSTransportImpl.detectCharset(ascii, "text/xml; charset=\"UTF-16\""));
+		assertEquals("ISO-8859-1", HttpWSTransportImpl.detectCharset(ascii, "text/xml"));
+		assertEquals("ISO-8859-1", HttpWSTransportImpl.detectCharset(ascii, "text/xml; charset=unknown-charset"));
+		assertEquals("UTF-8", HttpWSTransportImpl.detectCharset("<?xml version=\"1.0\"?><a/>".getBytes("UTF-8"), null));
+		assertEquals("UTF-8", HttpWSTransportImpl.detectCharset(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF, '<', 'a', '/', '>' }, null));
+		assertEquals("UTF-16LE", HttpWSTransportImpl.detectCharset("<?xml version=\"1.0\"?><a/>".getBytes("UTF-16LE"), null));
+		assertEquals("UTF-16BE", HttpWSTransportImpl.detectCharset("<?xml version=\"1.0\"?><a/>".getBytes("UTF-16BE"), null));
+		assertEquals("UTF-16BE", HttpWSTransportImpl.detectCharset("<a/>".getBytes("UTF-16"), null));
+
+		String detected = HttpWSTransportImpl.detectCharset("<a>some plain text content</a>".getBytes("UTF-8"), null);
+		assertNotNull("Fallback detection failed", detected);
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int count;
+		while ((count = in.read(buf)) >= 0)
+			out.write(buf, 0, count);
+
+		in.close();
+		return out.toByteArray();
+	}
+}
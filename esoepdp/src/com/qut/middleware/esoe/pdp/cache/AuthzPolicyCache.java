@@ -22,10 +22,14 @@ package com.qut.middleware.esoe.pdp.cache;
 import java.util.List;
 import java.util.Map;
 
+import com.qut.middleware.esoe.pdp.processor.impl.CompiledPolicySet;
 import com.qut.middleware.saml2.schemas.esoe.lxacml.Policy;
 
 /** A global cache object used to store LXACML Policy objects retrieved from in an external data source. Implementations of this 
  * Interface MUST ensure that all operations are thread safe.
+ * 
+ * Authorization decisions should read the cache through getSnapshot(), so that each decision sees one consistent
+ * generation of policies.
  *  */
 public interface AuthzPolicyCache
 {
@@ -50,9 +54,29 @@ public interface AuthzPolicyCache
 	 */
 	public boolean remove(String entityID);
 
+	/**
+	 * Add or replace the policies of each entity in the given map and set the build sequence ID, publishing both
+	 * to readers together as a single new generation of the cache.
+	 * 
+	 * @param policies
+	 *            Map of entity ID to the policy set to add for that entity.
+	 * @param sequenceId
+	 *            The build sequence ID of the new generation.
+	 */
+	public void update(Map<String, List<Policy>> policies, long sequenceId);
+
+	/**
+	 * Retrieve the current generation of the cache. The returned snapshot is immutable and is not affected by later
+	 * updates to the cache.
+	 * 
+	 * @return The current snapshot of the cache.
+	 */
+	public AuthzPolicySnapshot getSnapshot();
+
 	/**
 	 * Retrieve the policies associated with the entityID. The implementation MUST ensure that the returned
-	 * list is thread safe.
+	 * list is thread safe. The returned list is a private copy which the caller may modify, use getSnapshot() to
+	 * read policies without copying them.
 	 * 
 	 * @param entityID
 	 *            The entityID of the policies to retrieve.
@@ -60,6 +84,16 @@ public interface AuthzPolicyCache
 	 */
 	public List<Policy> getPolicies(String entityID);
 
+	/**
+	 * Retrieve the compiled form of the policies associated with the entityID, as built when the policies were added
+	 * to the cache. The returned object is immutable and may be shared between threads.
+	 * 
+	 * @param entityID
+	 *            The entityID of the policies to retrieve.
+	 * @return The compiled policies associated with the given entity, which will be empty if there are none.
+	 */
+	public CompiledPolicySet getCompiledPolicies(String entityID);
+
 	/**
 	 * Get the map representation of the cache. The cache object is a map of entity ID strings to the corresponding
 	 * List of Policy objects. The implementation of this method MUST ensure that the returned reference is synchronized.
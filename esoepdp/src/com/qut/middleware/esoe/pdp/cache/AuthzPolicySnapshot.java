@@ -0,0 +1,61 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: A single immutable generation of the authorization policy cache.
+ */
+package com.qut.middleware.esoe.pdp.cache;
+
+import java.util.List;
+
+import com.qut.middleware.esoe.pdp.processor.impl.CompiledPolicySet;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.Policy;
+
+/** A single generation of the policy cache, as published by one update. A snapshot never changes once obtained, so
+ * a decision made against it sees the policies of every entity as they were at one build sequence ID, regardless of
+ * any updates made to the cache while the decision is in progress. Implementations MUST be immutable.
+ */
+public interface AuthzPolicySnapshot
+{
+	/** Get the build sequence ID that this generation of the cache was published with.
+	 *
+	 * @return the sequenceId, or SEQUENCE_UNINITIALIZED if the cache had not yet been built.
+	 */
+	public long getBuildSequenceId();
+
+	/**
+	 * Retrieve the policies associated with the entityID in this generation.
+	 *
+	 * @param entityID
+	 *            The entityID of the policies to retrieve.
+	 * @return An unmodifiable zero or more sized List of policies associated with the given entity.
+	 */
+	public List<Policy> getPolicies(String entityID);
+
+	/**
+	 * Retrieve the compiled policies associated with the entityID in this generation.
+	 *
+	 * @param entityID
+	 *            The entityID of the policies to retrieve.
+	 * @return The compiled policies associated with the given entity, which will be empty if there are none.
+	 */
+	public CompiledPolicySet getCompiledPolicies(String entityID);
+
+	/**
+	 *  Retrieve the number of PolicySet objects stored in this generation.
+	 *
+	 */
+	public int getSize();
+}
@@ -1,80 +1,85 @@
-/* 
+/*
  * Copyright 2006, Queensland University of Technology
- * Licensed under the Apache License, Version 2.0 (the "License"); you may not 
- * use this file except in compliance with the License. You may obtain a copy of 
- * the License at 
- * 
- *   http://www.apache.org/licenses/LICENSE-2.0 
- * 
- * Unless required by applicable law or agreed to in writing, software 
- * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
- * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
- * License for the specific language governing permissions and limitations under 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
  * the License.
- * 
+ *
  * Author: Andre Zitelli
  * Creation Date: 12/10/2006
- * 
+ *
  * Purpose: Implements the AuthzPolicyCache interface
  */
 package com.qut.middleware.esoe.pdp.cache.impl;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.qut.middleware.esoe.pdp.cache.AuthzPolicyCache;
+import com.qut.middleware.esoe.pdp.cache.AuthzPolicySnapshot;
+import com.qut.middleware.esoe.pdp.processor.impl.CompiledPolicySet;
 import com.qut.middleware.saml2.schemas.esoe.lxacml.Policy;
 
 
+/** Stores policies as a series of immutable snapshots. Each update copies the current snapshot, applies its changes
+ * and publishes the result through a volatile reference, so readers never lock and always see a complete generation.
+ * Updates are serialized against each other.
+ */
 public class AuthzPolicyCacheImpl implements AuthzPolicyCache
-{	
-	private Map<String, List<Policy>> cache;
-	
-	private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
-    private volatile long sequenceId;
-    
+{
+	private static final CompiledPolicySet EMPTY_POLICY_SET = new CompiledPolicySet(null);
+
+	private volatile Snapshot snapshot;
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+
 	/**
 	 * Default constructor
 	 */
 	public AuthzPolicyCacheImpl()
-	{		
-		this.cache = new HashMap<String, List<Policy>>();
-		this.sequenceId = SEQUENCE_UNINITIALIZED;
+	{
+		this.snapshot = new Snapshot(new HashMap<String, List<Policy>>(), new HashMap<String, CompiledPolicySet>(), SEQUENCE_UNINITIALIZED);
 	}
-	
-	
-	/* Internal cache is stored as a map of (String) descriptorID -> List of Policy objects. NOTE: The List of policies 
-	 * stored is a clone of the given list.<br>
-	 * 
+
+
+	/* Internal cache is stored as a map of (String) descriptorID -> List of Policy objects. NOTE: The List of policies
+	 * stored is a copy of the given list.<br>
+	 *
 	 * PRE: policies is not null.
-	 * 
-	 * 
+	 *
+	 *
 	 * @see com.qut.middleware.esoe.pdp.cache.bean.AuthzPolicyCache#add(com.qut.middleware.esoe.xml.lxacml.Policy)
 	 */
 	public void add(String entityID, List<Policy> policies)
 	{
-		this.rwl.writeLock().lock();
-		
-		try
-		{						
-			Vector<Policy> clonedList = new Vector<Policy>();
-			
-			if(policies != null)
-				clonedList.addAll(policies);
-			
-			this.cache.put(entityID, (Vector<Policy>)clonedList.clone());
-		}
-		finally
-		{
-			this.rwl.writeLock().unlock();
-		}
+		Map<String, List<Policy>> changes = new HashMap<String, List<Policy>>();
+		changes.put(entityID, policies);
+
+		this.publish(changes, null);
 	}
-	
+
+
+	/*
+	 * @see com.qut.middleware.esoe.pdp.cache.AuthzPolicyCache#update(java.util.Map, long)
+	 */
+	public void update(Map<String, List<Policy>> policies, long sequenceId)
+	{
+		if(policies != null)
+			this.publish(policies, new Long(sequenceId));
+	}
+
 
 	/*
 	 * (non-Javadoc)
@@ -82,72 +87,95 @@ public class AuthzPolicyCacheImpl implements AuthzPolicyCache
 	 */
 	public Map<String, List<Policy>> getCache()
 	{
-		// Removed		
+		// Removed
 		throw new UnsupportedOperationException("This method has been deprecated. No longer supported.");
 	}
-	
+
+
+	/*
+	 * @see com.qut.middleware.esoe.pdp.cache.AuthzPolicyCache#getSnapshot()
+	 */
+	public AuthzPolicySnapshot getSnapshot()
+	{
+		return this.snapshot;
+	}
+
 
 	/*
 	 * @see com.qut.middleware.esoe.pdp.cache.bean.AuthzPolicyCache#getPolicy(java.lang.String)
 	 */
 	public List<Policy> getPolicies(String entityID)
-	{		
-		this.rwl.readLock().lock();
-		
-		try
-		{	
-			Vector<Policy> clonedList = new Vector<Policy>();
-			List<Policy>policies = this.cache.get(entityID);
-		
-			if(policies != null)
-				clonedList.addAll(policies);
-			
-			return (Vector<Policy>)clonedList.clone();						
-		}
-		finally
-		{
-			this.rwl.readLock().unlock();
-		}
-		
+	{
+		// callers are free to modify the returned list, so it can't be the stored one
+		return new Vector<Policy>(this.snapshot.getPolicies(entityID));
 	}
 
 
-	/* 
+	/*
+	 * @see com.qut.middleware.esoe.pdp.cache.AuthzPolicyCache#getCompiledPolicies(java.lang.String)
+	 */
+	public CompiledPolicySet getCompiledPolicies(String entityID)
+	{
+		return this.snapshot.getCompiledPolicies(entityID);
+	}
+
+
+	/*
 	 * @see com.qut.middleware.esoe.pdp.cache.bean.AuthzPolicyCache#remove(com.qut.middleware.esoe.xml.lxacml.Policy)
 	 */
 	public boolean remove(String entityID)
 	{
-		this.rwl.writeLock().lock();
-		
+		this.writeLock.lock();
+
 		try
 		{
-			return (this.cache.remove(entityID) != null);
+			Snapshot current = this.snapshot;
+			if(!current.policies.containsKey(entityID))
+				return false;
+
+			Map<String, List<Policy>> policies = new HashMap<String, List<Policy>>(current.policies);
+			Map<String, CompiledPolicySet> compiled = new HashMap<String, CompiledPolicySet>(current.compiled);
+			policies.remove(entityID);
+			compiled.remove(entityID);
+
+			this.snapshot = new Snapshot(policies, compiled, current.sequenceId);
+			return true;
 		}
 		finally
 		{
-			this.rwl.writeLock().unlock();
+			this.writeLock.unlock();
 		}
 	}
 
 
-	/* 
+	/*
 	 * @see com.qut.middleware.esoe.pdp.cache.bean.AuthzPolicyCache#setCache(com.qut.middleware.esoe.xml.lxacml.Policy)
 	 */
 	public void setCache(Map<String, List<Policy>> newData)
 	{
-		this.rwl.writeLock().lock();
-		
+		if(newData == null)
+			return;
+
+		Map<String, List<Policy>> policies = new HashMap<String, List<Policy>>();
+		Map<String, CompiledPolicySet> compiled = new HashMap<String, CompiledPolicySet>();
+		for(Map.Entry<String, List<Policy>> entry : newData.entrySet())
+		{
+			List<Policy> copy = copyPolicies(entry.getValue());
+			policies.put(entry.getKey(), copy);
+			compiled.put(entry.getKey(), new CompiledPolicySet(copy));
+		}
+
+		this.writeLock.lock();
+
 		try
 		{
-			
-			if(newData != null)
-				this.cache = newData;
+			this.snapshot = new Snapshot(policies, compiled, this.snapshot.sequenceId);
 		}
 		finally
 		{
-			this.rwl.writeLock().unlock();
+			this.writeLock.unlock();
 		}
-		
+
 	}
 
 
@@ -157,17 +185,7 @@ public class AuthzPolicyCacheImpl implements AuthzPolicyCache
 	 */
 	public long getBuildSequenceId()
 	{
-		this.rwl.readLock().lock();
-		
-		try
-		{
-			return this.sequenceId;
-		}
-		finally
-		{
-			this.rwl.readLock().unlock();
-		}
-		
+		return this.snapshot.sequenceId;
 	}
 
 	/*
@@ -176,15 +194,16 @@ public class AuthzPolicyCacheImpl implements AuthzPolicyCache
 	 */
 	public void setBuildSequenceId(long sequenceId)
 	{
-		this.rwl.writeLock().lock();
-		
+		this.writeLock.lock();
+
 		try
 		{
-			this.sequenceId = sequenceId;
+			Snapshot current = this.snapshot;
+			this.snapshot = new Snapshot(current.policies, current.compiled, sequenceId);
 		}
 		finally
 		{
-			this.rwl.writeLock().unlock();
+			this.writeLock.unlock();
 		}
 	}
 
@@ -194,15 +213,92 @@ public class AuthzPolicyCacheImpl implements AuthzPolicyCache
 	 */
 	public int getSize()
 	{
-		this.rwl.readLock().lock();
-		
+		return this.snapshot.getSize();
+	}
+
+
+	/* Copy the current snapshot with the given entity policies added or replaced, and publish it. A null sequenceId
+	 * keeps the current one.
+	 */
+	private void publish(Map<String, List<Policy>> changes, Long sequenceId)
+	{
+		// compiling may take some time, so it is done before other updates are locked out
+		Map<String, List<Policy>> copies = new HashMap<String, List<Policy>>();
+		Map<String, CompiledPolicySet> compiledChanges = new HashMap<String, CompiledPolicySet>();
+		for(Map.Entry<String, List<Policy>> entry : changes.entrySet())
+		{
+			List<Policy> copy = copyPolicies(entry.getValue());
+			copies.put(entry.getKey(), copy);
+			compiledChanges.put(entry.getKey(), new CompiledPolicySet(copy));
+		}
+
+		this.writeLock.lock();
+
 		try
-		{		
-			return this.cache.size();
+		{
+			Snapshot current = this.snapshot;
+
+			Map<String, List<Policy>> policies = new HashMap<String, List<Policy>>(current.policies);
+			Map<String, CompiledPolicySet> compiled = new HashMap<String, CompiledPolicySet>(current.compiled);
+			policies.putAll(copies);
+			compiled.putAll(compiledChanges);
+
+			this.snapshot = new Snapshot(policies, compiled, (sequenceId == null) ? current.sequenceId : sequenceId.longValue());
 		}
 		finally
 		{
-			this.rwl.readLock().unlock();
+			this.writeLock.unlock();
+		}
+	}
+
+	private static List<Policy> copyPolicies(List<Policy> policies)
+	{
+		if(policies == null)
+			return Collections.emptyList();
+
+		return Collections.unmodifiableList(new ArrayList<Policy>(policies));
+	}
+
+
+	/* One immutable generation of the cache. The maps are never modified once the snapshot is published. */
+	private static class Snapshot implements AuthzPolicySnapshot
+	{
+		final Map<String, List<Policy>> policies;
+		final Map<String, CompiledPolicySet> compiled;
+		final long sequenceId;
+
+		Snapshot(Map<String, List<Policy>> policies, Map<String, CompiledPolicySet> compiled, long sequenceId)
+		{
+			this.policies = policies;
+			this.compiled = compiled;
+			this.sequenceId = sequenceId;
+		}
+
+		public long getBuildSequenceId()
+		{
+			return this.sequenceId;
+		}
+
+		public List<Policy> getPolicies(String entityID)
+		{
+			List<Policy> entityPolicies = this.policies.get(entityID);
+
+			if(entityPolicies == null)
+				return Collections.emptyList();
+
+			return entityPolicies;
+		}
+
+		public CompiledPolicySet getCompiledPolicies(String entityID)
+		{
+			CompiledPolicySet entityPolicies = this.compiled.get(entityID);
+
+			return (entityPolicies == null) ? EMPTY_POLICY_SET : entityPolicies;
+		}
+
+		public int getSize()
+		{
+			return this.policies.size();
 		}
 	}
 
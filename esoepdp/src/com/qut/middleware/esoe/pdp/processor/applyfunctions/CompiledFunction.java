@@ -0,0 +1,36 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: A condition expression which has been resolved ahead of time from its LXACML Apply element.
+ */
+package com.qut.middleware.esoe.pdp.processor.applyfunctions;
+
+import java.util.List;
+import java.util.Map;
+
+/** A condition expression resolved from an LXACML Apply element by the FunctionCompiler. Implementations are
+ * immutable and may be evaluated by any number of threads at once.
+ */
+public interface CompiledFunction
+{
+	/** Evaluate the expression against the given principal attributes.
+	 *
+	 * @param principalAttributes The attributes of the principal to match against. May be null.
+	 * @return The outcome of the expression, as the equivalent apply function evaluateExpression() would return.
+	 * @throws IllegalArgumentException if the expression was built from an invalid Apply element.
+	 */
+	public boolean evaluate(Map<String, List<String>> principalAttributes);
+}
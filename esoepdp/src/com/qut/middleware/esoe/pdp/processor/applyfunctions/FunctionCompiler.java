@@ -0,0 +1,338 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Resolves LXACML condition Apply elements into CompiledFunction trees.
+ */
+package com.qut.middleware.esoe.pdp.processor.applyfunctions;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.xml.bind.JAXBElement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qut.middleware.saml2.schemas.esoe.lxacml.ApplyType;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.AttributeValueType;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.SubjectAttributeDesignatorType;
+
+/** Resolves the Apply element of an LXACML condition into a tree of CompiledFunction objects, so that function
+ * dispatch, attribute designator extraction and regular expression compilation are done once when the policy is
+ * loaded rather than on every request. The resulting functions evaluate exactly as the And, Or, Not, StringEqual
+ * and StringRegex classes do, including which malformed elements cause an IllegalArgumentException at evaluation time.
+ */
+public class FunctionCompiler
+{
+	/* Characters which give a regular expression a meaning other than its literal content */
+	private static final String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}"; //$NON-NLS-1$
+
+	private static final Pattern WHITESPACE_END = Pattern.compile("\\s*$"); //$NON-NLS-1$
+
+	private static final CompiledFunction FALSE = new CompiledFunction()
+	{
+		public boolean evaluate(Map<String, List<String>> principalAttributes)
+		{
+			return false;
+		}
+	};
+
+	private static Logger logger = LoggerFactory.getLogger(FunctionCompiler.class.getName());
+
+	/** Compile the root Apply element of a condition.
+	 *
+	 * @param rootNode The expression contained in the condition.
+	 * @return The compiled function. Never null, an invalid root node results in a function which throws an
+	 * IllegalArgumentException when evaluated.
+	 */
+	public static CompiledFunction compile(JAXBElement<?> rootNode)
+	{
+		if (rootNode == null || (rootNode.getDeclaredType() != ApplyType.class))
+			return new InvalidFunction("Root Node of Condition is not an Apply Element."); //$NON-NLS-1$
+
+		ApplyType apply = (ApplyType) rootNode.getValue();
+		if (apply.getFunctionId() == null)
+			return new InvalidFunction("Function ID of root Node does not exist. Unable to parse policy data."); //$NON-NLS-1$
+
+		return compileApply(apply);
+	}
+
+	/** Determine if the given regular expression only ever matches its own literal content.
+	 *
+	 * @param regex The regular expression to check.
+	 * @return true if the regex contains no metacharacters.
+	 */
+	public static boolean isLiteral(String regex)
+	{
+		for (int i = 0; i < regex.length(); i++)
+		{
+			if (REGEX_METACHARACTERS.indexOf(regex.charAt(i)) >= 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	/** Determine the longest literal string that every input matched by the given regular expression must start with.
+	 *
+	 * @param regex The regular expression to check.
+	 * @return The literal prefix, which is the entire regex if it contains no metacharacters. May be zero length.
+	 */
+	public static String getLiteralPrefix(String regex)
+	{
+		// alternation may discard any of the content preceding it
+		if (regex.indexOf('|') >= 0)
+			return ""; //$NON-NLS-1$
+
+		for (int i = 0; i < regex.length(); i++)
+		{
+			char c = regex.charAt(i);
+			if (REGEX_METACHARACTERS.indexOf(c) < 0)
+				continue;
+
+			int end = i;
+
+			// a quantifier allowing zero occurrences makes the preceding character optional
+			if (c == '?' || c == '*' || c == '{')
+			{
+				end--;
+				if (end > 0 && Character.isLowSurrogate(regex.charAt(end)) && Character.isHighSurrogate(regex.charAt(end - 1)))
+					end--;
+			}
+
+			return regex.substring(0, Math.max(end, 0));
+		}
+
+		return regex;
+	}
+
+	/* Dispatch on function ID, unknown functions evaluate to false as they do in the apply function classes */
+	private static CompiledFunction compileApply(ApplyType apply)
+	{
+		String function = apply.getFunctionId();
+
+		if (function == null)
+			return FALSE;
+
+		if (function.equals(Or.FUNCTION_NAME) || function.equals(Not.FUNCTION_NAME) || function.equals(And.FUNCTION_NAME))
+			return compileLogical(function, apply);
+
+		if (function.equals(StringRegex.FUNCTION_NAME) || function.equals(StringEqual.FUNCTION_NAME))
+			return compileStringMatch(function, apply);
+
+		return FALSE;
+	}
+
+	private static CompiledFunction compileLogical(String function, ApplyType apply)
+	{
+		List<CompiledFunction> children = new ArrayList<CompiledFunction>();
+
+		for (JAXBElement<?> child : apply.getExpressions())
+		{
+			// logical functions can only hold other apply types, anything else ends evaluation at that point
+			if (child.getDeclaredType() != ApplyType.class)
+			{
+				children.add(null);
+				break;
+			}
+
+			children.add(compileApply((ApplyType) child.getValue()));
+		}
+
+		return new LogicalFunction(function, children.toArray(new CompiledFunction[children.size()]));
+	}
+
+	private static CompiledFunction compileStringMatch(String function, ApplyType apply)
+	{
+		List<String> designators = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		boolean toLower = false;
+		boolean normalizeSpaces = false;
+
+		for (JAXBElement<?> child : apply.getExpressions())
+		{
+			if (child.getDeclaredType() == SubjectAttributeDesignatorType.class)
+			{
+				SubjectAttributeDesignatorType subj = (SubjectAttributeDesignatorType) child.getValue();
+				if (subj != null)
+					designators.add(subj.getAttributeId());
+			}
+			else
+				if (child.getDeclaredType() == AttributeValueType.class)
+				{
+					for (Object content : ((AttributeValueType) child.getValue()).getContent())
+					{
+						if (content != null)
+							values.add(content.toString());
+					}
+				}
+				else
+					if (child.getDeclaredType() == ApplyType.class)
+					{
+						String childFunction = ((ApplyType) child.getValue()).getFunctionId();
+
+						if (StringNormalizeLower.FUNCTION_NAME.equals(childFunction))
+							toLower = true;
+						else
+							if (StringNormalizeSpace.FUNCTION_NAME.equals(childFunction))
+								normalizeSpaces = true;
+							else
+								return new InvalidFunction(MessageFormat.format("Invalid Element. The {0} function can only contain a {1} OR {2}. Received {3}.", function, StringNormalizeLower.FUNCTION_NAME, StringNormalizeSpace.FUNCTION_NAME, childFunction)); //$NON-NLS-1$
+					}
+		}
+
+		if (designators.isEmpty() || values.isEmpty())
+			return new InvalidFunction("Given Expression does not contain BOTH a SubjectAttributeDesignator and AttributeValue. Unable to match content."); //$NON-NLS-1$
+
+		Set<String> literals = new HashSet<String>();
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		for (String value : values)
+		{
+			if (isLiteral(value))
+			{
+				literals.add(value);
+				continue;
+			}
+
+			try
+			{
+				patterns.add(Pattern.compile(value));
+			}
+			catch (PatternSyntaxException e)
+			{
+				logger.warn(MessageFormat.format("Invalid regex {0} found in content for expression {1}. It will not be matched.", value, function)); //$NON-NLS-1$
+			}
+		}
+
+		return new StringMatchFunction(designators.toArray(new String[designators.size()]), literals, patterns.toArray(new Pattern[patterns.size()]), toLower, normalizeSpaces);
+	}
+
+	/* Evaluates and, or and not functions over their compiled children. A null child marks an element which was
+	 * not an Apply element, at which point the function returns false.
+	 */
+	private static class LogicalFunction implements CompiledFunction
+	{
+		private final boolean and;
+		private final boolean not;
+		private final CompiledFunction[] children;
+
+		LogicalFunction(String function, CompiledFunction[] children)
+		{
+			this.and = function.equals(And.FUNCTION_NAME);
+			this.not = function.equals(Not.FUNCTION_NAME);
+			this.children = children;
+		}
+
+		public boolean evaluate(Map<String, List<String>> principalAttributes)
+		{
+			for (CompiledFunction child : this.children)
+			{
+				if (child == null)
+					return false;
+
+				boolean result = child.evaluate(principalAttributes);
+
+				if (this.and && !result)
+					return false;
+
+				if (!this.and && result)
+					return !this.not;
+			}
+
+			// and: all true, or: none true, not: none true
+			return this.and || this.not;
+		}
+	}
+
+	/* Evaluates string-equal and string-regex-match functions, which both apply their values as regular expressions */
+	private static class StringMatchFunction implements CompiledFunction
+	{
+		private final String[] designators;
+		private final Set<String> literals;
+		private final Pattern[] patterns;
+		private final boolean toLower;
+		private final boolean normalizeSpaces;
+
+		StringMatchFunction(String[] designators, Set<String> literals, Pattern[] patterns, boolean toLower, boolean normalizeSpaces)
+		{
+			this.designators = designators;
+			this.literals = literals;
+			this.patterns = patterns;
+			this.toLower = toLower;
+			this.normalizeSpaces = normalizeSpaces;
+		}
+
+		public boolean evaluate(Map<String, List<String>> principalAttributes)
+		{
+			if (principalAttributes == null)
+				return false;
+
+			for (String designator : this.designators)
+			{
+				List<String> attribute = principalAttributes.get(designator);
+				if (attribute == null)
+					continue;
+
+				for (Object attributeValue : attribute)
+				{
+					if (attributeValue == null)
+						continue;
+
+					String value = attributeValue.toString();
+					if (this.toLower)
+						value = value.toLowerCase();
+
+					// matches StringNormalizeSpace, which only removes trailing whitespace
+					if (this.normalizeSpaces)
+						value = WHITESPACE_END.matcher(value).replaceAll(""); //$NON-NLS-1$
+
+					if (this.literals.contains(value))
+						return true;
+
+					for (Pattern pattern : this.patterns)
+					{
+						if (pattern.matcher(value).matches())
+							return true;
+					}
+				}
+			}
+
+			return false;
+		}
+	}
+
+	/* Defers the failure of an invalid element until it is evaluated, as the apply function classes do */
+	private static class InvalidFunction implements CompiledFunction
+	{
+		private final String message;
+
+		InvalidFunction(String message)
+		{
+			this.message = message;
+		}
+
+		public boolean evaluate(Map<String, List<String>> principalAttributes)
+		{
+			throw new IllegalArgumentException(this.message);
+		}
+	}
+}
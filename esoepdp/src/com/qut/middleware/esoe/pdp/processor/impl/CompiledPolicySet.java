@@ -0,0 +1,397 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: An immutable, pre-processed form of the LXACML policies for a single entity.
+ */
+package com.qut.middleware.esoe.pdp.processor.impl;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qut.middleware.esoe.pdp.processor.applyfunctions.CompiledFunction;
+import com.qut.middleware.esoe.pdp.processor.applyfunctions.FunctionCompiler;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.ConditionType;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.Policy;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.Rule;
+import com.qut.middleware.saml2.schemas.esoe.lxacml.context.DecisionType;
+
+/** The LXACML policies of a single entity, compiled when they are added to the policy cache so that authorization
+ * requests do not repeatedly extract targets and actions, recompile resource regular expressions or walk condition
+ * elements. Policy targets are indexed by exact value and by literal prefix, so a request only tests the regular
+ * expressions of policies which could possibly match its resource.
+ *
+ * Evaluation follows the same order and produces the same decision and DecisionData content as evaluating the source
+ * policies directly. Instances are immutable and safe to share between threads.
+ */
+public class CompiledPolicySet
+{
+	private final CompiledPolicy[] policies;
+
+	/* policy target values -> policies holding a target equal to that value */
+	private final Map<String, BitSet> literalIndex;
+
+	/* regex literal prefixes -> policies holding a regex target with that prefix, and the distinct prefix lengths */
+	private final Map<String, BitSet> prefixIndex;
+	private final int[] prefixLengths;
+
+	private static Logger logger = LoggerFactory.getLogger(CompiledPolicySet.class.getName());
+
+	/** Compile the given policies. The list is not retained.
+	 *
+	 * @param policies The policies of an entity, in evaluation order. May be null, in which case the set is empty.
+	 */
+	public CompiledPolicySet(List<Policy> policies)
+	{
+		List<CompiledPolicy> compiled = new ArrayList<CompiledPolicy>();
+		this.literalIndex = new HashMap<String, BitSet>();
+		this.prefixIndex = new HashMap<String, BitSet>();
+		Set<Integer> lengths = new TreeSet<Integer>();
+
+		if (policies != null)
+		{
+			for (Policy policy : policies)
+			{
+				if (policy == null)
+					continue;
+
+				CompiledPolicy compiledPolicy = new CompiledPolicy(policy);
+				int index = compiled.size();
+				compiled.add(compiledPolicy);
+
+				for (CompiledTarget target : compiledPolicy.targets)
+				{
+					index(this.literalIndex, target.target, index);
+
+					if (target.pattern != null)
+					{
+						index(this.prefixIndex, target.prefix, index);
+						lengths.add(target.prefix.length());
+					}
+				}
+			}
+		}
+
+		this.policies = compiled.toArray(new CompiledPolicy[compiled.size()]);
+
+		this.prefixLengths = new int[lengths.size()];
+		int i = 0;
+		for (Integer length : lengths)
+			this.prefixLengths[i++] = length.intValue();
+	}
+
+	/** Evaluate a resource request against the compiled policies.
+	 *
+	 * @param resource The resource requested.
+	 * @param action The action requested, may be null.
+	 * @param principalAttributes The attributes of the principal to evaluate rule conditions against.
+	 * @param decisionData The data object to record processed policies, rules and matching targets in.
+	 * @return DecisionType.DENY if a matching rule denies the request, else DecisionType.PERMIT if a matching rule
+	 * permits it, else null if no rule made a decision.
+	 */
+	public DecisionType evaluate(String resource, String action, Map<String, List<String>> principalAttributes, DecisionData decisionData)
+	{
+		DecisionType currentDecision = null;
+		BitSet candidates = getCandidates(resource);
+
+		for (int i = 0; i < this.policies.length; i++)
+		{
+			CompiledPolicy policy = this.policies[i];
+
+			// add current policy to list of processed policies
+			decisionData.addProcessedPolicy(policy.policyId);
+
+			if (!candidates.get(i))
+				continue;
+
+			logger.debug("Processing Policy {}", policy.policyId); //$NON-NLS-1$
+
+			// rule outcomes are computed at most once, however many targets match
+			DecisionType[] outcomes = new DecisionType[policy.rules.length];
+			boolean[] evaluated = new boolean[policy.rules.length];
+
+			for (CompiledTarget policyTarget : policy.targets)
+			{
+				if (!policyTarget.matches(resource))
+					continue;
+
+				logger.debug("Matched requested Resource against Policy Target {}.", policyTarget.target); //$NON-NLS-1$
+
+				for (int r = 0; r < policy.rules.length; r++)
+				{
+					CompiledRule rule = policy.rules[r];
+
+					decisionData.addProcessedRule(rule.ruleId);
+
+					for (CompiledTarget ruleTarget : rule.targets)
+					{
+						if (!ruleTarget.matches(resource))
+							continue;
+
+						if (!rule.isValidAction(action))
+						{
+							logger.warn("Invalid Action submitted in Authz Request."); //$NON-NLS-1$
+							continue;
+						}
+
+						if (!evaluated[r])
+						{
+							outcomes[r] = rule.evaluate(principalAttributes);
+							evaluated[r] = true;
+						}
+
+						if (outcomes[r] == DecisionType.DENY)
+						{
+							logger.debug("Encountered DENY decision in Rule {}. Terminating Rule processing ...", rule.ruleId); //$NON-NLS-1$
+
+							// only the deny group target and authz target that matched the requested resource are sent
+							decisionData.clearTargets();
+							decisionData.addGroupTarget(policyTarget.target);
+							decisionData.addMatch(ruleTarget.target);
+
+							return DecisionType.DENY;
+						}
+
+						if (outcomes[r] == DecisionType.PERMIT)
+							currentDecision = DecisionType.PERMIT;
+
+						decisionData.addGroupTarget(policyTarget.target);
+						decisionData.addMatch(ruleTarget.target);
+					}
+				}
+			}
+		}
+
+		return currentDecision;
+	}
+
+	/** Get the number of policies in this set.
+	 *
+	 * @return The number of compiled policies.
+	 */
+	public int size()
+	{
+		return this.policies.length;
+	}
+
+	/* Determine which policies hold a target that may match the resource */
+	private BitSet getCandidates(String resource)
+	{
+		BitSet candidates = new BitSet(this.policies.length);
+
+		BitSet literal = this.literalIndex.get(resource);
+		if (literal != null)
+			candidates.or(literal);
+
+		for (int length : this.prefixLengths)
+		{
+			if (length > resource.length())
+				break;
+
+			BitSet prefixed = this.prefixIndex.get(resource.substring(0, length));
+			if (prefixed != null)
+				candidates.or(prefixed);
+		}
+
+		return candidates;
+	}
+
+	private static void index(Map<String, BitSet> index, String key, int policy)
+	{
+		BitSet policies = index.get(key);
+		if (policies == null)
+		{
+			policies = new BitSet();
+			index.put(key, policies);
+		}
+
+		policies.set(policy);
+	}
+
+	private static CompiledTarget[] compileTargets(List<String> targets)
+	{
+		CompiledTarget[] compiled = new CompiledTarget[targets.size()];
+		for (int i = 0; i < compiled.length; i++)
+			compiled[i] = new CompiledTarget(targets.get(i));
+
+		return compiled;
+	}
+
+	private static Set<String> toActionSet(List<String> actions)
+	{
+		if (actions == null || actions.size() == 0)
+			return null;
+
+		return new HashSet<String>(actions);
+	}
+
+	static class CompiledPolicy
+	{
+		final String policyId;
+		final CompiledTarget[] targets;
+		final CompiledRule[] rules;
+
+		CompiledPolicy(Policy policy)
+		{
+			this.policyId = policy.getPolicyId();
+
+			// an incomplete target leaves the extractor with nothing to iterate
+			List<String> policyResources;
+			try
+			{
+				policyResources = PolicyEvaluator.getPolicyTargetResources(policy);
+			}
+			catch (NullPointerException e)
+			{
+				policyResources = null;
+			}
+
+			if (policyResources == null)
+			{
+				logger.warn(MessageFormat.format("Policy {0} has no resource targets and will never match a request.", this.policyId)); //$NON-NLS-1$
+				policyResources = new ArrayList<String>();
+			}
+
+			this.targets = compileTargets(policyResources);
+
+			Set<String> policyActions = toActionSet(PolicyEvaluator.getPolicyTargetActions(policy));
+
+			List<Rule> policyRules = policy.getRules();
+			this.rules = new CompiledRule[policyRules.size()];
+			for (int i = 0; i < this.rules.length; i++)
+				this.rules[i] = new CompiledRule(policyRules.get(i), this.targets, policyActions);
+		}
+	}
+
+	static class CompiledRule
+	{
+		final String ruleId;
+		final CompiledTarget[] targets;
+
+		/* null when any action is valid */
+		final Set<String> actions;
+
+		/* null when the rule has no condition to evaluate */
+		final CompiledFunction condition;
+		final DecisionType effect;
+
+		CompiledRule(Rule rule, CompiledTarget[] policyTargets, Set<String> policyActions)
+		{
+			this.ruleId = rule.getRuleId();
+
+			// if the rule has no specified targets, use the policy targets
+			List<String> ruleResources = PolicyEvaluator.getRuleTargetResources(rule);
+			this.targets = (ruleResources == null) ? policyTargets : compileTargets(ruleResources);
+
+			// likewise for actions, where no actions at all means any action is valid
+			Set<String> ruleActions = toActionSet(PolicyEvaluator.getRuleTargetActions(rule));
+			this.actions = (ruleActions == null) ? policyActions : ruleActions;
+
+			ConditionType cond = rule.getCondition();
+			if (cond != null && cond.getExpression() != null)
+				this.condition = FunctionCompiler.compile(cond.getExpression());
+			else
+				this.condition = null;
+
+			String effectValue = (rule.getEffect() == null) ? null : rule.getEffect().toString();
+			if (ProtocolTools.PERMIT.equalsIgnoreCase(effectValue))
+				this.effect = DecisionType.PERMIT;
+			else
+				if (ProtocolTools.DENY.equalsIgnoreCase(effectValue))
+					this.effect = DecisionType.DENY;
+				else
+				{
+					logger.warn(MessageFormat.format("Rule {0} has no valid Effect and will never make a decision.", this.ruleId)); //$NON-NLS-1$
+					this.effect = null;
+				}
+		}
+
+		boolean isValidAction(String action)
+		{
+			return this.actions == null || this.actions.contains(action);
+		}
+
+		/* The effect of the rule if its condition matches, else null */
+		DecisionType evaluate(Map<String, List<String>> principalAttributes)
+		{
+			if (this.condition == null)
+				return this.effect;
+
+			// Invalid parameters in a Rule = ignore that Rule.
+			try
+			{
+				if (this.condition.evaluate(principalAttributes))
+					return this.effect;
+			}
+			catch (IllegalArgumentException e)
+			{
+				logger.warn("Ignoring bad Rule. " + e.getMessage()); //$NON-NLS-1$
+			}
+
+			logger.debug("Condition did not match. Ignoring Effect of Rule {}.", this.ruleId); //$NON-NLS-1$
+			return null;
+		}
+	}
+
+	static class CompiledTarget
+	{
+		final String target;
+
+		/* null when the target can only match by equality */
+		final Pattern pattern;
+		final String prefix;
+
+		CompiledTarget(String target)
+		{
+			this.target = target;
+
+			Pattern compiled = null;
+			if (!FunctionCompiler.isLiteral(target))
+			{
+				try
+				{
+					compiled = Pattern.compile(target);
+				}
+				catch (PatternSyntaxException e)
+				{
+					logger.warn(MessageFormat.format("Invalid regex in resource target {0}. It will only match by equality.", target)); //$NON-NLS-1$
+				}
+			}
+
+			this.pattern = compiled;
+			this.prefix = (compiled == null) ? target : FunctionCompiler.getLiteralPrefix(target);
+		}
+
+		boolean matches(String resource)
+		{
+			if (resource.equals(this.target))
+				return true;
+
+			return this.pattern != null && resource.startsWith(this.prefix) && this.pattern.matcher(resource).matches();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Converts principal attribute maps to and from the BLOB stored with each session.
+ */
+
+package com.qut.middleware.esoe.sessions.data;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.qut.middleware.esoe.sessions.bean.IdentityAttribute;
+
+public interface AttributeCodec
+{
+	/** Encode a principal's attributes for storage.
+	 *
+	 * @param attributes The attribute map to encode.
+	 * @return The encoded attributes.
+	 * @throws IOException if the attributes could not be encoded.
+	 */
+	public byte[] encode(Map<String, IdentityAttribute> attributes) throws IOException;
+
+	/** Decode attributes previously stored by this codec, or by any format it declares it can read.
+	 *
+	 * @param data The stored attributes.
+	 * @return The decoded attribute map.
+	 * @throws IOException if the data is not in a recognised format or is corrupt.
+	 * @throws ClassNotFoundException if the data refers to a class which is not available.
+	 */
+	public Map<String, IdentityAttribute> decode(byte[] data) throws IOException, ClassNotFoundException;
+}
@@ -94,6 +94,18 @@ public interface SessionCacheDAO
 	 * @return A List of session identifiers of idle sessions.
 	 */
 	public List<String> getIdleSessions(long idleTime) throws SessionCacheDAOException;
+	
+	/** Retrieve a page of the sessions that have not been accessed in the last n milliseconds and have active entity sessions,
+	 * in session identifier order. The returned principals hold their session identifiers, last accessed time and active
+	 * entity sessions only. Their attributes are not retrieved.
+	 * 
+	 * @param idleTime Number of milliseconds after which a session is determined to be idle.
+	 * @param afterSessionID Only sessions with an identifier after this one are retrieved. The identifier of the last
+	 * session of the previous page, or the empty string for the first page.
+	 * @param pageSize The maximum number of sessions to retrieve.
+	 * @return The idle sessions. An empty list when there are no more idle sessions.
+	 */
+	public List<Principal> getIdleSessions(long idleTime, String afterSessionID, int pageSize) throws SessionCacheDAOException;
 
 	/** Clear the database of all sessions that are considered expired. Expired sessions are sessions that have exceeded their
 	 * allocated notOnOrAfter value. Ie: notOnOrAfter is greater than NOW.
@@ -128,4 +140,14 @@ public interface SessionCacheDAO
 	 * @throws SessionCacheDAOException
 	 */
 	public boolean updateIdleEntitySessions(Principal principal, long idleGraceExpiryTime) throws SessionCacheDAOException;
+	
+	/** Update the idleGraceExpiryTime and delete any active entity sessions for each of the given principals, as a single
+	 * batch.
+	 * 
+	 * @param principals The principals to update.
+	 * @param idleGraceExpiryTime The time at which the idle sessions will be considered expired.
+	 * @return The number of sessions updated.
+	 * @throws SessionCacheDAOException
+	 */
+	public int updateIdleEntitySessions(List<Principal> principals, long idleGraceExpiryTime) throws SessionCacheDAOException;
 }
@@ -0,0 +1,477 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Stores principal attribute maps in a compact, versioned binary format.
+ */
+
+package com.qut.middleware.esoe.sessions.data.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import com.qut.middleware.esoe.sessions.bean.IdentityAttribute;
+import com.qut.middleware.esoe.sessions.bean.impl.IdentityAttributeImpl;
+import com.qut.middleware.esoe.sessions.data.AttributeCodec;
+
+/** Stores attribute maps as length-prefixed UTF-8 strings and tagged values. Attribute names, types and handler names
+ * are written once to a dictionary at the start of the data and referred to by index, and are interned when read so
+ * that sessions share them in memory. Values other than strings, numbers, booleans, dates and byte arrays are written
+ * with Java serialization. Data larger than the compression threshold is deflated when that makes it smaller.
+ *
+ * Data written with Java serialization, as the session cache originally stored it, is recognised and read with
+ * the JavaSerializationAttributeCodec. Attribute maps holding null names, attributes or handler names are also
+ * written in that format, as this one does not represent them.
+ *
+ * Layout: magic (2 bytes), format version (1 byte), flags (1 byte), then the optionally deflated body. The body holds
+ * the dictionary size and entries, then the attribute count and for each attribute its name index, type index plus
+ * one (0 for no type), handler count and indexes, and value count and tagged values. Counts and lengths are unsigned
+ * variable length integers.
+ */
+public class CompactAttributeCodec implements AttributeCodec
+{
+	/* The first two bytes of data written by this codec */
+	private static final byte[] MAGIC = { (byte) 0xE5, (byte) 0x01 };
+
+	/** The format version written by this codec */
+	public static final int FORMAT_VERSION = 1;
+
+	/** Body sizes from which compression is attempted, unless configured otherwise */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+	private static final int HEADER_LENGTH = 4;
+	private static final int FLAG_DEFLATED = 0x01;
+
+	/* Upper bound on a single decoded string or value, so corrupt data can't cause a huge allocation */
+	private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+	private static final String CHARSET = "UTF-8"; //$NON-NLS-1$
+
+	private static final int TAG_NULL = 0;
+	private static final int TAG_STRING = 1;
+	private static final int TAG_INTEGER = 2;
+	private static final int TAG_LONG = 3;
+	private static final int TAG_BOOLEAN = 4;
+	private static final int TAG_FLOAT = 5;
+	private static final int TAG_DOUBLE = 6;
+	private static final int TAG_DATE = 7;
+	private static final int TAG_BYTES = 8;
+	private static final int TAG_SERIALIZED = 9;
+
+	private final int compressionThreshold;
+	private final JavaSerializationAttributeCodec legacyCodec;
+
+	/**
+	 * Constructor, compressing data from DEFAULT_COMPRESSION_THRESHOLD bytes.
+	 */
+	public CompactAttributeCodec()
+	{
+		this(DEFAULT_COMPRESSION_THRESHOLD);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param compressionThreshold The encoded size in bytes from which attribute data is compressed. 0 disables
+	 * compression.
+	 */
+	public CompactAttributeCodec(int compressionThreshold)
+	{
+		if (compressionThreshold < 0)
+			throw new IllegalArgumentException("Compression threshold must not be negative.");
+
+		this.compressionThreshold = compressionThreshold;
+		this.legacyCodec = new JavaSerializationAttributeCodec();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.esoe.sessions.data.AttributeCodec#encode(java.util.Map)
+	 */
+	public byte[] encode(Map<String, IdentityAttribute> attributes) throws IOException
+	{
+		// assign dictionary indexes in the order strings are first used
+		Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, IdentityAttribute> entry : attributes.entrySet())
+		{
+			IdentityAttribute attribute = entry.getValue();
+			if (entry.getKey() == null || attribute == null)
+				return this.legacyCodec.encode(attributes);
+
+			addToDictionary(dictionary, entry.getKey());
+
+			if (attribute.getType() != null)
+				addToDictionary(dictionary, attribute.getType());
+
+			for (String handler : attribute.getHandlers())
+			{
+				if (handler == null)
+					return this.legacyCodec.encode(attributes);
+
+				addToDictionary(dictionary, handler);
+			}
+		}
+
+		ByteArrayOutputStream bodyStream = new ByteArrayOutputStream(256);
+		DataOutputStream body = new DataOutputStream(bodyStream);
+
+		writeLength(body, dictionary.size());
+		for (String entry : dictionary.keySet())
+			writeString(body, entry);
+
+		writeLength(body, attributes.size());
+		for (Map.Entry<String, IdentityAttribute> entry : attributes.entrySet())
+		{
+			IdentityAttribute attribute = entry.getValue();
+
+			writeLength(body, dictionary.get(entry.getKey()).intValue());
+			writeLength(body, (attribute.getType() == null) ? 0 : dictionary.get(attribute.getType()).intValue() + 1);
+
+			List<String> handlers = attribute.getHandlers();
+			writeLength(body, handlers.size());
+			for (String handler : handlers)
+				writeLength(body, dictionary.get(handler).intValue());
+
+			List<Object> values = attribute.getValues();
+			writeLength(body, values.size());
+			for (Object value : values)
+				writeValue(body, value);
+		}
+
+		body.flush();
+		byte[] bodyBytes = bodyStream.toByteArray();
+
+		int flags = 0;
+		if (this.compressionThreshold > 0 && bodyBytes.length >= this.compressionThreshold)
+		{
+			byte[] deflated = deflate(bodyBytes);
+			if (deflated.length < bodyBytes.length)
+			{
+				bodyBytes = deflated;
+				flags |= FLAG_DEFLATED;
+			}
+		}
+
+		byte[] data = new byte[HEADER_LENGTH + bodyBytes.length];
+		data[0] = MAGIC[0];
+		data[1] = MAGIC[1];
+		data[2] = (byte) FORMAT_VERSION;
+		data[3] = (byte) flags;
+		System.arraycopy(bodyBytes, 0, data, HEADER_LENGTH, bodyBytes.length);
+
+		return data;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.esoe.sessions.data.AttributeCodec#decode(byte[])
+	 */
+	public Map<String, IdentityAttribute> decode(byte[] data) throws IOException, ClassNotFoundException
+	{
+		if (JavaSerializationAttributeCodec.isSerialized(data))
+			return this.legacyCodec.decode(data);
+
+		if (data == null || data.length < HEADER_LENGTH || data[0] != MAGIC[0] || data[1] != MAGIC[1])
+			throw new IOException("Attribute data is not in a recognised format.");
+
+		int version = data[2] & 0xFF;
+		if (version != FORMAT_VERSION)
+			throw new IOException("Attribute data format version " + version + " is not supported.");
+
+		int flags = data[3] & 0xFF;
+
+		InputStream bodyStream;
+		if ((flags & FLAG_DEFLATED) != 0)
+			bodyStream = new ByteArrayInputStream(inflate(data, HEADER_LENGTH));
+		else
+			bodyStream = new ByteArrayInputStream(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+
+		DataInputStream body = new DataInputStream(bodyStream);
+
+		int dictionarySize = readLength(body);
+		List<String> dictionary = new ArrayList<String>();
+		for (int i = 0; i < dictionarySize; i++)
+			dictionary.add(readString(body).intern());
+
+		int attributeCount = readLength(body);
+		Map<String, IdentityAttribute> attributes = new HashMap<String, IdentityAttribute>();
+		for (int i = 0; i < attributeCount; i++)
+		{
+			String name = lookup(dictionary, readLength(body));
+
+			IdentityAttribute attribute = new IdentityAttributeImpl();
+
+			int type = readLength(body);
+			if (type > 0)
+				attribute.setType(lookup(dictionary, type - 1));
+
+			int handlerCount = readLength(body);
+			for (int j = 0; j < handlerCount; j++)
+				attribute.getHandlers().add(lookup(dictionary, readLength(body)));
+
+			int valueCount = readLength(body);
+			for (int j = 0; j < valueCount; j++)
+				attribute.addValue(readValue(body));
+
+			attributes.put(name, attribute);
+		}
+
+		return attributes;
+	}
+
+	private static void addToDictionary(Map<String, Integer> dictionary, String value)
+	{
+		if (!dictionary.containsKey(value))
+			dictionary.put(value, new Integer(dictionary.size()));
+	}
+
+	private static String lookup(List<String> dictionary, int index) throws IOException
+	{
+		if (index >= dictionary.size())
+			throw new IOException("Attribute data refers to dictionary entry " + index + " of " + dictionary.size() + ".");
+
+		return dictionary.get(index);
+	}
+
+	private static void writeValue(DataOutput out, Object value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeByte(TAG_NULL);
+		}
+		else if (value instanceof String)
+		{
+			out.writeByte(TAG_STRING);
+			writeString(out, (String) value);
+		}
+		else if (value instanceof Integer)
+		{
+			out.writeByte(TAG_INTEGER);
+			out.writeInt(((Integer) value).intValue());
+		}
+		else if (value instanceof Long)
+		{
+			out.writeByte(TAG_LONG);
+			out.writeLong(((Long) value).longValue());
+		}
+		else if (value instanceof Boolean)
+		{
+			out.writeByte(TAG_BOOLEAN);
+			out.writeBoolean(((Boolean) value).booleanValue());
+		}
+		else if (value instanceof Float)
+		{
+			out.writeByte(TAG_FLOAT);
+			out.writeFloat(((Float) value).floatValue());
+		}
+		else if (value instanceof Double)
+		{
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble(((Double) value).doubleValue());
+		}
+		else if (value.getClass() == Date.class)
+		{
+			// subclasses such as java.sql.Timestamp carry more than the time, so are serialized
+			out.writeByte(TAG_DATE);
+			out.writeLong(((Date) value).getTime());
+		}
+		else if (value instanceof byte[])
+		{
+			out.writeByte(TAG_BYTES);
+			writeBytes(out, (byte[]) value);
+		}
+		else
+		{
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			ObjectOutputStream outputStream = new ObjectOutputStream(stream);
+			outputStream.writeObject(value);
+			outputStream.close();
+
+			out.writeByte(TAG_SERIALIZED);
+			writeBytes(out, stream.toByteArray());
+		}
+	}
+
+	private static Object readValue(DataInput in) throws IOException, ClassNotFoundException
+	{
+		int tag = in.readUnsignedByte();
+		switch (tag)
+		{
+			case TAG_NULL:
+				return null;
+			case TAG_STRING:
+				return readString(in);
+			case TAG_INTEGER:
+				return new Integer(in.readInt());
+			case TAG_LONG:
+				return new Long(in.readLong());
+			case TAG_BOOLEAN:
+				return Boolean.valueOf(in.readBoolean());
+			case TAG_FLOAT:
+				return new Float(in.readFloat());
+			case TAG_DOUBLE:
+				return new Double(in.readDouble());
+			case TAG_DATE:
+				return new Date(in.readLong());
+			case TAG_BYTES:
+				return readBytes(in);
+			case TAG_SERIALIZED:
+				ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)));
+				try
+				{
+					return inputStream.readObject();
+				}
+				finally
+				{
+					inputStream.close();
+				}
+			default:
+				throw new IOException("Attribute data contains unknown value type " + tag + ".");
+		}
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException
+	{
+		writeBytes(out, value.getBytes(CHARSET));
+	}
+
+	private static String readString(DataInput in) throws IOException
+	{
+		return new String(readBytes(in), CHARSET);
+	}
+
+	private static void writeBytes(DataOutput out, byte[] value) throws IOException
+	{
+		writeLength(out, value.length);
+		out.write(value);
+	}
+
+	private static byte[] readBytes(DataInput in) throws IOException
+	{
+		int length = readLength(in);
+		if (length > MAX_LENGTH)
+			throw new IOException("Attribute data contains a value of " + length + " bytes, which exceeds the limit of " + MAX_LENGTH + ".");
+
+		byte[] value = new byte[length];
+		in.readFully(value);
+
+		return value;
+	}
+
+	/* Unsigned variable length integer, 7 bits per byte with the high bit set on all but the last byte */
+	private static void writeLength(DataOutput out, int value) throws IOException
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.writeByte(value);
+	}
+
+	private static int readLength(DataInput in) throws IOException
+	{
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0)
+			{
+				if (value < 0)
+					throw new IOException("Attribute data contains an invalid length.");
+
+				return value;
+			}
+		}
+
+		throw new IOException("Attribute data contains an invalid length.");
+	}
+
+	private static byte[] inflate(byte[] data, int offset) throws IOException
+	{
+		Inflater inflater = new Inflater();
+
+		try
+		{
+			inflater.setInput(data, offset, data.length - offset);
+
+			ByteArrayOutputStream stream = new ByteArrayOutputStream((data.length - offset) * 4);
+			byte[] buffer = new byte[4096];
+			while (!inflater.finished())
+			{
+				int length = inflater.inflate(buffer);
+				if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Compressed attribute data is truncated.");
+
+				if (stream.size() + length > MAX_LENGTH)
+					throw new IOException("Compressed attribute data exceeds the limit of " + MAX_LENGTH + " bytes.");
+
+				stream.write(buffer, 0, length);
+			}
+
+			return stream.toByteArray();
+		}
+		catch (DataFormatException e)
+		{
+			IOException ioe = new IOException("Compressed attribute data is corrupt.");
+			ioe.initCause(e);
+			throw ioe;
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+
+	private static byte[] deflate(byte[] data) throws IOException
+	{
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+		try
+		{
+			ByteArrayOutputStream stream = new ByteArrayOutputStream(data.length / 2);
+			DeflaterOutputStream deflaterStream = new DeflaterOutputStream(stream, deflater);
+			deflaterStream.write(data);
+			deflaterStream.close();
+
+			return stream.toByteArray();
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Parameters and result rows of the paged idle session queries. Each result row is one active entity
+ * 		session of an idle session.
+ */
+
+package com.qut.middleware.esoe.sessions.data.impl;
+
+public class IdleSessionData
+{
+	private String sessionID;
+	private String samlAuthnIdentifier;
+	private String principalAuthnIdentifier;
+	private Long lastAccessed;
+	private String entityID;
+	private String entitySessionID;
+	
+	// page bounds, sessions after the first and up to and including the last
+	private String afterSessionID;
+	private String lastSessionID;
+	
+	// number of sessions in a page, and whether the database limits rows with ROWNUM rather than LIMIT
+	private Integer pageSize;
+	private boolean limitByRowNum;
+	
+	public String getSessionID()
+	{
+		return sessionID;
+	}
+	public void setSessionID(String sessionID)
+	{
+		this.sessionID = sessionID;
+	}
+	public String getSamlAuthnIdentifier()
+	{
+		return samlAuthnIdentifier;
+	}
+	public void setSamlAuthnIdentifier(String samlAuthnIdentifier)
+	{
+		this.samlAuthnIdentifier = samlAuthnIdentifier;
+	}
+	public String getPrincipalAuthnIdentifier()
+	{
+		return principalAuthnIdentifier;
+	}
+	public void setPrincipalAuthnIdentifier(String principalAuthnIdentifier)
+	{
+		this.principalAuthnIdentifier = principalAuthnIdentifier;
+	}
+	public Long getLastAccessed()
+	{
+		return lastAccessed;
+	}
+	public void setLastAccessed(Long lastAccessed)
+	{
+		this.lastAccessed = lastAccessed;
+	}
+	public String getEntityID()
+	{
+		return entityID;
+	}
+	public void setEntityID(String entityID)
+	{
+		this.entityID = entityID;
+	}
+	public String getEntitySessionID()
+	{
+		return entitySessionID;
+	}
+	public void setEntitySessionID(String entitySessionID)
+	{
+		this.entitySessionID = entitySessionID;
+	}
+	public String getAfterSessionID()
+	{
+		return afterSessionID;
+	}
+	public void setAfterSessionID(String afterSessionID)
+	{
+		this.afterSessionID = afterSessionID;
+	}
+	public String getLastSessionID()
+	{
+		return lastSessionID;
+	}
+	public void setLastSessionID(String lastSessionID)
+	{
+		this.lastSessionID = lastSessionID;
+	}
+	public Integer getPageSize()
+	{
+		return pageSize;
+	}
+	public void setPageSize(Integer pageSize)
+	{
+		this.pageSize = pageSize;
+	}
+	public boolean isLimitByRowNum()
+	{
+		return limitByRowNum;
+	}
+	public void setLimitByRowNum(boolean limitByRowNum)
+	{
+		this.limitByRowNum = limitByRowNum;
+	}
+}
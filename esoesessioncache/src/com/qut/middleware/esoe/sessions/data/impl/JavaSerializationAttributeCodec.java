@@ -0,0 +1,80 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Stores principal attribute maps using Java object serialization.
+ */
+
+package com.qut.middleware.esoe.sessions.data.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+
+import com.qut.middleware.esoe.sessions.bean.IdentityAttribute;
+import com.qut.middleware.esoe.sessions.data.AttributeCodec;
+
+/** The original session attribute format, the attribute map written with an ObjectOutputStream. */
+public class JavaSerializationAttributeCodec implements AttributeCodec
+{
+	/* The first two bytes of every Java serialization stream */
+	private static final byte[] STREAM_MAGIC = { (byte) 0xAC, (byte) 0xED };
+
+	/** Determine if the given data is a Java serialization stream.
+	 *
+	 * @param data The stored attributes.
+	 * @return true if the data starts with the serialization stream magic number.
+	 */
+	public static boolean isSerialized(byte[] data)
+	{
+		return data != null && data.length >= 2 && data[0] == STREAM_MAGIC[0] && data[1] == STREAM_MAGIC[1];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.esoe.sessions.data.AttributeCodec#encode(java.util.Map)
+	 */
+	public byte[] encode(Map<String, IdentityAttribute> attributes) throws IOException
+	{
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		ObjectOutputStream outputStream = new ObjectOutputStream(stream);
+		outputStream.writeObject(attributes);
+		outputStream.close();
+
+		return stream.toByteArray();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.esoe.sessions.data.AttributeCodec#decode(byte[])
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, IdentityAttribute> decode(byte[] data) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(data));
+
+		try
+		{
+			return (Map<String, IdentityAttribute>) inputStream.readObject();
+		}
+		finally
+		{
+			inputStream.close();
+		}
+	}
+}
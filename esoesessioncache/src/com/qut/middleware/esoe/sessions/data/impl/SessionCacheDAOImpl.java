@@ -1,28 +1,33 @@
 package com.qut.middleware.esoe.sessions.data.impl;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.text.MessageFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SimpleTimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.orm.ibatis.SqlMapClientCallback;
 import org.springframework.orm.ibatis.support.SqlMapClientDaoSupport;
 
 import com.ibatis.sqlmap.client.SqlMapClient;
+import com.ibatis.sqlmap.client.SqlMapExecutor;
 import com.ibatis.sqlmap.client.event.RowHandler;
 import com.qut.middleware.esoe.ConfigurationConstants;
 import com.qut.middleware.esoe.sessions.Principal;
 import com.qut.middleware.esoe.sessions.bean.IdentityAttribute;
+import com.qut.middleware.esoe.sessions.data.AttributeCodec;
 import com.qut.middleware.esoe.sessions.data.SessionCacheDAO;
 import com.qut.middleware.esoe.sessions.exception.InvalidDescriptorIdentifierException;
 import com.qut.middleware.esoe.sessions.exception.InvalidSessionIdentifierException;
@@ -36,13 +41,22 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 	 * Implementation note:
 	 * validSession is implemented as an update statement that sets the last accessed time.
 	 * Any method needing to update the last accessed time can simply call this method.
+	 *
+	 * When a last accessed flush interval is set, getSession records the last accessed time in memory rather than
+	 * updating the session row, and the recorded times are written in JDBC batches at that interval. The idle session
+	 * queries flush first, so the staleness window only affects other readers of the LASTACCESSED column.
 	 */
-	
+
+	/* Maximum number of updates sent in a single JDBC batch */
+	private static final int FLUSH_BATCH_SIZE = 500;
+
 	private static final String QUERY_GET_SESSION = "getSession";
 	private static final String QUERY_GET_SESSION_BY_SAML_ID = "getSessionBySAMLID";
 	private static final String QUERY_GET_ACTIVE_ENTITY_SESSIONS = "getActiveEntitySessions";
 	private static final String QUERY_GET_SESSION_CACHE_SIZE = "getSessionCacheSize";
 	private static final String QUERY_GET_IDLE_SESSIONS = "getIdleSessions";
+	private static final String QUERY_GET_IDLE_SESSION_PAGE = "getIdleSessionPage";
+	private static final String QUERY_GET_IDLE_SESSION_PAGE_ENTITY_SESSIONS = "getIdleSessionPageEntitySessions";
 	private static final String QUERY_INSERT_SESSION = "insertSession";
 	private static final String QUERY_INSERT_DESCRIPTOR = "insertDescriptor";
 	private static final String QUERY_INSERT_DESCRIPTOR_SESSION = "insertDescriptorSession";
@@ -57,6 +71,163 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 
+	/* session ID -> last accessed time not yet written to the database */
+	private final ConcurrentHashMap<String, Long> pendingLastAccessed = new ConcurrentHashMap<String, Long>();
+
+	/* held from draining the pending times until they are written, so idle queries wait for a flush in progress */
+	private final Object flushLock = new Object();
+
+	private long lastAccessedFlushInterval;
+	private LastAccessedFlushThread flushThread;
+
+	private AttributeCodec attributeCodec = new CompactAttributeCodec();
+
+	/* Whether the idle session page is limited with ROWNUM, determined from the database on first use */
+	private volatile Boolean limitByRowNum;
+
+	/**
+	 * Set the codec used to store principal attributes. Defaults to a CompactAttributeCodec, which also reads
+	 * attributes stored with Java serialization.
+	 *
+	 * @param attributeCodec The codec to use.
+	 */
+	public void setAttributeCodec(AttributeCodec attributeCodec)
+	{
+		if (attributeCodec == null)
+			throw new IllegalArgumentException("Attribute codec cannot be null.");
+
+		this.attributeCodec = attributeCodec;
+	}
+
+	/**
+	 * Set the interval at which last accessed times are written to the database. When set, getSession no longer
+	 * updates the session row itself, so the stored last accessed time may be up to this old. Must be set before
+	 * the DAO is initialized.
+	 *
+	 * @param lastAccessedFlushInterval The interval in seconds. 0 (the default) updates the session row on every
+	 * getSession call.
+	 */
+	public void setLastAccessedFlushInterval(int lastAccessedFlushInterval)
+	{
+		if (lastAccessedFlushInterval < 0 || lastAccessedFlushInterval > Integer.MAX_VALUE / 1000)
+			throw new IllegalArgumentException("Last accessed flush interval must be between 0 and " + Integer.MAX_VALUE / 1000 + " seconds.");
+
+		this.lastAccessedFlushInterval = lastAccessedFlushInterval * 1000L;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.dao.support.DaoSupport#initDao()
+	 */
+	@Override
+	protected void initDao() throws Exception
+	{
+		if (this.lastAccessedFlushInterval > 0 && this.flushThread == null)
+		{
+			this.flushThread = new LastAccessedFlushThread();
+			this.flushThread.start();
+
+			this.logger.info(MessageFormat.format("Writing session last accessed times to the database every {0} seconds.", this.lastAccessedFlushInterval / 1000));
+		}
+	}
+
+	/**
+	 * Stop the flush thread, if one is running, and write any pending last accessed times to the database.
+	 */
+	public void shutdown()
+	{
+		if (this.flushThread != null)
+		{
+			this.flushThread.shutdown();
+			this.flushThread = null;
+		}
+
+		try
+		{
+			this.flushLastAccessed();
+		}
+		catch (SessionCacheDAOException e)
+		{
+			this.logger.warn("Discarding pending session last accessed times. " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Write the last accessed times recorded by getSession to the database. Times which fail to be written are kept
+	 * for the next flush. Flushes are serialized, so this returns only after any flush already in progress has
+	 * written or restored its times.
+	 *
+	 * @return The number of sessions updated.
+	 * @throws SessionCacheDAOException if the batch update failed.
+	 */
+	public int flushLastAccessed() throws SessionCacheDAOException
+	{
+		synchronized (this.flushLock)
+		{
+			if (this.pendingLastAccessed.isEmpty())
+				return 0;
+
+			final Map<String, Long> flushing = new HashMap<String, Long>();
+			for (String sessionID : this.pendingLastAccessed.keySet())
+			{
+				Long lastAccessed = this.pendingLastAccessed.remove(sessionID);
+				if (lastAccessed != null)
+					flushing.put(sessionID, lastAccessed);
+			}
+
+			if (flushing.isEmpty())
+				return 0;
+
+			long start = System.currentTimeMillis();
+
+			try
+			{
+				Integer updated = (Integer) this.getSqlMapClientTemplate().execute(new SqlMapClientCallback()
+				{
+					public Object doInSqlMapClient(SqlMapExecutor executor) throws SQLException
+					{
+						int updated = 0;
+						int batched = 0;
+
+						executor.startBatch();
+						for (Map.Entry<String, Long> entry : flushing.entrySet())
+						{
+							SessionData sessionData = new SessionData();
+							sessionData.setSessionID(entry.getKey());
+							sessionData.setLastAccessed(entry.getValue().longValue());
+
+							executor.update(SessionCacheDAOImpl.QUERY_UPDATE_SESSION_LAST_ACCESSED, sessionData);
+
+							if (++batched == FLUSH_BATCH_SIZE)
+							{
+								updated += executor.executeBatch();
+								batched = 0;
+								executor.startBatch();
+							}
+						}
+						updated += executor.executeBatch();
+
+						return new Integer(updated);
+					}
+				});
+
+				this.logger.debug(MessageFormat.format("Flushed last accessed times for {0} sessions in {1} milliseconds.", flushing.size(), System.currentTimeMillis() - start));
+
+				return (updated == null) ? 0 : updated.intValue();
+			}
+			catch (DataAccessException e)
+			{
+				// keep the times for the next flush, unless the session has been accessed again since
+				for (Map.Entry<String, Long> entry : flushing.entrySet())
+					this.pendingLastAccessed.putIfAbsent(entry.getKey(), entry.getValue());
+
+				this.logger.error("A DataSource error occured attempting to flush session last accessed times. SQL error occurred trying to execute " + SessionCacheDAOImpl.QUERY_UPDATE_SESSION_LAST_ACCESSED + ". ");
+				this.logger.debug("Exception: " + e.getLocalizedMessage());
+				throw new SessionCacheDAOException("Unable to flush session last accessed times due to underlying data source failure.");
+			}
+		}
+	}
+
 	public void addSession(Principal principal) throws SessionCacheDAOException
 	{
 		SessionData sessionData = new SessionData();
@@ -116,13 +287,8 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 		byte[] attributeBlob = null;
 		try
 		{
-			// Serialize the attribute map into a byte array so we can store it as a BLOB
-			ByteArrayOutputStream stream = new ByteArrayOutputStream();
-			ObjectOutputStream outputStream = new ObjectOutputStream(stream);
-			outputStream.writeObject(attributeMap);
-			outputStream.close();
-			stream.close();
-			attributeBlob = stream.toByteArray();
+			// Encode the attribute map into a byte array so we can store it as a BLOB
+			attributeBlob = this.attributeCodec.encode(attributeMap);
 		}
 		catch (IOException e)
 		{
@@ -133,6 +299,9 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 
 	public int deleteIdleSessions() throws SessionCacheDAOException
 	{
+		// sessions accessed since they went idle must have their idle grace expiry cleared first
+		this.flushLastAccessed();
+
 		try
 		{
 			GregorianCalendar thisCal = CalendarUtils.generateXMLCalendar().toGregorianCalendar();
@@ -199,7 +368,11 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 		sessionParam.setSessionNotOnOrAfter(System.currentTimeMillis());
 		sessionParam.setLastAccessed(System.currentTimeMillis());
 		
-		if(updateLastAccessed)
+		if(updateLastAccessed && this.lastAccessedFlushInterval > 0)
+		{
+			this.pendingLastAccessed.put(sessionID, new Long(sessionParam.getLastAccessed()));
+		}
+		else if(updateLastAccessed)
 		{
 			try
 			{
@@ -217,6 +390,10 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 		String value = "null";
 		if (principal != null)
 		{
+			Long pending = this.pendingLastAccessed.get(sessionID);
+			if (pending != null)
+				principal.setLastAccessed(pending.longValue());
+			
 			value = "Principal with SAML ID: " + principal.getPrincipalAuthnIdentifier() + "  Principal authn identifier: " + principal.getPrincipalAuthnIdentifier();
 		}
 		
@@ -226,6 +403,8 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 	
 	public List<String> getIdleSessions(long idleTimePeriod) throws SessionCacheDAOException
 	{
+		this.flushLastAccessed();
+
 		try
 		{			
 			SessionData sessionParam = new SessionData();
@@ -250,6 +429,67 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 			
 	}
 	
+	@SuppressWarnings("unchecked")
+	public List<Principal> getIdleSessions(long idleTimePeriod, String afterSessionID, int pageSize) throws SessionCacheDAOException
+	{
+		this.flushLastAccessed();
+
+		try
+		{
+			SqlMapClient sqlMapClient = this.getSqlMapClient();
+			
+			// the page is limited by the query itself, so the database only returns pageSize rows
+			IdleSessionData queryParam = new IdleSessionData();
+			queryParam.setLastAccessed(System.currentTimeMillis() - idleTimePeriod);
+			queryParam.setAfterSessionID(afterSessionID);
+			queryParam.setPageSize(pageSize);
+			queryParam.setLimitByRowNum(this.limitByRowNum(sqlMapClient));
+			
+			// getIdleSessionPage has a result class of String
+			List<String> sessionIDs = (List<String>) sqlMapClient.queryForList(SessionCacheDAOImpl.QUERY_GET_IDLE_SESSION_PAGE, queryParam);
+			if (sessionIDs.isEmpty())
+				return new ArrayList<Principal>();
+			
+			// retrieve the entity sessions of the whole page at once
+			queryParam.setLastSessionID(sessionIDs.get(sessionIDs.size() - 1));
+			
+			this.logger.debug(MessageFormat.format("Retrieving {0} idle sessions after {1} up to {2}.", sessionIDs.size(), afterSessionID, queryParam.getLastSessionID()));
+			
+			IdleSessionRowHandler rowHandler = new IdleSessionRowHandler();
+			sqlMapClient.queryWithRowHandler(SessionCacheDAOImpl.QUERY_GET_IDLE_SESSION_PAGE_ENTITY_SESSIONS, queryParam, rowHandler);
+			
+			return new ArrayList<Principal>(rowHandler.principals.values());
+		}
+		catch (SQLException e)
+		{
+			this.logger.error("A DataSource error occured while attempting to retrieve a page of idle sessions. SQL error occurred trying to execute " + SessionCacheDAOImpl.QUERY_GET_IDLE_SESSION_PAGE_ENTITY_SESSIONS + ". ");
+			this.logger.debug("Exception: " + e.getLocalizedMessage());
+			throw new SessionCacheDAOException("Unable to retrieve idle sessions due to underlying data source failure.");
+		}
+	}
+	
+	/* Oracle limits the rows of a query with ROWNUM, the other supported databases with LIMIT */
+	private boolean limitByRowNum(SqlMapClient sqlMapClient) throws SQLException
+	{
+		Boolean rowNum = this.limitByRowNum;
+		if (rowNum == null)
+		{
+			Connection connection = sqlMapClient.getDataSource().getConnection();
+			try
+			{
+				rowNum = Boolean.valueOf(connection.getMetaData().getDatabaseProductName().toLowerCase().contains("oracle"));
+			}
+			finally
+			{
+				connection.close();
+			}
+			
+			this.limitByRowNum = rowNum;
+		}
+		
+		return rowNum.booleanValue();
+	}
+	
 	public Principal getSessionBySAMLID(String samlID) throws SessionCacheDAOException
 	{
 		SessionData sessionParam = new SessionData();
@@ -294,10 +534,7 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 			principal.setAuthnTimestamp(sessionData.getAuthnTimestamp());
 			principal.setAuthenticationContextClass(sessionData.getAuthenticationClassContext());
 			principal.setSessionNotOnOrAfter(sessionData.getSessionNotOnOrAfter());
-			ByteArrayInputStream stream = new ByteArrayInputStream(sessionData.getAttributes());
-			ObjectInputStream inputStream = new ObjectInputStream(stream);
-			
-			Map<String, IdentityAttribute> attributes = (Map<String, IdentityAttribute>)inputStream.readObject();
+			Map<String, IdentityAttribute> attributes = this.attributeCodec.decode(sessionData.getAttributes());
 
 			for (String key : attributes.keySet())
 			{
@@ -345,6 +582,7 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 		{
 			SessionData sessionData = new SessionData();
 			sessionData.setSessionID(sessionID);
+			this.pendingLastAccessed.remove(sessionID);
 			int result = this.getSqlMapClient().delete(SessionCacheDAOImpl.QUERY_DELETE_SESSION, sessionData);
 			return (result > 0);
 		}
@@ -386,6 +624,9 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 			
 			int result = this.getSqlMapClient().update(SessionCacheDAOImpl.QUERY_UPDATE_SESSION_LAST_ACCESSED, sessionData);
 			
+			// the row now holds a newer time than any pending one
+			this.pendingLastAccessed.remove(sessionID);
+			
 			// If the result is non-zero, there was a row updated which means that the session is valid.
 			return (result != 0);
 		}
@@ -499,6 +740,44 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 	
 		}
 	}
+
+	public int updateIdleEntitySessions(final List<Principal> principals, final long idleGraceExpiryTime) throws SessionCacheDAOException
+	{
+		if (principals.isEmpty())
+			return 0;
+		
+		try
+		{
+			Integer updated = (Integer) this.getSqlMapClientTemplate().execute(new SqlMapClientCallback()
+			{
+				public Object doInSqlMapClient(SqlMapExecutor executor) throws SQLException
+				{
+					executor.startBatch();
+					for (Principal principal : principals)
+					{
+						SessionData sessionData = new SessionData();
+						sessionData.setSessionID(principal.getSessionID());
+						sessionData.setIdleGraceExpiry(idleGraceExpiryTime);
+						
+						executor.update(SessionCacheDAOImpl.QUERY_DELETE_ACTIVE_ENTITY_SESSIONS, sessionData);
+						executor.update(SessionCacheDAOImpl.QUERY_UPDATE_SESSION_IDLE_GRACE_EXPIRY, sessionData);
+					}
+					
+					return new Integer(executor.executeBatch());
+				}
+			});
+			
+			this.logger.debug(MessageFormat.format("Set idle grace time expiry to {0} for {1} sessions.", idleGraceExpiryTime, principals.size()) );
+			
+			return (updated == null) ? 0 : updated.intValue();
+		}
+		catch (DataAccessException e)
+		{
+			this.logger.error("A DataSource error occured attempting to update idle grace expiry and active entities. SQL error occurred trying to execute {}." , SessionCacheDAOImpl.QUERY_UPDATE_SESSION_IDLE_GRACE_EXPIRY);
+			this.logger.debug(e.getLocalizedMessage());
+			throw new SessionCacheDAOException("Unable to update idle grace expiry and active entities due to underlying data source failure.");
+		}
+	}
 	
 
 	private class EntityDescriptorSessionRowHandler implements RowHandler
@@ -527,4 +806,87 @@ public class SessionCacheDAOImpl extends SqlMapClientDaoSupport implements Sessi
 		
 		}
 	}
+	
+	/* Assembles the principals of a page of idle sessions from their entity session rows, which arrive in session order */
+	private class IdleSessionRowHandler implements RowHandler
+	{
+		Map<String, Principal> principals = new LinkedHashMap<String, Principal>();
+		
+		public void handleRow(Object dataObj)
+		{
+			IdleSessionData data = (IdleSessionData)dataObj;
+			
+			Principal principal = this.principals.get(data.getSessionID());
+			if (principal == null)
+			{
+				PrincipalImpl newPrincipal = new PrincipalImpl();
+				newPrincipal.setSessionID(data.getSessionID());
+				newPrincipal.setSAMLAuthnIdentifier(data.getSamlAuthnIdentifier());
+				newPrincipal.setPrincipalAuthnIdentifier(data.getPrincipalAuthnIdentifier());
+				newPrincipal.setLastAccessed(data.getLastAccessed());
+				
+				this.principals.put(data.getSessionID(), newPrincipal);
+				principal = newPrincipal;
+			}
+			
+			principal.addEntitySessionIndex(data.getEntityID(), data.getEntitySessionID());
+		}
+	}
+	
+	/* Writes pending last accessed times to the database at the configured interval */
+	private class LastAccessedFlushThread extends Thread
+	{
+		private volatile boolean running;
+
+		public LastAccessedFlushThread()
+		{
+			this.setName("Session Last Accessed Flush Thread");
+			this.setDaemon(true);
+			this.running = true;
+		}
+
+		@Override
+		public void run()
+		{
+			while (this.running)
+			{
+				try
+				{
+					sleep(SessionCacheDAOImpl.this.lastAccessedFlushInterval);
+
+					SessionCacheDAOImpl.this.flushLastAccessed();
+				}
+				catch (InterruptedException e)
+				{
+					if (!this.running)
+						break;
+				}
+				catch (SessionCacheDAOException e)
+				{
+					// times are kept for the next attempt
+					SessionCacheDAOImpl.this.logger.warn(e.getMessage());
+				}
+				catch (Exception e)
+				{
+					SessionCacheDAOImpl.this.logger.error("Unexpected error flushing session last accessed times.", e);
+				}
+			}
+		}
+
+		public void shutdown()
+		{
+			this.running = false;
+			this.interrupt();
+
+			try
+			{
+				this.join(5000);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
 }
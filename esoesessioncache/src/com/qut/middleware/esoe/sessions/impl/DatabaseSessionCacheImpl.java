@@ -39,14 +39,29 @@ import com.qut.middleware.esoe.util.CalendarUtils;
 
 public class DatabaseSessionCacheImpl implements SessionCache
 {
+	/* Number of idle sessions logged out at a time during cleanup, unless configured otherwise */
+	private static final int DEFAULT_CLEANUP_PAGE_SIZE = 500;
+	
 	private SessionCacheDAO sessionCacheDAO;
 	private LogoutThreadPool logoutPool;
 	private int idleGraceTimePeriod;
+	private int cleanupPageSize;
 		
 	/* Local logging instance */
 	Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 	
 	public DatabaseSessionCacheImpl(SessionCacheDAO sessionCacheDAO, LogoutThreadPool logoutPool, int idleGraceTimePeriod)
+	{
+		this(sessionCacheDAO, logoutPool, idleGraceTimePeriod, DEFAULT_CLEANUP_PAGE_SIZE);
+	}
+	
+	/**
+	 * @param sessionCacheDAO The DAO used to access session data.
+	 * @param logoutPool The pool used to log idle sessions out of their active entities.
+	 * @param idleGraceTimePeriod Time in seconds an idle session is kept after being logged out of its active entities.
+	 * @param cleanupPageSize The number of idle sessions retrieved and logged out at a time during cleanup.
+	 */
+	public DatabaseSessionCacheImpl(SessionCacheDAO sessionCacheDAO, LogoutThreadPool logoutPool, int idleGraceTimePeriod, int cleanupPageSize)
 	{
 		if(sessionCacheDAO == null)
 			throw new IllegalArgumentException("sessionCacheDAO object cannot be null.");
@@ -57,9 +72,13 @@ public class DatabaseSessionCacheImpl implements SessionCache
 		if(idleGraceTimePeriod < 0 || idleGraceTimePeriod > Integer.MAX_VALUE )
 			throw new IllegalArgumentException("idleGraceTimePeriod must be greater than 0 and less than INTEGER.MAX_VALUE.");
 		
+		if(cleanupPageSize <= 0)
+			throw new IllegalArgumentException("cleanupPageSize must be greater than 0.");
+		
 		this.sessionCacheDAO = sessionCacheDAO;
 		this.logoutPool = logoutPool;
 		this.idleGraceTimePeriod = idleGraceTimePeriod * 1000;		
+		this.cleanupPageSize = cleanupPageSize;
 		
 		this.logger.info(MessageFormat.format("DatabaseSessionCache successfully created with idleGraceTime period of {0} seconds.", idleGraceTimePeriod) );
 	}
@@ -114,28 +133,22 @@ public class DatabaseSessionCacheImpl implements SessionCache
 			// call dao clean cache to delete all expired idle sessions
 			int idleRemoved = this.sessionCacheDAO.deleteIdleSessions();
 		
-			// get remaining idle sessions (this will be sessions with active entity sessions only)
-			List<String> idle = this.sessionCacheDAO.getIdleSessions(age);
-			
-			this.logger.debug("Retrieved " + idle.size() + " idle sessions from DB ..");
-			
+			// log out remaining idle sessions (this will be sessions with active entity sessions only) a page at a time
 			int logouts = 0;
-			for (String sessionID: idle)
+			String lastSessionID = "";
+			List<Principal> idle;
+			while( !(idle = this.sessionCacheDAO.getIdleSessions(age, lastSessionID, this.cleanupPageSize)).isEmpty() )
 			{
-				Principal nextIdle = this.sessionCacheDAO.getSession(sessionID, false);
-			
-				if(nextIdle != null)
-				{
-					this.logger.debug(MessageFormat.format("Session {0} has been idle for {1} seconds. Logging out active entity sessions.", sessionID,  (System.currentTimeMillis() - nextIdle.getLastAccessed()) / 1000 ) );
-					
-					// logout idle , update db active entity sessions
-					this.logoutPool.createLogoutTask(nextIdle, true);
-					
-					long idleGraceExpiryTime = System.currentTimeMillis() + this.idleGraceTimePeriod;
-					this.sessionCacheDAO.updateIdleEntitySessions(nextIdle, idleGraceExpiryTime);
-					
-					logouts ++;				
-				}
+				this.logger.debug("Retrieved " + idle.size() + " idle sessions from DB ..");
+				
+				// logout idle , update db active entity sessions
+				this.logoutPool.createLogoutTasks(idle, true);
+				
+				long idleGraceExpiryTime = System.currentTimeMillis() + this.idleGraceTimePeriod;
+				this.sessionCacheDAO.updateIdleEntitySessions(idle, idleGraceExpiryTime);
+				
+				logouts += idle.size();
+				lastSessionID = idle.get(idle.size() - 1).getSessionID();
 			}
 			
 			long duration = System.currentTimeMillis() - thisCal.getTimeInMillis();			
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Compares encode and decode cost and stored size of the session attribute codecs.
+ */
+
+package com.qut.middleware.esoe.sessions.data;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.qut.middleware.esoe.sessions.bean.IdentityAttribute;
+import com.qut.middleware.esoe.sessions.data.impl.CompactAttributeCodec;
+import com.qut.middleware.esoe.sessions.data.impl.JavaSerializationAttributeCodec;
+
+@SuppressWarnings("nls")
+public class AttributeCodecBenchmarkTest
+{
+	private static final int[] EXTRA_VALUES = { 0, 20, 200 };
+	private static final long WARMUP_MILLIS = 500;
+	private static final long MEASURE_MILLIS = 1000;
+
+	@Test
+	public void testBenchmark() throws Exception
+	{
+		AttributeCodec[] codecs = { new JavaSerializationAttributeCodec(), new CompactAttributeCodec(0), new CompactAttributeCodec() };
+		String[] names = { "JavaSerialization", "Compact", "Compact deflated" };
+
+		System.out.println("values\tcodec\tbytes\tencode ns/op\tdecode ns/op");
+		for (int extraValues : EXTRA_VALUES)
+		{
+			Map<String, IdentityAttribute> attributes = CompactAttributeCodecTest.createAttributes(extraValues);
+
+			for (int i = 0; i < codecs.length; i++)
+			{
+				byte[] data = codecs[i].encode(attributes);
+				long encode = measure(codecs[i], attributes, null);
+				long decode = measure(codecs[i], null, data);
+
+				System.out.println(extraValues + "\t" + names[i] + "\t" + data.length + "\t" + encode + "\t" + decode);
+			}
+		}
+	}
+
+	/* Average nanoseconds per encode of attributes, or decode of data */
+	private long measure(AttributeCodec codec, Map<String, IdentityAttribute> attributes, byte[] data) throws Exception
+	{
+		long warmupEnd = System.currentTimeMillis() + WARMUP_MILLIS;
+		while (System.currentTimeMillis() < warmupEnd)
+			run(codec, attributes, data, 100);
+
+		long operations = 0;
+		long start = System.nanoTime();
+		long end = start + MEASURE_MILLIS * 1000000L;
+		long now;
+		while ((now = System.nanoTime()) < end)
+		{
+			run(codec, attributes, data, 100);
+			operations += 100;
+		}
+
+		return (now - start) / operations;
+	}
+
+	private void run(AttributeCodec codec, Map<String, IdentityAttribute> attributes, byte[] data, int count) throws Exception
+	{
+		for (int i = 0; i < count; i++)
+		{
+			if (data == null)
+				codec.encode(attributes);
+			else
+				codec.decode(data);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Tests encoding and decoding of principal attributes by the compact attribute codec.
+ */
+
+package com.qut.middleware.esoe.sessions.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.qut.middleware.esoe.sessions.bean.IdentityAttribute;
+import com.qut.middleware.esoe.sessions.bean.impl.IdentityAttributeImpl;
+import com.qut.middleware.esoe.sessions.data.impl.CompactAttributeCodec;
+import com.qut.middleware.esoe.sessions.data.impl.JavaSerializationAttributeCodec;
+
+@SuppressWarnings("nls")
+public class CompactAttributeCodecTest
+{
+	static Map<String, IdentityAttribute> createAttributes(int extraValues)
+	{
+		Map<String, IdentityAttribute> attributes = new HashMap<String, IdentityAttribute>();
+
+		IdentityAttribute uid = new IdentityAttributeImpl();
+		uid.setType("String");
+		uid.getHandlers().add("LDAPHandler");
+		uid.addValue("beddoes");
+		attributes.put("uid", uid);
+
+		IdentityAttribute mail = new IdentityAttributeImpl();
+		mail.setType("String");
+		mail.getHandlers().add("LDAPHandler");
+		mail.addValue("b.eddoes@example.com");
+		mail.addValue("\u00e9\u4e2d\ud834\udd1e");
+		for (int i = 0; i < extraValues; i++)
+			mail.addValue("alias" + i + "@example.com");
+		attributes.put("mail", mail);
+
+		IdentityAttribute other = new IdentityAttributeImpl();
+		other.addValue(null);
+		other.addValue(Integer.valueOf(-7));
+		other.addValue(Long.valueOf(Long.MAX_VALUE));
+		other.addValue(Boolean.TRUE);
+		other.addValue(Float.valueOf(1.5f));
+		other.addValue(Double.valueOf(-2.25));
+		other.addValue(new Date(1224288000000L));
+		other.addValue(new byte[] { 0, 1, (byte) 0xFF });
+		other.addValue(new BigInteger("123456789012345678901234567890"));
+		attributes.put("other", other);
+
+		return attributes;
+	}
+
+	private static void assertAttributesEqual(Map<String, IdentityAttribute> expected, Map<String, IdentityAttribute> actual)
+	{
+		assertEquals(expected.keySet(), actual.keySet());
+		for (String name : expected.keySet())
+		{
+			IdentityAttribute expectedAttribute = expected.get(name);
+			IdentityAttribute actualAttribute = actual.get(name);
+
+			assertEquals(expectedAttribute.getType(), actualAttribute.getType());
+			assertEquals(expectedAttribute.getHandlers(), actualAttribute.getHandlers());
+			assertEquals(expectedAttribute.getValues().size(), actualAttribute.getValues().size());
+
+			for (int i = 0; i < expectedAttribute.getValues().size(); i++)
+			{
+				Object value = expectedAttribute.getValues().get(i);
+				if (value instanceof byte[])
+					assertArrayEquals((byte[]) value, (byte[]) actualAttribute.getValues().get(i));
+				else
+					assertEquals(value, actualAttribute.getValues().get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception
+	{
+		CompactAttributeCodec codec = new CompactAttributeCodec(0);
+		Map<String, IdentityAttribute> attributes = createAttributes(0);
+
+		byte[] data = codec.encode(attributes);
+		assertAttributesEqual(attributes, codec.decode(data));
+
+		// names and types are interned, so sessions share them
+		Map<String, IdentityAttribute> decoded = codec.decode(data);
+		assertSame("String", decoded.get("uid").getType());
+		assertSame("LDAPHandler", decoded.get("mail").getHandlers().get(0));
+
+		assertEquals(0, codec.decode(codec.encode(new HashMap<String, IdentityAttribute>())).size());
+	}
+
+	@Test
+	public void testSmallerThanSerialized() throws Exception
+	{
+		Map<String, IdentityAttribute> attributes = createAttributes(0);
+
+		byte[] compact = new CompactAttributeCodec(0).encode(attributes);
+		byte[] serialized = new JavaSerializationAttributeCodec().encode(attributes);
+
+		assertTrue("Compact encoding of " + compact.length + " bytes not smaller than " + serialized.length, compact.length < serialized.length);
+	}
+
+	@Test
+	public void testCompression() throws Exception
+	{
+		Map<String, IdentityAttribute> attributes = createAttributes(200);
+
+		byte[] uncompressed = new CompactAttributeCodec(0).encode(attributes);
+		byte[] compressed = new CompactAttributeCodec(256).encode(attributes);
+
+		assertTrue(compressed.length < uncompressed.length);
+		assertAttributesEqual(attributes, new CompactAttributeCodec(0).decode(compressed));
+
+		// below the threshold nothing changes
+		assertArrayEquals(uncompressed, new CompactAttributeCodec(uncompressed.length + 1).encode(attributes));
+	}
+
+	@Test
+	public void testReadsSerialized() throws Exception
+	{
+		Map<String, IdentityAttribute> attributes = createAttributes(3);
+		byte[] serialized = new JavaSerializationAttributeCodec().encode(attributes);
+
+		assertAttributesEqual(attributes, new CompactAttributeCodec().decode(serialized));
+	}
+
+	@Test
+	public void testNullsSerialized() throws Exception
+	{
+		Map<String, IdentityAttribute> attributes = createAttributes(0);
+		attributes.put("empty", null);
+
+		CompactAttributeCodec codec = new CompactAttributeCodec();
+		byte[] data = codec.encode(attributes);
+
+		assertTrue(JavaSerializationAttributeCodec.isSerialized(data));
+		assertNull(codec.decode(data).get("empty"));
+		assertTrue(codec.decode(data).containsKey("empty"));
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownFormat() throws Exception
+	{
+		new CompactAttributeCodec().decode(new byte[] { 1, 2, 3, 4, 5 });
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownVersion() throws Exception
+	{
+		byte[] data = new CompactAttributeCodec().encode(createAttributes(0));
+		data[2] = 99;
+
+		new CompactAttributeCodec().decode(data);
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncated() throws Exception
+	{
+		byte[] data = new CompactAttributeCodec(0).encode(createAttributes(0));
+		byte[] truncated = new byte[data.length - 3];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+		new CompactAttributeCodec().decode(truncated);
+	}
+}
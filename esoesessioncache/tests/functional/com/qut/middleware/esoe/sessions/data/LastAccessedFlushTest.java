@@ -0,0 +1,232 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Tests that idle session queries wait for a last accessed flush which is already in progress.
+ */
+package com.qut.middleware.esoe.sessions.data;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.orm.ibatis.SqlMapClientCallback;
+import org.springframework.orm.ibatis.SqlMapClientTemplate;
+
+import com.ibatis.sqlmap.client.SqlMapClient;
+import com.qut.middleware.esoe.sessions.data.impl.SessionCacheDAOImpl;
+import com.qut.middleware.esoe.sessions.exception.SessionCacheDAOException;
+
+@SuppressWarnings("nls")
+public class LastAccessedFlushTest
+{
+	private static final long TIMEOUT = 5000;
+
+	private SessionCacheDAOImpl sessionCacheDAO;
+	private BlockingTemplate template;
+
+	/* whether the first flush had completed when the idle session query ran, null until it runs */
+	private AtomicReference<Boolean> queriedAfterFlush;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		this.queriedAfterFlush = new AtomicReference<Boolean>();
+
+		SqlMapClient sqlMapClient = createNiceMock(SqlMapClient.class);
+		expect(sqlMapClient.getDataSource()).andReturn(createNiceMock(DataSource.class)).anyTimes();
+		expect(sqlMapClient.queryForList(eq("getIdleSessions"), anyObject())).andAnswer(new IAnswer<List<?>>()
+		{
+			public List<?> answer()
+			{
+				LastAccessedFlushTest.this.queriedAfterFlush.compareAndSet(null, Boolean.valueOf(LastAccessedFlushTest.this.template.finished));
+				return new ArrayList<String>();
+			}
+		}).anyTimes();
+		replay(sqlMapClient);
+
+		this.template = new BlockingTemplate(sqlMapClient);
+
+		this.sessionCacheDAO = new SessionCacheDAOImpl();
+		this.sessionCacheDAO.setSqlMapClientTemplate(this.template);
+		this.sessionCacheDAO.setLastAccessedFlushInterval(60);
+
+		// records a pending last accessed time, the session itself is not found
+		assertNull(this.sessionCacheDAO.getSession("session1", true));
+	}
+
+	/**
+	 * Tests that an idle query made while a flush is writing its batch waits for the batch before querying.
+	 */
+	@Test
+	public void testIdleQueryWaitsForFlush() throws Exception
+	{
+		FlushThread flush = new FlushThread();
+		flush.start();
+		assertTrue("Flush did not start", this.template.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		IdleQueryThread idle = new IdleQueryThread();
+		idle.start();
+		awaitBlocked(idle);
+
+		assertNull("Idle sessions were queried while the flush was in progress", this.queriedAfterFlush.get());
+
+		this.template.release.countDown();
+		flush.join(TIMEOUT);
+		idle.join(TIMEOUT);
+
+		assertNull(flush.failure.get());
+		assertNull(idle.failure.get());
+		assertEquals(Boolean.TRUE, this.queriedAfterFlush.get());
+
+		// the idle query had nothing left to flush
+		assertEquals(1, this.template.executions.get());
+	}
+
+	/**
+	 * Tests that times restored by a failed flush are written before an idle query waiting on that flush runs.
+	 */
+	@Test
+	public void testIdleQueryAfterFailedFlush() throws Exception
+	{
+		this.template.fail = true;
+
+		FlushThread flush = new FlushThread();
+		flush.start();
+		assertTrue("Flush did not start", this.template.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		IdleQueryThread idle = new IdleQueryThread();
+		idle.start();
+		awaitBlocked(idle);
+
+		assertNull("Idle sessions were queried while the flush was in progress", this.queriedAfterFlush.get());
+
+		this.template.release.countDown();
+		flush.join(TIMEOUT);
+		idle.join(TIMEOUT);
+
+		assertTrue(flush.failure.get() instanceof SessionCacheDAOException);
+		assertNull(idle.failure.get());
+		assertEquals(Boolean.TRUE, this.queriedAfterFlush.get());
+
+		// the restored time was flushed again by the idle query
+		assertEquals(2, this.template.executions.get());
+		assertEquals(0, this.sessionCacheDAO.flushLastAccessed());
+	}
+
+	/* Waits for the thread to block on the flush, or to finish if the flush does not block it */
+	private void awaitBlocked(Thread thread) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (thread.getState() != Thread.State.BLOCKED && thread.isAlive() && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+
+		assertFalse("Idle query did not block or finish", thread.getState() != Thread.State.BLOCKED && thread.isAlive());
+	}
+
+	/* Holds the first batch open until released, optionally failing it */
+	private static class BlockingTemplate extends SqlMapClientTemplate
+	{
+		protected final CountDownLatch started = new CountDownLatch(1);
+		protected final CountDownLatch release = new CountDownLatch(1);
+		protected final AtomicInteger executions = new AtomicInteger();
+		protected volatile boolean fail;
+		protected volatile boolean finished;
+
+		public BlockingTemplate(SqlMapClient sqlMapClient)
+		{
+			super(sqlMapClient);
+		}
+
+		@Override
+		public Object execute(SqlMapClientCallback action)
+		{
+			if (this.executions.incrementAndGet() == 1)
+			{
+				this.started.countDown();
+				try
+				{
+					this.release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+
+				this.finished = true;
+				if (this.fail)
+					throw new DataAccessResourceFailureException("Batch failed");
+			}
+
+			return new Integer(1);
+		}
+	}
+
+	private class FlushThread extends Thread
+	{
+		protected final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				LastAccessedFlushTest.this.sessionCacheDAO.flushLastAccessed();
+			}
+			catch (Throwable t)
+			{
+				this.failure.set(t);
+			}
+		}
+	}
+
+	private class IdleQueryThread extends Thread
+	{
+		protected final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				assertNotNull(LastAccessedFlushTest.this.sessionCacheDAO.getIdleSessions(1000));
+			}
+			catch (Throwable t)
+			{
+				this.failure.set(t);
+			}
+		}
+	}
+}
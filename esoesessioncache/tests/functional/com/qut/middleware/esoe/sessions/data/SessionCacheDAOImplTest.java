@@ -26,6 +26,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.FileReader;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -107,6 +108,29 @@ public class SessionCacheDAOImplTest
 		assertNull(principal);
 	}
 
+	@Test
+	public void testWriteBehindLastAccessed() throws Exception
+	{
+		// reads the stored row without seeing the pending times of the write-behind DAO
+		SessionCacheDAOImpl storedDAO = new SessionCacheDAOImpl();
+		storedDAO.setSqlMapClient(this.sessionCacheDAO.getSqlMapClient());
+
+		long stored = storedDAO.getSession(this.validSessionID, false).getLastAccessed();
+		Thread.sleep(10);
+
+		this.sessionCacheDAO.setLastAccessedFlushInterval(60);
+		Principal principal = this.sessionCacheDAO.getSession(this.validSessionID);
+		assertTrue(principal.getLastAccessed() > stored);
+		assertEquals(principal.getLastAccessed(), this.sessionCacheDAO.getSession(this.validSessionID, false).getLastAccessed());
+
+		// nothing is written until the flush
+		assertEquals(stored, storedDAO.getSession(this.validSessionID, false).getLastAccessed());
+
+		assertEquals(1, this.sessionCacheDAO.flushLastAccessed());
+		assertEquals(principal.getLastAccessed(), storedDAO.getSession(this.validSessionID, false).getLastAccessed());
+		assertEquals(0, this.sessionCacheDAO.flushLastAccessed());
+	}
+
 	
 	@Test
 	public void testRemoveSession1() throws Exception
@@ -202,6 +226,64 @@ public class SessionCacheDAOImplTest
 		assertTrue(principal.getActiveEntityList().contains(entityID));
 		assertTrue(principal.getActiveEntitySessionIndices(entityID).contains(entitySessionID));
 	}
+
+	@Test
+	public void testIdleSessionPage() throws Exception
+	{
+		String entityID = "urn:test:esoe:entity";
+		
+		Principal principal = this.sessionCacheDAO.getSession(this.validSessionID);
+		this.sessionCacheDAO.addDescriptor(principal, entityID);
+		this.sessionCacheDAO.addDescriptorSessionIdentifier(principal, entityID, "entity-session-1");
+		this.sessionCacheDAO.addDescriptorSessionIdentifier(principal, entityID, "entity-session-2");
+		Thread.sleep(10);
+		
+		List<Principal> idle = this.sessionCacheDAO.getIdleSessions(0, "", 10);
+		assertEquals(1, idle.size());
+		assertEquals(this.validSessionID, idle.get(0).getSessionID());
+		assertEquals(this.validSessionSAMLID, idle.get(0).getSAMLAuthnIdentifier());
+		assertEquals(2, idle.get(0).getActiveEntitySessionIndices(entityID).size());
+		
+		// the next page starts after the last session
+		assertTrue(this.sessionCacheDAO.getIdleSessions(0, this.validSessionID, 10).isEmpty());
+		
+		assertTrue(this.sessionCacheDAO.updateIdleEntitySessions(idle, System.currentTimeMillis() + 60000) > 0);
+		
+		// sessions without active entity sessions are no longer idle candidates
+		assertTrue(this.sessionCacheDAO.getIdleSessions(0, "", 10).isEmpty());
+	}
+	
+	@Test
+	public void testIdleSessionPageSize() throws Exception
+	{
+		String entityID = "urn:test:esoe:entity";
+		
+		PrincipalImpl second = new PrincipalImpl();
+		second.setSessionID(this.validSessionID + "-2");
+		second.setSAMLAuthnIdentifier(this.validSessionSAMLID + "-2");
+		second.setAuthenticationContextClass(this.authenticationContext);
+		second.setLastAccessed(System.currentTimeMillis());
+		second.setAuthnTimestamp(System.currentTimeMillis());
+		this.sessionCacheDAO.addSession(second);
+		
+		for (Principal principal : new Principal[] { this.sessionCacheDAO.getSession(this.validSessionID), second })
+		{
+			this.sessionCacheDAO.addDescriptor(principal, entityID);
+			this.sessionCacheDAO.addDescriptorSessionIdentifier(principal, entityID, principal.getSessionID() + "-entity");
+		}
+		Thread.sleep(10);
+		
+		// the database returns a single session for each page, in session identifier order
+		List<Principal> idle = this.sessionCacheDAO.getIdleSessions(0, "", 1);
+		assertEquals(1, idle.size());
+		assertEquals(this.validSessionID, idle.get(0).getSessionID());
+		
+		idle = this.sessionCacheDAO.getIdleSessions(0, idle.get(0).getSessionID(), 1);
+		assertEquals(1, idle.size());
+		assertEquals(second.getSessionID(), idle.get(0).getSessionID());
+		
+		assertTrue(this.sessionCacheDAO.getIdleSessions(0, second.getSessionID(), 1).isEmpty());
+	}
 	
 	@Test
 	public void testUpdatePrincipalAttributes1() throws Exception
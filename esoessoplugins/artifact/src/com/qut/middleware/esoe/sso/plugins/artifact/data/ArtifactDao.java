@@ -32,9 +32,10 @@ public interface ArtifactDao
 	public void storeArtifact(Artifact artifact) throws ArtifactBindingException;
 	
 	/**
-	 * Retrieves the given artifact. The messageHandle must be present in the request object.
+	 * Retrieves the given artifact. The messageHandle must be present in the request object. An artifact can only be resolved once.
 	 * 
-	 * It is guaranteed that 'audience' and 'document' will be set in the Artifact object before returning.
+	 * It is guaranteed that 'audience' and 'document' will be set in the Artifact object before returning, unless the artifact
+	 * is unknown, has expired or has already been resolved, in which case they are left unset.
 	 * 
 	 * @param artifact The Artifact object containing the message handle of the artifact.
 	 * @throws ArtifactBindingException If the artifact resolution failed due to an error.
@@ -37,12 +37,12 @@ public abstract class ArtifactDaoBase implements ArtifactDao
 	protected abstract void storeArtifact(Artifact artifact, String messageHandle);
 
 	/**
-	 * Resolves a previously stored artifact.
+	 * Resolves and removes a previously stored artifact, so that it can only be resolved once.
 	 * 
 	 * It must be guaranteed that 'audience' and 'document' be set in the Artifact object returned. All other fields are optional.
 	 * 
 	 * @param messageHandle A String representation of the message handle
-	 * @return The artifact corresponding to that message handle
+	 * @return The artifact corresponding to that message handle, or null if it is unknown, has expired or has already been resolved
 	 */
 	protected abstract Artifact resolveArtifact(String messageHandle);
 
@@ -54,6 +54,12 @@ public abstract class ArtifactDaoBase implements ArtifactDao
 			String messageHandle = new String(base64MessageHandle, "UTF-8");
 			
 			Artifact retrieved = this.resolveArtifact(messageHandle);
+			if (retrieved == null)
+			{
+				// Leave the artifact empty, the requester is sent a response with no document as the SAML spec requires.
+				return;
+			}
+			
 			artifact.setDocument(retrieved.getDocument());
 			artifact.setAudience(retrieved.getAudience());
 		}
@@ -19,29 +19,45 @@
 
 package com.qut.middleware.esoe.sso.plugins.artifact.data.impl;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import com.qut.middleware.esoe.sso.plugins.artifact.bean.Artifact;
+import com.qut.middleware.saml2.artifact.ArtifactStore;
+import com.qut.middleware.saml2.artifact.impl.ArtifactStoreImpl;
 
 public class ArtifactDaoMemoryImpl extends ArtifactDaoBase
 {
-	private Map<String, Artifact> artifacts;
+	private ArtifactStore<Artifact> artifacts;
 	
 	public ArtifactDaoMemoryImpl()
 	{
-		this.artifacts = new HashMap<String, Artifact>();
+		this.artifacts = new ArtifactStoreImpl<Artifact>();
+	}
+	
+	/**
+	 * @param artifactLifetime The time in seconds an artifact may be resolved for after it is stored.
+	 * @param maxStored The maximum number of artifacts held before the oldest are evicted.
+	 */
+	public ArtifactDaoMemoryImpl(int artifactLifetime, int maxStored)
+	{
+		this.artifacts = new ArtifactStoreImpl<Artifact>(artifactLifetime * 1000L, maxStored);
 	}
 
 	@Override
 	protected Artifact resolveArtifact(String messageHandle)
 	{
-		return this.artifacts.get(messageHandle);
+		return this.artifacts.resolve(messageHandle);
 	}
 
 	@Override
 	protected void storeArtifact(Artifact artifact, String messageHandle)
 	{
-		this.artifacts.put(messageHandle, artifact);
+		this.artifacts.store(messageHandle, artifact);
+	}
+	
+	/**
+	 * @return The store holding artifacts until they are resolved, for reporting its size and expiry counts.
+	 */
+	public ArtifactStore<Artifact> getArtifactStore()
+	{
+		return this.artifacts;
 	}
 }
@@ -142,6 +142,11 @@ public class ArtifactProcessorImpl implements ArtifactProcessor, InitializingBea
 		this.nodeIndex = nodeIndex;
 	}
 	
+	public void setArtifactDao(ArtifactDao artifactDao)
+	{
+		this.artifactDao = artifactDao;
+	}
+	
 	public void afterPropertiesSet()
 	{
 		if (this.entityIdentifier == null || this.sourceID == null)
@@ -158,6 +163,11 @@ public class ArtifactProcessorImpl implements ArtifactProcessor, InitializingBea
 		{
 			throw new IllegalArgumentException("Node index has not been specified correctly.");
 		}
+		
+		if (this.artifactDao == null)
+		{
+			throw new IllegalArgumentException("Artifact DAO has not been specified correctly.");
+		}
 
 		try
 		{
@@ -93,4 +93,24 @@ public class ArtifactDaoTest
 		assertEquals(audience, artifactRetrieved.getAudience());
 		assertEquals(document, artifactRetrieved.getDocument());
 	}
+
+	@Test
+	public void testResolveOnce() throws Exception
+	{
+		Artifact artifact = new Artifact(0, sourceID, messageHandle, "audience", new byte[0]);
+		ArtifactDao artifactDao = new ArtifactDaoMemoryImpl(60, 10);
+		artifactDao.storeArtifact(artifact);
+
+		String artifactToken = artifact.toBase64Artifact();
+
+		Artifact artifactRetrieved = new Artifact(artifactToken);
+		artifactDao.resolveArtifact(artifactRetrieved);
+		assertEquals("audience", artifactRetrieved.getAudience());
+
+		// A second resolution of the same artifact must not return the document again
+		Artifact artifactReplayed = new Artifact(artifactToken);
+		artifactDao.resolveArtifact(artifactReplayed);
+		assertNull(artifactReplayed.getAudience());
+		assertNull(artifactReplayed.getDocument());
+	}
 }
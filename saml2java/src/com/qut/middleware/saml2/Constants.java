@@ -26,6 +26,13 @@ public class Constants
 	public static final String JSR_MECHANISM = "jsr105Provider"; //$NON-NLS-1$
 	public static final String JSR_PROVIDER = "org.jcp.xml.dsig.internal.dom.XMLDSigRI"; //$NON-NLS-1$
 	
+	/** System property setting the number of idle JAXB, DOM and signature objects each marshaller and unmarshaller retains */
+	public static final String HANDLER_POOL_SIZE = "saml2HandlerPoolSize"; //$NON-NLS-1$
+	/** System property which when set to false makes the Marshaller sign by serializing and reparsing the marshalled document */
+	public static final String DIRECT_SIGNING = "saml2DirectSigning"; //$NON-NLS-1$
+	/** System property naming the encoding documents and SOAP envelopes are marshalled in when none is given, UTF-16 if not set */
+	public static final String WIRE_ENCODING = "saml2WireEncoding"; //$NON-NLS-1$
+	
 	/** The attribute that the signing component of the Marshaller will use to identify tags */
 	public static final String ID_ATTRIBUTE = "ID"; //$NON-NLS-1$
 	/** The name of the element that will contain a signature */
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Holds artifacts issued by this entity until they are resolved once, expire
+ * 		or are evicted to keep the store within its size limit.
+ */
+package com.qut.middleware.saml2.artifact;
+
+/**
+ * Holds artifacts issued by this entity, keyed by message handle.
+ *
+ * An artifact may be resolved only once. Artifacts which are not resolved within the store lifetime are expired, and
+ * the oldest artifacts are evicted when the store exceeds its maximum size.
+ *
+ * @param <T>
+ *            The type of artifact held.
+ */
+public interface ArtifactStore<T>
+{
+	/**
+	 * Stores an artifact to be resolved later.
+	 *
+	 * @param messageHandle
+	 *            A String representation of the artifact message handle.
+	 * @param artifact
+	 *            The artifact to store.
+	 */
+	public void store(String messageHandle, T artifact);
+
+	/**
+	 * Resolves and removes a previously stored artifact.
+	 *
+	 * @param messageHandle
+	 *            A String representation of the artifact message handle.
+	 * @return The artifact, or null if it is unknown, has expired or has already been resolved.
+	 */
+	public T resolve(String messageHandle);
+
+	/**
+	 * Removes all expired artifacts from the store, and evicts the oldest artifacts while the store is over its
+	 * maximum size.
+	 *
+	 * @return The number of artifacts removed.
+	 */
+	public int cleanStore();
+
+	/**
+	 * @return The number of artifacts currently held.
+	 */
+	public int getSize();
+
+	/**
+	 * @return The number of artifacts resolved since the store was created.
+	 */
+	public long getResolvedCount();
+
+	/**
+	 * @return The number of artifacts removed or refused because they were not resolved within the store lifetime.
+	 */
+	public long getExpiredCount();
+
+	/**
+	 * @return The number of unexpired artifacts evicted to keep the store within its maximum size.
+	 */
+	public long getEvictedCount();
+
+	/**
+	 * @return The number of resolve requests for artifacts which were not held.
+	 */
+	public long getMissedCount();
+}
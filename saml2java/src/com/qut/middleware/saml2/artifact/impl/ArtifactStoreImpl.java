@@ -0,0 +1,286 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Concurrent, bounded implementation of the ArtifactStore interface which
+ * 		expires artifacts in the order they were stored.
+ */
+package com.qut.middleware.saml2.artifact.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qut.middleware.saml2.artifact.ArtifactStore;
+
+/**
+ * Concurrent, bounded implementation of the ArtifactStore interface.
+ *
+ * Every artifact has the same lifetime, so the order artifacts are stored in is also the order they expire in. Stored
+ * artifacts are queued in that order, and each store() prunes expired artifacts from the head of the queue, followed
+ * by the oldest unexpired artifacts while the store is over its maximum size. No background thread is needed.
+ *
+ * resolve() removes the artifact, so it can be resolved only once, and refuses it if it has expired but has not yet
+ * been pruned.
+ *
+ * @param <T>
+ *            The type of artifact held.
+ */
+public class ArtifactStoreImpl<T> implements ArtifactStore<T>
+{
+	/** Default artifact lifetime in milliseconds */
+	public static final long DEFAULT_LIFETIME = 300000;
+
+	/** Default maximum number of artifacts held */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	private ConcurrentMap<String, StoredArtifact<T>> artifacts;
+	private Queue<StoredArtifact<T>> storeOrder;
+	private AtomicInteger size;
+	private ReentrantLock pruneLock;
+
+	private long lifetime;
+	private int maxSize;
+
+	private AtomicLong resolvedCount;
+	private AtomicLong expiredCount;
+	private AtomicLong evictedCount;
+	private AtomicLong missedCount;
+
+	/* Local logging instance */
+	private Logger logger = LoggerFactory.getLogger(ArtifactStoreImpl.class.getName());
+
+	/**
+	 * Default constructor, using the default lifetime and maximum size.
+	 */
+	public ArtifactStoreImpl()
+	{
+		this(DEFAULT_LIFETIME, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param lifetime
+	 *            The time in milliseconds an artifact may be resolved for after it is stored.
+	 * @param maxSize
+	 *            The maximum number of artifacts held before the oldest are evicted.
+	 */
+	public ArtifactStoreImpl(long lifetime, int maxSize)
+	{
+		if (lifetime <= 0)
+			throw new IllegalArgumentException("Artifact lifetime must be greater than 0"); //$NON-NLS-1$
+
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("Maximum artifact store size must be greater than 0"); //$NON-NLS-1$
+
+		this.lifetime = lifetime;
+		this.maxSize = maxSize;
+
+		this.artifacts = new ConcurrentHashMap<String, StoredArtifact<T>>();
+		this.storeOrder = new ConcurrentLinkedQueue<StoredArtifact<T>>();
+		this.size = new AtomicInteger();
+		this.pruneLock = new ReentrantLock();
+
+		this.resolvedCount = new AtomicLong();
+		this.expiredCount = new AtomicLong();
+		this.evictedCount = new AtomicLong();
+		this.missedCount = new AtomicLong();
+
+		this.logger.info("Created artifact store with lifetime of {} ms and maximum size of {}", Long.valueOf(lifetime), Integer.valueOf(maxSize)); //$NON-NLS-1$
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.saml2.artifact.ArtifactStore#store(java.lang.String, java.lang.Object)
+	 */
+	public void store(String messageHandle, T artifact)
+	{
+		long now = System.currentTimeMillis();
+		StoredArtifact<T> storedArtifact = new StoredArtifact<T>(messageHandle, artifact, now + this.lifetime);
+
+		if (this.artifacts.put(messageHandle, storedArtifact) == null)
+			this.size.incrementAndGet();
+		this.storeOrder.add(storedArtifact);
+
+		// Whoever is already pruning will also cover this artifact, so there is no need to wait for them
+		if (this.pruneLock.tryLock())
+		{
+			try
+			{
+				prune(now);
+			}
+			finally
+			{
+				this.pruneLock.unlock();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.saml2.artifact.ArtifactStore#resolve(java.lang.String)
+	 */
+	public T resolve(String messageHandle)
+	{
+		StoredArtifact<T> storedArtifact = this.artifacts.remove(messageHandle);
+		if (storedArtifact == null)
+		{
+			this.missedCount.incrementAndGet();
+			this.logger.debug("Artifact {} is not held by the store, it is unknown or has already been resolved", messageHandle); //$NON-NLS-1$
+			return null;
+		}
+
+		this.size.decrementAndGet();
+
+		T artifact = storedArtifact.artifact;
+		// The queue holds on to the entry until it expires, but the artifact itself can go now
+		storedArtifact.artifact = null;
+
+		if (storedArtifact.expiry <= System.currentTimeMillis())
+		{
+			this.expiredCount.incrementAndGet();
+			this.logger.debug("Artifact {} has expired and will not be resolved", messageHandle); //$NON-NLS-1$
+			return null;
+		}
+
+		this.resolvedCount.incrementAndGet();
+		return artifact;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.saml2.artifact.ArtifactStore#cleanStore()
+	 */
+	public int cleanStore()
+	{
+		this.pruneLock.lock();
+		try
+		{
+			return prune(System.currentTimeMillis());
+		}
+		finally
+		{
+			this.pruneLock.unlock();
+		}
+	}
+
+	/* Removes expired artifacts, then the oldest while over the maximum size. Must hold pruneLock. */
+	private int prune(long now)
+	{
+		int expired = 0;
+		int evicted = 0;
+
+		StoredArtifact<T> head;
+		while ((head = this.storeOrder.peek()) != null)
+		{
+			boolean headExpired = head.expiry <= now;
+			if (!headExpired && this.size.get() <= this.maxSize)
+				break;
+
+			this.storeOrder.poll();
+
+			// Resolved or replaced artifacts are no longer mapped to this entry, and only need to leave the queue
+			if (this.artifacts.remove(head.messageHandle, head))
+			{
+				this.size.decrementAndGet();
+				head.artifact = null;
+
+				if (headExpired)
+					expired++;
+				else
+					evicted++;
+			}
+		}
+
+		if (expired > 0)
+		{
+			this.expiredCount.addAndGet(expired);
+			this.logger.debug("Expired {} unresolved artifacts from the store", Integer.valueOf(expired)); //$NON-NLS-1$
+		}
+
+		if (evicted > 0)
+		{
+			this.evictedCount.addAndGet(evicted);
+			this.logger.warn("Artifact store exceeded its maximum size of {}, evicted {} unexpired artifacts", Integer.valueOf(this.maxSize), Integer.valueOf(evicted)); //$NON-NLS-1$
+		}
+
+		return expired + evicted;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.saml2.artifact.ArtifactStore#getSize()
+	 */
+	public int getSize()
+	{
+		return this.size.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.saml2.artifact.ArtifactStore#getResolvedCount()
+	 */
+	public long getResolvedCount()
+	{
+		return this.resolvedCount.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.saml2.artifact.ArtifactStore#getExpiredCount()
+	 */
+	public long getExpiredCount()
+	{
+		return this.expiredCount.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.saml2.artifact.ArtifactStore#getEvictedCount()
+	 */
+	public long getEvictedCount()
+	{
+		return this.evictedCount.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qut.middleware.saml2.artifact.ArtifactStore#getMissedCount()
+	 */
+	public long getMissedCount()
+	{
+		return this.missedCount.get();
+	}
+
+	private static class StoredArtifact<T>
+	{
+		final String messageHandle;
+		final long expiry;
+		volatile T artifact;
+
+		StoredArtifact(String messageHandle, T artifact, long expiry)
+		{
+			this.messageHandle = messageHandle;
+			this.artifact = artifact;
+			this.expiry = expiry;
+		}
+	}
+}
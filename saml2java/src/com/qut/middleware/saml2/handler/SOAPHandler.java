@@ -64,4 +64,5 @@ public interface SOAPHandler
 	public Element unwrapDocument(byte[] soapDocument) throws SOAPException;
 	public String getContentType(String encoding);
 	public String getDefaultEncoding();
+	public String getEncoding(String contentType);
 }
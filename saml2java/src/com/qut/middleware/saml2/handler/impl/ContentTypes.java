@@ -0,0 +1,52 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Reads the parameters of HTTP content types given to the SOAP handlers.
+ */
+
+package com.qut.middleware.saml2.handler.impl;
+
+final class ContentTypes
+{
+	private static final String CHARSET = "charset="; //$NON-NLS-1$
+
+	private ContentTypes()
+	{
+	}
+
+	/**
+	 * @param contentType The value of a Content-Type header, may be null.
+	 * @return The value of its charset parameter without quotes, or null if it has none.
+	 */
+	static String charset(String contentType)
+	{
+		if (contentType == null)
+			return null;
+
+		int start = contentType.toLowerCase().indexOf(CHARSET);
+		if (start < 0)
+			return null;
+
+		start += CHARSET.length();
+		int end = contentType.indexOf(';', start);
+		String charset = (end < 0 ? contentType.substring(start) : contentType.substring(start, end)).trim();
+
+		if (charset.length() > 1 && charset.charAt(0) == '"' && charset.charAt(charset.length() - 1) == '"')
+			charset = charset.substring(1, charset.length() - 1);
+
+		return charset.length() == 0 ? null : charset;
+	}
+}
@@ -0,0 +1,187 @@
+/* 
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not 
+ * use this file except in compliance with the License. You may obtain a copy of 
+ * the License at 
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations under 
+ * the License.
+ * 
+ * Creation Date: 16/10/2008
+ * 
+ * Purpose: Creates the resource pools shared by the marshaller and unmarshaller implementations
+ */
+package com.qut.middleware.saml2.handler.impl;
+
+import java.security.Provider;
+import java.security.ProviderException;
+
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+
+import org.xml.sax.ErrorHandler;
+
+import com.qut.middleware.saml2.Constants;
+
+/** Creates the resource pools shared by the marshaller and unmarshaller implementations. */
+final class HandlerPools
+{
+	/** Pool size used when the saml2HandlerPoolSize system property is not set */
+	static final int DEFAULT_POOL_SIZE = 16;
+
+	private static final String DISALLOW_DOCTYPE = "http://apache.org/xml/features/disallow-doctype-decl"; //$NON-NLS-1$
+
+	private static volatile Provider signatureProvider;
+
+	private HandlerPools()
+	{
+	}
+
+	/**
+	 * @return The pool size from the saml2HandlerPoolSize system property, or the default.
+	 */
+	static int defaultPoolSize()
+	{
+		return Integer.getInteger(Constants.HANDLER_POOL_SIZE, DEFAULT_POOL_SIZE).intValue();
+	}
+
+	/**
+	 * Resolves the configured JSR 105 provider once, rather than reflectively on every signature operation.
+	 * 
+	 * @return The provider named by the jsr105Provider system property, or the default provider.
+	 */
+	static Provider signatureProvider()
+	{
+		Provider provider = signatureProvider;
+		if (provider == null)
+		{
+			try
+			{
+				provider = (Provider) Class.forName(System.getProperty(Constants.JSR_MECHANISM, Constants.JSR_PROVIDER)).newInstance();
+			}
+			catch (ClassNotFoundException e)
+			{
+				throw new ProviderException(e);
+			}
+			catch (IllegalAccessException e)
+			{
+				throw new ProviderException(e);
+			}
+			catch (InstantiationException e)
+			{
+				throw new ProviderException(e);
+			}
+
+			signatureProvider = provider;
+		}
+
+		return provider;
+	}
+
+	/**
+	 * @param size
+	 *            Maximum number of idle document builders to retain
+	 * @return A pool of namespace aware, non validating document builders
+	 */
+	static ResourcePool<DocumentBuilder, ParserConfigurationException> documentBuilderPool(int size)
+	{
+		return documentBuilderPool(size, false);
+	}
+
+	/**
+	 * @param size
+	 *            Maximum number of idle document builders to retain
+	 * @param disallowDoctype
+	 *            If true the document builders reject any document with a document type declaration
+	 * @return A pool of namespace aware, non validating document builders
+	 */
+	static ResourcePool<DocumentBuilder, ParserConfigurationException> documentBuilderPool(int size, final boolean disallowDoctype)
+	{
+		final DocumentBuilderFactory docBuildFac = DocumentBuilderFactory.newInstance();
+		docBuildFac.setNamespaceAware(true);
+		docBuildFac.setValidating(false);
+		docBuildFac.setAttribute("http://apache.org/xml/features/dom/defer-node-expansion", Boolean.FALSE); //$NON-NLS-1$
+
+		return new ResourcePool<DocumentBuilder, ParserConfigurationException>(size)
+		{
+			@Override
+			protected DocumentBuilder create() throws ParserConfigurationException
+			{
+				/* DocumentBuilderFactory is not guaranteed thread safe */
+				synchronized (docBuildFac)
+				{
+					if (disallowDoctype)
+					{
+						docBuildFac.setFeature(DISALLOW_DOCTYPE, true);
+					}
+					return docBuildFac.newDocumentBuilder();
+				}
+			}
+
+			@Override
+			protected boolean reset(DocumentBuilder docBuilder)
+			{
+				docBuilder.reset();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @param schema
+	 *            Schema to create validators for
+	 * @param errorHandler
+	 *            Error handler to install on each validator
+	 * @param size
+	 *            Maximum number of idle validators to retain
+	 * @return A pool of validators for the supplied schema
+	 */
+	static ResourcePool<Validator, RuntimeException> validatorPool(final Schema schema, final ErrorHandler errorHandler, int size)
+	{
+		return new ResourcePool<Validator, RuntimeException>(size)
+		{
+			@Override
+			protected Validator create()
+			{
+				Validator validator = schema.newValidator();
+				validator.setErrorHandler(errorHandler);
+				return validator;
+			}
+
+			@Override
+			protected boolean reset(Validator validator)
+			{
+				/* reset() clears the error handler along with any other state */
+				validator.reset();
+				validator.setErrorHandler(errorHandler);
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @param size
+	 *            Maximum number of idle signature factories to retain
+	 * @return A pool of DOM XMLSignatureFactory instances from the configured provider
+	 */
+	static ResourcePool<XMLSignatureFactory, ProviderException> signatureFactoryPool(int size)
+	{
+		return new ResourcePool<XMLSignatureFactory, ProviderException>(size)
+		{
+			@Override
+			protected XMLSignatureFactory create()
+			{
+				return XMLSignatureFactory.getInstance(Constants.DOM_FACTORY, signatureProvider());
+			}
+		};
+	}
+}
@@ -24,10 +24,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
-import java.security.Provider;
+import java.security.ProviderException;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
@@ -59,7 +60,6 @@ import javax.xml.crypto.dsig.keyinfo.X509IssuerSerial;
 import javax.xml.crypto.dsig.spec.ExcC14NParameterSpec;
 import javax.xml.crypto.dsig.spec.TransformParameterSpec;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Source;
@@ -67,6 +67,7 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
@@ -95,6 +96,9 @@ import com.qut.middleware.saml2.resolver.SchemaResolver;
  */
 public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marshaller<T>
 {
+	/** Encoding documents are marshalled in when none is given and the saml2WireEncoding system property is not set */
+	public static final String DEFAULT_CHARSET = "UTF-16"; //$NON-NLS-1$
+
 	private TransformerFactory transFac;
 
 	private ResourceResolver resourceResolver;
@@ -108,13 +112,24 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 	private String keyPairName;
 	private PrivateKey pk;
 
-	private String defaultCharset = "UTF-16";
+	/* Encoding used when none is given, UTF-16 unless the saml2WireEncoding system property names another */
+	private String defaultCharset = System.getProperty(Constants.WIRE_ENCODING, DEFAULT_CHARSET);
 
 	/* Local logging instance */
 	private Logger logger = LoggerFactory.getLogger(MarshallerImpl.class.getName());
 
 	private Certificate cert;
 
+	/* Marshall signed documents straight into DOM and sign in place, rather than serializing and reparsing */
+	private boolean directSigning = !Boolean.FALSE.toString().equalsIgnoreCase(System.getProperty(Constants.DIRECT_SIGNING));
+	private boolean validateSigned = true;
+
+	private ResourcePool<Marshaller, JAXBException> marshallerPool;
+	private ResourcePool<DocumentBuilder, ParserConfigurationException> documentBuilderPool;
+	private ResourcePool<Validator, RuntimeException> validatorPool;
+	private ResourcePool<XMLSignatureFactory, ProviderException> signatureFactoryPool;
+	private ResourcePool<Transformer, TransformerConfigurationException> transformerPool;
+
 	/**
 	 * Constructor for MarshallerImpl
 	 * 
@@ -170,6 +185,12 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 			this.schemaFactory.setResourceResolver(this.resourceResolver);
 			this.schema = this.schemaFactory.newSchema(schemaSource);
 
+			this.transFac = TransformerFactory.newInstance();
+
+			this.validationHandler = new MarshallerValidationHandler();
+
+			initPools(HandlerPools.defaultPoolSize());
+
 			this.logger.info(Messages.getString("MarshallerImpl.23")); //$NON-NLS-1$
 		}
 		catch (JAXBException je)
@@ -271,6 +292,8 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 			this.pk = localKeyResolver.getLocalPrivateKey();
 			this.cert = localKeyResolver.getLocalCertificate();
 
+			initPools(HandlerPools.defaultPoolSize());
+
 			this.logger.info(Messages.getString("MarshallerImpl.32")); //$NON-NLS-1$
 		}
 		catch (JAXBException je)
@@ -299,6 +322,84 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 		}
 	}
 
+	/**
+	 * Creates the pools of JAXB, DOM, validation and signature objects reused between calls.
+	 * 
+	 * @param poolSize
+	 *            Maximum number of idle instances each pool retains
+	 */
+	private void initPools(int poolSize)
+	{
+		this.marshallerPool = new ResourcePool<Marshaller, JAXBException>(poolSize)
+		{
+			@Override
+			protected Marshaller create() throws JAXBException
+			{
+				Marshaller marshaller = MarshallerImpl.this.jaxbContext.createMarshaller();
+
+				/* Setup the configured prefix mapper to make our saml easy for human consumption */
+				marshaller.setProperty("com.sun.xml.bind.namespacePrefixMapper", new NamespacePrefixMapperImpl()); //$NON-NLS-1$
+				return marshaller;
+			}
+		};
+
+		this.documentBuilderPool = HandlerPools.documentBuilderPool(poolSize);
+		this.validatorPool = HandlerPools.validatorPool(this.schema, this.validationHandler, poolSize);
+		this.signatureFactoryPool = HandlerPools.signatureFactoryPool(poolSize);
+
+		this.transformerPool = new ResourcePool<Transformer, TransformerConfigurationException>(poolSize)
+		{
+			@Override
+			protected Transformer create() throws TransformerConfigurationException
+			{
+				/* TransformerFactory is not guaranteed thread safe */
+				synchronized (MarshallerImpl.this.transFac)
+				{
+					return MarshallerImpl.this.transFac.newTransformer();
+				}
+			}
+
+			@Override
+			protected boolean reset(Transformer trans)
+			{
+				trans.reset();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Sets the number of idle JAXB marshallers, document builders, validators, signature factories and transformers
+	 * retained between calls. Defaults to the saml2HandlerPoolSize system property.
+	 * 
+	 * @param poolSize
+	 *            Maximum number of idle instances each pool retains. 0 disables pooling.
+	 */
+	public void setPoolSize(int poolSize)
+	{
+		this.marshallerPool.setMaxIdle(poolSize);
+		this.documentBuilderPool.setMaxIdle(poolSize);
+		this.validatorPool.setMaxIdle(poolSize);
+		this.signatureFactoryPool.setMaxIdle(poolSize);
+		this.transformerPool.setMaxIdle(poolSize);
+	}
+
+	/**
+	 * @return The number of pooled objects reused across all pools held by this marshaller.
+	 */
+	public long getPoolHits()
+	{
+		return this.marshallerPool.getHits() + this.documentBuilderPool.getHits() + this.validatorPool.getHits() + this.signatureFactoryPool.getHits() + this.transformerPool.getHits();
+	}
+
+	/**
+	 * @return The number of objects which had to be created because a pool was empty.
+	 */
+	public long getPoolMisses()
+	{
+		return this.marshallerPool.getMisses() + this.documentBuilderPool.getMisses() + this.validatorPool.getMisses() + this.signatureFactoryPool.getMisses() + this.transformerPool.getMisses();
+	}
+
 	/* (non-Javadoc)
 	 * @see com.qut.middleware.saml2.handler.Marshaller#marshallSigned(java.lang.Object)
 	 */
@@ -327,13 +428,9 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 			throw new IllegalArgumentException(Messages.getString("MarshallerImpl.9")); //$NON-NLS-1$
 		}
 
-		ByteArrayInputStream byteArrayInputStream;
-		byte[] xml = marshallUnSigned(xmlObj, encoding);
-
-		byteArrayInputStream = new ByteArrayInputStream(xml); //$NON-NLS-1$
-		xml = sign(byteArrayInputStream, encoding);
+		Document doc = marshallSignedDocument(xmlObj, encoding);
 
-		return xml;
+		return generateOutput(doc, encoding);
 	}
 
 	/* (non-Javadoc)
@@ -357,26 +454,14 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 			throw new IllegalArgumentException(Messages.getString("MarshallerImpl.12")); //$NON-NLS-1$
 		}
 
-		Marshaller marshaller;
+		Marshaller marshaller = null;
 		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 		StreamResult streamResult = new StreamResult(outputStream);
 
 		try
 		{
-			marshaller = jaxbContext.createMarshaller();
+			marshaller = acquireMarshaller(Messages.getString("MarshallerImpl.43")); //$NON-NLS-1$
 			marshaller.setProperty("jaxb.encoding", encoding); //$NON-NLS-1$ //$NON-NLS-2$
-
-			/* Setup the configured prefix mapper to make our saml easy for human consumption */
-			try
-			{
-				marshaller.setProperty("com.sun.xml.bind.namespacePrefixMapper", new NamespacePrefixMapperImpl()); //$NON-NLS-1$
-			}
-			catch (PropertyException pe)
-			{
-				this.logger.error(Messages.getString("MarshallerImpl.43")); //$NON-NLS-1$
-				this.logger.debug(pe.getLocalizedMessage(), pe);
-				throw new MarshallerException(pe.getMessage(), pe);
-			}
 			marshaller.marshal(xmlObj, streamResult);
 
 			return outputStream.toByteArray();
@@ -387,6 +472,30 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 			this.logger.debug(je.getLocalizedMessage(), je);
 			throw new MarshallerException(je.getMessage(), je);
 		}
+		finally
+		{
+			this.marshallerPool.release(marshaller);
+		}
+	}
+
+	/**
+	 * Obtains a marshaller from the pool, creating one with the configured prefix mapper if the pool is empty.
+	 * 
+	 * @param prefixMapperError
+	 *            Message to log if the prefix mapper could not be set on a new marshaller
+	 */
+	private Marshaller acquireMarshaller(String prefixMapperError) throws MarshallerException, JAXBException
+	{
+		try
+		{
+			return this.marshallerPool.acquire();
+		}
+		catch (PropertyException pe)
+		{
+			this.logger.error(prefixMapperError);
+			this.logger.debug(pe.getLocalizedMessage(), pe);
+			throw new MarshallerException(pe.getMessage(), pe);
+		}
 	}
 
 	/* (non-Javadoc)
@@ -412,37 +521,39 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 			throw new IllegalArgumentException(Messages.getString("MarshallerImpl.14")); //$NON-NLS-1$
 		}
 
-		Marshaller marshaller;
-		DocumentBuilderFactory docBuildFac;
-		DocumentBuilder docBuilder;
+		return marshallDocument(xmlObj, encoding).getDocumentElement();
+	}
+
+	/**
+	 * Marshalls the supplied object into a new DOM document.
+	 * 
+	 * @param xmlObj
+	 *            The JAXB object to marshall
+	 * @param encoding
+	 *            The character encoding to use
+	 * @return The document holding the marshalled object
+	 */
+	private Document marshallDocument(T xmlObj, String encoding) throws MarshallerException
+	{
+		Marshaller marshaller = null;
+		DocumentBuilder docBuilder = null;
 		Document doc;
 
 		try
 		{
 			this.logger.debug(Messages.getString("MarshallerImpl.48")); //$NON-NLS-1$
-			docBuildFac = DocumentBuilderFactory.newInstance();
-			docBuildFac.setNamespaceAware(true);
-			docBuilder = docBuildFac.newDocumentBuilder();
+			docBuilder = this.documentBuilderPool.acquire();
 			doc = docBuilder.newDocument();
 
-			marshaller = jaxbContext.createMarshaller();
-			marshaller.setProperty("jaxb.encoding", encoding); //$NON-NLS-1$ //$NON-NLS-2$
+			/* Match the standalone declaration JAXB writes when marshalling to a stream */
+			doc.setXmlStandalone(true);
 
-			/* Setup the configured prefix mapper to make our SAML xml output easy for human consumption */
-			try
-			{
-				marshaller.setProperty("com.sun.xml.bind.namespacePrefixMapper", new NamespacePrefixMapperImpl()); //$NON-NLS-1$
-			}
-			catch (PropertyException pe)
-			{
-				this.logger.error(Messages.getString("MarshallerImpl.49")); //$NON-NLS-1$
-				this.logger.debug(pe.getLocalizedMessage(), pe);
-				throw new MarshallerException(pe.getMessage(), pe);
-			}
+			marshaller = acquireMarshaller(Messages.getString("MarshallerImpl.49")); //$NON-NLS-1$
+			marshaller.setProperty("jaxb.encoding", encoding); //$NON-NLS-1$ //$NON-NLS-2$
 
-			marshaller.marshal(xmlObj, doc);
+			marshaller.marshal(xmlObj, new DOMResult(doc));
 
-			return doc.getDocumentElement();
+			return doc;
 		}
 		catch (JAXBException je)
 		{
@@ -456,6 +567,11 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 			this.logger.debug(pce.getLocalizedMessage(), pce);
 			throw new MarshallerException(pce.getMessage(), pce);
 		}
+		finally
+		{
+			this.marshallerPool.release(marshaller);
+			this.documentBuilderPool.release(docBuilder);
+		}
 	}
 	
 	public Element marshallSignedElement(T xmlObj) throws MarshallerException
@@ -482,36 +598,105 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 			throw new IllegalArgumentException(Messages.getString("MarshallerImpl.9")); //$NON-NLS-1$
 		}
 
-		byte[] xml = marshallUnSigned(xmlObj, encoding);
-
-		ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(xml); //$NON-NLS-1$
-		Document doc = signDocument(byteArrayInputStream, encoding);
+		Document doc = marshallSignedDocument(xmlObj, encoding);
 
 		return doc.getDocumentElement();
 	}
 
 	/**
-	 * Validates, Signs and creates XML content.
+	 * Sets whether signed documents are marshalled straight into a DOM tree and signed in place. When false the
+	 * object is marshalled to bytes and reparsed before signing. Defaults to true unless the saml2DirectSigning system
+	 * property is false.
 	 * 
-	 * This function will validate the supplied schema. For each supplied XML compliant id in idList an empty
-	 * <Signature/> block is assumed to be present so that the Signature generation output can be inserted in a valid
-	 * position in the final document.
+	 * @param directSigning
+	 *            true to sign the marshalled DOM tree in place
+	 */
+	public void setDirectSigning(boolean directSigning)
+	{
+		this.directSigning = directSigning;
+	}
+
+	/**
+	 * Sets the character encoding documents are marshalled in when the caller does not give one. Defaults to the
+	 * saml2WireEncoding system property, or UTF-16 if it is not set.
 	 * 
-	 * @param schema
-	 *            The name of the schema file eg "my-schema.xsd" to validate against
-	 * @param document
-	 *            The validated xml content to be signed
-	 * @return A string representation of the completed document
+	 * @param defaultCharset
+	 *            The IANA registered name of a charset supported by this JVM
 	 */
-	private byte[] sign(InputStream document, String encoding) throws MarshallerException
+	public void setDefaultCharset(String defaultCharset)
 	{
-			Document doc = this.signDocument(document, encoding);
-	
-			return generateOutput(doc, encoding);
+		if (defaultCharset == null || !Charset.isSupported(defaultCharset))
+		{
+			throw new IllegalArgumentException("Unsupported default charset: " + defaultCharset); //$NON-NLS-1$
+		}
+
+		this.defaultCharset = defaultCharset;
+	}
+
+	/**
+	 * @return The character encoding documents are marshalled in when the caller does not give one.
+	 */
+	public String getDefaultCharset()
+	{
+		return this.defaultCharset;
+	}
+
+	/**
+	 * Sets whether documents are validated against schema before they are signed. Defaults to true.
+	 * 
+	 * @param validateSigned
+	 *            false to sign documents without validating them first
+	 */
+	public void setValidateSigned(boolean validateSigned)
+	{
+		this.validateSigned = validateSigned;
+	}
+
+	/**
+	 * Marshalls and signs the supplied object, returning the signed DOM tree.
+	 * 
+	 * @param xmlObj
+	 *            The JAXB object to marshall, with empty Signature elements where signatures are to be generated
+	 * @param encoding
+	 *            The character encoding to use
+	 * @return The signed document
+	 */
+	private Document marshallSignedDocument(T xmlObj, String encoding) throws MarshallerException
+	{
+		if (!this.directSigning)
+		{
+			byte[] xml = marshallUnSigned(xmlObj, encoding);
+			return signDocument(new ByteArrayInputStream(xml), encoding);
+		}
+
+		Document doc = marshallDocument(xmlObj, encoding);
+
+		if (this.validateSigned)
+		{
+			try
+			{
+				validate(doc);
+			}
+			catch (IOException ioe)
+			{
+				this.logger.warn(Messages.getString("MarshallerImpl.56")); //$NON-NLS-1$
+				this.logger.debug(ioe.getLocalizedMessage(), ioe);
+				throw new MarshallerException(ioe.getMessage(), ioe);
+			}
+			catch (SAXException saxe)
+			{
+				this.logger.warn(Messages.getString("MarshallerImpl.58")); //$NON-NLS-1$
+				this.logger.debug(saxe.getLocalizedMessage(), saxe);
+				throw new MarshallerException(saxe.getMessage(), saxe);
+			}
+		}
+
+		return signDocument(doc);
 	}
 
 	public byte[] generateOutput(Document doc, String encoding) throws MarshallerException
 	{
+		Transformer trans = null;
 		try
 		{
 			if (encoding == null) encoding = this.defaultCharset;
@@ -520,7 +705,7 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 			Properties properties = new Properties();
 			properties.setProperty(OutputKeys.ENCODING, encoding); //$NON-NLS-1$
 	
-			Transformer trans = this.transFac.newTransformer();
+			trans = this.transformerPool.acquire();
 			trans.setOutputProperties(properties);
 			
 			this.logger.debug(Messages.getString("MarshallerImpl.55")); //$NON-NLS-1$
@@ -544,6 +729,10 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 			this.logger.debug(te.getLocalizedMessage(), te);
 			throw new MarshallerException(te.getMessage(), te);
 		}
+		finally
+		{
+			this.transformerPool.release(trans);
+		}
 	}
 	
 	/**
@@ -561,13 +750,53 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 	 */
 	private Document signDocument(InputStream document, String encoding) throws MarshallerException
 	{
-		XMLSignatureFactory xmlSigFac;
+		Document doc;
+
+		try
+		{
+			doc = parse(document);
+
+			if (this.validateSigned)
+				validate(doc);
+		}
+		catch (IOException ioe)
+		{
+			this.logger.warn(Messages.getString("MarshallerImpl.56")); //$NON-NLS-1$
+			this.logger.debug(ioe.getLocalizedMessage(), ioe);
+			throw new MarshallerException(ioe.getMessage(), ioe);
+		}
+		catch (ParserConfigurationException pce)
+		{
+			this.logger.warn(Messages.getString("MarshallerImpl.57")); //$NON-NLS-1$
+			this.logger.debug(pce.getLocalizedMessage(), pce);
+			throw new MarshallerException(pce.getMessage(), pce);
+		}
+		catch (SAXException saxe)
+		{
+			this.logger.warn(Messages.getString("MarshallerImpl.58")); //$NON-NLS-1$
+			this.logger.debug(saxe.getLocalizedMessage(), saxe);
+			throw new MarshallerException(saxe.getMessage(), saxe);
+		}
+
+		return signDocument(doc);
+	}
+
+	/**
+	 * Signs the supplied DOM tree in place. For each empty <Signature/> element in the document an enveloped signature
+	 * is generated over its parent element.
+	 * 
+	 * @param doc
+	 *            The document to be signed
+	 * @return The supplied document, now signed
+	 */
+	private Document signDocument(Document doc) throws MarshallerException
+	{
+		XMLSignatureFactory xmlSigFac = null;
 		DigestMethod digestMethod;
 		CanonicalizationMethod canocMeth;
 		SignatureMethod sigMeth;
 
 		ArrayList<Transform> transformList;
-		Document doc;
 		SignedInfo signedInfo;
 		DOMSignContext domSignContext;
 		Element signatureParent = null;
@@ -584,8 +813,8 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 		this.logger.debug(Messages.getString("MarshallerImpl.52")); //$NON-NLS-1$
 		try
 		{
-			/* XMLSignatureFactory instances are not thread safe outside static functions so create in local scope */
-			xmlSigFac = XMLSignatureFactory.getInstance(Constants.DOM_FACTORY, (Provider) Class.forName(System.getProperty(Constants.JSR_MECHANISM, Constants.JSR_PROVIDER)).newInstance()); //$NON-NLS-1$//$NON-NLS-2$ //$NON-NLS-3$
+			/* XMLSignatureFactory instances are not thread safe outside static functions so take one from the pool for this call only */
+			xmlSigFac = this.signatureFactoryPool.acquire();
 			digestMethod = xmlSigFac.newDigestMethod(DigestMethod.SHA1, null);
 			canocMeth = xmlSigFac.newCanonicalizationMethod(CanonicalizationMethod.EXCLUSIVE, (ExcC14NParameterSpec) null);
 
@@ -608,8 +837,6 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 				}
 			}
 
-			doc = validate(document);
-
 			/* Locate all the empty Signature elements we wish to populate */
 			nodeList = doc.getElementsByTagNameNS(XMLSignature.XMLNS, Constants.SIGNATURE_ELEMENT);
 			if (nodeList.getLength() <= 0)
@@ -650,7 +877,7 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 				ref = xmlSigFac.newReference("#" + id, digestMethod, transformList, null, null); //$NON-NLS-1$
 				signedInfo = xmlSigFac.newSignedInfo(canocMeth, sigMeth, Collections.singletonList(ref));
 
-				factory = KeyInfoFactory.getInstance(Constants.DOM_FACTORY, (Provider) Class.forName(System.getProperty(Constants.JSR_MECHANISM, Constants.JSR_PROVIDER)).newInstance()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				factory = xmlSigFac.getKeyInfoFactory();
 				keyName = factory.newKeyName(this.keyPairName);
 				
 				List<Object> keyInfoList = new ArrayList<Object>();
@@ -693,6 +920,9 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 					domSignContext = new DOMSignContext(this.pk, signatureParent);
 
 				domSignContext.putNamespacePrefix(XMLSignature.XMLNS, "ds"); //$NON-NLS-1$
+
+				/* Register the ID attribute so the reference is resolved directly rather than by searching the document */
+				domSignContext.setIdAttributeNS(signatureParent, null, Constants.ID_ATTRIBUTE);
 				signature.sign(domSignContext);
 			}
 
@@ -710,41 +940,11 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 			this.logger.debug(nsae.getLocalizedMessage(), nsae);
 			throw new MarshallerException(nsae.getMessage(), nsae);
 		}
-		catch (ClassNotFoundException cfe)
+		catch (ProviderException pe)
 		{
 			this.logger.error(Messages.getString("MarshallerImpl.36")); //$NON-NLS-1$
-			this.logger.debug(cfe.getLocalizedMessage(), cfe);
-			throw new MarshallerException(cfe.getMessage(), cfe);
-		}
-		catch (IllegalAccessException iae)
-		{
-			this.logger.error(Messages.getString("MarshallerImpl.37")); //$NON-NLS-1$
-			this.logger.debug(iae.getLocalizedMessage(), iae);
-			throw new MarshallerException(iae.getMessage(), iae);
-		}
-		catch (InstantiationException cfe)
-		{
-			this.logger.error(Messages.getString("MarshallerImpl.38")); //$NON-NLS-1$
-			this.logger.debug(cfe.getLocalizedMessage(), cfe);
-			throw new MarshallerException(cfe.getMessage(), cfe);
-		}
-		catch (IOException ioe)
-		{
-			this.logger.warn(Messages.getString("MarshallerImpl.56")); //$NON-NLS-1$
-			this.logger.debug(ioe.getLocalizedMessage(), ioe);
-			throw new MarshallerException(ioe.getMessage(), ioe);
-		}
-		catch (ParserConfigurationException pce)
-		{
-			this.logger.warn(Messages.getString("MarshallerImpl.57")); //$NON-NLS-1$
-			this.logger.debug(pce.getLocalizedMessage(), pce);
-			throw new MarshallerException(pce.getMessage(), pce);
-		}
-		catch (SAXException saxe)
-		{
-			this.logger.warn(Messages.getString("MarshallerImpl.58")); //$NON-NLS-1$
-			this.logger.debug(saxe.getLocalizedMessage(), saxe);
-			throw new MarshallerException(saxe.getMessage(), saxe);
+			this.logger.debug(pe.getLocalizedMessage(), pe);
+			throw new MarshallerException(pe.getMessage(), pe);
 		}
 		catch (XMLSignatureException xmlse)
 		{
@@ -758,38 +958,56 @@ public class MarshallerImpl<T> implements com.qut.middleware.saml2.handler.Marsh
 			this.logger.debug(me.getLocalizedMessage(), me);
 			throw new MarshallerException(me.getMessage(), me);
 		}
+		finally
+		{
+			this.signatureFactoryPool.release(xmlSigFac);
+		}
 	}
 
 	/**
-	 * Validates the supplied document against schema, returns DOMResult on success.
+	 * Parses the supplied document into a DOM tree.
 	 * 
-	 * @param schema
-	 *            Schema document to validate against
 	 * @param document
-	 *            InputStream representation of the document to validate
-	 * @return
+	 *            InputStream representation of the document to parse
+	 * @return The parsed document
 	 * @throws ParserConfigurationException
 	 * @throws IOException
 	 * @throws SAXException
 	 */
-	private Document validate(InputStream document) throws ParserConfigurationException, IOException, SAXException
+	private Document parse(InputStream document) throws ParserConfigurationException, IOException, SAXException
 	{
-		this.logger.debug(Messages.getString("MarshallerImpl.64")); //$NON-NLS-1$
-
-		DocumentBuilderFactory docBuildFac = DocumentBuilderFactory.newInstance();
-		docBuildFac.setNamespaceAware(true);
-		docBuildFac.setValidating(false);
-		docBuildFac.setAttribute("http://apache.org/xml/features/dom/defer-node-expansion", Boolean.FALSE); //$NON-NLS-1$
-
-		DocumentBuilder docBuilder = docBuildFac.newDocumentBuilder();
-		Document doc = docBuilder.parse(document);
-
-		Validator validator = this.schema.newValidator();
-		validator.setErrorHandler(this.validationHandler);
-
-		validator.validate(new DOMSource(doc));
+		DocumentBuilder docBuilder = this.documentBuilderPool.acquire();
+		try
+		{
+			return docBuilder.parse(document);
+		}
+		finally
+		{
+			this.documentBuilderPool.release(docBuilder);
+		}
+	}
 
-		return doc;
+	/**
+	 * Validates the supplied document against schema.
+	 * 
+	 * @param doc
+	 *            The document to validate
+	 * @throws IOException
+	 * @throws SAXException
+	 *             if the document is not valid
+	 */
+	private void validate(Document doc) throws IOException, SAXException
+	{
+		this.logger.debug(Messages.getString("MarshallerImpl.64")); //$NON-NLS-1$
 
+		Validator validator = this.validatorPool.acquire();
+		try
+		{
+			validator.validate(new DOMSource(doc));
+		}
+		finally
+		{
+			this.validatorPool.release(validator);
+		}
 	}
 }
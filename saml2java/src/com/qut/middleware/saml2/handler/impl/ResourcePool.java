@@ -0,0 +1,170 @@
+/* 
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not 
+ * use this file except in compliance with the License. You may obtain a copy of 
+ * the License at 
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations under 
+ * the License.
+ * 
+ * Creation Date: 16/10/2008
+ * 
+ * Purpose: Bounded pool of reusable, non thread safe XML processing objects
+ */
+package com.qut.middleware.saml2.handler.impl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of reusable objects which are expensive to create and not safe to share between threads, such as JAXB
+ * marshallers, DOM document builders and schema validators.
+ * 
+ * Callers must acquire() an instance, use it on a single thread and release() it when done. When the pool is empty a
+ * new instance is created; when the pool is full released instances are discarded. Pool hits and misses are counted.
+ * 
+ * @param <T> The type of pooled object
+ * @param <E> The exception thrown when a new instance can not be created
+ */
+public abstract class ResourcePool<T, E extends Exception>
+{
+	private ConcurrentLinkedQueue<T> idle;
+	private AtomicInteger idleCount;
+	private volatile int maxIdle;
+
+	private AtomicLong hits;
+	private AtomicLong misses;
+
+	/**
+	 * @param maxIdle
+	 *            The maximum number of idle instances to retain. 0 disables pooling.
+	 */
+	public ResourcePool(int maxIdle)
+	{
+		if (maxIdle < 0)
+			throw new IllegalArgumentException("Pool size must not be negative"); //$NON-NLS-1$
+
+		this.maxIdle = maxIdle;
+		this.idle = new ConcurrentLinkedQueue<T>();
+		this.idleCount = new AtomicInteger();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+
+	/**
+	 * Creates a new instance when none is available in the pool.
+	 * 
+	 * @return The new instance
+	 * @throws E
+	 *             if the instance could not be created
+	 */
+	protected abstract T create() throws E;
+
+	/**
+	 * Returns an instance to its initial state before it is pooled again.
+	 * 
+	 * @param instance
+	 *            The instance being released
+	 * @return false if the instance can not be reused and should be discarded
+	 */
+	protected boolean reset(T instance)
+	{
+		return true;
+	}
+
+	/**
+	 * @return A pooled instance if available, else a newly created instance.
+	 * @throws E
+	 *             if a new instance could not be created
+	 */
+	public T acquire() throws E
+	{
+		T instance = this.idle.poll();
+		if (instance != null)
+		{
+			this.idleCount.decrementAndGet();
+			this.hits.incrementAndGet();
+			return instance;
+		}
+
+		this.misses.incrementAndGet();
+		return create();
+	}
+
+	/**
+	 * Returns an instance to the pool. Instances which fail to reset, or which would exceed the pool size, are
+	 * discarded.
+	 * 
+	 * @param instance
+	 *            The instance obtained from acquire(), may be null.
+	 */
+	public void release(T instance)
+	{
+		if (instance == null)
+			return;
+
+		try
+		{
+			if (!reset(instance))
+				return;
+		}
+		catch (RuntimeException e)
+		{
+			return;
+		}
+
+		if (this.idleCount.incrementAndGet() > this.maxIdle)
+		{
+			this.idleCount.decrementAndGet();
+			return;
+		}
+
+		this.idle.offer(instance);
+	}
+
+	/**
+	 * @param maxIdle
+	 *            The maximum number of idle instances to retain. 0 disables pooling.
+	 */
+	public void setMaxIdle(int maxIdle)
+	{
+		if (maxIdle < 0)
+			throw new IllegalArgumentException("Pool size must not be negative"); //$NON-NLS-1$
+
+		this.maxIdle = maxIdle;
+
+		/* Trim any excess so a reduced size takes effect immediately */
+		while (this.idleCount.get() > maxIdle && this.idle.poll() != null)
+			this.idleCount.decrementAndGet();
+	}
+
+	/**
+	 * @return The maximum number of idle instances retained.
+	 */
+	public int getMaxIdle()
+	{
+		return this.maxIdle;
+	}
+
+	/**
+	 * @return The number of acquire() calls satisfied from the pool.
+	 */
+	public long getHits()
+	{
+		return this.hits.get();
+	}
+
+	/**
+	 * @return The number of acquire() calls which had to create a new instance.
+	 */
+	public long getMisses()
+	{
+		return this.misses.get();
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Locates the Body of a SOAP envelope without binding the envelope itself.
+ */
+
+package com.qut.middleware.saml2.handler.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import com.qut.middleware.saml2.exception.SOAPException;
+
+/**
+ * Reads SOAP envelopes for one version of SOAP.
+ *
+ * The Body is found by walking from the Envelope past any Header, rather than searching the whole document for it.
+ * Envelopes with a document type declaration are rejected, as SOAP does not allow one.
+ */
+final class SOAPEnvelopeReader
+{
+	private static final String ENVELOPE = "Envelope"; //$NON-NLS-1$
+	private static final String HEADER = "Header"; //$NON-NLS-1$
+	private static final String BODY = "Body"; //$NON-NLS-1$
+
+	private final String schemaURI;
+	private final ResourcePool<DocumentBuilder, ParserConfigurationException> documentBuilderPool;
+
+	/**
+	 * @param schemaURI
+	 *            Namespace of the Envelope, Header and Body elements
+	 */
+	SOAPEnvelopeReader(String schemaURI)
+	{
+		this.schemaURI = schemaURI;
+		this.documentBuilderPool = HandlerPools.documentBuilderPool(HandlerPools.defaultPoolSize(), true);
+	}
+
+	/**
+	 * @param soapDocument
+	 *            The serialized envelope
+	 * @return The Body element of the envelope
+	 */
+	Element readBody(byte[] soapDocument) throws SOAPException
+	{
+		DocumentBuilder docBuilder = null;
+		try
+		{
+			docBuilder = this.documentBuilderPool.acquire();
+			Document doc = docBuilder.parse(new ByteArrayInputStream(soapDocument));
+
+			Element envelopeElement = doc.getDocumentElement();
+			if (!this.isSOAPElement(envelopeElement, ENVELOPE))
+			{
+				throw new SOAPException("SOAP document did not have {" + this.schemaURI + "}" + ENVELOPE + " as the root node. Element was: {" + envelopeElement.getNamespaceURI() + "}" + envelopeElement.getLocalName());
+			}
+
+			/* The Body is the first child of the Envelope, or follows the Header */
+			Element bodyElement = firstElement(envelopeElement.getFirstChild());
+			if (bodyElement != null && this.isSOAPElement(bodyElement, HEADER))
+			{
+				bodyElement = firstElement(bodyElement.getNextSibling());
+			}
+
+			if (bodyElement == null || !this.isSOAPElement(bodyElement, BODY))
+			{
+				throw new SOAPException("SOAP document did not contain exactly one {" + this.schemaURI + "}" + BODY + " element. Not schema valid, unable to process.");
+			}
+
+			return bodyElement;
+		}
+		catch (SAXException e)
+		{
+			throw new SOAPException("Unable to parse SOAP envelope. Error was: " + e.getMessage(), e);
+		}
+		catch (IOException e)
+		{
+			throw new SOAPException("Unable to parse SOAP envelope. Error was: " + e.getMessage(), e);
+		}
+		catch (ParserConfigurationException e)
+		{
+			throw new SOAPException("Unable to create document builder for SOAP envelope. Error was: " + e.getMessage(), e);
+		}
+		finally
+		{
+			this.documentBuilderPool.release(docBuilder);
+		}
+	}
+
+	/**
+	 * @param node
+	 *            The node to start from, may be null
+	 * @return The node itself if it is an element, otherwise its first following sibling element, or null if there is none
+	 */
+	static Element firstElement(Node node)
+	{
+		while (node != null && node.getNodeType() != Node.ELEMENT_NODE)
+		{
+			node = node.getNextSibling();
+		}
+
+		return (Element) node;
+	}
+
+	private boolean isSOAPElement(Element element, String localName)
+	{
+		return this.schemaURI.equals(element.getNamespaceURI()) && localName.equals(element.getLocalName());
+	}
+}
@@ -19,6 +19,7 @@
 
 package com.qut.middleware.saml2.handler.impl;
 
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.util.Collection;
 import java.util.List;
@@ -28,10 +29,11 @@ import javax.xml.namespace.QName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import com.qut.middleware.saml2.Constants;
 import com.qut.middleware.saml2.SchemaConstants;
 import com.qut.middleware.saml2.exception.MarshallerException;
 import com.qut.middleware.saml2.exception.SOAPException;
@@ -56,19 +58,39 @@ public class SOAPv12Handler implements SOAPHandler
 	public static final String SOAP12_SCHEMA_URI = "http://www.w3.org/2003/05/soap-envelope";
 
 	private Marshaller<Envelope> envelopeMarshaller;
-	private Unmarshaller<Envelope> envelopeUnmarshaller;
 	private Marshaller<Fault> faultMarshaller;
 	private Unmarshaller<Fault> faultUnmarshaller;
 	
+	private String defaultEncoding;
+	private SOAPEnvelopeReader envelopeReader;
+	
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 
+	/**
+	 * Creates a handler which wraps documents in the encoding named by the saml2WireEncoding system property, or
+	 * SOAP12_DEFAULT_ENCODING if it is not set.
+	 */
 	public SOAPv12Handler()
 	{
+		this(System.getProperty(Constants.WIRE_ENCODING, SOAP12_DEFAULT_ENCODING));
+	}
+
+	/**
+	 * @param defaultEncoding The encoding documents are wrapped in when none is given, and requests are sent in.
+	 */
+	public SOAPv12Handler(String defaultEncoding)
+	{
+		if (defaultEncoding == null || !Charset.isSupported(defaultEncoding))
+		{
+			throw new IllegalArgumentException("Unsupported default encoding for SOAP v1.2 handler: " + defaultEncoding);
+		}
+		this.defaultEncoding = defaultEncoding;
+		this.envelopeReader = new SOAPEnvelopeReader(SOAP12_SCHEMA_URI);
+		
 		try
 		{
 			String[] schema = new String[]{SchemaConstants.soapv12};
 			this.envelopeMarshaller = new MarshallerImpl<Envelope>(Envelope.class.getPackage().getName(), schema);
-			this.envelopeUnmarshaller = new UnmarshallerImpl<Envelope>(Envelope.class.getPackage().getName(), schema);
 			this.faultMarshaller = new MarshallerImpl<Fault>(Fault.class.getPackage().getName(), schema);
 			this.faultUnmarshaller = new UnmarshallerImpl<Fault>(Fault.class.getPackage().getName(), schema);
 		}
@@ -92,7 +114,7 @@ public class SOAPv12Handler implements SOAPHandler
 
 	public byte[] wrapDocument(Element samlDocument) throws SOAPException
 	{
-		return this.wrapDocument(samlDocument, SOAPv12Handler.SOAP12_DEFAULT_ENCODING);
+		return this.wrapDocument(samlDocument, this.defaultEncoding);
 	}
 	
 	public byte[] wrapDocument(Element samlDocument, String encoding) throws SOAPException
@@ -167,54 +189,20 @@ public class SOAPv12Handler implements SOAPHandler
 
 	public Element unwrapDocument(byte[] soapDocument) throws SOAPException
 	{
-		try
+		// We can't do schema validation here, because we don't have the schema for the contents of the <Body>
+		Element bodyElement = this.envelopeReader.readBody(soapDocument);
+		
+		// We only expect one element in the body
+		Element element = SOAPEnvelopeReader.firstElement(bodyElement.getFirstChild());
+		if (element != null)
 		{
-			// We can't do schema validation here, because we don't have the schema for the contents of the <Body>
-			Document doc = this.envelopeUnmarshaller.generateDocument(soapDocument, false);
-			
-			Element envelopeElement = doc.getDocumentElement();
-			if (!envelopeElement.getNamespaceURI().equals(SOAP12_SCHEMA_URI)
-				|| !envelopeElement.getLocalName().equals("Envelope"))
-			{
-				throw new SOAPException("SOAP document did not have {" + SOAP12_SCHEMA_URI + "}Envelope as the root node. Element was: {" + envelopeElement.getNamespaceURI() + "}" + envelopeElement.getLocalName());
-			}
-			NodeList bodyList = envelopeElement.getElementsByTagNameNS(SOAP12_SCHEMA_URI, "Body");
-
-			// To be schema valid, the <Envelope> must have exactly 1 <Body>
-			// But we haven't done schema validation
-			
-			if (bodyList == null || bodyList.getLength() != 1)
-			{
-				throw new SOAPException("SOAP document did not contain exactly one {" + SOAP12_SCHEMA_URI + "}Body element. Not schema valid, unable to process.");
-			}
-			Element bodyElement = (Element)bodyList.item(0);
-			
-			Element result = null;
-			
-			NodeList bodyChildren = bodyElement.getChildNodes();
-			for (int i=0; i<bodyChildren.getLength(); ++i)
+			// Check for faults on the way through.
+			if (element.getLocalName().equals("Fault"))
 			{
-				Element element = (Element)bodyChildren.item(i);
-				
-				// We only expect one element in the body, so grab any non-null element
-				// Check for faults on the way through.
-				if (element != null)
-				{
-					if (element.getLocalName().equals("Fault"))
-					{
-						this.processErrorBody(bodyElement);
-					}
-					
-					result = element;
-				}
+				this.processErrorBody(bodyElement);
 			}
 			
-			if (result != null) return result;
-		}
-		catch (UnmarshallerException e)
-		{
-			this.logger.debug("Exception occurred while unmarshalling request document.", e);
-			throw new SOAPException("Exception occurred while unmarshalling request document. Error was: " + e.getMessage(), e);
+			return element;
 		}
 		
 		this.logger.debug("SOAP body present but no document element. Throwing.");
@@ -230,6 +218,11 @@ public class SOAPv12Handler implements SOAPHandler
 				NodeList bodyChildren = bodyElement.getChildNodes();
 				for (int i=0; i<bodyChildren.getLength(); ++i)
 				{
+					if (bodyChildren.item(i).getNodeType() != Node.ELEMENT_NODE)
+					{
+						continue;
+					}
+					
 					Element element = (Element)bodyChildren.item(i);
 					if (element.getLocalName().equals("Fault"))
 					{
@@ -275,6 +268,11 @@ public class SOAPv12Handler implements SOAPHandler
 	
 	public String getDefaultEncoding()
 	{
-		return SOAPv12Handler.SOAP12_DEFAULT_ENCODING;
+		return this.defaultEncoding;
+	}
+	
+	public String getEncoding(String contentType)
+	{
+		return ContentTypes.charset(contentType);
 	}
 }
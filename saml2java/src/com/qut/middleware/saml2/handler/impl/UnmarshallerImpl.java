@@ -27,7 +27,7 @@ import java.math.BigInteger;
 import java.net.URL;
 import java.security.Key;
 import java.security.KeyException;
-import java.security.Provider;
+import java.security.ProviderException;
 import java.security.PublicKey;
 import java.util.Iterator;
 import java.util.List;
@@ -58,7 +58,6 @@ import javax.xml.crypto.dsig.keyinfo.KeyValue;
 import javax.xml.crypto.dsig.keyinfo.X509Data;
 import javax.xml.crypto.dsig.keyinfo.X509IssuerSerial;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Source;
 import javax.xml.transform.dom.DOMSource;
@@ -267,6 +266,11 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 	private Schema schema;
 	private UnmarshallerValidationHandler validationHandler;
 
+	private ResourcePool<Unmarshaller, JAXBException> unmarshallerPool;
+	private ResourcePool<DocumentBuilder, ParserConfigurationException> documentBuilderPool;
+	private ResourcePool<Validator, RuntimeException> validatorPool;
+	private ResourcePool<XMLSignatureFactory, ProviderException> signatureFactoryPool;
+
 	private final String KEY_PURPOSE = "use"; //$NON-NLS-1$
 	private final String KEY_DESCRIPTOR = "KeyDescriptor"; //$NON-NLS-1$
 
@@ -368,6 +372,8 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 			this.schemaFactory.setResourceResolver(this.resourceResolver);
 			this.schema = this.schemaFactory.newSchema(schemaSource);
 
+			initPools(HandlerPools.defaultPoolSize());
+
 			this.logger.info(Messages.getString("UnmarshallerImpl.51")); //$NON-NLS-1$ 
 		}
 		catch (JAXBException je)
@@ -396,6 +402,76 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 		}
 	}
 	
+	/**
+	 * Creates the pools of JAXB, DOM, validation and signature objects reused between calls.
+	 * 
+	 * @param poolSize
+	 *            Maximum number of idle instances each pool retains
+	 */
+	private void initPools(int poolSize)
+	{
+		this.unmarshallerPool = new ResourcePool<Unmarshaller, JAXBException>(poolSize)
+		{
+			@Override
+			protected Unmarshaller create() throws JAXBException
+			{
+				return UnmarshallerImpl.this.jaxbContext.createUnmarshaller();
+			}
+		};
+
+		this.documentBuilderPool = HandlerPools.documentBuilderPool(poolSize);
+		this.validatorPool = HandlerPools.validatorPool(this.schema, this.validationHandler, poolSize);
+		this.signatureFactoryPool = HandlerPools.signatureFactoryPool(poolSize);
+	}
+
+	/**
+	 * Sets the number of idle JAXB unmarshallers, document builders, validators and signature factories retained
+	 * between calls. Defaults to the saml2HandlerPoolSize system property.
+	 * 
+	 * @param poolSize
+	 *            Maximum number of idle instances each pool retains. 0 disables pooling.
+	 */
+	public void setPoolSize(int poolSize)
+	{
+		this.unmarshallerPool.setMaxIdle(poolSize);
+		this.documentBuilderPool.setMaxIdle(poolSize);
+		this.validatorPool.setMaxIdle(poolSize);
+		this.signatureFactoryPool.setMaxIdle(poolSize);
+	}
+
+	/**
+	 * @return The number of pooled objects reused across all pools held by this unmarshaller.
+	 */
+	public long getPoolHits()
+	{
+		return this.unmarshallerPool.getHits() + this.documentBuilderPool.getHits() + this.validatorPool.getHits() + this.signatureFactoryPool.getHits();
+	}
+
+	/**
+	 * @return The number of objects which had to be created because a pool was empty.
+	 */
+	public long getPoolMisses()
+	{
+		return this.unmarshallerPool.getMisses() + this.documentBuilderPool.getMisses() + this.validatorPool.getMisses() + this.signatureFactoryPool.getMisses();
+	}
+
+	/**
+	 * Unmarshalls the supplied node using a pooled JAXB unmarshaller.
+	 */
+	@SuppressWarnings("unchecked")
+	private T unmarshal(Node node) throws JAXBException
+	{
+		Unmarshaller unmarshaller = this.unmarshallerPool.acquire();
+		try
+		{
+			return (T) unmarshaller.unmarshal(node);
+		}
+		finally
+		{
+			this.unmarshallerPool.release(unmarshaller);
+		}
+	}
+
 	private Document generateDocument(byte[] document) throws UnmarshallerException
 	{
 		return this.generateDocument(document, true);
@@ -475,7 +551,6 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 			throw new IllegalArgumentException(Messages.getString("UnmarshallerImpl.28")); //$NON-NLS-1$
 		}
 
-		Unmarshaller unmarshaller;
 		Document doc;
 		T jaxbObject = null;
 
@@ -485,8 +560,7 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 			doc = this.generateDocument(document);
 
 			/* Unmarshall object for application use, or informative purposes if validation fails */
-			unmarshaller = this.jaxbContext.createUnmarshaller();
-			jaxbObject = (T) unmarshaller.unmarshal(doc);
+			jaxbObject = unmarshal(doc);
 
 			this.logger.debug(Messages.getString("UnmarshallerImpl.68")); //$NON-NLS-1$ 
 			validateSignature(doc, pk, jaxbObject);
@@ -503,23 +577,11 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 			/* Document and Signatures are all valid, return */
 			return jaxbObject;
 		}
-		catch (ClassNotFoundException cfe)
+		catch (ProviderException pe)
 		{
 			this.logger.error(Messages.getString("UnmarshallerImpl.52")); //$NON-NLS-1$ 
-			this.logger.debug(cfe.getLocalizedMessage(), cfe);
-			throw new UnmarshallerException(cfe.getMessage(), cfe, jaxbObject);
-		}
-		catch (IllegalAccessException iae)
-		{
-			this.logger.error(Messages.getString("UnmarshallerImpl.53")); //$NON-NLS-1$ 
-			this.logger.debug(iae.getLocalizedMessage(), iae);
-			throw new UnmarshallerException(iae.getMessage(), iae, jaxbObject);
-		}
-		catch (InstantiationException cfe)
-		{
-			this.logger.error(Messages.getString("UnmarshallerImpl.54")); //$NON-NLS-1$ 
-			this.logger.debug(cfe.getLocalizedMessage(), cfe);
-			throw new UnmarshallerException(cfe.getMessage(), cfe, jaxbObject);
+			this.logger.debug(pe.getLocalizedMessage(), pe);
+			throw new UnmarshallerException(pe.getMessage(), pe, jaxbObject);
 		}
 		catch (JAXBException je)
 		{
@@ -570,7 +632,6 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 			throw new IllegalArgumentException(Messages.getString("UnmarshallerImpl.28")); //$NON-NLS-1$
 		}
 
-		Unmarshaller unmarshaller;
 		Document doc;
 		T jaxbObject = null;
 
@@ -580,8 +641,7 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 			doc = this.generateDocument(document);
 
 			/* Unmarshall object for application use, or informative purposes if validation fails */
-			unmarshaller = this.jaxbContext.createUnmarshaller();
-			jaxbObject = (T) unmarshaller.unmarshal(doc);
+			jaxbObject = unmarshal(doc);
 			if (signed)
 			{
 				this.logger.debug(Messages.getString("UnmarshallerImpl.68")); //$NON-NLS-1$ 
@@ -600,23 +660,11 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 			/* Document and Signatures are all valid, return */
 			return jaxbObject;
 		}
-		catch (ClassNotFoundException cfe)
+		catch (ProviderException pe)
 		{
 			this.logger.error(Messages.getString("UnmarshallerImpl.52")); //$NON-NLS-1$ 
-			this.logger.debug(cfe.getLocalizedMessage(), cfe);
-			throw new UnmarshallerException(cfe.getMessage(), cfe, jaxbObject);
-		}
-		catch (IllegalAccessException iae)
-		{
-			this.logger.error(Messages.getString("UnmarshallerImpl.53")); //$NON-NLS-1$ 
-			this.logger.debug(iae.getLocalizedMessage(), iae);
-			throw new UnmarshallerException(iae.getMessage(), iae, jaxbObject);
-		}
-		catch (InstantiationException cfe)
-		{
-			this.logger.error(Messages.getString("UnmarshallerImpl.54")); //$NON-NLS-1$ 
-			this.logger.debug(cfe.getLocalizedMessage(), cfe);
-			throw new UnmarshallerException(cfe.getMessage(), cfe, jaxbObject);
+			this.logger.debug(pe.getLocalizedMessage(), pe);
+			throw new UnmarshallerException(pe.getMessage(), pe, jaxbObject);
 		}
 		catch (JAXBException je)
 		{
@@ -644,14 +692,23 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 		}
 	}
 	
-	private void processMetadataKeys(Document doc, Map<String, KeyData> keyList, T jaxbObject) throws KeyException, InstantiationException, IllegalAccessException, ClassNotFoundException, MarshalException, UnmarshallerException
+	private void processMetadataKeys(Document doc, Map<String, KeyData> keyList, T jaxbObject) throws KeyException, MarshalException, UnmarshallerException
 	{
-		NodeList nodeList;
-		XMLSignatureFactory xmlSigFac;
+		/* XMLSignatureFactory instances are not thread safe outside static functions so take one from the pool for this call only */
+		XMLSignatureFactory xmlSigFac = this.signatureFactoryPool.acquire();
+		try
+		{
+			processMetadataKeys(doc, keyList, jaxbObject, xmlSigFac);
+		}
+		finally
+		{
+			this.signatureFactoryPool.release(xmlSigFac);
+		}
+	}
 
-		/* XMLSignatureFactory instances are not thread safe outside static functions so create in local scope */
-		xmlSigFac = XMLSignatureFactory.getInstance(Constants.DOM_FACTORY, (Provider) Class.forName(
-				System.getProperty(Constants.JSR_MECHANISM, Constants.JSR_PROVIDER)).newInstance()); //$NON-NLS-1$//$NON-NLS-2$ //$NON-NLS-3$
+	private void processMetadataKeys(Document doc, Map<String, KeyData> keyList, T jaxbObject, XMLSignatureFactory xmlSigFac) throws KeyException, MarshalException, UnmarshallerException
+	{
+		NodeList nodeList;
 
 		this.logger.debug(Messages.getString("UnmarshallerImpl.69")); //$NON-NLS-1$ 
 		nodeList = doc.getElementsByTagNameNS("*", this.KEY_DESCRIPTOR); //$NON-NLS-1$ 
@@ -764,7 +821,6 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 			this.logger.error(Messages.getString("UnmarshallerImpl.7")); //$NON-NLS-1$
 			throw new IllegalArgumentException(Messages.getString("UnmarshallerImpl.7")); //$NON-NLS-1$
 		}
-		Unmarshaller unmarshaller;
 		Document doc;
 		T jaxbObject = null;
 
@@ -774,8 +830,7 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 			doc = this.generateDocument(document);
 
 			/* Unmarshall object for application use, or informative purposes if validation fails */
-			unmarshaller = this.jaxbContext.createUnmarshaller();
-			jaxbObject = (T) unmarshaller.unmarshal(doc);
+			jaxbObject = unmarshal(doc);
 			
 			this.logger.debug(Messages.getString("UnmarshallerImpl.82")); //$NON-NLS-1$
 			validateSignature(doc, pk, jaxbObject);
@@ -825,7 +880,6 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 			throw new IllegalArgumentException(Messages.getString("UnmarshallerImpl.32")); //$NON-NLS-1$
 		}
 
-		Unmarshaller unmarshaller;
 		Document doc;
 		T jaxbObject = null;
 
@@ -834,8 +888,7 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 			this.logger.debug(Messages.getString("UnmarshallerImpl.91")); //$NON-NLS-1$ 
 			doc = this.generateDocument(document);
 
-			unmarshaller = this.jaxbContext.createUnmarshaller();
-			jaxbObject = (T) unmarshaller.unmarshal(doc);
+			jaxbObject = unmarshal(doc);
 
 			/* Unmarshall object for application use, or informative purposes if validation fails */
 			this.logger.debug(Messages.getString("UnmarshallerImpl.92")); //$NON-NLS-1$
@@ -892,8 +945,7 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 		{
 			/* Document is valid, unmarshall object for application use */
 
-			Unmarshaller unmarshaller = this.jaxbContext.createUnmarshaller();
-			jaxbObject = (T) unmarshaller.unmarshal(node);
+			jaxbObject = unmarshal(node);
 			
 			this.validateSignature(node.getOwnerDocument(), null, jaxbObject);
 			
@@ -943,8 +995,7 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 
 			/* Document is valid, unmarshall object for application use */
 
-			Unmarshaller unmarshaller = this.jaxbContext.createUnmarshaller();
-			jaxbObject = (T) unmarshaller.unmarshal(node);
+			jaxbObject = unmarshal(node);
 			return jaxbObject;
 		}
 		catch (JAXBException je)
@@ -990,8 +1041,7 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 			this.logger.debug(Messages.getString("UnmarshallerImpl.109")); //$NON-NLS-1$
 			doc = this.generateDocument(document);
 
-			Unmarshaller unmarshaller = this.jaxbContext.createUnmarshaller();
-			jaxbObject = (T) unmarshaller.unmarshal(doc);
+			jaxbObject = unmarshal(doc);
 			return jaxbObject;
 		}
 		catch (JAXBException je)
@@ -1021,21 +1071,19 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 	{
 		this.logger.debug(Messages.getString("UnmarshallerImpl.111")); //$NON-NLS-1$
 
-		DocumentBuilderFactory docBuildFac = DocumentBuilderFactory.newInstance();
-		docBuildFac.setNamespaceAware(true);
-		docBuildFac.setValidating(false);
-		docBuildFac.setAttribute("http://apache.org/xml/features/dom/defer-node-expansion", Boolean.FALSE); //$NON-NLS-1$
-
-		DocumentBuilder docBuilder = docBuildFac.newDocumentBuilder();
-		Document doc = docBuilder.parse(document);
-
-		if (validate)
+		Document doc;
+		DocumentBuilder docBuilder = this.documentBuilderPool.acquire();
+		try
 		{
-			Validator validator = this.schema.newValidator();
-			validator.setErrorHandler(this.validationHandler);
-	
-			validator.validate(new DOMSource(doc));
+			doc = docBuilder.parse(document);
+		}
+		finally
+		{
+			this.documentBuilderPool.release(docBuilder);
 		}
+
+		if (validate)
+			validate(doc);
 		
 		return doc;
 	}
@@ -1054,11 +1102,16 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 	{
 		this.logger.debug(Messages.getString("UnmarshallerImpl.113")); //$NON-NLS-1$
 
-		Validator validator = this.schema.newValidator();
-		validator.setErrorHandler(this.validationHandler);
-
-		this.logger.debug(Messages.getString("UnmarshallerImpl.114")); //$NON-NLS-1$
-		validator.validate(new DOMSource(node));
+		Validator validator = this.validatorPool.acquire();
+		try
+		{
+			this.logger.debug(Messages.getString("UnmarshallerImpl.114")); //$NON-NLS-1$
+			validator.validate(new DOMSource(node));
+		}
+		finally
+		{
+			this.validatorPool.release(validator);
+		}
 	}
 
 	/**
@@ -1085,75 +1138,69 @@ public class UnmarshallerImpl<T> implements com.qut.middleware.saml2.handler.Unm
 
 		try
 		{
-			/* XMLSignatureFactory instances are not thread safe outside static functions so create in local scope */
-			xmlSigFac = XMLSignatureFactory.getInstance(Constants.DOM_FACTORY, (Provider) Class.forName(
-					System.getProperty(Constants.JSR_MECHANISM, Constants.JSR_PROVIDER)).newInstance()); //$NON-NLS-1$//$NON-NLS-2$ //$NON-NLS-3$
+			/* XMLSignatureFactory instances are not thread safe outside static functions so take one from the pool for this call only */
+			xmlSigFac = this.signatureFactoryPool.acquire();
 		}
-		catch (ClassNotFoundException cfe)
+		catch (ProviderException pe)
 		{
 			this.logger.error(Messages.getString("UnmarshallerImpl.52")); //$NON-NLS-1$ 
-			this.logger.debug(cfe.getLocalizedMessage(), cfe);
-			throw new UnmarshallerException(cfe.getMessage(), cfe, jaxbObject);
-		}
-		catch (IllegalAccessException iae)
-		{
-			this.logger.error(Messages.getString("UnmarshallerImpl.53")); //$NON-NLS-1$ 
-			this.logger.debug(iae.getLocalizedMessage(), iae);
-			throw new UnmarshallerException(iae.getMessage(), iae, jaxbObject);
-		}
-		catch (InstantiationException cfe)
-		{
-			this.logger.error(Messages.getString("UnmarshallerImpl.54")); //$NON-NLS-1$ 
-			this.logger.debug(cfe.getLocalizedMessage(), cfe);
-			throw new UnmarshallerException(cfe.getMessage(), cfe, jaxbObject);
-		}
-
-		nodeList = doc.getElementsByTagNameNS(XMLSignature.XMLNS, SIGNATURE_ELEMENT);
-		if (nodeList.getLength() == 0)
-		{
-			this.logger.warn(Messages.getString("UnmarshallerImpl.116")); //$NON-NLS-1$
-			throw new UnmarshallerException(Messages.getString("UnmarshallerImpl.22"), null, jaxbObject); //$NON-NLS-1$
+			this.logger.debug(pe.getLocalizedMessage(), pe);
+			throw new UnmarshallerException(pe.getMessage(), pe, jaxbObject);
 		}
 
-		for (int i = 0; i < nodeList.getLength(); i++)
+		try
 		{
-			if (pk != null)
-				valContext = new DOMValidateContext(pk, nodeList.item(i));
-			else
+			nodeList = doc.getElementsByTagNameNS(XMLSignature.XMLNS, SIGNATURE_ELEMENT);
+			if (nodeList.getLength() == 0)
 			{
-				resolver = new KeyResolver(this.extKeyResolver);
-				valContext = new DOMValidateContext(resolver, nodeList.item(i));
+				this.logger.warn(Messages.getString("UnmarshallerImpl.116")); //$NON-NLS-1$
+				throw new UnmarshallerException(Messages.getString("UnmarshallerImpl.22"), null, jaxbObject); //$NON-NLS-1$
 			}
 
-			signature = xmlSigFac.unmarshalXMLSignature(valContext);
-
-			validSig = signature.validate(valContext);
-
-			if (!validSig)
+			for (int i = 0; i < nodeList.getLength(); i++)
 			{
-				this.logger.debug(Messages.getString("UnmarshallerImpl.117")); //$NON-NLS-1$
-
-				/* Signature fault, determine why for caller */
-				if (!signature.getSignatureValue().validate(valContext))
+				if (pk != null)
+					valContext = new DOMValidateContext(pk, nodeList.item(i));
+				else
 				{
-					this.logger.warn(Messages.getString("UnmarshallerImpl.118")); //$NON-NLS-1$ 
-					throw new SignatureValueException(Messages.getString("UnmarshallerImpl.0"), null, jaxbObject); //$NON-NLS-1$ 
+					resolver = new KeyResolver(this.extKeyResolver);
+					valContext = new DOMValidateContext(resolver, nodeList.item(i));
 				}
 
-				Iterator<Reference> j = signature.getSignedInfo().getReferences().iterator();
-				while (j.hasNext())
+				signature = xmlSigFac.unmarshalXMLSignature(valContext);
+
+				validSig = signature.validate(valContext);
+
+				if (!validSig)
 				{
-					if (!j.next().validate(valContext))
+					this.logger.debug(Messages.getString("UnmarshallerImpl.117")); //$NON-NLS-1$
+
+					/* Signature fault, determine why for caller */
+					if (!signature.getSignatureValue().validate(valContext))
 					{
-						this.logger.warn(Messages.getString("UnmarshallerImpl.119")); //$NON-NLS-1$
-						throw new ReferenceValueException(Messages.getString("UnmarshallerImpl.1"), null, jaxbObject); //$NON-NLS-1$
+						this.logger.warn(Messages.getString("UnmarshallerImpl.118")); //$NON-NLS-1$ 
+						throw new SignatureValueException(Messages.getString("UnmarshallerImpl.0"), null, jaxbObject); //$NON-NLS-1$ 
+					}
+
+					Iterator<Reference> j = signature.getSignedInfo().getReferences().iterator();
+					while (j.hasNext())
+					{
+						if (!j.next().validate(valContext))
+						{
+							this.logger.warn(Messages.getString("UnmarshallerImpl.119")); //$NON-NLS-1$
+							throw new ReferenceValueException(Messages.getString("UnmarshallerImpl.1"), null, jaxbObject); //$NON-NLS-1$
+						}
 					}
-				}
 
-				/* Can't ascertain what's gone wrong at this point */
-				this.logger.warn(Messages.getString("UnmarshallerImpl.120")); //$NON-NLS-1$
-				throw new UnmarshallerException(Messages.getString("UnmarshallerImpl.2"), null, jaxbObject); //$NON-NLS-1$
+					/* Can't ascertain what's gone wrong at this point */
+					this.logger.warn(Messages.getString("UnmarshallerImpl.120")); //$NON-NLS-1$
+					throw new UnmarshallerException(Messages.getString("UnmarshallerImpl.2"), null, jaxbObject); //$NON-NLS-1$
+				}
 			}
 		}
+		finally
+		{
+			this.signatureFactoryPool.release(xmlSigFac);
+		}
 	}
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 15/10/2008
+ *
+ * Purpose: Lock free implementation of the IdentifierCache interface which expires
+ * 		identifiers a whole time bucket at a time.
+ */
+package com.qut.middleware.saml2.identifier.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qut.middleware.saml2.identifier.IdentifierCache;
+import com.qut.middleware.saml2.identifier.exception.IdentifierCollisionException;
+
+/**
+ * Lock free implementation of the IdentifierCache interface.
+ *
+ * Identifiers are registered with an atomic putIfAbsent into the current generation. Each generation covers a bucket
+ * of time, and cleanCache() rotates in a new generation once the current one is older than the bucket width. A
+ * generation is dropped as a whole once every identifier in it is older than the requested age, so expiry costs O(1)
+ * per generation rather than a walk over every identifier.
+ *
+ * Identifiers are never expired early. They may be retained for up to one bucket width plus one cleanup interval
+ * beyond the requested age.
+ */
+public class GenerationalIdentifierCacheImpl implements IdentifierCache
+{
+	/** Default width of a generation in milliseconds */
+	public static final long DEFAULT_BUCKET_WIDTH = 60000;
+
+	private volatile Generation[] generations;
+	private ReentrantLock rotationLock;
+	private long bucketWidth;
+
+	/* Local logging instance */
+	private Logger logger = LoggerFactory.getLogger(GenerationalIdentifierCacheImpl.class.getName());
+
+	/**
+	 * Default constructor, using the default bucket width.
+	 */
+	public GenerationalIdentifierCacheImpl()
+	{
+		this(DEFAULT_BUCKET_WIDTH);
+	}
+
+	/**
+	 * @param bucketWidth
+	 *            The span of time in milliseconds covered by a single generation.
+	 */
+	public GenerationalIdentifierCacheImpl(long bucketWidth)
+	{
+		if (bucketWidth <= 0)
+			throw new IllegalArgumentException("Bucket width must be greater than 0"); //$NON-NLS-1$
+
+		this.bucketWidth = bucketWidth;
+		this.rotationLock = new ReentrantLock();
+		this.generations = new Generation[] { new Generation(System.currentTimeMillis(), 16) };
+
+		this.logger.info(Messages.getString("IdentifierCacheImpl.6")); //$NON-NLS-1$
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.saml2.identifier.IdentifierCache#registerIdentifier(java.lang.String)
+	 */
+	public void registerIdentifier(String identifier) throws IdentifierCollisionException
+	{
+		this.logger.trace(Messages.getString("IdentifierCacheImpl.8")); //$NON-NLS-1$
+
+		if (identifier == null)
+			return;
+
+		Generation current = this.generations[0];
+
+		if (current.identifiers.putIfAbsent(identifier, Boolean.TRUE) != null)
+			collision();
+
+		/*
+		 * Checking the other generations after the put means that two threads racing a rotation with the same
+		 * identifier will always see each other, so at most one of them can succeed.
+		 */
+		for (Generation generation : this.generations)
+		{
+			if (generation != current && generation.identifiers.containsKey(identifier))
+			{
+				current.identifiers.remove(identifier);
+				collision();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.saml2.identifier.IdentifierCache#containsIdentifier(java.lang.String)
+	 */
+	public boolean containsIdentifier(String identifier)
+	{
+		if (identifier == null)
+			return false;
+
+		for (Generation generation : this.generations)
+		{
+			if (generation.identifiers.containsKey(identifier))
+				return true;
+		}
+
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.saml2.identifier.IdentifierCache#cleanCache(int)
+	 */
+	public int cleanCache(int age)
+	{
+		this.rotationLock.lock();
+		try
+		{
+			long now = System.currentTimeMillis();
+			Generation[] snapshot = this.generations;
+
+			// Never let a generation span more than the requested age, so short ages are honoured promptly.
+			boolean rotate = (now - snapshot[0].opened) >= Math.min(this.bucketWidth, age);
+
+			/*
+			 * Every identifier in a generation was registered before the next newer generation was opened, so a
+			 * generation can be dropped once that time is older than the requested age. The current generation is
+			 * always kept.
+			 */
+			int keep = 1;
+			while (keep < snapshot.length && snapshot[keep - 1].opened + age >= now)
+				keep++;
+
+			int numRemoved = 0;
+			for (int i = keep; i < snapshot.length; i++)
+				numRemoved += snapshot[i].identifiers.size();
+
+			if (!rotate && keep == snapshot.length)
+				return 0;
+
+			Generation[] next;
+			if (rotate)
+			{
+				next = new Generation[keep + 1];
+				// Size the new generation like the last one so it does not have to grow under load
+				next[0] = new Generation(now, snapshot[0].identifiers.size());
+				System.arraycopy(snapshot, 0, next, 1, keep);
+			}
+			else
+			{
+				next = new Generation[keep];
+				System.arraycopy(snapshot, 0, next, 0, keep);
+			}
+
+			this.generations = next;
+
+			this.logger.debug("Identifier cache cleanup dropped {} generations holding {} identifiers.", Integer.valueOf(snapshot.length - keep), Integer.valueOf(numRemoved)); //$NON-NLS-1$
+
+			return numRemoved;
+		}
+		finally
+		{
+			this.rotationLock.unlock();
+		}
+	}
+
+	private void collision() throws IdentifierCollisionException
+	{
+		this.logger.error(Messages.getString("IdentifierCacheImpl.9")); //$NON-NLS-1$
+		throw new IdentifierCollisionException(Messages.getString("IdentifierCacheImpl.9")); //$NON-NLS-1$
+	}
+
+	/* A set of identifiers registered while this generation was the current one. */
+	private static final class Generation
+	{
+		final long opened;
+		final ConcurrentMap<String, Boolean> identifiers;
+
+		Generation(long opened, int expectedSize)
+		{
+			this.opened = opened;
+			this.identifiers = new ConcurrentHashMap<String, Boolean>(Math.max(16, expectedSize));
+		}
+	}
+}
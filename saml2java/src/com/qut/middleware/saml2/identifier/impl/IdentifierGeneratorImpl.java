@@ -23,7 +23,6 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.concurrent.locks.ReentrantLock;
 
-import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,12 +31,18 @@ import com.qut.middleware.saml2.identifier.IdentifierGenerator;
 import com.qut.middleware.saml2.identifier.exception.IdentifierCollisionException;
 import com.qut.middleware.saml2.identifier.exception.IdentifierGeneratorException;
 
-/** Generates random identifiers compliant to the IdentiferGenerator interface specification. */
+/** Generates random identifiers compliant to the IdentiferGenerator interface specification. 
+ * 
+ * By default a single SecureRandom instance is shared by all threads, and reseeded on each call. In striped mode, 
+ * threads are spread over several SecureRandom instances which seed themselves once, and may each pre-generate a
+ * block of random bytes which identifiers are cut from.
+ */
 public class IdentifierGeneratorImpl implements IdentifierGenerator
 {
 	private final String XS_ID_DELIM = "_"; //$NON-NLS-1$
 	private final String ID_DELIM = "-"; //$NON-NLS-1$
 	private final String RNG = "SHA1PRNG"; //$NON-NLS-1$
+	private static final char[] HEX = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
 	
 	/* Local logging instance */
 	private Logger logger = LoggerFactory.getLogger(IdentifierGeneratorImpl.class.getName());
@@ -45,6 +50,7 @@ public class IdentifierGeneratorImpl implements IdentifierGenerator
 	private IdentifierCache cache;
 	private ReentrantLock lock;
 	private SecureRandom random;
+	private Stripe[] stripes;
 	
 	public IdentifierGeneratorImpl(IdentifierCache cache)
 	{
@@ -55,19 +61,55 @@ public class IdentifierGeneratorImpl implements IdentifierGenerator
 		this.cache = cache;
 		this.lock = new ReentrantLock();
 
+		this.random = createRandom();
+		this.random.setSeed(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Creates a generator which spreads threads over several SecureRandom instances.
+	 * 
+	 * @param cache The identifier cache to register generated identifiers with
+	 * @param stripes The number of SecureRandom instances, 0 uses the single shared instance of the default mode
+	 * @param blockSize The number of random bytes each instance generates at once, 0 generates only the bytes
+	 * needed for each identifier
+	 */
+	public IdentifierGeneratorImpl(IdentifierCache cache, int stripes, int blockSize)
+	{
+		this(cache);
+		
+		if(stripes < 0)
+		{
+			throw new IllegalArgumentException("stripes cannot be negative."); //$NON-NLS-1$
+		}
+		if(blockSize < 0)
+		{
+			throw new IllegalArgumentException("block size cannot be negative."); //$NON-NLS-1$
+		}
+		
+		if(stripes > 0)
+		{
+			this.stripes = new Stripe[stripes];
+			for(int i = 0; i < stripes; i++)
+			{
+				this.stripes[i] = new Stripe(createRandom(), blockSize);
+			}
+		}
+	}
+	
+	/* Gets the specified RNG instance, or the default if it is unavailable */
+	private SecureRandom createRandom()
+	{
 		try
 		{
 			/* Attempt to get the specified RNG instance */
-			this.random = SecureRandom.getInstance(this.RNG);
+			return SecureRandom.getInstance(this.RNG);
 		}
 		catch (NoSuchAlgorithmException nsae)
 		{
 			this.logger.error(Messages.getString("IdentifierGeneratorImpl.13")); //$NON-NLS-1$
 			this.logger.debug(nsae.getLocalizedMessage(), nsae);
-			this.random = new SecureRandom();
+			return new SecureRandom();
 		}
-		
-		this.random.setSeed(System.currentTimeMillis());
 	}
 
 	/* (non-Javadoc)
@@ -75,9 +117,7 @@ public class IdentifierGeneratorImpl implements IdentifierGenerator
 	 */
 	public String generateSAMLAuthnID()
 	{
-		String id = this.XS_ID_DELIM;
-		id = id + generate(20);
-		id = id + this.ID_DELIM + generate(16);
+		String id = generateXSID();
 		
 		this.logger.debug(Messages.getString("IdentifierGeneratorImpl.0") + id); //$NON-NLS-1$
 		
@@ -100,9 +140,7 @@ public class IdentifierGeneratorImpl implements IdentifierGenerator
 	 */
 	public String generateSAMLID()
 	{
-		String id = this.XS_ID_DELIM;
-		id = id + generate(20);
-		id = id + this.ID_DELIM + generate(16);
+		String id = generateXSID();
 		
 		this.logger.debug(Messages.getString("IdentifierGeneratorImpl.3") + id); //$NON-NLS-1$
 
@@ -160,9 +198,12 @@ public class IdentifierGeneratorImpl implements IdentifierGenerator
 	 */
 	public String generateSessionID()
 	{
-		String id = generate(20);
-		id = id + this.ID_DELIM + generate(16);
-		id = id + this.ID_DELIM + System.currentTimeMillis();
+		char[] buf = new char[(20 + 16) * 2 + 1];
+		generate(buf, 0, 20);
+		buf[40] = this.ID_DELIM.charAt(0);
+		generate(buf, 41, 16);
+		
+		String id = new StringBuilder(buf.length + 14).append(buf).append(this.ID_DELIM).append(System.currentTimeMillis()).toString();
 		
 		this.logger.debug(Messages.getString("IdentifierGeneratorImpl.10") + id); //$NON-NLS-1$
 		
@@ -180,6 +221,18 @@ public class IdentifierGeneratorImpl implements IdentifierGenerator
 		return id;
 	}
 
+	/* Generates an identifier which is a valid xs:ID, the delimiter followed by 20 and 16 random bytes */
+	private String generateXSID()
+	{
+		char[] buf = new char[1 + (20 + 16) * 2 + 1];
+		buf[0] = this.XS_ID_DELIM.charAt(0);
+		generate(buf, 1, 20);
+		buf[41] = this.ID_DELIM.charAt(0);
+		generate(buf, 42, 16);
+		
+		return new String(buf);
+	}
+
 	/**
 	 * Generates the specified number of random bytes using SecureRandom
 	 * 
@@ -189,9 +242,29 @@ public class IdentifierGeneratorImpl implements IdentifierGenerator
 	 */
 	private String generate(int length)
 	{
-		String id;
-		byte[] buf;
-		buf = new byte[length];
+		char[] buf = new char[length * 2];
+		generate(buf, 0, length);
+		
+		return new String(buf);
+	}
+	
+	/**
+	 * Generates the specified number of random bytes using SecureRandom, hex encoded into the given buffer
+	 * 
+	 * @param out The buffer to write to
+	 * @param offset The position in the buffer to start writing at
+	 * @param length The number of random bytes to generate, twice as many characters are written
+	 */
+	private void generate(char[] out, int offset, int length)
+	{
+		if (this.stripes != null)
+		{
+			Stripe stripe = this.stripes[(int) (Thread.currentThread().getId() % this.stripes.length)];
+			stripe.nextHex(out, offset, length);
+			return;
+		}
+		
+		byte[] buf = new byte[length];
 
 		this.lock.lock();
 		try
@@ -206,9 +279,59 @@ public class IdentifierGeneratorImpl implements IdentifierGenerator
 			this.lock.unlock();
 		}
 
-		id = new String(Hex.encodeHex(buf));
-
-		return id;
+		encodeHex(buf, 0, length, out, offset);
+	}
+	
+	private static void encodeHex(byte[] bytes, int start, int length, char[] out, int offset)
+	{
+		for (int i = start; i < start + length; i++)
+		{
+			out[offset++] = HEX[(bytes[i] >> 4) & 0x0f];
+			out[offset++] = HEX[bytes[i] & 0x0f];
+		}
+	}
+	
+	/* A SecureRandom instance used by a share of the threads, with an optional block of bytes generated ahead.
+	 * The instance seeds itself from the system when first used and is not reseeded.
+	 */
+	private static final class Stripe
+	{
+		private final SecureRandom random;
+		private final byte[] block;
+		private int position;
+		
+		protected Stripe(SecureRandom random, int blockSize)
+		{
+			this.random = random;
+			this.block = new byte[blockSize];
+			this.position = blockSize;
+		}
+		
+		protected synchronized void nextHex(char[] out, int offset, int length)
+		{
+			if (length > this.block.length)
+			{
+				byte[] buf = new byte[length];
+				this.random.nextBytes(buf);
+				encodeHex(buf, 0, length, out, offset);
+				return;
+			}
+			
+			if (this.position + length > this.block.length)
+			{
+				this.random.nextBytes(this.block);
+				this.position = 0;
+			}
+			
+			encodeHex(this.block, this.position, length, out, offset);
+			
+			// Bytes handed out are cleared so they are never in memory longer than necessary
+			for (int i = this.position; i < this.position + length; i++)
+			{
+				this.block[i] = 0;
+			}
+			this.position += length;
+		}
 	}
 
 }
@@ -27,13 +27,13 @@ public class KeyName extends JAXBElement<String>
 {
 	private static final long serialVersionUID = 6032597376102630268L;
 	
-	private static final String qName = "ds:KeyName"; //$NON-NLS-1$
+	private static final QName qName = new QName("http://www.w3.org/2000/09/xmldsig#", "KeyName", "ds"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 
 	/**
 	 * @param value The name of this key to be stored in XML
 	 */
 	public KeyName(String value)
 	{
-		super(new QName(qName), String.class, value);
+		super(qName, String.class, value);
 	}
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Creates UTC XML calendars from millisecond instants without a DatatypeFactory lookup for each calendar.
+ */
+
+package com.qut.middleware.saml2.time;
+
+import java.util.GregorianCalendar;
+import java.util.SimpleTimeZone;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Creates XML calendars in UTC.
+ * 
+ * DatatypeFactory.newInstance() looks up the implementation class each time it is called, so each thread keeps the
+ * factory it first obtains. Calendars for instants from 1970 on are built from their date and time fields directly,
+ * rather than through a GregorianCalendar.
+ */
+public final class XMLCalendarFactory
+{
+	private static final String UTC = "UTC"; //$NON-NLS-1$
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	private static final ThreadLocal<DatatypeFactory> factory = new ThreadLocal<DatatypeFactory>()
+	{
+		@Override
+		protected DatatypeFactory initialValue()
+		{
+			try
+			{
+				return DatatypeFactory.newInstance();
+			}
+			catch (DatatypeConfigurationException e)
+			{
+				return null;
+			}
+		}
+	};
+
+	private XMLCalendarFactory()
+	{
+		// Not instantiated
+	}
+
+	/**
+	 * @return The DatatypeFactory for the calling thread, or null if no DatatypeFactory implementation is available.
+	 */
+	public static DatatypeFactory getDatatypeFactory()
+	{
+		DatatypeFactory datatypeFactory = factory.get();
+		if (datatypeFactory == null)
+		{
+			// Try again next time rather than keep the failure
+			factory.remove();
+		}
+
+		return datatypeFactory;
+	}
+
+	/**
+	 * Creates an XML calendar for the given instant, with a 0 offset UTC time zone.
+	 * 
+	 * @param millis The instant in milliseconds since the epoch.
+	 * @return The created calendar, or null if no DatatypeFactory implementation is available.
+	 */
+	public static XMLGregorianCalendar newUTCCalendar(long millis)
+	{
+		DatatypeFactory datatypeFactory = getDatatypeFactory();
+		if (datatypeFactory == null)
+			return null;
+
+		if (millis < 0)
+		{
+			// Before 1970 leave the Julian calendar change over to GregorianCalendar
+			GregorianCalendar calendar = new GregorianCalendar(new SimpleTimeZone(0, UTC));
+			calendar.setTimeInMillis(millis);
+			return datatypeFactory.newXMLGregorianCalendar(calendar);
+		}
+
+		long days = millis / MILLIS_PER_DAY;
+		int millisOfDay = (int) (millis - days * MILLIS_PER_DAY);
+
+		// Civil date from days since 1970-01-01, counting in 400 year eras from 0000-03-01
+		long z = days + 719468;
+		long era = z / 146097;
+		int dayOfEra = (int) (z - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int monthIndex = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+		int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+		int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+		int hour = millisOfDay / 3600000;
+		int minute = (millisOfDay / 60000) % 60;
+		int second = (millisOfDay / 1000) % 60;
+		int millisecond = millisOfDay % 1000;
+
+		return datatypeFactory.newXMLGregorianCalendar(year, month, day, hour, minute, second, millisecond, 0);
+	}
+}
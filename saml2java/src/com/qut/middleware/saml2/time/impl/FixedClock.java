@@ -0,0 +1,60 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Clock implementation which only moves when told to.
+ */
+
+package com.qut.middleware.saml2.time.impl;
+
+import com.qut.middleware.saml2.time.Clock;
+
+/** Clock which reports a set time until it is set or advanced, for deterministic testing of time dependent logic. */
+public class FixedClock implements Clock
+{
+	private volatile long time;
+
+	/**
+	 * @param time The time in milliseconds since the epoch to start at.
+	 */
+	public FixedClock(long time)
+	{
+		this.time = time;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.qut.middleware.saml2.time.Clock#currentTimeMillis()
+	 */
+	public long currentTimeMillis()
+	{
+		return this.time;
+	}
+
+	/**
+	 * @param time The time in milliseconds since the epoch to report.
+	 */
+	public void setTime(long time)
+	{
+		this.time = time;
+	}
+
+	/**
+	 * @param millis The number of milliseconds to move the clock forward by.
+	 */
+	public synchronized void advance(long millis)
+	{
+		this.time += millis;
+	}
+}
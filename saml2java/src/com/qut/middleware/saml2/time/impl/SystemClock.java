@@ -0,0 +1,34 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Clock implementation reading the system time.
+ */
+
+package com.qut.middleware.saml2.time.impl;
+
+import com.qut.middleware.saml2.time.Clock;
+
+/** Clock reading the system time. */
+public class SystemClock implements Clock
+{
+	/* (non-Javadoc)
+	 * @see com.qut.middleware.saml2.time.Clock#currentTimeMillis()
+	 */
+	public long currentTimeMillis()
+	{
+		return System.currentTimeMillis();
+	}
+}
@@ -40,6 +40,7 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
 import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Locale;
@@ -624,6 +625,50 @@ public class MarshallerTest
 		}
 	}
 
+	/**
+	 * Test method for
+	 * {@link com.qut.middleware.saml2.handler.impl.MarshallerImpl#setDirectSigning(boolean)}.
+	 * 
+	 * Tests that signing the marshalled DOM in place produces the same document as signing a reparsed copy
+	 */
+	@Test
+	public void testMarshallSigned3a() throws Exception
+	{
+		MarshallerImpl<EntityDescriptor> marshaller;
+		Unmarshaller<EntityDescriptor> unmarshaller;
+
+		schemas = new String[] { "saml-schema-protocol-2.0.xsd", "saml-schema-assertion-2.0.xsd",
+				"saml-schema-metadata-2.0.xsd" };
+
+		File file = new File(this.path + "SAMLMetadataUnSigned.xml");
+		byte[] byteArray = new byte[(int) file.length()];
+
+		InputStream fileStream = new FileInputStream(file);
+		fileStream.read(byteArray);
+		fileStream.close();
+
+		marshaller = new MarshallerImpl<EntityDescriptor>(EntityDescriptor.class.getPackage().getName(), schemas,
+				localKeyResolver);
+		unmarshaller = new UnmarshallerImpl<EntityDescriptor>(EntityDescriptor.class.getPackage().getName(), schemas);
+
+		EntityDescriptor entity = unmarshaller.unMarshallUnSigned(byteArray);
+		entity.setSignature(new Signature());
+		SPSSODescriptor sp = (SPSSODescriptor) entity.getIDPDescriptorAndSSODescriptorAndRoleDescriptors().get(0);
+		sp.setSignature(new Signature());
+
+		marshaller.setDirectSigning(true);
+		byte[] direct = marshaller.marshallSigned(entity);
+
+		marshaller.setDirectSigning(false);
+		byte[] reparsed = marshaller.marshallSigned(entity);
+
+		assertTrue("Direct signing should produce the same document as the reparsing path", Arrays.equals(reparsed, direct));
+
+		marshaller.setDirectSigning(true);
+		marshaller.setValidateSigned(false);
+		assertTrue("Skipping validation should not change the signed document", Arrays.equals(direct, marshaller.marshallSigned(entity)));
+	}
+
 	/**
 	 * Test method for
 	 * {@link com.qut.middleware.saml2.handler.impl.MarshallerImpl#marshallSigned(java.lang.String, java.security.PrivateKey, java.lang.String)}.
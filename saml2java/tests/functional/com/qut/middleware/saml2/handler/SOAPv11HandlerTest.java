@@ -334,6 +334,45 @@ public class SOAPv11HandlerTest
 		this.handler.unwrapDocument(document);
 	}
 
+	@Test
+	public void testWireEncoding() throws Exception
+	{
+		Response response = new Response();
+		response.setID(this.responseID);
+		response.setVersion(VersionConstants.saml20);
+		response.setIssueInstant(this.generateXMLCalendar(0));
+		response.setSignature(new Signature());
+		Status status = new Status();
+		status.setStatusMessage(this.statusMessage);
+		StatusCode statusCode = new StatusCode();
+		statusCode.setValue(this.statusCodeValue);
+		status.setStatusCode(statusCode);
+		response.setStatus(status);
+
+		SOAPHandler utf8Handler = new SOAPv11Handler("UTF-8");
+		assertEquals("UTF-8", utf8Handler.getDefaultEncoding());
+		assertEquals("UTF-8", utf8Handler.getEncoding(utf8Handler.getContentType(utf8Handler.getDefaultEncoding())));
+		assertEquals("utf-16", utf8Handler.getEncoding("text/xml; charset=\"utf-16\"; action=test"));
+		assertEquals(null, utf8Handler.getEncoding("text/xml"));
+		assertEquals(null, utf8Handler.getEncoding(null));
+
+		Element element = this.responseMarshaller.marshallSignedElement(response);
+		byte[] utf8Document = utf8Handler.wrapDocument(element);
+		byte[] utf16Document = this.handler.wrapDocument(element, "UTF-16");
+		assertTrue(new String(utf8Document, "UTF-8").startsWith("<?xml"));
+		assertTrue(utf8Document.length < utf16Document.length);
+
+		// Either handler reads documents in either encoding
+		assertEquals(this.responseID, this.handler.unwrapDocument(utf8Document).getAttribute("ID"));
+		assertEquals(this.responseID, utf8Handler.unwrapDocument(utf16Document).getAttribute("ID"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedEncoding()
+	{
+		new SOAPv11Handler("x-no-such-charset");
+	}
+
 	@Test(expected = SOAPException.class)
 	public void testUnwrapNull() throws Exception
 	{
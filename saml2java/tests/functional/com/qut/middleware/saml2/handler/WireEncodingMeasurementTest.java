@@ -0,0 +1,191 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Compares payload size and marshal/unmarshal time of a SAML response and its
+ * 		SOAP envelope in the UTF-16 and UTF-8 wire encodings. Documents are not signed, so the
+ * 		times show the cost of the encoding rather than of RSA.
+ */
+package com.qut.middleware.saml2.handler;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.qut.middleware.saml2.ExternalKeyResolver;
+import com.qut.middleware.saml2.LocalKeyResolver;
+import com.qut.middleware.saml2.NameIDFormatConstants;
+import com.qut.middleware.saml2.SchemaConstants;
+import com.qut.middleware.saml2.VersionConstants;
+import com.qut.middleware.saml2.handler.impl.MarshallerImpl;
+import com.qut.middleware.saml2.handler.impl.SOAPv11Handler;
+import com.qut.middleware.saml2.handler.impl.UnmarshallerImpl;
+import com.qut.middleware.saml2.schemas.assertion.Assertion;
+import com.qut.middleware.saml2.schemas.assertion.AttributeStatement;
+import com.qut.middleware.saml2.schemas.assertion.AttributeType;
+import com.qut.middleware.saml2.schemas.assertion.NameIDType;
+import com.qut.middleware.saml2.schemas.protocol.Response;
+import com.qut.middleware.saml2.schemas.protocol.Status;
+import com.qut.middleware.saml2.schemas.protocol.StatusCode;
+import com.qut.middleware.saml2.time.XMLCalendarFactory;
+
+@SuppressWarnings("nls")
+public class WireEncodingMeasurementTest
+{
+	private static final String[] ENCODINGS = { "UTF-16", "UTF-8" };
+	private static final int WARMUP = 200;
+	private static final int ITERATIONS = 1000;
+
+	private MarshallerImpl<Response> responseMarshaller;
+	private Unmarshaller<Response> responseUnmarshaller;
+	private Response response;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		String path = System.getProperty("user.dir") + File.separator + "tests" + File.separator + "testdata" + File.separator;
+
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		FileInputStream fis = new FileInputStream(path + "tests.ks");
+		char[] passwd = { 't', 'e', 's', 't', 'p', 'a', 's', 's' };
+		ks.load(fis, passwd);
+
+		String keyAlias = "myrsakey";
+
+		PrivateKey privKey = (PrivateKey) ks.getKey(keyAlias, passwd);
+		X509Certificate cert = (X509Certificate) ks.getCertificate(keyAlias);
+		PublicKey pk = cert.getPublicKey();
+
+		LocalKeyResolver localKeyResolver = createMock(LocalKeyResolver.class);
+		expect(localKeyResolver.getLocalCertificate()).andReturn(cert).anyTimes();
+		expect(localKeyResolver.getLocalKeyAlias()).andReturn(keyAlias).anyTimes();
+		expect(localKeyResolver.getLocalPrivateKey()).andReturn(privKey).anyTimes();
+		expect(localKeyResolver.getLocalPublicKey()).andReturn(pk).anyTimes();
+		replay(localKeyResolver);
+
+		ExternalKeyResolver externalKeyResolver = createMock(ExternalKeyResolver.class);
+		expect(externalKeyResolver.resolveKey(keyAlias)).andReturn(pk).anyTimes();
+		expect(externalKeyResolver.resolveKey(cert.getIssuerDN().getName(), cert.getSerialNumber())).andReturn(pk).anyTimes();
+		replay(externalKeyResolver);
+
+		String[] schemas = new String[] { SchemaConstants.samlProtocol, SchemaConstants.samlAssertion };
+		String packages = Response.class.getPackage().getName() + ":" + Assertion.class.getPackage().getName();
+		this.responseMarshaller = new MarshallerImpl<Response>(packages, schemas, localKeyResolver);
+		this.responseUnmarshaller = new UnmarshallerImpl<Response>(packages, schemas, externalKeyResolver);
+
+		this.response = createResponse();
+	}
+
+	/* An attribute response of the size the attribute authority typically sends */
+	private Response createResponse()
+	{
+		long now = System.currentTimeMillis();
+
+		NameIDType issuer = new NameIDType();
+		issuer.setFormat(NameIDFormatConstants.entity);
+		issuer.setValue("https://esoe.example.com");
+
+		AttributeStatement statement = new AttributeStatement();
+		for (int i = 0; i < 10; i++)
+		{
+			AttributeType attribute = new AttributeType();
+			attribute.setName("urn:oid:1.3.6.1.4.1.5923.1.1.1." + i);
+			attribute.setNameFormat(NameIDFormatConstants.unspecified);
+			attribute.setFriendlyName("attribute" + i);
+			attribute.getAttributeValues().add("value-" + i + "@example.com");
+			statement.getEncryptedAttributesAndAttributes().add(attribute);
+		}
+
+		Assertion assertion = new Assertion();
+		assertion.setVersion(VersionConstants.saml20);
+		assertion.setID("_assertion-0123456789abcdef0123456789abcdef");
+		assertion.setIssueInstant(XMLCalendarFactory.newUTCCalendar(now));
+		assertion.setIssuer(issuer);
+		assertion.getAuthnStatementsAndAuthzDecisionStatementsAndAttributeStatements().add(statement);
+
+		StatusCode statusCode = new StatusCode();
+		statusCode.setValue("urn:oasis:names:tc:SAML:2.0:status:Success");
+		Status status = new Status();
+		status.setStatusCode(statusCode);
+
+		Response result = new Response();
+		result.setID("_response-0123456789abcdef0123456789abcdef");
+		result.setVersion(VersionConstants.saml20);
+		result.setIssueInstant(XMLCalendarFactory.newUTCCalendar(now));
+		result.setStatus(status);
+		result.getEncryptedAssertionsAndAssertions().add(assertion);
+
+		return result;
+	}
+
+	@Test
+	public void testMeasureEncodings() throws Exception
+	{
+		System.out.println("encoding\tdocument bytes\tbase64 bytes\tSOAP bytes\tmarshal us\tunmarshal us\tSOAP wrap us\tSOAP unwrap us");
+		for (String encoding : ENCODINGS)
+		{
+			this.responseMarshaller.setDefaultCharset(encoding);
+			SOAPHandler handler = new SOAPv11Handler(encoding);
+
+			byte[] document = this.responseMarshaller.marshallUnSigned(this.response);
+			Element element = this.responseMarshaller.marshallUnSignedElement(this.response);
+			byte[] envelope = handler.wrapDocument(element);
+			assertEquals(this.response.getID(), this.responseUnmarshaller.unMarshallUnSigned(document).getID());
+
+			for (int i = 0; i < WARMUP; i++)
+			{
+				this.responseUnmarshaller.unMarshallUnSigned(this.responseMarshaller.marshallUnSigned(this.response));
+				handler.unwrapDocument(handler.wrapDocument(element));
+			}
+
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				this.responseMarshaller.marshallUnSigned(this.response);
+			long marshal = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				this.responseUnmarshaller.unMarshallUnSigned(document);
+			long unmarshal = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				handler.wrapDocument(element);
+			long wrap = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				handler.unwrapDocument(envelope);
+			long unwrap = System.nanoTime() - start;
+
+			// Size of the document once base64 encoded into an HTTP POST form
+			int base64 = (document.length + 2) / 3 * 4;
+
+			System.out.println(encoding + "\t" + document.length + "\t" + base64 + "\t" + envelope.length + "\t" + marshal / ITERATIONS / 1000 + "\t" + unmarshal / ITERATIONS / 1000 + "\t" + wrap / ITERATIONS / 1000 + "\t" + unwrap / ITERATIONS / 1000);
+		}
+	}
+}
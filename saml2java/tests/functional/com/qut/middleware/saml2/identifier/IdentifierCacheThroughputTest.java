@@ -0,0 +1,153 @@
+/* 
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not 
+ * use this file except in compliance with the License. You may obtain a copy of 
+ * the License at 
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations under 
+ * the License.
+ * 
+ * Creation Date: 15/10/2008
+ * 
+ * Purpose: Compares registerIdentifier throughput of the identifier cache implementations
+ * 		at increasing thread counts.
+ */
+package com.qut.middleware.saml2.identifier;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.qut.middleware.saml2.identifier.exception.IdentifierCollisionException;
+import com.qut.middleware.saml2.identifier.impl.GenerationalIdentifierCacheImpl;
+import com.qut.middleware.saml2.identifier.impl.IdentifierCacheImpl;
+
+public class IdentifierCacheThroughputTest
+{
+	private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+	private static final long WARMUP_MILLIS = 500;
+	private static final long MEASURE_MILLIS = 2000;
+
+	@Test
+	public void testThroughput() throws Exception
+	{
+		System.out.println("threads\tIdentifierCacheImpl ops/s\tGenerationalIdentifierCacheImpl ops/s");
+		for (int threads : THREADS)
+		{
+			// Cleanup runs alongside, as the sessions monitor would
+			long locking = measure(new IdentifierCacheImpl(), threads);
+			long generational = measure(new GenerationalIdentifierCacheImpl(250), threads);
+
+			System.out.println(threads + "\t" + locking + "\t" + generational);
+		}
+	}
+
+	private long measure(final IdentifierCache cache, int threads) throws Exception
+	{
+		final AtomicLong operations = new AtomicLong();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final long warmupEnd = System.currentTimeMillis() + WARMUP_MILLIS;
+		final long end = warmupEnd + MEASURE_MILLIS;
+
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			final String prefix = "_" + i + "-";
+			workers[i] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						long count = 0;
+						long now;
+						while ((now = System.currentTimeMillis()) < end)
+						{
+							// Register in small batches so the clock is not read on every call
+							for (int j = 0; j < 64; j++)
+								cache.registerIdentifier(prefix + (count++));
+
+							if (now < warmupEnd)
+								continue;
+
+							operations.addAndGet(64);
+						}
+					}
+					catch (IdentifierCollisionException e)
+					{
+						failure.compareAndSet(null, new AssertionError("Unexpected collision " + e.getMessage()));
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					catch (Throwable t)
+					{
+						// Failures in this thread are not seen by JUnit, so report them after the join
+						failure.compareAndSet(null, t);
+					}
+				}
+			};
+			workers[i].start();
+		}
+
+		Thread cleaner = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (System.currentTimeMillis() < end)
+					{
+						cache.cleanCache(500);
+						Thread.sleep(250);
+					}
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				catch (Throwable t)
+				{
+					failure.compareAndSet(null, t);
+				}
+			}
+		};
+
+		start.countDown();
+		cleaner.start();
+
+		for (Thread worker : workers)
+			worker.join();
+		cleaner.join();
+
+		rethrow(failure.get());
+
+		return operations.get() * 1000 / MEASURE_MILLIS;
+	}
+
+	/* Fails the test on the JUnit thread with the first failure of any worker */
+	private static void rethrow(Throwable failure)
+	{
+		if (failure == null)
+			return;
+
+		if (failure instanceof AssertionError)
+			throw (AssertionError) failure;
+
+		AssertionError error = new AssertionError("Worker thread failed: " + failure);
+		error.initCause(failure);
+		throw error;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Tests the bounded, expiring artifact store.
+ */
+package com.qut.middleware.saml2.artifact;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.qut.middleware.saml2.artifact.impl.ArtifactStoreImpl;
+
+@SuppressWarnings("nls")
+public class ArtifactStoreTest
+{
+	@Test
+	public void testResolveOnce() throws Exception
+	{
+		ArtifactStore<String> store = new ArtifactStoreImpl<String>();
+		store.store("handle1", "artifact1");
+		store.store("handle2", "artifact2");
+		assertEquals(2, store.getSize());
+
+		assertEquals("artifact1", store.resolve("handle1"));
+		assertNull(store.resolve("handle1"));
+		assertNull(store.resolve("unknown"));
+		assertEquals("artifact2", store.resolve("handle2"));
+
+		assertEquals(0, store.getSize());
+		assertEquals(2, store.getResolvedCount());
+		assertEquals(2, store.getMissedCount());
+	}
+
+	@Test
+	public void testExpiry() throws Exception
+	{
+		ArtifactStore<String> store = new ArtifactStoreImpl<String>(200, 100);
+		store.store("handle1", "artifact1");
+		store.store("handle2", "artifact2");
+
+		Thread.sleep(300);
+
+		// Expired artifacts are refused even before they are pruned
+		assertNull(store.resolve("handle1"));
+		assertEquals(1, store.getExpiredCount());
+
+		store.store("handle3", "artifact3");
+		assertEquals(2, store.getExpiredCount());
+		assertEquals(1, store.getSize());
+		assertEquals("artifact3", store.resolve("handle3"));
+	}
+
+	@Test
+	public void testCleanStore() throws Exception
+	{
+		ArtifactStore<String> store = new ArtifactStoreImpl<String>(200, 100);
+		for (int i = 0; i < 10; i++)
+			store.store("handle" + i, "artifact" + i);
+		store.resolve("handle0");
+
+		assertEquals(0, store.cleanStore());
+
+		Thread.sleep(300);
+
+		assertEquals(9, store.cleanStore());
+		assertEquals(0, store.getSize());
+		assertEquals(9, store.getExpiredCount());
+	}
+
+	@Test
+	public void testEviction() throws Exception
+	{
+		ArtifactStore<String> store = new ArtifactStoreImpl<String>(60000, 5);
+		for (int i = 0; i < 8; i++)
+			store.store("handle" + i, "artifact" + i);
+
+		assertEquals(5, store.getSize());
+		assertEquals(3, store.getEvictedCount());
+
+		// The oldest artifacts are evicted first
+		assertNull(store.resolve("handle2"));
+		assertEquals("artifact3", store.resolve("handle3"));
+		assertEquals("artifact7", store.resolve("handle7"));
+	}
+
+	@Test
+	public void testConcurrentResolveOnce() throws Exception
+	{
+		final ArtifactStore<String> store = new ArtifactStoreImpl<String>(60000, 100000);
+		final int artifacts = 10000;
+		for (int i = 0; i < artifacts; i++)
+			store.store("handle" + i, "artifact" + i);
+
+		final AtomicInteger resolved = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++)
+		{
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+
+					for (int i = 0; i < artifacts; i++)
+						if (store.resolve("handle" + i) != null)
+							resolved.incrementAndGet();
+				}
+			};
+			threads[t].start();
+		}
+
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(artifacts, resolved.get());
+		assertEquals(0, store.getSize());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidMaxSize() throws Exception
+	{
+		new ArtifactStoreImpl<String>(1000, 0);
+	}
+}
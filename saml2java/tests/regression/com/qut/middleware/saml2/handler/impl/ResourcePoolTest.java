@@ -0,0 +1,116 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 16/10/2008
+ *
+ * Purpose: Tests the handler resource pool for correct reuse and bounding
+ */
+
+package com.qut.middleware.saml2.handler.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResourcePoolTest
+{
+	private ResourcePool<Object, RuntimeException> pool;
+	private boolean resetResult;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		this.resetResult = true;
+		this.pool = new ResourcePool<Object, RuntimeException>(2)
+		{
+			@Override
+			protected Object create()
+			{
+				return new Object();
+			}
+
+			@Override
+			protected boolean reset(Object instance)
+			{
+				return ResourcePoolTest.this.resetResult;
+			}
+		};
+	}
+
+	@Test
+	public void testReuse()
+	{
+		Object first = this.pool.acquire();
+		this.pool.release(first);
+
+		assertSame("Released instance should be reused", first, this.pool.acquire());
+		assertEquals(1, this.pool.getHits());
+		assertEquals(1, this.pool.getMisses());
+	}
+
+	@Test
+	public void testBounded()
+	{
+		Object a = this.pool.acquire();
+		Object b = this.pool.acquire();
+		Object c = this.pool.acquire();
+
+		this.pool.release(a);
+		this.pool.release(b);
+		this.pool.release(c);
+
+		this.pool.acquire();
+		this.pool.acquire();
+		this.pool.acquire();
+
+		assertEquals("Only two instances should have been retained", 2, this.pool.getHits());
+		assertEquals(4, this.pool.getMisses());
+	}
+
+	@Test
+	public void testResetFailureDiscards()
+	{
+		Object first = this.pool.acquire();
+		this.resetResult = false;
+		this.pool.release(first);
+
+		assertNotSame("Instance failing reset should not be reused", first, this.pool.acquire());
+		assertEquals(0, this.pool.getHits());
+	}
+
+	@Test
+	public void testShrink()
+	{
+		Object a = this.pool.acquire();
+		Object b = this.pool.acquire();
+		this.pool.release(a);
+		this.pool.release(b);
+
+		this.pool.setMaxIdle(0);
+		this.pool.acquire();
+
+		assertEquals("Shrinking the pool should drop idle instances", 0, this.pool.getHits());
+
+		this.pool.release(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeSize()
+	{
+		this.pool.setMaxIdle(-1);
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Tests the SOAP envelope reader finds the Body, and the handlers unwrap indented envelopes
+ */
+
+package com.qut.middleware.saml2.handler.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.qut.middleware.saml2.exception.SOAPException;
+
+@SuppressWarnings("nls")
+public class SOAPEnvelopeReaderTest
+{
+	private static final String SOAP_URI = SOAPv11Handler.SOAP11_SCHEMA_URI;
+	private static final String PAYLOAD_URI = "urn:example:payload";
+
+	private SOAPEnvelopeReader reader;
+
+	@Before
+	public void setUp()
+	{
+		this.reader = new SOAPEnvelopeReader(SOAP_URI);
+	}
+
+	private Element createPayload(String text) throws Exception
+	{
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		Document doc = factory.newDocumentBuilder().newDocument();
+
+		Element payload = doc.createElementNS(PAYLOAD_URI, "p:Request");
+		payload.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:p", PAYLOAD_URI);
+		payload.setAttribute("ID", "_123");
+		Element child = doc.createElementNS(PAYLOAD_URI, "p:Value");
+		child.setTextContent(text);
+		payload.appendChild(child);
+		doc.appendChild(payload);
+
+		return payload;
+	}
+
+	@Test
+	public void testReadWrappedBody() throws Exception
+	{
+		String text = "caf\u00e9 <&> \u4e2d";
+		SOAPv11Handler handler = new SOAPv11Handler();
+		for (String encoding : new String[] { "UTF-16", "UTF-8", "ISO-8859-1" })
+		{
+			Element body = this.reader.readBody(handler.wrapDocument(createPayload(text), encoding));
+			assertEquals(SOAP_URI, body.getNamespaceURI());
+			assertEquals("Body", body.getLocalName());
+
+			Element payload = SOAPEnvelopeReader.firstElement(body.getFirstChild());
+			assertEquals(PAYLOAD_URI, payload.getNamespaceURI());
+			assertEquals("Request", payload.getLocalName());
+			assertEquals("_123", payload.getAttribute("ID"));
+			assertEquals(encoding, text, payload.getTextContent());
+		}
+	}
+
+	@Test
+	public void testReadBodySkipsHeader() throws Exception
+	{
+		String envelope = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<s:Envelope xmlns:s=\"" + SOAP_URI + "\" xmlns:p=\"" + PAYLOAD_URI + "\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n"
+			+ "  <s:Header><s:Body>in header</s:Body></s:Header>\n"
+			+ "  <s:Body>\n"
+			+ "    <!-- request follows -->\n"
+			+ "    <p:Request xsi:type=\"p:RequestType\"><p:Value>value</p:Value></p:Request>\n"
+			+ "  </s:Body>\n"
+			+ "</s:Envelope>";
+
+		Element body = this.reader.readBody(envelope.getBytes("UTF-8"));
+		assertEquals("s:Body", body.getTagName());
+		assertEquals("Envelope", body.getParentNode().getLocalName());
+
+		Element payload = SOAPEnvelopeReader.firstElement(body.getFirstChild());
+		assertEquals("Request", payload.getLocalName());
+		assertEquals("Prefixes used in QName values still resolve", PAYLOAD_URI, payload.lookupNamespaceURI("p"));
+		assertEquals("value", payload.getTextContent());
+		assertNull(SOAPEnvelopeReader.firstElement(payload.getNextSibling()));
+	}
+
+	@Test(expected = SOAPException.class)
+	public void testReadBodyWrongVersion() throws Exception
+	{
+		String envelope = "<s:Envelope xmlns:s=\"" + SOAPv12Handler.SOAP12_SCHEMA_URI + "\"><s:Body/></s:Envelope>";
+		this.reader.readBody(envelope.getBytes("UTF-8"));
+	}
+
+	@Test(expected = SOAPException.class)
+	public void testReadBodyNoBody() throws Exception
+	{
+		String envelope = "<s:Envelope xmlns:s=\"" + SOAP_URI + "\"><s:Header/></s:Envelope>";
+		this.reader.readBody(envelope.getBytes("UTF-8"));
+	}
+
+	@Test(expected = SOAPException.class)
+	public void testReadBodyRejectsDTD() throws Exception
+	{
+		String envelope = "<?xml version=\"1.0\"?><!DOCTYPE s:Envelope [<!ENTITY x \"expanded\">]>"
+			+ "<s:Envelope xmlns:s=\"" + SOAP_URI + "\"><s:Body><p:Request xmlns:p=\"" + PAYLOAD_URI + "\">&x;</p:Request></s:Body></s:Envelope>";
+		this.reader.readBody(envelope.getBytes("UTF-8"));
+	}
+
+	@Test
+	public void testUnwrapIndentedEnvelope() throws Exception
+	{
+		String envelope = "<s:Envelope xmlns:s=\"" + SOAP_URI + "\">\n"
+			+ "  <s:Body>\n"
+			+ "    <p:Request xmlns:p=\"" + PAYLOAD_URI + "\"/>\n"
+			+ "  </s:Body>\n"
+			+ "</s:Envelope>";
+
+		Element payload = new SOAPv11Handler().unwrapDocument(envelope.getBytes("UTF-8"));
+		assertEquals("Request", payload.getLocalName());
+	}
+
+	@Test
+	public void testUnwrapIndentedFault() throws Exception
+	{
+		String envelope = "<s:Envelope xmlns:s=\"" + SOAP_URI + "\">\n"
+			+ "  <s:Body>\n"
+			+ "    <s:Fault>\n"
+			+ "      <faultcode>s:Server</faultcode>\n"
+			+ "      <faultstring>failed</faultstring>\n"
+			+ "    </s:Fault>\n"
+			+ "  </s:Body>\n"
+			+ "</s:Envelope>";
+
+		try
+		{
+			new SOAPv11Handler().unwrapDocument(envelope.getBytes("UTF-8"));
+			fail("Fault was not reported");
+		}
+		catch (SOAPException e)
+		{
+			assertTrue(e.isFault());
+			assertEquals("Server", e.getFaultCode());
+			assertEquals("failed", e.getFaultMessage());
+		}
+	}
+}
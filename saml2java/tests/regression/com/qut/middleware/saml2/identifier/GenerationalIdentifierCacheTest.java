@@ -0,0 +1,129 @@
+/* 
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not 
+ * use this file except in compliance with the License. You may obtain a copy of 
+ * the License at 
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations under 
+ * the License.
+ * 
+ * Creation Date: 15/10/2008
+ * 
+ * Purpose: Tests the generational identifier cache.
+ */
+package com.qut.middleware.saml2.identifier;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Field;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qut.middleware.saml2.identifier.exception.IdentifierCollisionException;
+import com.qut.middleware.saml2.identifier.impl.GenerationalIdentifierCacheImpl;
+
+public class GenerationalIdentifierCacheTest
+{
+	private IdentifierCache identifierCache;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		this.identifierCache = new GenerationalIdentifierCacheImpl(1000);
+	}
+
+	@Test
+	public final void testRegisterIdentifier() throws Exception
+	{
+		this.identifierCache.registerIdentifier("_8d7f9a8d7f98a7df");
+		this.identifierCache.registerIdentifier("_9a8sd7f98a7sdf9a");
+
+		assertTrue(this.identifierCache.containsIdentifier("_8d7f9a8d7f98a7df"));
+		assertFalse(this.identifierCache.containsIdentifier("_notregistered"));
+
+		boolean caught = false;
+		try
+		{
+			this.identifierCache.registerIdentifier("_8d7f9a8d7f98a7df");
+		}
+		catch (IdentifierCollisionException e)
+		{
+			caught = true;
+		}
+
+		assertTrue("Collision did not generate error condition", caught);
+	}
+
+	@Test
+	public final void testCollisionAcrossGenerations() throws Exception
+	{
+		// A narrow bucket so the generation can be rotated without waiting
+		GenerationalIdentifierCacheImpl cache = new GenerationalIdentifierCacheImpl(10);
+		cache.registerIdentifier("_8d7f9a8d7f98a7df");
+		assertEquals(1, generationCount(cache));
+
+		// Rotates the current generation without expiring it
+		Thread.sleep(20);
+		assertEquals(0, cache.cleanCache(10000));
+		assertEquals("Generation was not rotated", 2, generationCount(cache));
+
+		cache.registerIdentifier("_9a8sd7f98a7sdf9a");
+
+		boolean caught = false;
+		try
+		{
+			cache.registerIdentifier("_8d7f9a8d7f98a7df");
+		}
+		catch (IdentifierCollisionException e)
+		{
+			caught = true;
+		}
+
+		assertTrue("Collision with an older generation did not generate error condition", caught);
+		assertTrue(cache.containsIdentifier("_8d7f9a8d7f98a7df"));
+
+		// Expiring only the older generation shows the identifier was held there, and not left in the current one
+		Thread.sleep(30);
+		assertEquals(1, cache.cleanCache(20));
+		assertFalse(cache.containsIdentifier("_8d7f9a8d7f98a7df"));
+		assertTrue(cache.containsIdentifier("_9a8sd7f98a7sdf9a"));
+	}
+
+	@Test
+	public final void testCleanCache() throws Exception
+	{
+		this.identifierCache.registerIdentifier("_1");
+		this.identifierCache.registerIdentifier("_2");
+
+		Thread.sleep(100);
+
+		// First call closes the generation holding the first two, the second drops it once it is older than the age
+		this.identifierCache.cleanCache(50);
+
+		this.identifierCache.registerIdentifier("_3");
+
+		Thread.sleep(100);
+
+		assertEquals("Clean cache removed unexpected values", 2, this.identifierCache.cleanCache(50));
+
+		assertFalse(this.identifierCache.containsIdentifier("_1"));
+		assertTrue(this.identifierCache.containsIdentifier("_3"));
+
+		// Expired identifiers may be registered again
+		this.identifierCache.registerIdentifier("_1");
+	}
+
+	private int generationCount(GenerationalIdentifierCacheImpl cache) throws Exception
+	{
+		Field generations = GenerationalIdentifierCacheImpl.class.getDeclaredField("generations");
+		generations.setAccessible(true);
+
+		return ((Object[]) generations.get(cache)).length;
+	}
+}
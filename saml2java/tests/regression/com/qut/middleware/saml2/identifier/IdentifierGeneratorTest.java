@@ -28,6 +28,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -77,6 +78,49 @@ public class IdentifierGeneratorTest
 		assertEquals("Identifiers should be unique", this.ID_NUM, idSet.size()); //$NON-NLS-1$
 	}
 
+	/* Tests striped generation, with and without pre-generated blocks, across threads */
+	@Test
+	public void testStripedUnique() throws Exception
+	{
+		for (int blockSize : new int[] { 0, 64, 1024 })
+		{
+			final IdentifierGenerator striped = new IdentifierGeneratorImpl(new IdentifierCacheImpl(), 4, blockSize);
+			final Set<String> idSet = Collections.synchronizedSet(new HashSet<String>());
+
+			Thread[] threads = new Thread[8];
+			for (int i = 0; i < threads.length; i++)
+			{
+				threads[i] = new Thread()
+				{
+					@Override
+					public void run()
+					{
+						for (int j = 0; j < ID_NUM; j++)
+							idSet.add(striped.generateSAMLID());
+					}
+				};
+				threads[i].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+
+			assertEquals("Identifiers should be unique", threads.length * this.ID_NUM, idSet.size());
+			for (String id : idSet)
+				assertTrue("SAMLID should be of matching format", id.matches("_[0-9a-f]{40}-[0-9a-f]{32}"));
+
+			assertTrue(striped.generateSAMLSessionID().matches("[0-9a-f]{20}"));
+			assertTrue(striped.generateSessionID().matches("[0-9a-f]{40}-[0-9a-f]{32}-[0-9]+"));
+			assertTrue(striped.generateXMLKeyName().matches("[0-9a-f]{16}"));
+		}
+	}
+
+	/* Tests to ensure invalid striping params are correctly caught */
+	@Test(expected = IllegalArgumentException.class)
+	public void testStripedInvalid()
+	{
+		this.ident = new IdentifierGeneratorImpl(this.cache, -1, 0);
+	}
+
 	@Test
 	public void testGenerateSAMLAuthnID() throws IdentifierCollisionException
 	{
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Tests XMLCalendarFactory creates the same calendars as a DatatypeFactory given a UTC GregorianCalendar.
+ */
+package com.qut.middleware.saml2.time;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.SimpleTimeZone;
+
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.junit.Test;
+
+import com.qut.middleware.saml2.time.impl.FixedClock;
+
+@SuppressWarnings("nls")
+public class XMLCalendarFactoryTest
+{
+	private static XMLGregorianCalendar expected(long millis) throws Exception
+	{
+		GregorianCalendar calendar = new GregorianCalendar(new SimpleTimeZone(0, "UTC"));
+		calendar.setTimeInMillis(millis);
+		return DatatypeFactory.newInstance().newXMLGregorianCalendar(calendar);
+	}
+
+	private static void assertCalendar(long millis) throws Exception
+	{
+		XMLGregorianCalendar expected = expected(millis);
+		XMLGregorianCalendar actual = XMLCalendarFactory.newUTCCalendar(millis);
+
+		assertEquals(expected, actual);
+		assertEquals(expected.toXMLFormat(), actual.toXMLFormat());
+		if (millis >= 0)
+			assertEquals(millis, actual.toGregorianCalendar().getTimeInMillis());
+	}
+
+	@Test
+	public void testBoundaries() throws Exception
+	{
+		long[] instants = {
+			0L, 999L, 86399999L, 86400000L,
+			951782400000L, // 2000-02-29
+			951868799999L, // 2000-02-29T23:59:59.999
+			4107542400000L, // 2100-03-01
+			1230767999999L, // 2008-12-31T23:59:59.999
+			-1L, -86400001L, -12219292800001L // before 1970, and before the Gregorian change over
+		};
+
+		for (long millis : instants)
+			assertCalendar(millis);
+	}
+
+	@Test
+	public void testRandomInstants() throws Exception
+	{
+		Random random = new Random(18102008);
+		for (int i = 0; i < 10000; i++)
+			assertCalendar((random.nextLong() >>> 1) % 32503680000000L); // up to the year 3000
+	}
+
+	@Test
+	public void testFactoryShared()
+	{
+		assertNotNull(XMLCalendarFactory.getDatatypeFactory());
+		assertSame(XMLCalendarFactory.getDatatypeFactory(), XMLCalendarFactory.getDatatypeFactory());
+	}
+
+	@Test
+	public void testFixedClock()
+	{
+		FixedClock clock = new FixedClock(1000);
+		assertEquals(1000, clock.currentTimeMillis());
+		clock.advance(500);
+		assertEquals(1500, clock.currentTimeMillis());
+		clock.setTime(0);
+		assertEquals(0, clock.currentTimeMillis());
+	}
+}
@@ -30,7 +30,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,7 +45,6 @@ import com.qut.middleware.crypto.IssuerSerialPair;
 import com.qut.middleware.crypto.impl.IssuerSerialPairImpl;
 import com.qut.middleware.metadata.bean.EntityData;
 import com.qut.middleware.metadata.bean.KeyEntry;
-import com.qut.middleware.metadata.bean.impl.EntityDataImpl;
 import com.qut.middleware.metadata.bean.impl.NullEntityRole;
 import com.qut.middleware.metadata.cache.MetadataCache;
 import com.qut.middleware.metadata.processor.DynamicMetadataUpdater;
@@ -48,93 +53,224 @@ import com.qut.middleware.metadata.source.DynamicMetadataSource;
 import com.qut.middleware.metadata.source.MetadataSource;
 import com.qut.middleware.saml2.exception.KeyResolutionException;
 
+/**
+ * Metadata cache whose readers never lock. The cached entities and keys are held in an immutable snapshot which is
+ * replaced, under a lock held only by writers, whenever the cache is updated.
+ * 
+ * When an entity is not cached, only one caller per entity ID performs the dynamic update, and concurrent callers for
+ * the same entity wait for and share its result. Entities which could not be resolved are remembered in a bounded
+ * negative cache for a limited time, so they are not fetched again on every request.
+ */
 public class MetadataCacheImpl implements MetadataCache
 {
-	private static String nullEntitySourceLocation = "local:metadataCache:cachedNull";
 	/* Default expiry interval - 24 hours (in milliseconds) */
 	private static long defaultExpiryInterval = (24L * 60L * 60L * 1000L);
+	/** Default time an unresolvable entity is remembered - 5 minutes (in milliseconds) */
+	public static final long DEFAULT_NEGATIVE_EXPIRY_INTERVAL = 5L * 60L * 1000L;
+	/** Default number of unresolvable entities remembered */
+	public static final int DEFAULT_NEGATIVE_CACHE_SIZE = 10000;
+	
+	private volatile CacheSnapshot snapshot;
+	private ReentrantLock updateLock;
+	
+	/* Entity ID to the time, in milliseconds, its negative entry expires */
+	private ConcurrentMap<String,Long> negativeCache;
+	private long negativeExpiryInterval;
+	private int maxNegativeEntries;
 	
-	private ReentrantReadWriteLock lock;
-	private Map<String,EntityData> entityMap;
-	private Map<String,KeyEntry> keyAliasMap;
-	private Map<IssuerSerialPair,KeyEntry> keyMap;
+	/* Dynamic updates in progress, by entity ID */
+	private ConcurrentMap<String,FutureTask<EntityData>> pendingUpdates;
 	
 	private DynamicMetadataUpdater dynamicMetadataUpdater;
 	
+	private AtomicLong hits;
+	private AtomicLong negativeHits;
+	private AtomicLong misses;
+	private AtomicLong coalescedMisses;
+	private AtomicLong fetchNanos;
+	
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 	private long expiryInterval;
 	
 	public MetadataCacheImpl(DynamicMetadataUpdater dynamicMetadataUpdater)
 	{
-		this.lock = new ReentrantReadWriteLock();
-		this.entityMap = new HashMap<String, EntityData>();
-		this.keyAliasMap = new HashMap<String, KeyEntry>();
-		this.keyMap = new HashMap<IssuerSerialPair, KeyEntry>();
+		this(dynamicMetadataUpdater, DEFAULT_NEGATIVE_EXPIRY_INTERVAL, DEFAULT_NEGATIVE_CACHE_SIZE);
+	}
+	
+	/**
+	 * @param dynamicMetadataUpdater Resolves entities which are not cached.
+	 * @param negativeExpiryInterval Time in milliseconds an entity which could not be resolved is remembered. 0 disables the negative cache.
+	 * @param maxNegativeEntries Most entities which could not be resolved remembered at once.
+	 */
+	public MetadataCacheImpl(DynamicMetadataUpdater dynamicMetadataUpdater, long negativeExpiryInterval, int maxNegativeEntries)
+	{
+		if (negativeExpiryInterval < 0)
+		{
+			throw new IllegalArgumentException("Negative cache expiry interval must not be negative.");
+		}
+		if (maxNegativeEntries < 0)
+		{
+			throw new IllegalArgumentException("Negative cache size must not be negative.");
+		}
+		
+		this.snapshot = new CacheSnapshot(new HashMap<String, EntityData>(), new HashMap<String, KeyEntry>(), new HashMap<IssuerSerialPair, KeyEntry>());
+		this.updateLock = new ReentrantLock();
+		this.negativeCache = new ConcurrentHashMap<String, Long>();
+		this.negativeExpiryInterval = negativeExpiryInterval;
+		this.maxNegativeEntries = maxNegativeEntries;
+		this.pendingUpdates = new ConcurrentHashMap<String, FutureTask<EntityData>>();
 		this.dynamicMetadataUpdater = dynamicMetadataUpdater;
 		this.expiryInterval = defaultExpiryInterval;
+		
+		this.hits = new AtomicLong();
+		this.negativeHits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.coalescedMisses = new AtomicLong();
+		this.fetchNanos = new AtomicLong();
 	}
 	
 	public EntityData getEntityData(String entityID, MetadataProcessor processor)
 	{
-		/* 
-		 * Care must be taken not to call to another class while holding the read lock.
-		 * If a thread that holds a read lock attempts to get the write lock at the same
-		 * time, it will never succeed.
-		 */
-		this.lock.readLock().lock();
+		EntityData entityData = this.snapshot.entityMap.get(entityID);
+		if (entityData != null)
+		{
+			this.hits.incrementAndGet();
+			
+			// Check if the entity has been marked as a cached null.
+			if (entityData.getRoleData(NullEntityRole.class) != null)
+			{
+				return null;
+			}
+			
+			return entityData;
+		}
 		
+		Long negativeExpiry = this.negativeCache.get(entityID);
+		if (negativeExpiry != null)
+		{
+			if (System.currentTimeMillis() < negativeExpiry.longValue())
+			{
+				this.negativeHits.incrementAndGet();
+				return null;
+			}
+			
+			this.negativeCache.remove(entityID, negativeExpiry);
+		}
+		
+		this.misses.incrementAndGet();
+		return fetchEntityData(entityID, processor);
+	}
+	
+	/* Performs the dynamic update for an entity, or waits for the one already in progress. */
+	private EntityData fetchEntityData(final String entityID, final MetadataProcessor processor)
+	{
+		FutureTask<EntityData> task = new FutureTask<EntityData>(new Callable<EntityData>()
+		{
+			public EntityData call()
+			{
+				return resolveDynamically(entityID, processor);
+			}
+		});
+		
+		FutureTask<EntityData> pending = this.pendingUpdates.putIfAbsent(entityID, task);
+		if (pending == null)
+		{
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				this.pendingUpdates.remove(entityID, task);
+			}
+		}
+		else
+		{
+			this.coalescedMisses.incrementAndGet();
+			this.logger.debug("Waiting for dynamic update already in progress for entity {}", entityID);
+			task = pending;
+		}
+		
+		try
+		{
+			return task.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			this.logger.warn("Interrupted waiting for dynamic update of entity {}", entityID);
+			return null;
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			
+			throw new IllegalStateException("Dynamic update of entity " + entityID + " failed", cause);
+		}
+	}
+	
+	private EntityData resolveDynamically(String entityID, MetadataProcessor processor)
+	{
+		long startTime = System.nanoTime();
 		EntityData entityData;
 		try
 		{
-			entityData = this.entityMap.get(entityID);
+			entityData = this.dynamicMetadataUpdater.dynamicUpdate(processor, entityID);
 		}
 		finally
 		{
-			this.lock.readLock().unlock();
+			this.fetchNanos.addAndGet(System.nanoTime() - startTime);
 		}
 		
 		if (entityData == null)
 		{
-			entityData = this.dynamicMetadataUpdater.dynamicUpdate(processor, entityID);
-			if (entityData == null)
+			// It may have been added by a full update in the meantime.
+			EntityData updatedData = this.snapshot.entityMap.get(entityID);
+			if (updatedData != null && updatedData.getRoleData(NullEntityRole.class) == null)
 			{
-				EntityData nullData = new EntityDataImpl(MetadataCacheImpl.nullEntitySourceLocation, Integer.MIN_VALUE);
-				nullData.addRoleData(new NullEntityRole());
-				
-				this.lock.writeLock().lock();
-				try
-				{
-					EntityData updatedData = this.entityMap.get(entityID);
-					if (updatedData == null)
-					{
-						this.entityMap.put(entityID, nullData);
-					}
-					else
-					{
-						// It has been updated in the meantime. Return it.
-						if (updatedData.getRoleData(NullEntityRole.class) != null)
-							return updatedData;
-						
-						// If it's a cached null, return null.
-						return null;
-					}
-				}
-				finally
-				{
-					this.lock.writeLock().unlock();
-				}
+				return updatedData;
 			}
+			
+			cacheNegative(entityID);
 		}
-		else
+		
+		return entityData;
+	}
+	
+	private void cacheNegative(String entityID)
+	{
+		if (this.negativeExpiryInterval == 0 || this.maxNegativeEntries == 0)
 		{
-			// Check if the entity has been marked as a cached null.
-			if (entityData.getRoleData(NullEntityRole.class) != null)
+			return;
+		}
+		
+		long now = System.currentTimeMillis();
+		if (this.negativeCache.size() >= this.maxNegativeEntries)
+		{
+			// Drop expired entries first, then any entry, to make room.
+			Iterator<Long> iterator = this.negativeCache.values().iterator();
+			while (iterator.hasNext())
 			{
-				entityData = null;
+				if (now >= iterator.next().longValue())
+				{
+					iterator.remove();
+				}
+			}
+			
+			iterator = this.negativeCache.values().iterator();
+			while (this.negativeCache.size() >= this.maxNegativeEntries && iterator.hasNext())
+			{
+				iterator.next();
+				iterator.remove();
 			}
 		}
 		
-		return entityData;
+		this.logger.debug("Entity {} could not be resolved, caching null for {} ms", entityID, this.negativeExpiryInterval);
+		this.negativeCache.put(entityID, Long.valueOf(now + this.negativeExpiryInterval));
 	}
 
 	public void update(MetadataSource source, List<EntityData> entities, List<KeyEntry> newKeyMap)
@@ -165,13 +301,19 @@ public class MetadataCacheImpl implements MetadataCache
 		
 		this.logger.debug("Locking for metadata cache update from source {}", location);
 		
-		this.lock.writeLock().lock();
+		this.updateLock.lock();
 		try
 		{
+			// Readers keep using the current snapshot until the updated copy replaces it.
+			CacheSnapshot current = this.snapshot;
+			Map<String,EntityData> entityMap = new HashMap<String, EntityData>(current.entityMap);
+			Map<String,KeyEntry> keyAliasMap = new HashMap<String, KeyEntry>(current.keyAliasMap);
+			Map<IssuerSerialPair,KeyEntry> keyMap = new HashMap<IssuerSerialPair, KeyEntry>(current.keyMap);
+			
 			this.logger.debug("Got lock. Updating metadata cache with {} entries from source {}", size, location);
 			
 			// Remove previous entries from the metadata source being updated.
-			Set<Map.Entry<String,EntityData>> entrySet = this.entityMap.entrySet();
+			Set<Map.Entry<String,EntityData>> entrySet = entityMap.entrySet();
 			Iterator<Map.Entry<String,EntityData>> iterator = entrySet.iterator();
 			while (iterator.hasNext())
 			{
@@ -186,10 +328,10 @@ public class MetadataCacheImpl implements MetadataCache
 			for (EntityData entity : entities)
 			{
 				this.logger.debug("Adding entity {} from source {} to metadata cache.", entity.getEntityID(), source.getLocation());
-				EntityData oldEntity = this.entityMap.get(entity.getEntityID());
+				EntityData oldEntity = entityMap.get(entity.getEntityID());
 				if (oldEntity == null || oldEntity.getPriority() < entity.getPriority())
 				{
-					this.entityMap.put(entity.getEntityID(), entity);
+					entityMap.put(entity.getEntityID(), entity);
 				}
 				else
 				{
@@ -200,7 +342,7 @@ public class MetadataCacheImpl implements MetadataCache
 			this.logger.debug("Updating key cache with {} key entries from source {}", keySize, location);
 			
 			// Remove previous key entries from the metadata source being updated.
-			Set<Map.Entry<String,KeyEntry>> keyAliasEntrySet = this.keyAliasMap.entrySet();
+			Set<Map.Entry<String,KeyEntry>> keyAliasEntrySet = keyAliasMap.entrySet();
 			Iterator<Map.Entry<String,KeyEntry>> keyAliasIterator = keyAliasEntrySet.iterator();
 			while (keyAliasIterator.hasNext())
 			{
@@ -211,7 +353,7 @@ public class MetadataCacheImpl implements MetadataCache
 				}
 			}
 			
-			Set<Map.Entry<IssuerSerialPair, KeyEntry>> keyEntrySet = this.keyMap.entrySet();
+			Set<Map.Entry<IssuerSerialPair, KeyEntry>> keyEntrySet = keyMap.entrySet();
 			Iterator<Entry<IssuerSerialPair, KeyEntry>> keyIterator = keyEntrySet.iterator();
 			while (keyIterator.hasNext())
 			{
@@ -236,13 +378,13 @@ public class MetadataCacheImpl implements MetadataCache
 				}
 				else
 				{
-					KeyEntry existing = this.keyAliasMap.get(keyAlias);
+					KeyEntry existing = keyAliasMap.get(keyAlias);
 					// Additional condition - if the existing element is of the same priority, assume it's the same
 					// source and overwrite it anyway.
 					if (existing == null || existing.getPriority() < keyEntry.getPriority())
 					{
 						this.logger.debug("Found key with name '{}' from source {} - Added to key alias map.", keyAlias, source.getLocation());
-						this.keyAliasMap.put(keyAlias, keyEntry);
+						keyAliasMap.put(keyAlias, keyEntry);
 					}
 					else
 					{
@@ -258,14 +400,14 @@ public class MetadataCacheImpl implements MetadataCache
 				else
 				{
 					IssuerSerialPair issuerSerialPair = new IssuerSerialPairImpl(issuerDN, serialNumber);
-					KeyEntry existing = this.keyMap.get(issuerSerialPair);
+					KeyEntry existing = keyMap.get(issuerSerialPair);
 					// Additional condition - if the existing element is of the same priority, assume it's the same
 					// source and overwrite it anyway.
 					if (existing == null || existing.getPriority() < keyEntry.getPriority())
 					{
 						this.logger.debug("Found key with issuer '{}' serial '{}' from source {} - Added to key alias map.", 
 								new Object[]{issuerDN, String.valueOf(serialNumber), source.getLocation()});
-						this.keyMap.put(issuerSerialPair, keyEntry);
+						keyMap.put(issuerSerialPair, keyEntry);
 					}
 					else
 					{
@@ -274,10 +416,12 @@ public class MetadataCacheImpl implements MetadataCache
 					}
 				}
 			}
+			
+			this.snapshot = new CacheSnapshot(entityMap, keyAliasMap, keyMap);
 		}
 		finally
 		{
-			this.lock.writeLock().unlock();
+			this.updateLock.unlock();
 		}
 
 		long endTime = System.currentTimeMillis();
@@ -324,20 +468,26 @@ public class MetadataCacheImpl implements MetadataCache
 		
 		this.logger.debug("Locking for metadata cache update from dynamic source");
 		
-		this.lock.writeLock().lock();
+		this.updateLock.lock();
 		try
 		{
+			// Readers keep using the current snapshot until the updated copy replaces it.
+			CacheSnapshot current = this.snapshot;
+			Map<String,EntityData> entityMap = new HashMap<String, EntityData>(current.entityMap);
+			Map<String,KeyEntry> keyAliasMap = new HashMap<String, KeyEntry>(current.keyAliasMap);
+			Map<IssuerSerialPair,KeyEntry> keyMap = new HashMap<IssuerSerialPair, KeyEntry>(current.keyMap);
+			
 			this.logger.debug("Got lock. Updating metadata cache with {} dynamic entries", size);
 			
 			for (EntityData entity : entities)
 			{
-				EntityData oldEntity = this.entityMap.get(entity.getEntityID());
+				EntityData oldEntity = entityMap.get(entity.getEntityID());
 				// Additional condition - if the existing element is of the same priority, assume it's the same
 				// source and overwrite it anyway.
 				if (oldEntity == null || oldEntity.getPriority() <= entity.getPriority())
 				{
 					entity.setExpiryTimeMillis(expiryTime);
-					this.entityMap.put(entity.getEntityID(), entity);
+					entityMap.put(entity.getEntityID(), entity);
 				}
 			}
 			
@@ -354,13 +504,13 @@ public class MetadataCacheImpl implements MetadataCache
 				}
 				else
 				{
-					KeyEntry existing = this.keyAliasMap.get(keyAlias);
+					KeyEntry existing = keyAliasMap.get(keyAlias);
 					// Additional condition - if the existing element is of the same priority, assume it's the same
 					// source and overwrite it anyway.
 					if (existing == null || existing.getPriority() <= keyEntry.getPriority())
 					{
 						this.logger.debug("Found key with name '{}' from dynamic source - Added to key alias map.", keyAlias);
-						this.keyAliasMap.put(keyAlias, keyEntry);
+						keyAliasMap.put(keyAlias, keyEntry);
 					}
 					else
 					{
@@ -376,13 +526,13 @@ public class MetadataCacheImpl implements MetadataCache
 				else
 				{
 					IssuerSerialPair issuerSerialPair = new IssuerSerialPairImpl(issuerDN, serialNumber);
-					KeyEntry existing = this.keyMap.get(issuerSerialPair);
+					KeyEntry existing = keyMap.get(issuerSerialPair);
 					// Additional condition - if the existing element is of the same priority, assume it's the same
 					// source and overwrite it anyway.
 					if (existing == null || existing.getPriority() <= keyEntry.getPriority())
 					{
 						this.logger.debug("Found key with issuer '{}' serial '{}' from dynamic source - Added to key alias map.", issuerDN, String.valueOf(serialNumber));
-						this.keyMap.put(issuerSerialPair, keyEntry);
+						keyMap.put(issuerSerialPair, keyEntry);
 					}
 					else
 					{
@@ -390,10 +540,12 @@ public class MetadataCacheImpl implements MetadataCache
 					}
 				}
 			}
+			
+			this.snapshot = new CacheSnapshot(entityMap, keyAliasMap, keyMap);
 		}
 		finally
 		{
-			this.lock.writeLock().unlock();
+			this.updateLock.unlock();
 		}
 
 		long endTime = System.currentTimeMillis();
@@ -408,7 +560,7 @@ public class MetadataCacheImpl implements MetadataCache
 
 	public PublicKey resolveKey(String keyName) throws KeyResolutionException
 	{
-		KeyEntry entry = this.keyAliasMap.get(keyName);
+		KeyEntry entry = this.snapshot.keyAliasMap.get(keyName);
 		if (entry != null)
 		{
 			this.logger.debug("Resolving key by name '{}' yielded key from source {}", keyName, entry.getMetadataSourceLocation());
@@ -422,7 +574,7 @@ public class MetadataCacheImpl implements MetadataCache
 	public PublicKey resolveKey(String issuerDN, BigInteger serialNumber) throws KeyResolutionException
 	{
 		IssuerSerialPair issuerSerialPair = new IssuerSerialPairImpl(issuerDN, serialNumber);
-		KeyEntry entry = this.keyMap.get(issuerSerialPair);
+		KeyEntry entry = this.snapshot.keyMap.get(issuerSerialPair);
 		
 		if (entry != null)
 		{
@@ -436,16 +588,77 @@ public class MetadataCacheImpl implements MetadataCache
 	
 	public List<String> getEntityList()
 	{
-		this.lock.readLock().lock();
-		try
-		{
-			List<String> entityList = new ArrayList<String>();
-			entityList.addAll(this.entityMap.keySet());
-			return entityList;
-		}
-		finally
+		return new ArrayList<String>(this.snapshot.entityMap.keySet());
+	}
+	
+	/**
+	 * @return The number of lookups answered from cached entities.
+	 */
+	public long getHits()
+	{
+		return this.hits.get();
+	}
+	
+	/**
+	 * @return The number of lookups answered from the negative cache, for entities which could not be resolved.
+	 */
+	public long getNegativeHits()
+	{
+		return this.negativeHits.get();
+	}
+	
+	/**
+	 * @return The number of lookups which required a dynamic update, including those which waited for one already in progress.
+	 */
+	public long getMisses()
+	{
+		return this.misses.get();
+	}
+	
+	/**
+	 * @return The number of lookups which waited for a dynamic update already in progress instead of performing their own.
+	 */
+	public long getCoalescedMisses()
+	{
+		return this.coalescedMisses.get();
+	}
+	
+	/**
+	 * @return The number of dynamic updates performed.
+	 */
+	public long getFetches()
+	{
+		return this.misses.get() - this.coalescedMisses.get();
+	}
+	
+	/**
+	 * @return The total time in milliseconds spent in dynamic updates.
+	 */
+	public long getFetchTimeMillis()
+	{
+		return this.fetchNanos.get() / 1000000L;
+	}
+	
+	/**
+	 * @return The number of entities currently remembered as unresolvable.
+	 */
+	public int getNegativeCacheSize()
+	{
+		return this.negativeCache.size();
+	}
+	
+	/* The cached entities and keys. Never modified once published. */
+	private static final class CacheSnapshot
+	{
+		protected final Map<String,EntityData> entityMap;
+		protected final Map<String,KeyEntry> keyAliasMap;
+		protected final Map<IssuerSerialPair,KeyEntry> keyMap;
+		
+		protected CacheSnapshot(Map<String,EntityData> entityMap, Map<String,KeyEntry> keyAliasMap, Map<IssuerSerialPair,KeyEntry> keyMap)
 		{
-			this.lock.readLock().unlock();
+			this.entityMap = entityMap;
+			this.keyAliasMap = keyAliasMap;
+			this.keyMap = keyMap;
 		}
 	}
 }
@@ -24,7 +24,6 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -145,53 +144,87 @@ public abstract class MetadataSourceBase implements MetadataSource
 	 * @throws IOException
 	 */
 	protected void readMetadata(InputStream input, MetadataProcessor processor) throws IOException
+	{
+		this.processDocument(this.readDocument(input), processor);
+	}
+	
+	/**
+	 * Reads the provided input stream to the end and closes it.
+	 * @param input Input stream to read
+	 * @return The bytes read
+	 * @throws IOException
+	 */
+	protected byte[] readDocument(InputStream input) throws IOException
 	{
 		byte[] buf = new byte[BUFFER_LENGTH];
 		long startTime = System.currentTimeMillis();
 		
-		// Pipe everything through a digest stream so we get a hash value at the end
-		DigestInputStream digestInput = new DigestInputStream(input, this.getMessageDigestInstance());
-		BufferedInputStream bufferedInput = new BufferedInputStream(digestInput);
-		
+		BufferedInputStream bufferedInput = new BufferedInputStream(input);
 		ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
 		
 		this.logger.debug("Metadata source {} - going to read input stream", this.getLocation());
-		int bytes = 0;
-		while ((bytes = bufferedInput.read(buf)) != -1)
+		try
 		{
-			byteOutput.write(buf, 0, bytes);
+			int bytes = 0;
+			while ((bytes = bufferedInput.read(buf)) != -1)
+			{
+				byteOutput.write(buf, 0, bytes);
+			}
+		}
+		finally
+		{
+			bufferedInput.close();
+			byteOutput.close();
 		}
-		
-		bufferedInput.close();
-		digestInput.close();
-		byteOutput.close();
 		
 		long endTime = System.currentTimeMillis();
 		
 		byte[] document = byteOutput.toByteArray();
-		byte[] hash = digestInput.getMessageDigest().digest();
 		
 		this.logger.debug(
 			"Metadata source {} - read {} bytes of metadata in {} ms",
 			new Object[]{this.getLocation(), document.length, (endTime - startTime)}
 		);
 		
+		return document;
+	}
+	
+	/**
+	 * Calculates and updates the internal hash of the document. If the hash 
+	 * has changed, the document is passed to the processMetadata method, along 
+	 * with the provided MetadataProcessor object.
+	 * @param document The metadata document
+	 * @param processor
+	 * @return true if the document had changed and was processed
+	 */
+	protected boolean processDocument(byte[] document, MetadataProcessor processor)
+	{
+		byte[] hash = this.getMessageDigestInstance().digest(document);
+		
 		// If the document has changed, the hash will be updated, and then we go to process the new document
 		if (this.updateDigest(hash))
 		{
-			startTime = System.currentTimeMillis();
+			long startTime = System.currentTimeMillis();
 			this.logger.debug("Metadata source {} - updated. Going to process.", this.getLocation());
 			this.processMetadata(document, processor);
-			endTime = System.currentTimeMillis();
+			long endTime = System.currentTimeMillis();
 			this.logger.info(
 					"Metadata source {} - processed document and updated cache in {} ms",
 					this.getLocation(), (endTime - startTime)
 			);
+			return true;
 		}
-		else
-		{
-			this.logger.info("Metadata source {} - has not been updated.", this.getLocation());
-		}
+		
+		this.logger.info("Metadata source {} - has not been updated.", this.getLocation());
+		return false;
+	}
+	
+	/**
+	 * @return true if a document has been read from this source since it was created
+	 */
+	protected boolean hasDocument()
+	{
+		return this.digest.length > 0;
 	}
 	
 	/**
@@ -20,24 +20,64 @@
 
 package com.qut.middleware.metadata.source.impl;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.text.MessageFormat;
+import java.util.Properties;
 
 import com.qut.middleware.metadata.exception.MetadataSourceException;
 import com.qut.middleware.metadata.processor.MetadataProcessor;
 
+/**
+ * Obtains the metadata document from a URL.
+ * 
+ * For HTTP URLs the request is conditional on the ETag and Last-Modified 
+ * values of the document last read, so an unchanged document is neither 
+ * downloaded nor digested again.
+ * 
+ * If a local copy is configured, each new document is also written to that 
+ * file along with its ETag and Last-Modified values. On the first update the 
+ * local copy is processed before the URL is contacted, so the cache is 
+ * populated without waiting on the network, and remains usable if the URL 
+ * cannot be reached.
+ */
 public abstract class URLMetadataSource extends MetadataSourceBase
 {
+	/* Suffix of the file holding the validators of the local copy */
+	private static final String VALIDATORS_SUFFIX = ".validators";
+	private static final String ETAG = "ETag";
+	private static final String LAST_MODIFIED = "Last-Modified";
+	
 	private URL url;
+	private File localCopy;
+	private boolean localCopyChecked;
+	
+	private String entityTag;
+	private long lastModified;
 
 	public URLMetadataSource(URL url)
 	{
 		this.url = url;
 	}
 
+	/**
+	 * @param url The URL of the metadata document
+	 * @param localCopy File to keep a copy of the metadata document in, or null
+	 */
+	public URLMetadataSource(URL url, File localCopy)
+	{
+		this.url = url;
+		this.localCopy = localCopy;
+	}
+
 	public String getLocation()
 	{
 		return this.url.toExternalForm();
@@ -45,12 +85,47 @@ public abstract class URLMetadataSource extends MetadataSourceBase
 
 	public void updateMetadata(MetadataProcessor processor) throws MetadataSourceException
 	{
+		boolean warmStart = false;
+		if (this.localCopy != null && !this.localCopyChecked)
+		{
+			this.localCopyChecked = true;
+			warmStart = this.readLocalCopy(processor);
+		}
+		
 		try
 		{
 			this.logger.debug("Metadata source {} - going to open URL as input stream", this.getLocation());
 			URLConnection connection = this.url.openConnection();
+			
+			if (connection instanceof HttpURLConnection && this.hasDocument())
+			{
+				if (this.entityTag != null)
+				{
+					connection.setRequestProperty("If-None-Match", this.entityTag);
+				}
+				if (this.lastModified > 0)
+				{
+					connection.setIfModifiedSince(this.lastModified);
+				}
+				
+				if (((HttpURLConnection)connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+				{
+					this.logger.info("Metadata source {} - has not been modified.", this.getLocation());
+					return;
+				}
+			}
+			
 			InputStream input = connection.getInputStream();
-			this.readMetadata(input, processor);
+			byte[] document = this.readDocument(input);
+			boolean updated = this.processDocument(document, processor);
+			
+			this.entityTag = connection.getHeaderField(ETAG);
+			this.lastModified = connection.getLastModified();
+			
+			if (updated && this.localCopy != null)
+			{
+				this.writeLocalCopy(document);
+			}
 			this.logger.debug("Metadata source {} - finished reading metadata.", this.getLocation());
 		}
 		catch (IOException e)
@@ -59,8 +134,136 @@ public abstract class URLMetadataSource extends MetadataSourceBase
 					"An I/O error occurred trying to process the metadata source.  Location: {0}  Format: {1}  Error: {2}",
 					this.getLocation(), this.getFormat(), e.getMessage()
 			);
+			
+			if (warmStart)
+			{
+				this.logger.warn(message + "  Continuing with the local copy " + this.localCopy.getPath());
+				return;
+			}
+			
 			this.logger.error(message, e);
 			throw new MetadataSourceException(message, e);
 		}
 	}
+	
+	/**
+	 * @return File the metadata document is copied to, or null
+	 */
+	public File getLocalCopy()
+	{
+		return this.localCopy;
+	}
+	
+	/**
+	 * @param localCopy File to keep a copy of the metadata document in, or null
+	 */
+	public void setLocalCopy(File localCopy)
+	{
+		this.localCopy = localCopy;
+	}
+	
+	/*
+	 * Processes the local copy, if one exists, and restores the validators it was 
+	 * saved with. A local copy which can't be read is ignored.
+	 */
+	private boolean readLocalCopy(MetadataProcessor processor)
+	{
+		if (!this.localCopy.isFile())
+		{
+			this.logger.debug("Metadata source {} - no local copy at {}", this.getLocation(), this.localCopy.getPath());
+			return false;
+		}
+		
+		try
+		{
+			this.logger.info("Metadata source {} - reading local copy {}", this.getLocation(), this.localCopy.getPath());
+			this.processDocument(this.readDocument(new FileInputStream(this.localCopy)), processor);
+			
+			File validatorsFile = new File(this.localCopy.getPath() + VALIDATORS_SUFFIX);
+			if (validatorsFile.isFile())
+			{
+				Properties validators = new Properties();
+				InputStream input = new FileInputStream(validatorsFile);
+				try
+				{
+					validators.load(input);
+				}
+				finally
+				{
+					input.close();
+				}
+				
+				this.entityTag = validators.getProperty(ETAG);
+				this.lastModified = Long.parseLong(validators.getProperty(LAST_MODIFIED, "0"));
+			}
+			
+			return true;
+		}
+		catch (IOException e)
+		{
+			this.logger.warn("Metadata source {} - unable to read local copy {}. Error was: {}", new Object[]{this.getLocation(), this.localCopy.getPath(), e.getMessage()});
+			return false;
+		}
+		catch (NumberFormatException e)
+		{
+			// The document was read, only the validators are unusable.
+			this.entityTag = null;
+			this.lastModified = 0;
+			return true;
+		}
+	}
+	
+	/*
+	 * Replaces the local copy and its validators. Each file is written alongside 
+	 * and renamed into place, so a partial write never replaces a good copy.
+	 */
+	private void writeLocalCopy(byte[] document)
+	{
+		try
+		{
+			this.replaceFile(this.localCopy, document);
+			
+			Properties validators = new Properties();
+			if (this.entityTag != null)
+			{
+				validators.setProperty(ETAG, this.entityTag);
+			}
+			validators.setProperty(LAST_MODIFIED, Long.toString(this.lastModified));
+			
+			ByteArrayOutputStream validatorsOutput = new ByteArrayOutputStream();
+			validators.store(validatorsOutput, this.getLocation());
+			this.replaceFile(new File(this.localCopy.getPath() + VALIDATORS_SUFFIX), validatorsOutput.toByteArray());
+			
+			this.logger.debug("Metadata source {} - wrote local copy {}", this.getLocation(), this.localCopy.getPath());
+		}
+		catch (IOException e)
+		{
+			this.logger.warn("Metadata source {} - unable to write local copy {}. Error was: {}", new Object[]{this.getLocation(), this.localCopy.getPath(), e.getMessage()});
+		}
+	}
+	
+	private void replaceFile(File file, byte[] content) throws IOException
+	{
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream output = new FileOutputStream(temp);
+		try
+		{
+			output.write(content);
+		}
+		finally
+		{
+			output.close();
+		}
+		this.rename(temp, file);
+	}
+	
+	private void rename(File from, File to) throws IOException
+	{
+		// Some platforms won't rename over an existing file.
+		if (!from.renameTo(to) && !(to.delete() && from.renameTo(to)))
+		{
+			from.delete();
+			throw new IOException("Unable to replace " + to.getPath());
+		}
+	}
 }
@@ -20,6 +20,7 @@
 
 package com.qut.middleware.metadata.source.saml.impl;
 
+import java.io.File;
 import java.net.URL;
 
 import com.qut.middleware.metadata.constants.FormatConstants;
@@ -32,6 +33,11 @@ public class SAMLURLMetadataSource extends URLMetadataSource
 		super(url);
 	}
 	
+	public SAMLURLMetadataSource(URL url, File localCopy)
+	{
+		super(url, localCopy);
+	}
+	
 	public String getFormat()
 	{
 		return FormatConstants.SAML2;
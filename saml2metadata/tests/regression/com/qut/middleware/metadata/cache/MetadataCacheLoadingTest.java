@@ -0,0 +1,194 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Tests dynamic loading of uncached entities and the negative cache of the metadata cache.
+ */
+
+package com.qut.middleware.metadata.cache;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.qut.middleware.metadata.bean.EntityData;
+import com.qut.middleware.metadata.bean.KeyEntry;
+import com.qut.middleware.metadata.bean.impl.EntityDataImpl;
+import com.qut.middleware.metadata.cache.impl.MetadataCacheImpl;
+import com.qut.middleware.metadata.processor.DynamicMetadataUpdater;
+import com.qut.middleware.metadata.processor.MetadataProcessor;
+import com.qut.middleware.metadata.source.MetadataSource;
+
+@SuppressWarnings("nls")
+public class MetadataCacheLoadingTest
+{
+	private static final String ENTITY_ID = "http://entity.example.com/dynamic";
+
+	/* Returns a fixed result, optionally waiting to be released first, and counts its calls */
+	private static class CountingUpdater implements DynamicMetadataUpdater
+	{
+		protected final AtomicInteger calls = new AtomicInteger();
+		protected final CountDownLatch release;
+		protected final EntityData result;
+
+		protected CountingUpdater(EntityData result, CountDownLatch release)
+		{
+			this.result = result;
+			this.release = release;
+		}
+
+		public EntityData dynamicUpdate(MetadataProcessor processor, String entityID)
+		{
+			this.calls.incrementAndGet();
+			try
+			{
+				if (this.release != null)
+					this.release.await();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			return this.result;
+		}
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception
+	{
+		final int threadCount = 8;
+		EntityData entity = new EntityDataImpl("test://dynamic", 0);
+		CountDownLatch release = new CountDownLatch(1);
+		CountingUpdater updater = new CountingUpdater(entity, release);
+		final MetadataCacheImpl cache = new MetadataCacheImpl(updater);
+
+		final List<EntityData> results = new ArrayList<EntityData>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < threadCount; i++)
+		{
+			Thread thread = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					EntityData result = cache.getEntityData(ENTITY_ID, null);
+					synchronized (results)
+					{
+						results.add(result);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+
+		// Hold the first update until every other caller is waiting on it
+		long deadline = System.currentTimeMillis() + 10000;
+		while (cache.getCoalescedMisses() < threadCount - 1 && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+
+		release.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals("Only one dynamic update for concurrent misses", 1, updater.calls.get());
+		assertEquals(threadCount, results.size());
+		for (EntityData result : results)
+			assertSame(entity, result);
+
+		assertEquals(threadCount, cache.getMisses());
+		assertEquals(threadCount - 1, cache.getCoalescedMisses());
+		assertEquals(1, cache.getFetches());
+		assertTrue(cache.getFetchTimeMillis() >= 0);
+	}
+
+	@Test
+	public void testNegativeCacheExpires() throws Exception
+	{
+		CountingUpdater updater = new CountingUpdater(null, null);
+		MetadataCacheImpl cache = new MetadataCacheImpl(updater, 100, 10);
+
+		assertNull(cache.getEntityData(ENTITY_ID, null));
+		assertNull(cache.getEntityData(ENTITY_ID, null));
+		assertEquals("Unresolvable entity remembered", 1, updater.calls.get());
+		assertEquals(1, cache.getNegativeHits());
+		assertEquals(1, cache.getNegativeCacheSize());
+
+		Thread.sleep(150);
+
+		assertNull(cache.getEntityData(ENTITY_ID, null));
+		assertEquals("Fetched again once expired", 2, updater.calls.get());
+		assertEquals(0, cache.getHits());
+	}
+
+	@Test
+	public void testNegativeCacheBounded()
+	{
+		CountingUpdater updater = new CountingUpdater(null, null);
+		MetadataCacheImpl cache = new MetadataCacheImpl(updater, 60000, 2);
+
+		for (int i = 0; i < 5; i++)
+			assertNull(cache.getEntityData(ENTITY_ID + i, null));
+
+		assertEquals(2, cache.getNegativeCacheSize());
+		assertTrue("Unknown entities are not listed", cache.getEntityList().isEmpty());
+	}
+
+	@Test
+	public void testNegativeCacheDisabled()
+	{
+		CountingUpdater updater = new CountingUpdater(null, null);
+		MetadataCacheImpl cache = new MetadataCacheImpl(updater, 0, 10);
+
+		assertNull(cache.getEntityData(ENTITY_ID, null));
+		assertNull(cache.getEntityData(ENTITY_ID, null));
+		assertEquals(2, updater.calls.get());
+		assertEquals(0, cache.getNegativeCacheSize());
+	}
+
+	@Test
+	public void testUpdateReplacesNegative()
+	{
+		CountingUpdater updater = new CountingUpdater(null, null);
+		MetadataCacheImpl cache = new MetadataCacheImpl(updater);
+
+		assertNull(cache.getEntityData(ENTITY_ID, null));
+
+		MetadataSource source = createMock(MetadataSource.class);
+		expect(source.getLocation()).andReturn("test://metadata").anyTimes();
+		replay(source);
+
+		EntityDataImpl entity = new EntityDataImpl("test://metadata", 0);
+		entity.setEntityID(ENTITY_ID);
+		List<EntityData> entities = new ArrayList<EntityData>();
+		entities.add(entity);
+		cache.update(source, entities, new ArrayList<KeyEntry>());
+
+		assertSame(entity, cache.getEntityData(ENTITY_ID, null));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, updater.calls.get());
+	}
+}
@@ -20,9 +20,17 @@
 
 package com.qut.middleware.metadata.source;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
 
 import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
 import org.junit.Test;
 
 import com.qut.middleware.metadata.exception.MetadataSourceException;
@@ -49,4 +57,194 @@ public class URLMetadataSourceTest
 		
 		verify(processor);
 	}
+	
+	@Test
+	public void testConditionalRequest() throws Exception
+	{
+		final byte[] document = "<EntitiesDescriptor/>".getBytes("UTF-8");
+		TestServer server = new TestServer(document, "\"v1\"", 1000000L);
+		URLMetadataSource source = new TestURLMetadataSource(server.url(), null);
+		
+		MetadataProcessor processor = createMock(MetadataProcessor.class);
+		processor.updateFromSource(same(source), aryEq(document));
+		expectLastCall().once();
+		replay(processor);
+		
+		source.updateMetadata(processor);
+		assertNull("First request is unconditional", server.lastConnection.ifNoneMatch);
+		
+		source.updateMetadata(processor);
+		assertEquals("\"v1\"", server.lastConnection.ifNoneMatch);
+		assertEquals(1000000L, server.lastConnection.getIfModifiedSince());
+		assertFalse("Body not read when not modified", server.lastConnection.bodyRead);
+		
+		verify(processor);
+	}
+	
+	@Test
+	public void testLocalCopy() throws Exception
+	{
+		final byte[] document = "<EntitiesDescriptor/>".getBytes("UTF-8");
+		File localCopy = File.createTempFile("metadata", ".xml");
+		File validators = new File(localCopy.getPath() + ".validators");
+		localCopy.delete();
+		
+		try
+		{
+			TestServer server = new TestServer(document, "\"v1\"", 1000000L);
+			URLMetadataSource source = new TestURLMetadataSource(server.url(), localCopy);
+			MetadataProcessor processor = createMock(MetadataProcessor.class);
+			processor.updateFromSource(same(source), aryEq(document));
+			expectLastCall().once();
+			replay(processor);
+			
+			source.updateMetadata(processor);
+			verify(processor);
+			assertEquals(document.length, localCopy.length());
+			assertTrue(validators.isFile());
+			
+			// Warm start from the local copy, and the first request is already conditional
+			source = new TestURLMetadataSource(server.url(), localCopy);
+			processor = createMock(MetadataProcessor.class);
+			processor.updateFromSource(same(source), aryEq(document));
+			expectLastCall().once();
+			replay(processor);
+			
+			source.updateMetadata(processor);
+			verify(processor);
+			assertEquals("\"v1\"", server.lastConnection.ifNoneMatch);
+			assertFalse(server.lastConnection.bodyRead);
+			
+			// Warm start succeeds even when the URL can't be reached
+			server.unreachable = true;
+			source = new TestURLMetadataSource(server.url(), localCopy);
+			processor = createMock(MetadataProcessor.class);
+			processor.updateFromSource(same(source), aryEq(document));
+			expectLastCall().once();
+			replay(processor);
+			
+			source.updateMetadata(processor);
+			verify(processor);
+			
+			try
+			{
+				source.updateMetadata(processor);
+				fail("Later failures are reported");
+			}
+			catch (MetadataSourceException e)
+			{
+				// Expected
+			}
+		}
+		finally
+		{
+			localCopy.delete();
+			validators.delete();
+		}
+	}
+	
+	private static class TestURLMetadataSource extends URLMetadataSource
+	{
+		public TestURLMetadataSource(URL url, File localCopy)
+		{
+			super(url, localCopy);
+		}
+		
+		public String getFormat()
+		{
+			return "X";
+		}
+	}
+	
+	/* Serves a fixed document over fake HTTP connections, honouring If-None-Match */
+	private static class TestServer extends URLStreamHandler
+	{
+		protected final byte[] document;
+		protected final String entityTag;
+		protected final long lastModified;
+		protected boolean unreachable;
+		protected TestConnection lastConnection;
+		
+		public TestServer(byte[] document, String entityTag, long lastModified)
+		{
+			this.document = document;
+			this.entityTag = entityTag;
+			this.lastModified = lastModified;
+		}
+		
+		public URL url() throws IOException
+		{
+			return new URL("http", "metadata.example.com", 80, "/metadata.xml", this);
+		}
+		
+		@Override
+		protected URLConnection openConnection(URL u) throws IOException
+		{
+			if (this.unreachable)
+				throw new IOException("Connection refused");
+			
+			this.lastConnection = new TestConnection(u, this);
+			return this.lastConnection;
+		}
+	}
+	
+	private static class TestConnection extends HttpURLConnection
+	{
+		private final TestServer server;
+		protected boolean bodyRead;
+		protected String ifNoneMatch;
+		
+		public TestConnection(URL u, TestServer server)
+		{
+			super(u);
+			this.server = server;
+		}
+		
+		@Override
+		public void connect()
+		{
+			if (!this.connected)
+				this.ifNoneMatch = this.getRequestProperty("If-None-Match");
+			this.connected = true;
+		}
+		
+		@Override
+		public void disconnect()
+		{
+			this.connected = false;
+		}
+		
+		@Override
+		public boolean usingProxy()
+		{
+			return false;
+		}
+		
+		@Override
+		public int getResponseCode()
+		{
+			this.connect();
+			return this.server.entityTag.equals(this.ifNoneMatch) ? HTTP_NOT_MODIFIED : HTTP_OK;
+		}
+		
+		@Override
+		public InputStream getInputStream()
+		{
+			this.connect();
+			this.bodyRead = true;
+			return new ByteArrayInputStream(this.server.document);
+		}
+		
+		@Override
+		public String getHeaderField(String name)
+		{
+			return "ETag".equals(name) ? this.server.entityTag : null;
+		}
+		
+		@Override
+		public long getLastModified()
+		{
+			return this.server.lastModified;
+		}
+	}
 }
@@ -58,6 +58,7 @@ import com.qut.middleware.metadata.processor.saml.impl.SAMLServiceProviderProces
 import com.qut.middleware.metadata.source.DynamicMetadataSource;
 import com.qut.middleware.metadata.source.MetadataSource;
 import com.qut.middleware.metadata.source.saml.impl.SAMLURLMetadataSource;
+import com.qut.middleware.saml2.artifact.impl.ArtifactStoreImpl;
 import com.qut.middleware.saml2.exception.MarshallerException;
 import com.qut.middleware.saml2.exception.UnmarshallerException;
 import com.qut.middleware.saml2.handler.SOAPHandler;
@@ -65,12 +66,13 @@ import com.qut.middleware.saml2.handler.impl.SOAPv11Handler;
 import com.qut.middleware.saml2.handler.impl.SOAPv12Handler;
 import com.qut.middleware.saml2.identifier.IdentifierCache;
 import com.qut.middleware.saml2.identifier.IdentifierGenerator;
-import com.qut.middleware.saml2.identifier.impl.IdentifierCacheImpl;
+import com.qut.middleware.saml2.identifier.impl.GenerationalIdentifierCacheImpl;
 import com.qut.middleware.saml2.identifier.impl.IdentifierGeneratorImpl;
 import com.qut.middleware.saml2.validator.SAMLValidator;
 import com.qut.middleware.saml2.validator.impl.SAMLValidatorImpl;
 import com.qut.middleware.spep.attribute.impl.AttributeProcessorImpl;
 import com.qut.middleware.spep.authn.bindings.AuthnBinding;
+import com.qut.middleware.spep.authn.bindings.impl.Artifact;
 import com.qut.middleware.spep.authn.bindings.impl.ArtifactProcessorImpl;
 import com.qut.middleware.spep.authn.bindings.impl.AuthnArtifactBindingImpl;
 import com.qut.middleware.spep.authn.bindings.impl.AuthnBindingProcessorImpl;
@@ -84,8 +86,9 @@ import com.qut.middleware.spep.impl.StartupProcessorImpl;
 import com.qut.middleware.spep.pep.PolicyEnforcementProcessor.decision;
 import com.qut.middleware.spep.pep.impl.PolicyEnforcementProcessorImpl;
 import com.qut.middleware.spep.pep.impl.SessionGroupCacheImpl;
-import com.qut.middleware.spep.sessions.impl.SessionCacheImpl;
+import com.qut.middleware.spep.sessions.impl.ConcurrentSessionCacheImpl;
 import com.qut.middleware.spep.ws.WSClient;
+import com.qut.middleware.spep.ws.impl.HttpWSTransportImpl;
 import com.qut.middleware.spep.ws.impl.WSClientImpl;
 import com.qut.middleware.spep.ws.impl.WSProcessorImpl;
 
@@ -301,6 +304,16 @@ public class Initializer
 			// Run in compatibility mode to allow talking to non-ESOE identity providers - default to false
 			boolean enableCompatibility = Boolean.parseBoolean(properties.getProperty("enableCompatibility", "false"));
 
+			// Web service connection timeouts in seconds, requests in flight to each endpoint and largest response in bytes - optional
+			int wsConnectTimeout = Integer.parseInt(properties.getProperty("wsConnectTimeout", String.valueOf(HttpWSTransportImpl.DEFAULT_CONNECT_TIMEOUT)).trim());
+			int wsReadTimeout = Integer.parseInt(properties.getProperty("wsReadTimeout", String.valueOf(HttpWSTransportImpl.DEFAULT_READ_TIMEOUT)).trim());
+			int wsMaxConnections = Integer.parseInt(properties.getProperty("wsMaxConnections", String.valueOf(HttpWSTransportImpl.DEFAULT_MAX_CONNECTIONS)).trim());
+			int wsMaxResponseSize = Integer.parseInt(properties.getProperty("wsMaxResponseSize", String.valueOf(HttpWSTransportImpl.DEFAULT_MAX_RESPONSE_SIZE)).trim());
+
+			// Lifetime in seconds of artifacts issued by this SPEP, and the number held before the oldest are evicted - optional
+			int artifactLifetime = Integer.parseInt(properties.getProperty("artifactLifetime", String.valueOf(ArtifactStoreImpl.DEFAULT_LIFETIME / 1000)).trim());
+			int artifactMaxStored = Integer.parseInt(properties.getProperty("artifactMaxStored", String.valueOf(ArtifactStoreImpl.DEFAULT_MAX_SIZE)).trim());
+
 			spep.setDisableAttributeQuery(disableAttributeQuery);
 			spep.setDisablePolicyEnforcement(disablePolicyEnforcement);
 			spep.setDisableSPEPStartup(disableSPEPStartup);
@@ -466,17 +479,17 @@ public class Initializer
 			soapHandlers.add(soapv12Handler);
 
 			// Web services client instance
-			WSClient wsClient = new WSClientImpl(soapv12Handler);
+			WSClient wsClient = new WSClientImpl(soapv12Handler, new HttpWSTransportImpl(wsConnectTimeout, wsReadTimeout, wsMaxConnections, wsMaxResponseSize));
 
 			// Create the identifier cache and generator.
-			IdentifierCache identifierCache = new IdentifierCacheImpl();
+			IdentifierCache identifierCache = new GenerationalIdentifierCacheImpl();
 			IdentifierGenerator identifierGenerator = new IdentifierGeneratorImpl(identifierCache);
 
 			// SAML validator instance
 			SAMLValidator samlValidator = new SAMLValidatorImpl(identifierCache, allowedTimeSkew);
 
 			// Session cache instance
-			spep.setSessionCache( new SessionCacheImpl(sessionCacheTimeout, sessionCacheInterval) );
+			spep.setSessionCache( new ConcurrentSessionCacheImpl(sessionCacheTimeout, sessionCacheInterval) );
 
 			// start the identifier cache monitor thread
 			spep.setIdentifierCacheMonitor(new IdentifierCacheMonitor(identifierCache, sessionCacheInterval, identifierCacheTimeout));
@@ -544,6 +557,7 @@ public class Initializer
 				artifactProcessor.setWSClient(wsClient);
 				artifactProcessor.setNodeIndex(nodeIndex);
 				artifactProcessor.setKeystoreResolver(keyStoreResolver);
+				artifactProcessor.setArtifactStore(new ArtifactStoreImpl<Artifact>(artifactLifetime * 1000L, artifactMaxStored));
 				artifactProcessor.afterPropertiesSet();
 
 				spep.setArtifactProcessor(artifactProcessor);
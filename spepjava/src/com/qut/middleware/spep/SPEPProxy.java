@@ -67,6 +67,13 @@ public interface SPEPProxy
 	 */
 	public decision makeAuthzDecision(String sessionID, String resource, String action);
 	
+	/**
+	 * Changes whenever a session is logged out or cached authorization data is cleared. A caller remembering a
+	 * session or a permit decision may keep using it only while this value is unchanged.
+	 * @return The current authorization state version, or a negative value if it is not tracked and nothing may be remembered.
+	 */
+	public long getAuthzStateVersion();
+	
 	/**
 	 * Live list of cookies to be cleared when a session is logged out.
 	 * This list should not be modified in any way. Any cookies needing to be
@@ -25,8 +25,6 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
@@ -44,6 +42,8 @@ import com.qut.middleware.saml2.NameIDFormatConstants;
 import com.qut.middleware.saml2.SchemaConstants;
 import com.qut.middleware.saml2.StatusCodeConstants;
 import com.qut.middleware.saml2.VersionConstants;
+import com.qut.middleware.saml2.artifact.ArtifactStore;
+import com.qut.middleware.saml2.artifact.impl.ArtifactStoreImpl;
 import com.qut.middleware.saml2.exception.MarshallerException;
 import com.qut.middleware.saml2.exception.ReferenceValueException;
 import com.qut.middleware.saml2.exception.SignatureValueException;
@@ -85,7 +85,7 @@ public class ArtifactProcessorImpl implements ArtifactProcessor
 	private MetadataProcessor metadataProcessor;
 	private KeystoreResolver keystoreResolver;
 	
-	private Map<String, Artifact> artifactMap;
+	private ArtifactStore<Artifact> artifactStore;
 
 	public void setIdentifierGenerator(IdentifierGenerator generator)
 	{
@@ -143,6 +143,19 @@ public class ArtifactProcessorImpl implements ArtifactProcessor
 		this.nodeIndex = nodeIndex;
 	}
 	
+	public void setArtifactStore(ArtifactStore<Artifact> artifactStore)
+	{
+		this.artifactStore = artifactStore;
+	}
+	
+	/**
+	 * @return The store holding artifacts until they are resolved, for reporting its size and expiry counts.
+	 */
+	public ArtifactStore<Artifact> getArtifactStore()
+	{
+		return this.artifactStore;
+	}
+	
 	public void afterPropertiesSet()
 	{
 		if (this.entityIdentifier == null || this.sourceID == null)
@@ -172,7 +185,10 @@ public class ArtifactProcessorImpl implements ArtifactProcessor
 			this.artifactResolveMarshaller = new MarshallerImpl<ArtifactResolve>(packages, schema, this.keystoreResolver);
 			this.artifactResolveUnmarshaller = new UnmarshallerImpl<ArtifactResolve>(packages, schema, this.metadataProcessor);
 			
-			this.artifactMap = new ConcurrentHashMap<String, Artifact>();
+			if (this.artifactStore == null)
+			{
+				this.artifactStore = new ArtifactStoreImpl<Artifact>();
+			}
 		}
 		catch (NoSuchAlgorithmException e)
 		{
@@ -294,7 +310,8 @@ public class ArtifactProcessorImpl implements ArtifactProcessor
 	private void resolveArtifact(Artifact artifact)
 	{
 		String messageHandleString = new String(Base64.encodeBase64(artifact.getMessageHandle()));
-		Artifact value = this.artifactMap.get(messageHandleString);
+		// Artifacts are removed as they are resolved, so each can only be resolved once.
+		Artifact value = this.artifactStore.resolve(messageHandleString);
 		
 		if (value != null)
 		{
@@ -317,7 +334,7 @@ public class ArtifactProcessorImpl implements ArtifactProcessor
 	private void storeArtifact(Artifact artifact)
 	{
 		String messageHandleString = new String(Base64.encodeBase64(artifact.getMessageHandle()));
-		this.artifactMap.put(messageHandleString, artifact);
+		this.artifactStore.store(messageHandleString, artifact);
 	}
 
 	private Element errorResponse(ArtifactResolve request, String statusCodeValue, String statusMessage) throws AuthenticationException
@@ -159,6 +159,11 @@ public class SPEPProxyImpl implements SPEPProxy
 		return spep.getAuthnProcessor().verifySession(sessionID);
 	}
 
+	public long getAuthzStateVersion()
+	{
+		return spep.getSessionCache().getTerminationCount() + spep.getSessionGroupCache().getClearCount();
+	}
+
 	public List<String> getLazyInitResources()
 	{
 		return spep.getLazyInitResources();
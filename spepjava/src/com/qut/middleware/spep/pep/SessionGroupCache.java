@@ -67,4 +67,11 @@ public interface SessionGroupCache
 	 * @param principal The PrincipalSession to remove
 	 */
 	public void clearPrincipalSession(PrincipalSession principal);
+	
+	/**
+	 * Counts every clear of the cache, complete or for a single principal. Callers remembering decisions made from
+	 * this cache compare this value to learn that those decisions may no longer hold.
+	 * @return The number of clears made on this cache
+	 */
+	public long getClearCount();
 }
@@ -21,14 +21,16 @@ package com.qut.middleware.spep.pep.impl;
 
 import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
-import org.slf4j.Logger;
+import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.qut.middleware.spep.ConfigurationConstants;
@@ -37,13 +39,18 @@ import com.qut.middleware.spep.pep.SessionGroupCache;
 import com.qut.middleware.spep.pep.PolicyEnforcementProcessor.decision;
 import com.qut.middleware.spep.sessions.PrincipalSession;
 
-/** Implements the SessionGroupCache. */
+/**
+ * Implements the SessionGroupCache.
+ *
+ * Group and authz targets are compiled once per cache clear into matchers shared by every session. Each session's
+ * cached decisions are held in immutable arrays which are replaced on update, so making a cached decision does not
+ * take any locks.
+ */
 public class SessionGroupCacheImpl implements SessionGroupCache
 {
-	private boolean initialized;
-	private Map<PrincipalSession, GroupCache> groupCaches;
-	private Map<String, List<String>> groupTargets;
+	private volatile CacheState state;
 	private decision defaultPolicyDecision;
+	private final AtomicLong clears = new AtomicLong();
 
 	/* Local logging instance */
 	private Logger logger = LoggerFactory.getLogger(this.getClass().getName());
@@ -51,7 +58,7 @@ public class SessionGroupCacheImpl implements SessionGroupCache
 
 	/**
 	 * Default constructor
-	 * 
+	 *
 	 * @param defaultPolicyDecision
 	 *            The default policy decision
 	 */
@@ -62,9 +69,6 @@ public class SessionGroupCacheImpl implements SessionGroupCache
 			throw new IllegalArgumentException(Messages.getString("SessionGroupCacheImpl.4")); //$NON-NLS-1$
 		}
 
-		this.groupCaches = new HashMap<PrincipalSession, GroupCache>();
-		this.initialized = false;
-
 		if (decision.permit.equals(defaultPolicyDecision) || decision.deny.equals(defaultPolicyDecision))
 		{
 			this.defaultPolicyDecision = defaultPolicyDecision;
@@ -77,7 +81,7 @@ public class SessionGroupCacheImpl implements SessionGroupCache
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see com.qut.middleware.spep.pep.SessionGroupCache#makeCachedAuthzDecision(com.qut.middleware.spep.sessions.PrincipalSession,
 	 *      java.lang.String)
 	 */
@@ -88,38 +92,30 @@ public class SessionGroupCacheImpl implements SessionGroupCache
 
 	public decision makeCachedAuthzDecision(PrincipalSession principalSession, String resource, String action)
 	{
-		if (!this.initialized)
+		CacheState current = this.state;
+		if (current == null)
 			throw new IllegalArgumentException(Messages.getString("SessionGroupCacheImpl.1")); //$NON-NLS-1$
 
-		// Look up group cache for this session.
-		GroupCache groupCache;
-
 		// if no Grouptargets cached, don't bother with Principal processing. This will ensure that
 		// we don't send an Authz Request for an empty PolicySet
-		synchronized (this.groupTargets)
+		if (current.groupTargetCount == 0)
 		{
-			if (this.groupTargets.size() == 0)
-			{
-				this.logger.warn(MessageFormat.format(Messages.getString("SessionGroupCacheImpl.5"), this.defaultPolicyDecision)); //$NON-NLS-1$
-				return this.defaultPolicyDecision;
-			}
+			this.logger.warn(MessageFormat.format(Messages.getString("SessionGroupCacheImpl.5"), this.defaultPolicyDecision)); //$NON-NLS-1$
+			return this.defaultPolicyDecision;
 		}
 
-		synchronized (this.groupCaches)
-		{
-			groupCache = this.groupCaches.get(principalSession);
-		}
+		// Look up group cache for this session.
+		GroupCache groupCache = current.groupCaches.get(principalSession);
 
 		if (groupCache == null)
 		{
 			return decision.notcached;
 		}
 
-		decision result;
-		synchronized (groupCache)
-		{
-			result = groupCache.makeCachedAuthzDecision(resource, action);
-		}
+		decision result = groupCache.makeCachedAuthzDecision(resource, action);
+
+		if (!this.authzLogger.isInfoEnabled())
+			return (result == null) ? this.defaultPolicyDecision : result;
 
 		if (result == null)
 		{
@@ -140,73 +136,118 @@ public class SessionGroupCacheImpl implements SessionGroupCache
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see com.qut.middleware.spep.pep.SessionGroupCache#clearCache(java.util.Map)
 	 */
 	public void clearCache(Map<String, List<String>> groupTargetMap)
 	{
-		synchronized (this.groupCaches)
-		{
-			this.groupCaches.clear();
-			this.groupTargets = groupTargetMap;
-			this.initialized = true;
-		}
+		// Replacing the whole state discards every session cache, including any being updated concurrently
+		this.state = new CacheState(groupTargetMap);
+		this.clears.incrementAndGet();
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see com.qut.middleware.spep.pep.SessionGroupCache#clearPrincipalSession(java.lang.String)
 	 */
 	public void clearPrincipalSession(PrincipalSession principal)
 	{
-		synchronized (this.groupCaches)
+		CacheState current = this.state;
+		if (current != null)
 		{
-			this.groupCaches.remove(principal);
+			current.groupCaches.remove(principal);
 		}
+		this.clears.incrementAndGet();
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
+	 * @see com.qut.middleware.spep.pep.SessionGroupCache#getClearCount()
+	 */
+	public long getClearCount()
+	{
+		return this.clears.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
 	 * @see com.qut.middleware.spep.pep.SessionGroupCache#updateCache(com.qut.middleware.spep.sessions.PrincipalSession,
 	 *      java.lang.String, java.util.List, java.lang.String,
 	 *      com.qut.middleware.spep.pep.PolicyEnforcementProcessor.decision)
 	 */
 	public void updateCache(PrincipalSession principalSession, String groupTarget, List<String> authzTargets, String action, decision decision)
 	{
-		if (!this.initialized)
+		CacheState current = this.state;
+		if (current == null)
 			throw new IllegalStateException(Messages.getString("SessionGroupCacheImpl.2")); //$NON-NLS-1$
 
 		// Look up group cache for this session.
-		GroupCache groupCache;
-		synchronized (this.groupCaches)
+		GroupCache groupCache = current.groupCaches.get(principalSession);
+		if (groupCache == null)
 		{
-			groupCache = this.groupCaches.get(principalSession);
+			GroupCache created = new GroupCache(current.defaultEntries);
+			groupCache = current.groupCaches.putIfAbsent(principalSession, created);
 			if (groupCache == null)
+				groupCache = created;
+		}
+
+		PDPDecision pdpDecision = new PDPDecision(decision, action, current.matcher(action));
+		groupCache.updateCache(current, groupTarget, authzTargets, pdpDecision);
+	}
+
+	/* Everything replaced when the cache is cleared. */
+	private static final class CacheState
+	{
+		protected final ConcurrentMap<PrincipalSession, GroupCache> groupCaches;
+		protected final ConcurrentMap<String, TargetMatcher> matchers;
+		protected final GroupEntry[] defaultEntries;
+		protected final int groupTargetCount;
+
+		protected CacheState(Map<String, List<String>> groupTargets)
+		{
+			this.groupCaches = new ConcurrentHashMap<PrincipalSession, GroupCache>();
+			this.matchers = new ConcurrentHashMap<String, TargetMatcher>();
+			this.groupTargetCount = groupTargets.size();
+
+			// Every new session starts from the same entries, they are never modified so can be shared
+			GroupEntry[] entries = new GroupEntry[0];
+			for (Entry<String, List<String>> groupTargetEntry : groupTargets.entrySet())
 			{
-				groupCache = createDefaultGroupCache();
-				this.groupCaches.put(principalSession, groupCache);
+				entries = GroupEntry.update(entries, this, groupTargetEntry.getKey(), groupTargetEntry.getValue(), null);
 			}
+			this.defaultEntries = entries;
 		}
 
-		synchronized (groupCache)
+		/* Returns the shared matcher for the target, or null for a null target */
+		protected TargetMatcher matcher(String target)
 		{
-			PDPDecision pdpDecision = new PDPDecision();
-			pdpDecision.nodeDecision = decision;
-			pdpDecision.action = action;
-			groupCache.updateCache(groupTarget, authzTargets, pdpDecision);
+			if (target == null)
+				return null;
+
+			TargetMatcher matcher = this.matchers.get(target);
+			if (matcher == null)
+			{
+				TargetMatcher created = new TargetMatcher(target);
+				matcher = this.matchers.putIfAbsent(target, created);
+				if (matcher == null)
+					matcher = created;
+			}
+
+			return matcher;
 		}
 	}
 
 	private class GroupCache
 	{
-		private Map<String, AuthzTargetCache> authzTargetMap;
+		// Replaced, never modified, so that readers do not need to lock
+		private volatile GroupEntry[] entries;
 
-		protected GroupCache()
+		protected GroupCache(GroupEntry[] entries)
 		{
-			// LinkedHashMap used because it is more efficient at keySet()
-			this.authzTargetMap = new LinkedHashMap<String, AuthzTargetCache>();
+			this.entries = entries;
 		}
 
 		protected decision makeCachedAuthzDecision(String resource, String action)
@@ -214,30 +255,18 @@ public class SessionGroupCacheImpl implements SessionGroupCache
 			decision result = null;
 
 			// Loop through matching group targets
-			for (String key : this.authzTargetMap.keySet())
+			for (GroupEntry entry : this.entries)
 			{
-				if (targetMatch(key, resource))
+				if (TargetMatcher.matches(entry.matcher, resource))
 				{
-					AuthzTargetCache authzTargetCache = this.authzTargetMap.get(key);
-
-					if (authzTargetCache == null)
-					{
-						result = decision.notcached;
-					}
-					else
-					{
-						// Call the AuthzTargetCache to get a cached decision. If null we need to update the cache.
-						decision nodeDecision = authzTargetCache.makeCachedAuthzDecision(resource, action);
-						/*
-						 * if (nodeDecision == null) { nodeDecision = decision.cache; }
-						 */
+					// Get a cached decision from the authz targets. If null we need to update the cache.
+					decision nodeDecision = makeCachedAuthzDecision(entry.authzEntries, resource, action);
 
-						result = addDecisions(result, nodeDecision);
+					result = addDecisions(result, nodeDecision);
 
-						if (decision.deny.equals(result))
-						{
-							return result;
-						}
+					if (decision.deny.equals(result))
+					{
+						return result;
 					}
 				}
 			}
@@ -245,59 +274,28 @@ public class SessionGroupCacheImpl implements SessionGroupCache
 			return result;
 		}
 
-		protected void updateCache(String groupTarget, List<String> authzTargets, PDPDecision decision)
-		{
-			// Call the AuthzTargetCache object to update its cache
-			AuthzTargetCache authzTargetCache = this.authzTargetMap.get(groupTarget);
-
-			if (authzTargetCache == null)
-			{
-				authzTargetCache = new AuthzTargetCache();
-				this.authzTargetMap.put(groupTarget, authzTargetCache);
-			}
-
-			authzTargetCache.updateCache(authzTargets, decision);
-		}
-	}
-
-	private class PDPDecision
-	{
-		protected decision nodeDecision = null;
-		protected String action = null;
-	}
-
-	private class AuthzTargetCache
-	{
-		private Map<String, List<PDPDecision>> decisionMap;
-
-		protected AuthzTargetCache()
-		{
-			// LinkedHashMap used because it is more efficient at keySet()
-			this.decisionMap = new LinkedHashMap<String, List<PDPDecision>>();
-		}
-
-		protected decision makeCachedAuthzDecision(String resource, String action)
+		private decision makeCachedAuthzDecision(AuthzEntry[] authzEntries, String resource, String action)
 		{
 			decision result = null;
 
 			// Loop through all matching targets
-			for (String key : this.decisionMap.keySet())
+			for (AuthzEntry entry : authzEntries)
 			{
-				if (targetMatch(key, resource))
+				if (TargetMatcher.matches(entry.matcher, resource))
 				{
-					if (this.decisionMap.get(key).size() == 0)
+					if (entry.decisions.length == 0)
 					{
 						result = addDecisions(result, decision.notcached);
 					}
 					else
 					{
-						for (PDPDecision pdpDecision : this.decisionMap.get(key))
+						for (PDPDecision pdpDecision : entry.decisions)
 						{
 							// Find the cached decision. If null we need to update cache.
 							decision nodeDecision = pdpDecision.nodeDecision;
 							if (nodeDecision != null)
 							{
-								if (actionMatch(pdpDecision.action, action))
+								if (pdpDecision.actionMatches(action))
 								{
 									// Add the decision to the result
 									result = addDecisions(result, nodeDecision);
@@ -320,52 +318,210 @@ public class SessionGroupCacheImpl implements SessionGroupCache
 			return result;
 		}
 
-		protected void updateCache(List<String> authzTargets, PDPDecision decision)
+		protected synchronized void updateCache(CacheState cacheState, String groupTarget, List<String> authzTargets, PDPDecision decision)
 		{
+			this.entries = GroupEntry.update(this.entries, cacheState, groupTarget, authzTargets, decision);
+		}
+	}
+
+	/* A group target and the authz targets cached beneath it. Immutable. */
+	private static final class GroupEntry
+	{
+		protected final String groupTarget;
+		protected final TargetMatcher matcher;
+		protected final AuthzEntry[] authzEntries;
+
+		protected GroupEntry(String groupTarget, TargetMatcher matcher, AuthzEntry[] authzEntries)
+		{
+			this.groupTarget = groupTarget;
+			this.matcher = matcher;
+			this.authzEntries = authzEntries;
+		}
+
+		/* Returns a copy of entries with the decision added to each authz target beneath groupTarget, preserving order */
+		protected static GroupEntry[] update(GroupEntry[] entries, CacheState cacheState, String groupTarget, List<String> authzTargets, PDPDecision decision)
+		{
+			int index = 0;
+			while (index < entries.length && !equal(entries[index].groupTarget, groupTarget))
+				index++;
+
+			GroupEntry[] result = Arrays.copyOf(entries, Math.max(entries.length, index + 1));
+
+			AuthzEntry[] authzEntries;
+			if (index < entries.length)
+				authzEntries = entries[index].authzEntries;
+			else
+				authzEntries = new AuthzEntry[0];
+
+			List<AuthzEntry> updated = new ArrayList<AuthzEntry>(Arrays.asList(authzEntries));
 			for (String authzTarget : authzTargets)
 			{
-				List<PDPDecision> pdpDecisionList;
-
-				pdpDecisionList = this.decisionMap.get(authzTarget);
-				if (pdpDecisionList == null)
-					pdpDecisionList = new ArrayList<PDPDecision>();
+				int authzIndex = 0;
+				while (authzIndex < updated.size() && !equal(updated.get(authzIndex).authzTarget, authzTarget))
+					authzIndex++;
 
-				if(decision != null)
-					pdpDecisionList.add(decision);
+				if (authzIndex == updated.size())
+					updated.add(new AuthzEntry(authzTarget, cacheState.matcher(authzTarget), new PDPDecision[0]));
 
-				this.decisionMap.put(authzTarget, pdpDecisionList);
+				if (decision != null)
+					updated.set(authzIndex, updated.get(authzIndex).add(decision));
 			}
+
+			result[index] = new GroupEntry(groupTarget, cacheState.matcher(groupTarget), updated.toArray(new AuthzEntry[updated.size()]));
+			return result;
+		}
+
+		private static boolean equal(String lhs, String rhs)
+		{
+			return (lhs == null) ? rhs == null : lhs.equals(rhs);
 		}
 	}
 
-	protected GroupCache createDefaultGroupCache()
+	/* An authz target and the decisions cached for it. Immutable. */
+	private static final class AuthzEntry
+	{
+		protected final String authzTarget;
+		protected final TargetMatcher matcher;
+		protected final PDPDecision[] decisions;
+
+		protected AuthzEntry(String authzTarget, TargetMatcher matcher, PDPDecision[] decisions)
+		{
+			this.authzTarget = authzTarget;
+			this.matcher = matcher;
+			this.decisions = decisions;
+		}
+
+		protected AuthzEntry add(PDPDecision decision)
+		{
+			PDPDecision[] added = Arrays.copyOf(this.decisions, this.decisions.length + 1);
+			added[this.decisions.length] = decision;
+			return new AuthzEntry(this.authzTarget, this.matcher, added);
+		}
+	}
+
+	private static final class PDPDecision
 	{
-		GroupCache defaultGroupCache = new GroupCache();
-		PDPDecision pdpDecision = null;
+		protected final decision nodeDecision;
+		protected final String action;
+		protected final TargetMatcher actionMatcher;
+
+		protected PDPDecision(decision nodeDecision, String action, TargetMatcher actionMatcher)
+		{
+			this.nodeDecision = nodeDecision;
+			this.action = action;
+			this.actionMatcher = actionMatcher;
+		}
+
+		protected boolean actionMatches(String requested)
+		{
+			if (this.action == null && requested == null)
+				return true;
+
+			if (this.action == null || requested == null)
+				return false;
+
+			return this.actionMatcher.matches(requested);
+		}
+	}
+
+	/**
+	 * Matches values against a target which is either a literal string or a regular expression, as
+	 * String.equals(target) || Pattern.matches(target). Literal targets and targets of the form "literal.*" are
+	 * matched without using regular expressions. Other patterns are compiled once, on first use, and values which do
+	 * not start with the pattern's literal prefix are rejected before the pattern is run.
+	 */
+	private static final class TargetMatcher
+	{
+		private static final String META_CHARACTERS = "\\^$.|?*+()[]{}"; //$NON-NLS-1$
+		private static final String QUANTIFIERS = "?*+{"; //$NON-NLS-1$
+		private static final String WILDCARD = ".*"; //$NON-NLS-1$
+
+		private final String target;
+		private final String prefix;
+		private final boolean literal;
+		private final boolean wildcard;
+		private volatile Pattern pattern;
+
+		protected TargetMatcher(String target)
+		{
+			this.target = target;
+
+			int end = 0;
+			while (end < target.length() && META_CHARACTERS.indexOf(target.charAt(end)) < 0)
+				end++;
 
-		for (Entry<String, List<String>> groupTargetEntry : this.groupTargets.entrySet())
+			this.literal = (end == target.length());
+			this.wildcard = !this.literal && target.length() == end + WILDCARD.length() && target.endsWith(WILDCARD);
+
+			if (target.indexOf('|') >= 0)
+			{
+				// Alternation means a match need not start with anything in particular
+				end = 0;
+			}
+			else if (!this.literal && QUANTIFIERS.indexOf(target.charAt(end)) >= 0 && end > 0)
+			{
+				// The character before a quantifier is optional or repeated so is not part of the fixed prefix
+				end = target.offsetByCodePoints(end, -1);
+			}
+
+			this.prefix = target.substring(0, end);
+		}
+
+		/* Null targets and null values match everything, as they always have for resources */
+		protected static boolean matches(TargetMatcher matcher, String value)
+		{
+			return matcher == null || value == null || matcher.matches(value);
+		}
+
+		protected boolean matches(String value)
 		{
-			String groupTarget = groupTargetEntry.getKey();
-			List<String> authzTargets = groupTargetEntry.getValue();
-			defaultGroupCache.updateCache(groupTarget, authzTargets, pdpDecision);
+			if (this.target.equals(value))
+				return true;
+
+			if (this.literal || !value.startsWith(this.prefix))
+				return false;
+
+			if (this.wildcard)
+				return !containsLineTerminator(value, this.prefix.length());
+
+			Pattern compiled = this.pattern;
+			if (compiled == null)
+			{
+				compiled = Pattern.compile(this.target);
+				this.pattern = compiled;
+			}
+
+			return compiled.matcher(value).matches();
 		}
 
-		return defaultGroupCache;
+		/* '.' does not match line terminators unless DOTALL is set */
+		private static boolean containsLineTerminator(String value, int from)
+		{
+			for (int i = from; i < value.length(); i++)
+			{
+				char c = value.charAt(i);
+				if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+					return true;
+			}
+
+			return false;
+		}
+	}
+
+	protected GroupCache createDefaultGroupCache()
+	{
+		return new GroupCache(this.state.defaultEntries);
 	}
-	
+
 	protected boolean actionMatch(String target, String action)
 	{
 		if (target == null && action == null)
 			return true;
-		
+
 		if (target == null || action == null)
 			return false;
 
-		if (target.equals(action))
-			return true;
-
-		Pattern pattern = Pattern.compile(target);
-		return pattern.matcher(action).matches();
+		return matcher(target).matches(action);
 	}
 
 	protected boolean targetMatch(String target, String resource)
@@ -373,11 +529,16 @@ public class SessionGroupCacheImpl implements SessionGroupCache
 		if (target == null || resource == null)
 			return true;
 
-		if (target.equals(resource))
-			return true;
+		return matcher(target).matches(resource);
+	}
+
+	private TargetMatcher matcher(String target)
+	{
+		CacheState current = this.state;
+		if (current == null)
+			return new TargetMatcher(target);
 
-		Pattern pattern = Pattern.compile(target);
-		return pattern.matcher(resource).matches();
+		return current.matcher(target);
 	}
 
 	protected decision addDecisions(decision lhs, decision rhs)
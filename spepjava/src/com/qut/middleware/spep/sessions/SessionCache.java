@@ -78,6 +78,13 @@ public interface SessionCache
 	 */
 	public void terminateUnauthenticatedSession(String requestID);
 	
+	/**
+	 * Counts every termination of a principal session, individual or complete. Callers holding on to a session
+	 * between requests compare this value to learn that it may since have been logged out.
+	 * @return The number of terminations made by this cache
+	 */
+	public long getTerminationCount();
+	
 	/**
 	 * Cleans up threads in preparation for container shutdown
 	 */
@@ -0,0 +1,659 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Implements the SessionCache interface on concurrent maps, with expiry checked on access and
+ * 		incremental background eviction.
+ */
+package com.qut.middleware.spep.sessions.impl;
+
+import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qut.middleware.spep.sessions.Messages;
+import com.qut.middleware.spep.sessions.PrincipalSession;
+import com.qut.middleware.spep.sessions.SessionCache;
+import com.qut.middleware.spep.sessions.UnauthenticatedSession;
+
+/**
+ * Implements the SessionCache interface without a cache wide lock.
+ *
+ * Lookups are lock free reads of concurrent maps. Updates which touch both the local and ESOE session maps for a
+ * principal hold one of a fixed set of lock stripes, chosen by the ESOE session ID, so logins for different principals
+ * do not contend with each other.
+ *
+ * Expiry is checked whenever a session is retrieved, so an expired session is never returned regardless of when the
+ * background thread last ran. The background thread only reclaims memory. It walks the maps a batch at a time,
+ * yielding between batches, and evicts whatever has expired.
+ */
+public class ConcurrentSessionCacheImpl implements SessionCache
+{
+	/** Default number of lock stripes guarding principal session updates */
+	public static final int DEFAULT_STRIPES = 32;
+
+	/** Default number of sessions examined by the eviction thread before it yields */
+	public static final int DEFAULT_EVICTION_BATCH = 512;
+
+	private ConcurrentMap<String, PrincipalSession> sessions;
+	private ConcurrentMap<String, PrincipalSession> esoeSessions;
+	private ConcurrentMap<String, UnauthenticatedSession> unauthenticatedSessions;
+	private ReentrantLock[] stripes;
+	private EvictionThread evictionThread;
+
+	private long sessionCacheTimeout;
+	private long sessionCacheInterval;
+	private volatile int evictionBatchSize;
+
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong evictions;
+	private AtomicLong terminations;
+
+	/* Local logging instance */
+	private Logger logger = LoggerFactory.getLogger(ConcurrentSessionCacheImpl.class.getName());
+
+	/**
+	 * Creates the cache with the default number of lock stripes.
+	 *
+	 * @param sessionCacheTimeout
+	 *            Idle time in seconds after which an unauthenticated session is expired. Principal sessions are expired
+	 *            at the SessionNotOnOrAfter time set by the ESOE.
+	 * @param sessionCacheInterval
+	 *            Interval in seconds between passes of the eviction thread.
+	 */
+	public ConcurrentSessionCacheImpl(long sessionCacheTimeout, long sessionCacheInterval)
+	{
+		this(sessionCacheTimeout, sessionCacheInterval, DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param sessionCacheTimeout
+	 *            Idle time in seconds after which an unauthenticated session is expired. Principal sessions are expired
+	 *            at the SessionNotOnOrAfter time set by the ESOE.
+	 * @param sessionCacheInterval
+	 *            Interval in seconds between passes of the eviction thread.
+	 * @param stripeCount
+	 *            Number of locks to stripe principal session updates across.
+	 */
+	public ConcurrentSessionCacheImpl(long sessionCacheTimeout, long sessionCacheInterval, int stripeCount)
+	{
+		if (sessionCacheTimeout > Long.MAX_VALUE / 1000)
+		{
+			throw new IllegalArgumentException(Messages.getString("SessionCacheImpl.13")); //$NON-NLS-1$
+		}
+		if (sessionCacheInterval > Long.MAX_VALUE / 1000)
+		{
+			throw new IllegalArgumentException(Messages.getString("SessionCacheImpl.14")); //$NON-NLS-1$
+		}
+		if (stripeCount <= 0)
+		{
+			throw new IllegalArgumentException(Messages.getString("SessionCacheImpl.20")); //$NON-NLS-1$
+		}
+
+		this.sessionCacheTimeout = sessionCacheTimeout * 1000;
+		this.sessionCacheInterval = sessionCacheInterval * 1000;
+		this.evictionBatchSize = DEFAULT_EVICTION_BATCH;
+
+		this.sessions = new ConcurrentHashMap<String, PrincipalSession>(256, 0.75f, stripeCount);
+		this.esoeSessions = new ConcurrentHashMap<String, PrincipalSession>(256, 0.75f, stripeCount);
+		this.unauthenticatedSessions = new ConcurrentHashMap<String, UnauthenticatedSession>(256, 0.75f, stripeCount);
+
+		this.stripes = new ReentrantLock[stripeCount];
+		for (int i = 0; i < stripeCount; i++)
+		{
+			this.stripes[i] = new ReentrantLock();
+		}
+
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.evictions = new AtomicLong();
+		this.terminations = new AtomicLong();
+
+		this.evictionThread = new EvictionThread();
+		this.evictionThread.start();
+
+		this.logger.info(Messages.getString("SessionCacheImpl.21")); //$NON-NLS-1$
+	}
+
+	public void cleanup()
+	{
+		this.evictionThread.stopRunning();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.spep.sessions.SessionCache#getPrincipalSession(java.lang.String)
+	 */
+	public PrincipalSession getPrincipalSession(String sessionID)
+	{
+		if (sessionID == null)
+		{
+			this.misses.incrementAndGet();
+			return null;
+		}
+
+		PrincipalSession principalSession = this.sessions.get(sessionID);
+
+		if (principalSession != null)
+		{
+			if (!expired(principalSession, System.currentTimeMillis()))
+			{
+				this.hits.incrementAndGet();
+				return principalSession;
+			}
+
+			this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.9"), principalSession.getEsoeSessionID())); //$NON-NLS-1$
+			evictPrincipalSession(principalSession, sessionID);
+		}
+
+		this.misses.incrementAndGet();
+		this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.8"), sessionID)); //$NON-NLS-1$
+
+		return null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.spep.sessions.SessionCache#getPrincipalSessionByEsoeSessionID(java.lang.String)
+	 */
+	public PrincipalSession getPrincipalSessionByEsoeSessionID(String esoeSessionID)
+	{
+		if (esoeSessionID == null)
+		{
+			this.misses.incrementAndGet();
+			return null;
+		}
+
+		PrincipalSession principalSession = this.esoeSessions.get(esoeSessionID);
+
+		if (principalSession != null)
+		{
+			if (!expired(principalSession, System.currentTimeMillis()))
+			{
+				this.hits.incrementAndGet();
+				return principalSession;
+			}
+
+			this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.9"), principalSession.getEsoeSessionID())); //$NON-NLS-1$
+			evictPrincipalSession(principalSession, null);
+		}
+
+		this.misses.incrementAndGet();
+
+		return null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.spep.sessions.SessionCache#putPrincipalSession(java.lang.String,
+	 *      com.qut.middleware.spep.sessions.PrincipalSession)
+	 */
+	public void putPrincipalSession(String sessionID, PrincipalSession principalSession)
+	{
+		String esoeSessionID = principalSession.getEsoeSessionID();
+		if (esoeSessionID == null)
+		{
+			this.logger.error(MessageFormat.format(Messages.getString("SessionCacheImpl.1"), sessionID)); //$NON-NLS-1$
+			return;
+		}
+
+		ReentrantLock stripe = stripeFor(esoeSessionID);
+		stripe.lock();
+		try
+		{
+			this.sessions.put(sessionID, principalSession);
+			this.esoeSessions.put(esoeSessionID, principalSession);
+		}
+		finally
+		{
+			stripe.unlock();
+		}
+
+		this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.2"), sessionID)); //$NON-NLS-1$
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.spep.sessions.SessionCache#terminatePrincipalSession(com.qut.middleware.spep.sessions.PrincipalSession)
+	 */
+	public void terminatePrincipalSession(PrincipalSession principalSession)
+	{
+		String esoeSessionID = principalSession.getEsoeSessionID();
+
+		ReentrantLock stripe = stripeFor(esoeSessionID);
+		stripe.lock();
+		try
+		{
+			/* Terminate all SPEP sessionID's that reference this principal */
+			for (String sessionID : principalSession.getSessionIDList())
+			{
+				this.sessions.remove(sessionID);
+			}
+
+			if (esoeSessionID != null)
+			{
+				this.esoeSessions.remove(esoeSessionID);
+			}
+
+			this.terminations.incrementAndGet();
+		}
+		finally
+		{
+			stripe.unlock();
+		}
+
+		this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.3"), esoeSessionID)); //$NON-NLS-1$
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.spep.sessions.SessionCache#terminateIndividualPrincipalSession(com.qut.middleware.spep.sessions.PrincipalSession,
+	 *      java.lang.String)
+	 */
+	public void terminateIndividualPrincipalSession(PrincipalSession principalSession, String esoeSessionIndex)
+	{
+		String esoeSessionID = principalSession.getEsoeSessionID();
+
+		ReentrantLock stripe = stripeFor(esoeSessionID);
+		stripe.lock();
+		try
+		{
+			Map<String, String> sessionIndex = principalSession.getEsoeSessionIndex();
+			if (sessionIndex == null)
+			{
+				return;
+			}
+
+			String localSessionID = sessionIndex.get(esoeSessionIndex);
+			if (localSessionID == null)
+			{
+				return;
+			}
+
+			/* Remove this session from local sessionID cache */
+			this.sessions.remove(localSessionID);
+			principalSession.getEsoeSessionIndex().remove(esoeSessionIndex);
+			this.terminations.incrementAndGet();
+
+			/* If the principal has no further local mappings then terminate their ESOE mapping */
+			if (principalSession.getEsoeSessionIndex().size() == 0 && esoeSessionID != null)
+			{
+				this.esoeSessions.remove(esoeSessionID);
+			}
+		}
+		finally
+		{
+			stripe.unlock();
+		}
+
+		this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.3"), esoeSessionID)); //$NON-NLS-1$
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.spep.sessions.SessionCache#getUnauthenticatedSession(java.lang.String)
+	 */
+	public UnauthenticatedSession getUnauthenticatedSession(String requestID)
+	{
+		if (requestID == null)
+		{
+			this.misses.incrementAndGet();
+			return null;
+		}
+
+		UnauthenticatedSession unauthenticatedSession = this.unauthenticatedSessions.get(requestID);
+
+		if (unauthenticatedSession != null)
+		{
+			if (!idle(unauthenticatedSession))
+			{
+				unauthenticatedSession.updateTime();
+				this.hits.incrementAndGet();
+				return unauthenticatedSession;
+			}
+
+			evictUnauthenticatedSession(requestID, unauthenticatedSession);
+		}
+
+		this.misses.incrementAndGet();
+
+		return null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.spep.sessions.SessionCache#putUnauthenticatedSession(java.lang.String,
+	 *      com.qut.middleware.spep.sessions.UnauthenticatedSession)
+	 */
+	public void putUnauthenticatedSession(String requestID, UnauthenticatedSession unauthenticatedSession)
+	{
+		/* Stamp the session before publishing it so the eviction thread never sees a stale idle time */
+		unauthenticatedSession.updateTime();
+		this.unauthenticatedSessions.put(requestID, unauthenticatedSession);
+
+		this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.4"), requestID)); //$NON-NLS-1$
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.spep.sessions.SessionCache#terminateUnauthenticatedSession(java.lang.String)
+	 */
+	public void terminateUnauthenticatedSession(String requestID)
+	{
+		this.unauthenticatedSessions.remove(requestID);
+
+		this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.5"), requestID)); //$NON-NLS-1$
+	}
+
+	/**
+	 * Sets the number of sessions the eviction thread examines before yielding to request threads.
+	 *
+	 * @param evictionBatchSize
+	 *            The batch size, must be greater than 0.
+	 */
+	public void setEvictionBatchSize(int evictionBatchSize)
+	{
+		if (evictionBatchSize <= 0)
+		{
+			throw new IllegalArgumentException(Messages.getString("SessionCacheImpl.22")); //$NON-NLS-1$
+		}
+
+		this.evictionBatchSize = evictionBatchSize;
+	}
+
+	/**
+	 * @return The number of principals with a live ESOE session mapping.
+	 */
+	public int getPrincipalSessionCount()
+	{
+		return this.esoeSessions.size();
+	}
+
+	/**
+	 * @return The number of local session IDs mapped to a principal.
+	 */
+	public int getLocalSessionCount()
+	{
+		return this.sessions.size();
+	}
+
+	/**
+	 * @return The number of unauthenticated sessions held.
+	 */
+	public int getUnauthenticatedSessionCount()
+	{
+		return this.unauthenticatedSessions.size();
+	}
+
+	/**
+	 * @return The number of lookups which returned a live session.
+	 */
+	public long getHits()
+	{
+		return this.hits.get();
+	}
+
+	/**
+	 * @return The number of lookups which found no session, or found one which had expired.
+	 */
+	public long getMisses()
+	{
+		return this.misses.get();
+	}
+
+	/**
+	 * @return The number of sessions removed because they expired, either on access or by the eviction thread.
+	 */
+	public long getEvictions()
+	{
+		return this.evictions.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.qut.middleware.spep.sessions.SessionCache#getTerminationCount()
+	 */
+	public long getTerminationCount()
+	{
+		return this.terminations.get();
+	}
+
+	/**
+	 * Examines every cached session once and evicts those which have expired. Called periodically by the eviction
+	 * thread; exposed so the cache can be swept on demand.
+	 *
+	 * @return The number of sessions evicted.
+	 */
+	public int evictExpired()
+	{
+		int evicted = 0;
+		long now = System.currentTimeMillis();
+
+		this.logger.debug(Messages.getString("SessionCacheImpl.15")); //$NON-NLS-1$
+
+		/* Remove principal sessions that have expired. The iterators are weakly consistent so no lock is needed. */
+		int visited = 0;
+		Iterator<PrincipalSession> principals = this.esoeSessions.values().iterator();
+		while (principals.hasNext())
+		{
+			PrincipalSession principal = principals.next();
+			if (expired(principal, now))
+			{
+				this.logger.info(Messages.getString("SessionCacheImpl.16") + principal.getEsoeSessionID() + Messages.getString("SessionCacheImpl.17")); //$NON-NLS-1$ //$NON-NLS-2$
+				if (evictPrincipalSession(principal, null))
+				{
+					evicted++;
+				}
+			}
+
+			if (++visited % this.evictionBatchSize == 0)
+			{
+				Thread.yield();
+				now = System.currentTimeMillis();
+			}
+		}
+
+		/* Local session IDs whose principal has already lost its ESOE mapping */
+		Iterator<Map.Entry<String, PrincipalSession>> localSessions = this.sessions.entrySet().iterator();
+		while (localSessions.hasNext())
+		{
+			Map.Entry<String, PrincipalSession> entry = localSessions.next();
+			if (expired(entry.getValue(), now))
+			{
+				if (this.sessions.remove(entry.getKey(), entry.getValue()))
+				{
+					evicted++;
+					this.evictions.incrementAndGet();
+				}
+			}
+
+			if (++visited % this.evictionBatchSize == 0)
+			{
+				Thread.yield();
+				now = System.currentTimeMillis();
+			}
+		}
+
+		/* Now clean up the unauthenticated sessions */
+		Iterator<Map.Entry<String, UnauthenticatedSession>> unauthenticated = this.unauthenticatedSessions.entrySet().iterator();
+		while (unauthenticated.hasNext())
+		{
+			Map.Entry<String, UnauthenticatedSession> entry = unauthenticated.next();
+			if (idle(entry.getValue()))
+			{
+				this.logger.debug(Messages.getString("SessionCacheImpl.18") + entry.getKey() + Messages.getString("SessionCacheImpl.19")); //$NON-NLS-1$ //$NON-NLS-2$
+				if (evictUnauthenticatedSession(entry.getKey(), entry.getValue()))
+				{
+					evicted++;
+				}
+			}
+
+			if (++visited % this.evictionBatchSize == 0)
+			{
+				Thread.yield();
+			}
+		}
+
+		return evicted;
+	}
+
+	/*
+	 * Removes an expired principal and every local session ID that refers to it. The ESOE mapping is only removed if
+	 * it still refers to this principal, so a principal that has been replaced in the meantime is left alone.
+	 */
+	private boolean evictPrincipalSession(PrincipalSession principalSession, String sessionID)
+	{
+		String esoeSessionID = principalSession.getEsoeSessionID();
+		boolean removed = false;
+
+		ReentrantLock stripe = stripeFor(esoeSessionID);
+		stripe.lock();
+		try
+		{
+			if (esoeSessionID != null)
+			{
+				removed = this.esoeSessions.remove(esoeSessionID, principalSession);
+			}
+
+			if (removed)
+			{
+				for (String localSessionID : principalSession.getSessionIDList())
+				{
+					this.sessions.remove(localSessionID, principalSession);
+				}
+			}
+
+			if (sessionID != null && this.sessions.remove(sessionID, principalSession))
+			{
+				removed = true;
+			}
+		}
+		finally
+		{
+			stripe.unlock();
+		}
+
+		if (removed)
+		{
+			this.evictions.incrementAndGet();
+			this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.3"), esoeSessionID)); //$NON-NLS-1$
+		}
+
+		return removed;
+	}
+
+	private boolean evictUnauthenticatedSession(String requestID, UnauthenticatedSession unauthenticatedSession)
+	{
+		if (this.unauthenticatedSessions.remove(requestID, unauthenticatedSession))
+		{
+			this.evictions.incrementAndGet();
+			this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.5"), requestID)); //$NON-NLS-1$
+			return true;
+		}
+
+		return false;
+	}
+
+	private boolean expired(PrincipalSession principalSession, long now)
+	{
+		/* Same test as the XML calendar comparison in SessionCacheImpl, without creating a calendar per request */
+		return principalSession.getSessionNotOnOrAfter() == null || now >= principalSession.getSessionNotOnOrAfter().getTime();
+	}
+
+	private boolean idle(UnauthenticatedSession unauthenticatedSession)
+	{
+		/* Idle time is reported in seconds, the timeout is held in milliseconds */
+		return unauthenticatedSession.getIdleTime() * 1000 > this.sessionCacheTimeout;
+	}
+
+	private ReentrantLock stripeFor(String esoeSessionID)
+	{
+		if (esoeSessionID == null)
+		{
+			return this.stripes[0];
+		}
+
+		/* Spread the hash so that IDs differing only in high bits still land on different stripes */
+		int hash = esoeSessionID.hashCode();
+		hash ^= (hash >>> 16);
+
+		return this.stripes[(hash & 0x7fffffff) % this.stripes.length];
+	}
+
+	/**
+	 * Periodically evicts expired sessions. Lookups never depend on this thread, it only bounds memory held by
+	 * sessions that are never accessed again.
+	 */
+	private class EvictionThread extends Thread
+	{
+		/* Local logging instance */
+		private Logger logger = LoggerFactory.getLogger(EvictionThread.class.getName());
+		private volatile boolean running;
+
+		protected EvictionThread()
+		{
+			super("SPEP Session Cache eviction thread"); //$NON-NLS-1$
+			this.setDaemon(true);
+			this.running = true;
+		}
+
+		@Override
+		public void run()
+		{
+			while (this.running)
+			{
+				try
+				{
+					Thread.sleep(ConcurrentSessionCacheImpl.this.sessionCacheInterval);
+
+					this.logger.debug(Messages.getString("SessionCacheImpl.10")); //$NON-NLS-1$
+					int evicted = evictExpired();
+					this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.23"), Integer.valueOf(evicted))); //$NON-NLS-1$
+				}
+				catch (InterruptedException e)
+				{
+					// Woken to shut down, loop condition decides
+				}
+				catch (Exception e)
+				{
+					this.logger.error(MessageFormat.format(Messages.getString("SessionCacheImpl.11"), e.getMessage())); //$NON-NLS-1$
+				}
+			}
+		}
+
+		public void stopRunning()
+		{
+			this.running = false;
+			this.interrupt();
+		}
+	}
+}
@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.xml.datatype.XMLGregorianCalendar;
@@ -51,6 +52,7 @@ public class SessionCacheImpl implements SessionCache
 	protected long sessionCacheInterval;
 
 	private ReentrantLock lock;
+	private AtomicLong terminations;
 
 	protected void lock()
 	{
@@ -98,6 +100,7 @@ public class SessionCacheImpl implements SessionCache
 		this.cleanupThread.start();
 
 		this.lock = new ReentrantLock(true);
+		this.terminations = new AtomicLong();
 
 		this.logger.info(Messages.getString("SessionCacheImpl.0")); //$NON-NLS-1$
 	}
@@ -232,6 +235,7 @@ public class SessionCacheImpl implements SessionCache
 			}
 
 			this.esoeSessions.remove(principalSession.getEsoeSessionID());
+			this.terminations.incrementAndGet();
 			this.logger.debug(MessageFormat.format(Messages.getString("SessionCacheImpl.3"), principalSession.getEsoeSessionID())); //$NON-NLS-1$		
 		}
 		finally
@@ -261,6 +265,7 @@ public class SessionCacheImpl implements SessionCache
 					/* Remove this session from local sessionID cache */
 					this.sessions.remove(localSessionID);
 					principalSession.getEsoeSessionIndex().remove(esoeSessionIndex);
+					this.terminations.incrementAndGet();
 
 					/* If the principal has no further local mappings then terminate their ESOE mapping */
 					if (principalSession.getEsoeSessionIndex().size() == 0)
@@ -278,6 +283,16 @@ public class SessionCacheImpl implements SessionCache
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.qut.middleware.spep.sessions.SessionCache#getTerminationCount()
+	 */
+	public long getTerminationCount()
+	{
+		return this.terminations.get();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -4,15 +4,51 @@ import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.SimpleTimeZone;
 
-import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 
+import com.qut.middleware.saml2.time.Clock;
+import com.qut.middleware.saml2.time.XMLCalendarFactory;
+import com.qut.middleware.saml2.time.impl.SystemClock;
 import com.qut.middleware.spep.ConfigurationConstants;
 
-
+/** Creates XML calendars for the current time, as read from a clock which may be replaced for testing. Calendars
+ * are created with a shared DatatypeFactory, see {@link XMLCalendarFactory}.
+ */
 public class CalendarUtils 
 {
+	private static volatile Clock clock = new SystemClock();
+	
+	
+	/**
+	 * @return The clock the current time is read from.
+	 */
+	public static Clock getClock()
+	{
+		return clock;
+	}
+	
+	
+	/** Sets the clock the current time is read from. Defaults to the system clock.
+	 * 
+	 * @param newClock The clock to use.
+	 */
+	public static void setClock(Clock newClock)
+	{
+		if(newClock == null)
+			throw new IllegalArgumentException("Param newClock MUST NOT be null."); //$NON-NLS-1$
+		
+		clock = newClock;
+	}
+	
+	
+	/**
+	 * @return The current time in milliseconds, as read from the clock.
+	 */
+	public static long currentTimeMillis()
+	{
+		return clock.currentTimeMillis();
+	}
 	
 	
 	/**
@@ -23,20 +59,7 @@ public class CalendarUtils
 	 */
 	public static XMLGregorianCalendar generateXMLCalendar()
 	{
-		GregorianCalendar calendar;
-				
-		SimpleTimeZone tz = new SimpleTimeZone(0, ConfigurationConstants.timeZone);
-		calendar = new GregorianCalendar(tz);
-		
-		try
-		{
-			DatatypeFactory factory = DatatypeFactory.newInstance();		
-			return factory.newXMLGregorianCalendar(calendar);
-		}
-		catch(DatatypeConfigurationException e)
-		{
-			return null;
-		}
+		return XMLCalendarFactory.newUTCCalendar(clock.currentTimeMillis());
 	}
 	
 	
@@ -50,21 +73,7 @@ public class CalendarUtils
 	 */
 	public static XMLGregorianCalendar generateXMLCalendar(int offset)
 	{
-		GregorianCalendar calendar;
-				
-		SimpleTimeZone tz = new SimpleTimeZone(0, ConfigurationConstants.timeZone);
-		calendar = new GregorianCalendar(tz);
-		calendar.add(Calendar.SECOND, offset);
-		
-		try
-		{
-			DatatypeFactory factory = DatatypeFactory.newInstance();		
-			return factory.newXMLGregorianCalendar(calendar);
-		}
-		catch(DatatypeConfigurationException e)
-		{
-			return null;
-		}
+		return XMLCalendarFactory.newUTCCalendar(clock.currentTimeMillis() + offset * 1000L);
 	}
 	
 	
@@ -81,21 +90,36 @@ public class CalendarUtils
 	 */
 	public static XMLGregorianCalendar generateXMLCalendar(int offset, int increment)
 	{
-		GregorianCalendar calendar;
-				
-		SimpleTimeZone tz = new SimpleTimeZone(0, ConfigurationConstants.timeZone);
-		calendar = new GregorianCalendar(tz);
-		calendar.add(increment, offset);
+		long now = clock.currentTimeMillis();
 		
-		try
+		// UTC has no daylight saving, so units up to a day are a fixed length
+		switch(increment)
 		{
-			DatatypeFactory factory = DatatypeFactory.newInstance();		
-			return factory.newXMLGregorianCalendar(calendar);
+			case Calendar.MILLISECOND:
+				return XMLCalendarFactory.newUTCCalendar(now + offset);
+			case Calendar.SECOND:
+				return XMLCalendarFactory.newUTCCalendar(now + offset * 1000L);
+			case Calendar.MINUTE:
+				return XMLCalendarFactory.newUTCCalendar(now + offset * 60000L);
+			case Calendar.HOUR:
+			case Calendar.HOUR_OF_DAY:
+				return XMLCalendarFactory.newUTCCalendar(now + offset * 3600000L);
+			case Calendar.DAY_OF_MONTH:
+			case Calendar.DAY_OF_YEAR:
+				return XMLCalendarFactory.newUTCCalendar(now + offset * 86400000L);
+			default:
+				break;
 		}
-		catch(DatatypeConfigurationException e)
-		{
+		
+		DatatypeFactory factory = XMLCalendarFactory.getDatatypeFactory();
+		if(factory == null)
 			return null;
-		}
+		
+		SimpleTimeZone tz = new SimpleTimeZone(0, ConfigurationConstants.timeZone);
+		GregorianCalendar calendar = new GregorianCalendar(tz);
+		calendar.setTimeInMillis(now);
+		calendar.add(increment, offset);
+		
+		return factory.newXMLGregorianCalendar(calendar);
 	}
-
 }
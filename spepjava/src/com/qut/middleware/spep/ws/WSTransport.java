@@ -0,0 +1,37 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Defines the transport used by the web services client to exchange SOAP documents with remote endpoints
+ */
+package com.qut.middleware.spep.ws;
+
+import com.qut.middleware.spep.ws.exception.WSClientException;
+
+/** Defines the transport used by the web services client to exchange SOAP documents with remote endpoints. */
+public interface WSTransport
+{
+	/**
+	 * Sends a wrapped SOAP request to the endpoint and returns the complete response body.
+	 * 
+	 * @param endpoint The string representation of the endpoint URL to send to.
+	 * @param soapAction The SOAPAction header value to send.
+	 * @param contentType The content type of the request document.
+	 * @param request The wrapped SOAP request document.
+	 * @return The response document sent back from the endpoint.
+	 * @throws WSClientException if the request could not be sent or the response could not be read.
+	 */
+	public byte[] invoke(String endpoint, String soapAction, String contentType, byte[] request) throws WSClientException;
+}
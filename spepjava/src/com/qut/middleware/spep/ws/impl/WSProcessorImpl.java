@@ -19,6 +19,8 @@
  */
 package com.qut.middleware.spep.ws.impl;
 
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -73,13 +75,14 @@ public class WSProcessorImpl implements WSProcessor
 		{
 			SOAPHandler handler = this.getHandler(contentType);
 			
+			String responseEncoding = this.getEncoding(handler, contentType, authzCacheClear);
 			Element request = readRequest(authzCacheClear, handler);
 			
 			Element response = this.policyEnforcementProcessor.authzCacheClear(request);
 			if (response != null)
 			{
 				this.logger.debug("Authz cache clear processed. Responding to ESOE with response document");
-				return generateResponse(response, handler);
+				return generateResponse(response, handler, responseEncoding);
 			}
 
 			this.logger.warn("Authz cache clear resulted in null response document.");
@@ -101,13 +104,14 @@ public class WSProcessorImpl implements WSProcessor
 		{
 			SOAPHandler handler = this.getHandler(contentType);
 			
+			String responseEncoding = this.getEncoding(handler, contentType, logoutRequest);
 			Element request = readRequest(logoutRequest, handler);
 			
 			Element response = this.authnProcessor.logoutPrincipal(request);
 			if (response != null)
 			{
 				this.logger.debug("Authz cache clear processed. Responding to ESOE with response document");
-				return generateResponse(response, handler);
+				return generateResponse(response, handler, responseEncoding);
 			}
 
 			this.logger.warn("Authz cache clear resulted in null response document.");
@@ -126,13 +130,14 @@ public class WSProcessorImpl implements WSProcessor
 		{
 			SOAPHandler handler = this.getHandler(contentType);
 			
+			String responseEncoding = this.getEncoding(handler, contentType, artifactResolve);
 			Element request = readRequest(artifactResolve, handler);
 			
 			Element response = this.artifactProcessor.execute(request);
 			if (response != null)
 			{
 				this.logger.debug("Artifact resolve processed. Responding to ESOE with response document");
-				return generateResponse(response, handler);
+				return generateResponse(response, handler, responseEncoding);
 			}
 
 			this.logger.warn("Artifact resolve resulted in null response document.");
@@ -156,8 +161,23 @@ public class WSProcessorImpl implements WSProcessor
 		throw new WSProcessorException("No registered SOAPHandler available to handle Content-Type: " + contentType);
 	}
 	
-	private String getEncoding(SOAPHandler handler, byte[] document)
+	private String getEncoding(SOAPHandler handler, String contentType, byte[] document)
 	{
+		/* Peers name the encoding of their request in the content type, and are answered in the same encoding */
+		String encoding = handler.getEncoding(contentType);
+		try
+		{
+			if (encoding != null && Charset.isSupported(encoding))
+			{
+				return encoding;
+			}
+		}
+		catch (IllegalCharsetNameException e)
+		{
+			this.logger.debug("Ignoring illegal charset {} in content type", encoding);
+		}
+		
+		/* Older peers may not, so make a best effort determination from the document itself */
 		CharsetDetector detector = new CharsetDetector();
 		detector.setText(document);
 		CharsetMatch match = detector.detect();
@@ -182,8 +202,11 @@ public class WSProcessorImpl implements WSProcessor
 	{
 		try
 		{
-			CharsetDetector detector = new CharsetDetector();
-			this.logger.trace(detector.getString(requestDocument, null));
+			if (this.logger.isTraceEnabled())
+			{
+				CharsetDetector detector = new CharsetDetector();
+				this.logger.trace(detector.getString(requestDocument, null));
+			}
 			
 			return handler.unwrapDocument(requestDocument);
 		}
@@ -200,14 +223,17 @@ public class WSProcessorImpl implements WSProcessor
 	 * @param responseDocument DOM Element representing the SAML document to respond with.
 	 * @return Raw SOAP document containing the response.
 	 */
-	private byte[] generateResponse(Element responseDocument, SOAPHandler handler) throws WSProcessorException
+	private byte[] generateResponse(Element responseDocument, SOAPHandler handler, String encoding) throws WSProcessorException
 	{
 		try
 		{
-			byte[] document = handler.wrapDocument(responseDocument);
+			byte[] document = handler.wrapDocument(responseDocument, encoding);
 			
-			CharsetDetector detector = new CharsetDetector();
-			this.logger.trace(detector.getString(document, null));
+			if (this.logger.isTraceEnabled())
+			{
+				CharsetDetector detector = new CharsetDetector();
+				this.logger.trace(detector.getString(document, null));
+			}
 			
 			return document;
 		}
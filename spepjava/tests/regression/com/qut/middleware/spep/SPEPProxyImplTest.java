@@ -19,7 +19,9 @@ import org.junit.Test;
 import com.qut.middleware.spep.authn.AuthnProcessor;
 import com.qut.middleware.spep.impl.SPEPProxyImpl;
 import com.qut.middleware.spep.pep.PolicyEnforcementProcessor;
+import com.qut.middleware.spep.pep.SessionGroupCache;
 import com.qut.middleware.spep.sessions.PrincipalSession;
+import com.qut.middleware.spep.sessions.SessionCache;
 
 public class SPEPProxyImplTest
 {
@@ -275,6 +277,32 @@ public class SPEPProxyImplTest
 		verify(spep);
 	}
 
+	@Test
+	public void testGetAuthzStateVersion()
+	{
+		SessionCache sessionCache = createMock(SessionCache.class);
+		SessionGroupCache sessionGroupCache = createMock(SessionGroupCache.class);
+		spep = createMock(SPEP.class);
+		
+		expect(spep.getSessionCache()).andReturn(sessionCache).times(2);
+		expect(spep.getSessionGroupCache()).andReturn(sessionGroupCache).times(2);
+		expect(sessionCache.getTerminationCount()).andReturn(3L);
+		expect(sessionCache.getTerminationCount()).andReturn(4L);
+		expect(sessionGroupCache.getClearCount()).andReturn(1L).times(2);
+		
+		replay(sessionCache);
+		replay(sessionGroupCache);
+		replay(spep);
+		
+		proxy = new SPEPProxyImpl(spep);
+		assertEquals(4L, proxy.getAuthzStateVersion());
+		assertEquals(5L, proxy.getAuthzStateVersion());
+		
+		verify(sessionCache);
+		verify(sessionGroupCache);
+		verify(spep);
+	}
+
 	@Test
 	public void testGetLazyInitResources()
 	{
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 17/10/2008
+ *
+ * Purpose: Tests the SessionGroupCache target matching and cache replacement
+ */
+package com.qut.middleware.spep.pep;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.qut.middleware.spep.pep.PolicyEnforcementProcessor.decision;
+import com.qut.middleware.spep.pep.impl.SessionGroupCacheImpl;
+import com.qut.middleware.spep.sessions.PrincipalSession;
+
+@SuppressWarnings("nls")
+public class SessionGroupCacheMatchTest
+{
+	private static final String[] TARGETS = { "/admin/index.jsp", "/admin/.*", "/.*.jsp", ".*/secure/.*.gif",
+			"/admin/secure/.*", "/ab?c", "/a+b/.*", "/x|/admin/.*", "/admin/\\d+", "/[a-z]+/page", "(?i)/ADMIN/.*",
+			"/a{2}/.*", "/\u00e9?x", "/\ud801\udc00?x", "GET", "GET|POST" };
+
+	private static final String[] VALUES = { "/admin/index.jsp", "/admin/", "/admin/secure/icon.gif", "/admin/12",
+			"/ac", "/abc", "/abbc", "/aab/x", "/aa/x", "/x", "/x/y", "/admin/line\nbreak", "/admin/para\u2029", "/some/page",
+			"/somepage.jsp", "x", "/\u00e9x", "/\ud801\udc00x", "GET", "POST", "" };
+
+	/* Exposes the protected matching methods */
+	private static class MatchingCache extends SessionGroupCacheImpl
+	{
+		public MatchingCache()
+		{
+			super(decision.deny);
+		}
+
+		public boolean target(String target, String resource)
+		{
+			return targetMatch(target, resource);
+		}
+
+		public boolean action(String target, String action)
+		{
+			return actionMatch(target, action);
+		}
+	}
+
+	/**
+	 * Tests that target matching gives the same result as String.equals || Pattern.matches for literal, wildcard and
+	 * general regular expression targets.
+	 */
+	@Test
+	public void testTargetMatch()
+	{
+		MatchingCache cache = new MatchingCache();
+		cache.clearCache(new HashMap<String, List<String>>());
+
+		for (String target : TARGETS)
+		{
+			for (String value : VALUES)
+			{
+				boolean expected = target.equals(value) || Pattern.matches(target, value);
+
+				assertEquals("Target " + target + " against " + value, expected, cache.target(target, value));
+				assertEquals("Action " + target + " against " + value, expected, cache.action(target, value));
+			}
+		}
+
+		assertEquals(true, cache.target(null, "/admin/"));
+		assertEquals(true, cache.target("/admin/", null));
+		assertEquals(true, cache.action(null, null));
+		assertEquals(false, cache.action("GET", null));
+		assertEquals(false, cache.action(null, "GET"));
+	}
+
+	/**
+	 * Tests that clearing the cache discards decisions cached for every session.
+	 */
+	@Test
+	public void testClearCache()
+	{
+		SessionGroupCache sessionGroupCache = new SessionGroupCacheImpl(decision.deny);
+		PrincipalSession principalSession = createMock(PrincipalSession.class);
+		expect(principalSession.getEsoeSessionID()).andReturn("1234567890").anyTimes();
+		replay(principalSession);
+
+		String groupTarget = "/admin/.*";
+		List<String> authzTargets = new Vector<String>();
+		authzTargets.add("/admin/secure/.*");
+
+		Map<String, List<String>> groupTargetMap = new HashMap<String, List<String>>();
+		groupTargetMap.put(groupTarget, authzTargets);
+		sessionGroupCache.clearCache(groupTargetMap);
+
+		sessionGroupCache.updateCache(principalSession, groupTarget, authzTargets, null, decision.permit);
+		assertEquals(decision.permit, sessionGroupCache.makeCachedAuthzDecision(principalSession, "/admin/secure/page.jsp"));
+		assertEquals(decision.deny, sessionGroupCache.makeCachedAuthzDecision(principalSession, "/public/page.jsp"));
+
+		sessionGroupCache.clearCache(groupTargetMap);
+		assertEquals(decision.notcached, sessionGroupCache.makeCachedAuthzDecision(principalSession, "/admin/secure/page.jsp"));
+
+		sessionGroupCache.updateCache(principalSession, groupTarget, authzTargets, null, decision.deny);
+		assertEquals(decision.deny, sessionGroupCache.makeCachedAuthzDecision(principalSession, "/admin/secure/page.jsp"));
+
+		sessionGroupCache.clearPrincipalSession(principalSession);
+		assertEquals(decision.notcached, sessionGroupCache.makeCachedAuthzDecision(principalSession, "/admin/secure/page.jsp"));
+	}
+}
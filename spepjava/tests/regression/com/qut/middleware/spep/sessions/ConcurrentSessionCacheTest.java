@@ -0,0 +1,306 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Tests the concurrent session cache expiry, eviction and metrics.
+ */
+package com.qut.middleware.spep.sessions;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qut.middleware.spep.sessions.impl.ConcurrentSessionCacheImpl;
+import com.qut.middleware.spep.sessions.impl.PrincipalSessionImpl;
+import com.qut.middleware.spep.sessions.impl.UnauthenticatedSessionImpl;
+
+@SuppressWarnings("nls")
+public class ConcurrentSessionCacheTest
+{
+	private ConcurrentSessionCacheImpl sessionCache;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		this.sessionCache = new ConcurrentSessionCacheImpl(1, 3600);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		this.sessionCache.cleanup();
+	}
+
+	/**
+	 * Tests that live sessions are returned by both keys and counted as hits.
+	 */
+	@Test
+	public void testPutPrincipalSession()
+	{
+		PrincipalSession principalSession = createMock(PrincipalSession.class);
+		String sessionID = "59872938759238745982374958273498572345";
+		String samlID = "_u5uaq0e9w5j0q9235i09qi23059iq0a9wi5q9235i";
+
+		expect(principalSession.getEsoeSessionID()).andReturn(samlID).anyTimes();
+		expect(principalSession.getSessionNotOnOrAfter()).andReturn(new Date(System.currentTimeMillis() + 30000)).anyTimes();
+		replay(principalSession);
+
+		assertNull("Session returned from empty cache", this.sessionCache.getPrincipalSession(sessionID));
+
+		this.sessionCache.putPrincipalSession(sessionID, principalSession);
+
+		assertSame("No session returned", principalSession, this.sessionCache.getPrincipalSession(sessionID));
+		assertSame("No session returned", principalSession, this.sessionCache.getPrincipalSessionByEsoeSessionID(samlID));
+
+		assertEquals(2, this.sessionCache.getHits());
+		assertEquals(1, this.sessionCache.getMisses());
+		assertEquals(1, this.sessionCache.getPrincipalSessionCount());
+		assertEquals(1, this.sessionCache.getLocalSessionCount());
+
+		verify(principalSession);
+	}
+
+	/**
+	 * Tests that an expired principal is removed on access, by either key, and counted once as an eviction.
+	 */
+	@Test
+	public void testExpiredOnAccess()
+	{
+		PrincipalSession principalSession = createMock(PrincipalSession.class);
+		String sessionID = "59872938759238745982374958273498572345";
+		String samlID = "_u5uaq0e9w5j0q9235i09qi23059iq0a9wi5q9235i";
+		List<String> sessionIDList = new ArrayList<String>();
+		sessionIDList.add(sessionID);
+
+		expect(principalSession.getEsoeSessionID()).andReturn(samlID).anyTimes();
+		expect(principalSession.getSessionNotOnOrAfter()).andReturn(new Date(System.currentTimeMillis() - 1)).anyTimes();
+		expect(principalSession.getSessionIDList()).andReturn(sessionIDList);
+		replay(principalSession);
+
+		this.sessionCache.putPrincipalSession(sessionID, principalSession);
+
+		assertNull("Session returned though it has expired.", this.sessionCache.getPrincipalSession(sessionID));
+		assertNull("Session returned though it has expired.", this.sessionCache.getPrincipalSessionByEsoeSessionID(samlID));
+
+		assertEquals(0, this.sessionCache.getHits());
+		assertEquals(2, this.sessionCache.getMisses());
+		assertEquals(1, this.sessionCache.getEvictions());
+		assertEquals(0, this.sessionCache.getPrincipalSessionCount());
+		assertEquals(0, this.sessionCache.getLocalSessionCount());
+
+		verify(principalSession);
+	}
+
+	/**
+	 * Tests that terminating one of a principal's sessions leaves the others in place.
+	 */
+	@Test
+	public void testTerminateIndividualPrincipalSession()
+	{
+		PrincipalSession principalSession = new PrincipalSessionImpl();
+		principalSession.setEsoeSessionID("_9509280t9q0we9i0q9i3209i029ti09q2ji3t");
+		principalSession.setSessionNotOnOrAfter(new Date(System.currentTimeMillis() + 30000));
+		principalSession.addESOESessionIndexAndLocalSessionID("123456789", "session1");
+		principalSession.addESOESessionIndexAndLocalSessionID("012345678", "session2");
+
+		this.sessionCache.putPrincipalSession("session1", principalSession);
+		this.sessionCache.putPrincipalSession("session2", principalSession);
+
+		this.sessionCache.terminateIndividualPrincipalSession(principalSession, "123456789");
+		assertEquals(1, this.sessionCache.getTerminationCount());
+		assertNull(this.sessionCache.getPrincipalSession("session1"));
+		assertNotNull(this.sessionCache.getPrincipalSession("session2"));
+		assertNotNull(this.sessionCache.getPrincipalSessionByEsoeSessionID(principalSession.getEsoeSessionID()));
+
+		this.sessionCache.terminateIndividualPrincipalSession(principalSession, "012345678");
+		assertNull(this.sessionCache.getPrincipalSession("session2"));
+		assertNull(this.sessionCache.getPrincipalSessionByEsoeSessionID(principalSession.getEsoeSessionID()));
+		assertEquals("Termination is not eviction", 0, this.sessionCache.getEvictions());
+		assertEquals(2, this.sessionCache.getTerminationCount());
+	}
+
+	/**
+	 * Tests that an unauthenticated session idle past the timeout is not returned, and that a live one is touched.
+	 */
+	@Test
+	public void testUnauthenticatedIdleExpiry()
+	{
+		UnauthenticatedSession live = createMock(UnauthenticatedSession.class);
+		live.updateTime();
+		expectLastCall().times(2);
+		expect(live.getIdleTime()).andReturn(new Long(0)).anyTimes();
+
+		UnauthenticatedSession idle = createMock(UnauthenticatedSession.class);
+		idle.updateTime();
+		expectLastCall().once();
+		expect(idle.getIdleTime()).andReturn(new Long(2)).anyTimes();
+
+		replay(live);
+		replay(idle);
+
+		this.sessionCache.putUnauthenticatedSession("live", live);
+		this.sessionCache.putUnauthenticatedSession("idle", idle);
+
+		assertSame(live, this.sessionCache.getUnauthenticatedSession("live"));
+		assertNull("Idle session returned", this.sessionCache.getUnauthenticatedSession("idle"));
+		assertEquals(1, this.sessionCache.getEvictions());
+		assertEquals(1, this.sessionCache.getUnauthenticatedSessionCount());
+
+		verify(live);
+		verify(idle);
+	}
+
+	/**
+	 * Tests that a sweep evicts every expired session, across several batches, and leaves live sessions.
+	 */
+	@Test
+	public void testEvictExpired()
+	{
+		this.sessionCache.setEvictionBatchSize(3);
+
+		Date past = new Date(System.currentTimeMillis() - 1000);
+		Date future = new Date(System.currentTimeMillis() + 30000);
+
+		for (int i = 0; i < 10; i++)
+		{
+			PrincipalSession principalSession = new PrincipalSessionImpl();
+			principalSession.setEsoeSessionID("esoe" + i);
+			principalSession.setSessionNotOnOrAfter(i % 2 == 0 ? past : future);
+			principalSession.addESOESessionIndexAndLocalSessionID("index" + i, "local" + i);
+			this.sessionCache.putPrincipalSession("local" + i, principalSession);
+		}
+
+		UnauthenticatedSession unauthenticatedSession = new UnauthenticatedSessionImpl();
+		this.sessionCache.putUnauthenticatedSession("request", unauthenticatedSession);
+
+		assertEquals(5, this.sessionCache.evictExpired());
+		assertEquals(5, this.sessionCache.getPrincipalSessionCount());
+		assertEquals(5, this.sessionCache.getLocalSessionCount());
+		assertEquals(1, this.sessionCache.getUnauthenticatedSessionCount());
+		assertNull(this.sessionCache.getPrincipalSession("local0"));
+		assertNotNull(this.sessionCache.getPrincipalSession("local1"));
+
+		assertEquals("Second sweep should find nothing", 0, this.sessionCache.evictExpired());
+	}
+
+	/**
+	 * Tests that principals stored and terminated from many threads leave the cache consistent.
+	 */
+	@Test
+	public void testConcurrentUpdates() throws Exception
+	{
+		final int threads = 8;
+		final int perThread = 500;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger failures = new AtomicInteger();
+		final Date future = new Date(System.currentTimeMillis() + 60000);
+
+		for (int t = 0; t < threads; t++)
+		{
+			final int thread = t;
+			new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						for (int i = 0; i < perThread; i++)
+						{
+							String id = thread + "-" + i;
+							PrincipalSession principalSession = new PrincipalSessionImpl();
+							principalSession.setEsoeSessionID("esoe" + id);
+							principalSession.setSessionNotOnOrAfter(future);
+							principalSession.addESOESessionIndexAndLocalSessionID("index" + id, "local" + id);
+
+							ConcurrentSessionCacheTest.this.sessionCache.putPrincipalSession("local" + id, principalSession);
+							if (ConcurrentSessionCacheTest.this.sessionCache.getPrincipalSession("local" + id) != principalSession)
+								failures.incrementAndGet();
+
+							if (i % 2 == 1)
+								ConcurrentSessionCacheTest.this.sessionCache.terminatePrincipalSession(principalSession);
+						}
+					}
+					catch (InterruptedException e)
+					{
+						failures.incrementAndGet();
+					}
+					finally
+					{
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		start.countDown();
+		done.await();
+
+		assertEquals(0, failures.get());
+		assertEquals(threads * perThread / 2, this.sessionCache.getPrincipalSessionCount());
+		assertEquals(threads * perThread / 2, this.sessionCache.getLocalSessionCount());
+	}
+
+	/**
+	 * Tests that terminating an unknown session index leaves the principal in place.
+	 */
+	@Test
+	public void testTerminateUnknownIndex()
+	{
+		PrincipalSession principalSession = createMock(PrincipalSession.class);
+		Map<String, String> esoeSessionIndex = new HashMap<String, String>();
+		esoeSessionIndex.put("123456789", "session1");
+
+		expect(principalSession.getEsoeSessionID()).andReturn("_samlID").anyTimes();
+		expect(principalSession.getEsoeSessionIndex()).andReturn(esoeSessionIndex).anyTimes();
+		expect(principalSession.getSessionNotOnOrAfter()).andReturn(new Date(System.currentTimeMillis() + 30000)).anyTimes();
+		replay(principalSession);
+
+		this.sessionCache.putPrincipalSession("session1", principalSession);
+		this.sessionCache.terminateIndividualPrincipalSession(principalSession, "unknown");
+
+		assertSame(principalSession, this.sessionCache.getPrincipalSession("session1"));
+		assertSame(principalSession, this.sessionCache.getPrincipalSessionByEsoeSessionID("_samlID"));
+		assertEquals("Nothing was terminated", 0, this.sessionCache.getTerminationCount());
+
+		verify(principalSession);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidStripes()
+	{
+		new ConcurrentSessionCacheImpl(1, 1, 0);
+	}
+}
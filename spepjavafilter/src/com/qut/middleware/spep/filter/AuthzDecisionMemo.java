@@ -0,0 +1,189 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Remembers, for a short time, the resources each session has been permitted to access.
+ */
+
+package com.qut.middleware.spep.filter;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.qut.middleware.spep.sessions.PrincipalSession;
+
+/**
+ * A per session memo of permit decisions, so that a session requesting the same decoded resource again within the
+ * memo lifetime is let through without asking the SPEP.
+ *
+ * Each session's memo records the SPEP authorization state version it was made under, and is only used while the
+ * SPEP still reports that version. Any logout or authorization cache clear changes the version, so discards every
+ * memo. A memo also never outlives the session's SessionNotOnOrAfter time. Only permit decisions are remembered.
+ */
+public class AuthzDecisionMemo
+{
+	/** The most resources remembered for one session, further permits are not remembered. */
+	public static final int MAX_RESOURCES = 64;
+
+	/* Number of memos made between sweeps of expired sessions */
+	private static final int SWEEP_INTERVAL = 256;
+
+	private final long lifetime;
+	private final ConcurrentMap<String, SessionMemo> sessions;
+	private final AtomicInteger putsSinceSweep;
+
+	/**
+	 * @param lifetime The longest time in milliseconds a permit decision is remembered. Must be greater than 0.
+	 */
+	public AuthzDecisionMemo(long lifetime)
+	{
+		if (lifetime <= 0)
+			throw new IllegalArgumentException("Memo lifetime must be greater than 0"); //$NON-NLS-1$
+
+		this.lifetime = lifetime;
+		this.sessions = new ConcurrentHashMap<String, SessionMemo>();
+		this.putsSinceSweep = new AtomicInteger();
+	}
+
+	/**
+	 * Finds a remembered permit decision.
+	 *
+	 * @param sessionID The SPEP session ID.
+	 * @param resource The decoded resource being requested.
+	 * @param version The authorization state version currently reported by the SPEP.
+	 * @return The principal session access was permitted for, or null if no decision is remembered.
+	 */
+	public PrincipalSession getPermitted(String sessionID, String resource, long version)
+	{
+		if (sessionID == null || version < 0)
+			return null;
+
+		SessionMemo memo = this.sessions.get(sessionID);
+		if (memo == null)
+			return null;
+
+		if (!memo.isCurrent(version, System.currentTimeMillis()))
+		{
+			this.sessions.remove(sessionID, memo);
+			return null;
+		}
+
+		return memo.resources.contains(resource) ? memo.principalSession : null;
+	}
+
+	/**
+	 * Remembers that access to a resource was permitted.
+	 *
+	 * @param sessionID The SPEP session ID.
+	 * @param principalSession The principal session the decision was made for.
+	 * @param resource The decoded resource which was requested.
+	 * @param version The authorization state version read before the session was verified.
+	 */
+	public void putPermitted(String sessionID, PrincipalSession principalSession, String resource, long version)
+	{
+		if (sessionID == null || principalSession == null || version < 0)
+			return;
+
+		long now = System.currentTimeMillis();
+		SessionMemo memo = this.sessions.get(sessionID);
+		if (memo == null || !memo.isCurrent(version, now))
+		{
+			long expiry = now + this.lifetime;
+			if (principalSession.getSessionNotOnOrAfter() != null)
+				expiry = Math.min(expiry, principalSession.getSessionNotOnOrAfter().getTime());
+
+			if (expiry <= now)
+				return;
+
+			memo = new SessionMemo(principalSession, version, expiry);
+			this.sessions.put(sessionID, memo);
+		}
+
+		if (memo.resources.size() < MAX_RESOURCES)
+			memo.resources.add(resource);
+
+		if (this.putsSinceSweep.incrementAndGet() >= SWEEP_INTERVAL)
+		{
+			this.putsSinceSweep.set(0);
+			sweep(now);
+		}
+	}
+
+	/**
+	 * Forgets everything remembered for a session.
+	 *
+	 * @param sessionID The SPEP session ID.
+	 */
+	public void invalidate(String sessionID)
+	{
+		if (sessionID != null)
+			this.sessions.remove(sessionID);
+	}
+
+	/**
+	 * @return The number of sessions with remembered decisions.
+	 */
+	public int size()
+	{
+		return this.sessions.size();
+	}
+
+	/**
+	 * Removes the memos of sessions which have expired.
+	 *
+	 * @param now The current time in milliseconds.
+	 * @return The number of memos removed.
+	 */
+	public int sweep(long now)
+	{
+		int removed = 0;
+		Iterator<SessionMemo> iterator = this.sessions.values().iterator();
+		while (iterator.hasNext())
+		{
+			if (now >= iterator.next().expiry)
+			{
+				iterator.remove();
+				removed++;
+			}
+		}
+
+		return removed;
+	}
+
+	private static final class SessionMemo
+	{
+		protected final PrincipalSession principalSession;
+		protected final long version;
+		protected final long expiry;
+		protected final Set<String> resources;
+
+		protected SessionMemo(PrincipalSession principalSession, long version, long expiry)
+		{
+			this.principalSession = principalSession;
+			this.version = version;
+			this.expiry = expiry;
+			this.resources = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		}
+
+		protected boolean isCurrent(long currentVersion, long now)
+		{
+			return this.version == currentVersion && now < this.expiry;
+		}
+	}
+}
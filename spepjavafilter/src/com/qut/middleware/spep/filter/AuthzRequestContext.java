@@ -0,0 +1,165 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Holds the session and authorization decision established for a single request.
+ */
+
+package com.qut.middleware.spep.filter;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.qut.middleware.spep.SPEPProxy;
+import com.qut.middleware.spep.sessions.PrincipalSession;
+
+/**
+ * The session and authorization state the filter has established for one request, kept as a request attribute.
+ *
+ * When the filter sees the same request again, for example on a forward or include, the session is not looked up a
+ * second time, and the decision is reused if the requested resource has not changed.
+ */
+public class AuthzRequestContext
+{
+	public static final String REQUEST_ATTRIBUTE = "com.qut.middleware.spep.filter.authzcontext"; //$NON-NLS-1$
+
+	private final String sessionID;
+	private PrincipalSession principalSession;
+	private boolean verified;
+
+	private String requestedResource;
+	private String resource;
+	private SPEPProxy.decision decision;
+
+	/**
+	 * Finds the context for the request, creating it if the request has none or has one for another session.
+	 *
+	 * @param request The request being filtered.
+	 * @param sessionID The SPEP session ID presented with the request, may be null.
+	 * @return The request context.
+	 */
+	public static AuthzRequestContext getContext(HttpServletRequest request, String sessionID)
+	{
+		Object attribute = request.getAttribute(REQUEST_ATTRIBUTE);
+		if (attribute instanceof AuthzRequestContext)
+		{
+			AuthzRequestContext context = (AuthzRequestContext) attribute;
+			if (sessionID == null ? context.sessionID == null : sessionID.equals(context.sessionID))
+				return context;
+		}
+
+		AuthzRequestContext context = new AuthzRequestContext(sessionID);
+		request.setAttribute(REQUEST_ATTRIBUTE, context);
+		return context;
+	}
+
+	/**
+	 * @param sessionID The SPEP session ID presented with the request, may be null.
+	 */
+	public AuthzRequestContext(String sessionID)
+	{
+		this.sessionID = sessionID;
+	}
+
+	/**
+	 * @return The SPEP session ID presented with the request, or null.
+	 */
+	public String getSessionID()
+	{
+		return this.sessionID;
+	}
+
+	/**
+	 * @return true if the session has been looked up for this request.
+	 */
+	public boolean isVerified()
+	{
+		return this.verified;
+	}
+
+	/**
+	 * @return The principal session found for this request, or null if there is none or it has not been looked up.
+	 */
+	public PrincipalSession getPrincipalSession()
+	{
+		return this.principalSession;
+	}
+
+	/**
+	 * Records the result of looking up the session.
+	 *
+	 * @param principalSession The principal session, or null if the session is not valid.
+	 */
+	public void setPrincipalSession(PrincipalSession principalSession)
+	{
+		this.principalSession = principalSession;
+		this.verified = true;
+	}
+
+	/**
+	 * Sets the resource currently being requested. If it differs from the one last set, the decoded resource and
+	 * decision are discarded.
+	 *
+	 * @param requestedResource The request URI and query string, as received.
+	 */
+	public void setRequestedResource(String requestedResource)
+	{
+		if (!requestedResource.equals(this.requestedResource))
+		{
+			this.requestedResource = requestedResource;
+			this.resource = null;
+			this.decision = null;
+		}
+	}
+
+	/**
+	 * @return The request URI and query string, as received.
+	 */
+	public String getRequestedResource()
+	{
+		return this.requestedResource;
+	}
+
+	/**
+	 * @return The decoded resource, or null if it has not been decoded yet.
+	 */
+	public String getResource()
+	{
+		return this.resource;
+	}
+
+	/**
+	 * @param resource The decoded resource.
+	 */
+	public void setResource(String resource)
+	{
+		this.resource = resource;
+	}
+
+	/**
+	 * @return The authorization decision for the decoded resource, or null if none has been made.
+	 */
+	public SPEPProxy.decision getDecision()
+	{
+		return this.decision;
+	}
+
+	/**
+	 * @param decision The authorization decision for the decoded resource.
+	 */
+	public void setDecision(SPEPProxy.decision decision)
+	{
+		this.decision = decision;
+	}
+}
@@ -18,9 +18,6 @@
  */
 package com.qut.middleware.spep.filter;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Proxy;
-
 import javax.servlet.ServletContext;
 
 import org.slf4j.Logger;
@@ -29,7 +26,7 @@ import org.slf4j.LoggerFactory;
 import com.qut.middleware.spep.ConfigurationConstants;
 import com.qut.middleware.spep.SPEPProxy;
 import com.qut.middleware.spep.filter.exception.SPEPInitializationException;
-import com.qut.middleware.spep.filter.proxy.GenericObjectInvocationHandler;
+import com.qut.middleware.spep.filter.proxy.SPEPProxyAdapter;
 
 /**
  * @class Initializer
@@ -39,6 +36,9 @@ public class Initializer {
 	/* Local logging instance */
 	static private Logger logger = LoggerFactory.getLogger(Initializer.class.getName());
 	
+	/* The SPEP object last seen in the servlet context, and the proxy created for it */
+	static private volatile SPEPBinding binding;
+	
 	/**
 	 * @param context The servlet context in which to initialize a SPEP
 	 * @return The SPEP for the given servlet context.
@@ -60,13 +60,53 @@ public class Initializer {
 			throw new SPEPInitializationException( "SPEP couldn't be initialized. No SPEP in this servlet context (yet?)." );
 		}
 				
-		Initializer.logger.debug( "Got SPEP object. Class is: " + spepObject.getClass().getName() + ". Creating proxy." );
+		// The proxy is reused for every request until the SPEP is redeployed.
+		SPEPBinding currentBinding = Initializer.binding;
+		if( currentBinding != null && currentBinding.spepObject == spepObject )
+		{
+			return currentBinding.spep;
+		}
 		
-		Class<?>[] spepInterfaces = { SPEPProxy.class };
-		InvocationHandler spepInvocationHandler = new GenericObjectInvocationHandler( spepObject );
-		SPEPProxy spep = (SPEPProxy)Proxy.newProxyInstance( Initializer.class.getClassLoader(), spepInterfaces, spepInvocationHandler );
+		SPEPProxy spep;
+		if( spepObject instanceof SPEPProxy )
+		{
+			// The SPEP interfaces are shared between the web applications, so no proxy is needed.
+			Initializer.logger.debug( "Got SPEP object. Class is: " + spepObject.getClass().getName() + ". Using it directly." );
+			spep = (SPEPProxy)spepObject;
+		}
+		else
+		{
+			Initializer.logger.debug( "Got SPEP object. Class is: " + spepObject.getClass().getName() + ". Creating proxy." );
+			try
+			{
+				spep = new SPEPProxyAdapter( spepObject );
+			}
+			catch( ClassNotFoundException e )
+			{
+				Initializer.logger.error( "SPEP object does not match the SPEP interfaces used by this filter. Error was: " + e.getMessage() );
+				throw new SPEPInitializationException( "SPEP couldn't be initialized. The SPEP object could not be proxied.", e );
+			}
+			catch( NoSuchMethodException e )
+			{
+				Initializer.logger.error( "SPEP object does not match the SPEP interfaces used by this filter. Error was: " + e.getMessage() );
+				throw new SPEPInitializationException( "SPEP couldn't be initialized. The SPEP object could not be proxied.", e );
+			}
+		}
 		
+		Initializer.binding = new SPEPBinding( spepObject, spep );
 		return spep;
 	}
 	
+	static private class SPEPBinding
+	{
+		protected final Object spepObject;
+		protected final SPEPProxy spep;
+		
+		protected SPEPBinding( Object spepObject, SPEPProxy spep )
+		{
+			this.spepObject = spepObject;
+			this.spep = spep;
+		}
+	}
+	
 }
@@ -51,7 +51,9 @@ public class SPEPFilter implements Filter
 
 	private FilterConfig filterConfig;
 	private static final String SPEP_CONTEXT_PARAM_NAME = "spep-context"; //$NON-NLS-1$
+	private static final String AUTHZ_MEMO_LIFETIME_PARAM_NAME = "authz-memo-lifetime"; //$NON-NLS-1$
 	private String spepContextName;
+	private AuthzDecisionMemo authzMemo;
 
 	/* Local logging instance */
 	private Logger logger = LoggerFactory.getLogger(SPEPFilter.class.getName());
@@ -63,6 +65,27 @@ public class SPEPFilter implements Filter
 
 		if (this.spepContextName == null)
 			throw new ServletException(Messages.getString("SPEPFilter.8") + SPEP_CONTEXT_PARAM_NAME); //$NON-NLS-1$
+
+		// Permit decisions are only remembered between requests if a lifetime in seconds is configured
+		String authzMemoLifetime = filterConfig.getInitParameter(AUTHZ_MEMO_LIFETIME_PARAM_NAME);
+		if (authzMemoLifetime != null && authzMemoLifetime.trim().length() > 0)
+		{
+			long lifetime;
+			try
+			{
+				lifetime = Long.parseLong(authzMemoLifetime.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				throw new ServletException(Messages.getString("SPEPFilter.12") + AUTHZ_MEMO_LIFETIME_PARAM_NAME, e); //$NON-NLS-1$
+			}
+
+			if (lifetime > 0)
+			{
+				this.authzMemo = new AuthzDecisionMemo(lifetime * 1000);
+				this.logger.info("Remembering permit decisions for up to " + lifetime + " seconds");
+			}
+		}
 	}
 
 	public void destroy()
@@ -89,7 +112,7 @@ public class SPEPFilter implements Filter
 
 		HttpServletRequest request = (HttpServletRequest) servletRequest;
 		HttpServletResponse response = (HttpServletResponse) servletResponse;
-		String resource, decodedResource, requested, redirectURL;
+		String decodedResource, requested, redirectURL;
 		URL serviceHost;
 
 		ServletContext spepContext = this.filterConfig.getServletContext().getContext(this.spepContextName);
@@ -127,14 +150,16 @@ public class SPEPFilter implements Filter
 		Cookie[] cookies = request.getCookies();
 		if (cookies != null)
 		{
+			String tokenName = spep.getTokenName();
+			String esoeGlobalTokenName = spep.getEsoeGlobalTokenName();
 			for (Cookie cookie : cookies)
 			{
-				if (cookie.getName().equals(spep.getTokenName()))
+				if (cookie.getName().equals(tokenName))
 				{
 					spepCookie = cookie;
 					this.logger.debug("Located spep cookie with value of " + spepCookie.getValue());
 				}
-				if (cookie.getName().equals(spep.getEsoeGlobalTokenName()))
+				if (cookie.getName().equals(esoeGlobalTokenName))
 				{
 					globalESOECookie = cookie;
 					this.logger.debug("Located globalESOECookie cookie with value of " + globalESOECookie.getValue());
@@ -142,18 +167,43 @@ public class SPEPFilter implements Filter
 			}
 		}
 
-		// value for re-determining session status after Authz request
-		boolean validSession = false;
+		/*
+		 * The session, resource and decision are established once per request, and reused if this filter sees the
+		 * request again.
+		 */
+		AuthzRequestContext context = AuthzRequestContext.getContext(request, (spepCookie != null) ? spepCookie.getValue() : null);
+		context.setRequestedResource(requestedResource(request));
 
 		// Check SPEP session is valid.
 		if (spepCookie != null)
 		{
 			String sessionID = spepCookie.getValue();
 
-			this.logger.info("Attempting to retrieve data for session with ID of " + sessionID);
-			PrincipalSession PrincipalSession = spep.verifySession(sessionID);
+			// read before the session is verified, so that a logout or cache clear from here on discards any permit remembered below
+			long authzStateVersion = (this.authzMemo != null) ? spep.getAuthzStateVersion() : -1;
 
-			if (PrincipalSession != null)
+			if (!context.isVerified())
+			{
+				PrincipalSession rememberedSession = null;
+				if (this.authzMemo != null)
+					rememberedSession = this.authzMemo.getPermitted(sessionID, decodedResource(context), authzStateVersion);
+
+				if (rememberedSession != null)
+				{
+					this.logger.debug("Using remembered permit for session with ID of " + sessionID);
+					context.setPrincipalSession(rememberedSession);
+					context.setDecision(SPEPProxy.decision.permit);
+				}
+				else
+				{
+					this.logger.info("Attempting to retrieve data for session with ID of " + sessionID);
+					context.setPrincipalSession(spep.verifySession(sessionID));
+				}
+			}
+
+			PrincipalSession principalSession = context.getPrincipalSession();
+
+			if (principalSession != null)
 			{
 				this.logger.info("Located session with ID of " + sessionID);
 
@@ -161,7 +211,7 @@ public class SPEPFilter implements Filter
 				{
 					// over write with new data if it exists
 					WORMHashMap<String, List<Object>> attributeMap = new WORMHashMap<String, List<Object>>();
-					attributeMap.putAll(PrincipalSession.getAttributes());
+					attributeMap.putAll(principalSession.getAttributes());
 					attributeMap.close();
 
 					request.getSession().setAttribute(ATTRIBUTES, attributeMap);
@@ -173,20 +223,28 @@ public class SPEPFilter implements Filter
 				 * attempting to access additionally the PEP expects that the string is not in encoded form as it will
 				 * do exact matching, so we decode before passing our request to it.
 				 */
-				resource = request.getRequestURI();
-				if (request.getQueryString() != null)
-					resource = resource + "?" + request.getQueryString(); //$NON-NLS-1$
-
-				decodedResource = decode(resource);
+				decodedResource = decodedResource(context);
 
-				SPEPProxy.decision authzDecision = spep.makeAuthzDecision(sessionID, decodedResource);
+				SPEPProxy.decision authzDecision = context.getDecision();
+				if (authzDecision == null)
+				{
+					authzDecision = spep.makeAuthzDecision(sessionID, decodedResource);
+					context.setDecision(authzDecision);
 
-				// the authz processor may destroy the session if the PDP determines that the client
-				// session is no longer valid, so we have to check it again
-				if ((PrincipalSession = spep.verifySession(sessionID)) != null)
-					validSession = true;
+					// the authz processor may destroy the session if the PDP determines that the client
+					// session is no longer valid, so we have to check it again. It never permits access for
+					// such a session, so a permit needs no second check.
+					if (authzDecision != SPEPProxy.decision.permit)
+					{
+						principalSession = spep.verifySession(sessionID);
+						context.setPrincipalSession(principalSession);
+					}
+					else
+						if (this.authzMemo != null)
+							this.authzMemo.putPermitted(sessionID, principalSession, decodedResource, authzStateVersion);
+				}
 
-				if (validSession)
+				if (principalSession != null)
 				{
 					if (authzDecision == SPEPProxy.decision.permit)
 					{
@@ -220,6 +278,8 @@ public class SPEPFilter implements Filter
 
 			/* Clear the local session object the supplied request is invalid */
 			this.logger.debug("Invalidating session for ID of " + sessionID);
+			if (this.authzMemo != null)
+				this.authzMemo.invalidate(sessionID);
 			request.getSession().invalidate();
 		}
 
@@ -283,11 +343,7 @@ public class SPEPFilter implements Filter
 				this.logger.debug("globalESOECookie was not set for this request");
 
 				boolean matchedLazyInitResource = false;
-				resource = request.getRequestURI();
-				if (request.getQueryString() != null)
-					resource = resource + "?" + request.getQueryString(); //$NON-NLS-1$
-
-				decodedResource = decode(resource);
+				decodedResource = decodedResource(context);
 
 				for (String lazyInitResource : spep.getLazyInitResources())
 				{
@@ -327,10 +383,7 @@ public class SPEPFilter implements Filter
 		 * Current request is B64 encoded and appended to request for SPEP to redirect users back to content dynamically
 		 */
 		this.logger.debug("Failed all avenues to provide access to content");
-		if (request.getQueryString() != null)
-			requested = request.getRequestURI() + "?" + request.getQueryString();
-		else
-			requested = request.getRequestURI();
+		requested = context.getRequestedResource();
 
 		/*
 		 * Determine if the request was directed to the service URL, if so redirect to that point. If not redirect to
@@ -366,6 +419,38 @@ public class SPEPFilter implements Filter
 		response.sendRedirect(redirectURL);
 	}
 
+	/**
+	 * @param request The request being filtered
+	 * @return The request URI, with the query string if there is one
+	 */
+	private String requestedResource(HttpServletRequest request)
+	{
+		String queryString = request.getQueryString();
+		if (queryString != null)
+			return request.getRequestURI() + "?" + queryString; //$NON-NLS-1$
+
+		return request.getRequestURI();
+	}
+
+	/**
+	 * Decodes the requested resource the first time it is needed for a request
+	 * 
+	 * @param context The request context
+	 * @return The decoded resource
+	 * @throws ServletException
+	 */
+	private String decodedResource(AuthzRequestContext context) throws ServletException
+	{
+		String decodedResource = context.getResource();
+		if (decodedResource == null)
+		{
+			decodedResource = decode(context.getRequestedResource());
+			context.setResource(decodedResource);
+		}
+
+		return decodedResource;
+	}
+
 	/**
 	 * Transcodes %XX symbols per RFC 2369 to normalized character format
 	 * 
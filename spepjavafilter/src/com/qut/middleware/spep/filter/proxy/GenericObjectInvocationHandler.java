@@ -23,8 +23,6 @@ package com.qut.middleware.spep.filter.proxy;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.List;
-import java.util.Vector;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +36,7 @@ public class GenericObjectInvocationHandler extends Object implements
 	private Logger logger = LoggerFactory.getLogger(GenericObjectInvocationHandler.class);
 	
 	private Object invocationTarget;
+	private MethodBindingCache bindings;
 	
 	/**
 	 * Constructor specifying an invocation target. Target object must not be null
@@ -45,12 +44,29 @@ public class GenericObjectInvocationHandler extends Object implements
 	 */
 	public GenericObjectInvocationHandler( Object invocationTarget )
 	{		
+		this( invocationTarget, new MethodBindingCache() );
+	}
+	
+	/**
+	 * Constructor specifying an invocation target and the cache to resolve methods and
+	 * proxy interfaces with. Neither may be null.
+	 * @param invocationTarget
+	 * @param bindings
+	 */
+	public GenericObjectInvocationHandler( Object invocationTarget, MethodBindingCache bindings )
+	{
 		if( invocationTarget == null )
 		{
 			throw new IllegalArgumentException( "Cannot create an invocation handler for a null object." );
 		}
 		
+		if( bindings == null )
+		{
+			throw new IllegalArgumentException( "Cannot create an invocation handler without a method binding cache." );
+		}
+		
 		this.invocationTarget = invocationTarget;
+		this.bindings = bindings;
 	}
 
 	/*
@@ -62,21 +78,17 @@ public class GenericObjectInvocationHandler extends Object implements
 	public Object invoke(Object proxyObject, Method method, Object[] localArgs)
 			throws Throwable
 	{
+		Class<?> targetClass = this.invocationTarget.getClass();
 		
-		this.logger.debug( "Calling " + method.getDeclaringClass().getName() + " method " + method.getName() + "(" + method.getParameterTypes().length + " args). Target type is " + this.invocationTarget.getClass().getName() );
-		
-		ClassLoader remoteClassLoader = this.invocationTarget.getClass().getClassLoader();
-		
-		// Build list of the parameters expected on the remote side so we can resolve the method.
-		Class<?>[] parameters = new Class<?>[ method.getParameterTypes().length ];
-		for( int i=0; i<method.getParameterTypes().length; ++i )
+		if( this.logger.isDebugEnabled() )
 		{
-			String name = method.getParameterTypes()[i].getName();
-			parameters[i] = remoteClassLoader.loadClass( name );
+			this.logger.debug( "Calling " + method.getDeclaringClass().getName() + " method " + method.getName() + "(" + method.getParameterTypes().length + " args). Target type is " + targetClass.getName() );
 		}
 		
-		// Resolve the method on the remote object
-		Method targetMethod = this.invocationTarget.getClass().getMethod( method.getName(), parameters );
+		ClassLoader remoteClassLoader = MethodBindingCache.classLoaderFor( targetClass );
+		
+		// Resolve the method on the remote object, this is only done once per method and target class
+		Method targetMethod = this.bindings.getTargetMethod( method, targetClass );
 		
 		// Build reverse proxies to the object we are using as parameters, so that the
 		// remote class can handle our types cleanly.
@@ -93,13 +105,16 @@ public class GenericObjectInvocationHandler extends Object implements
 		// Invoke the method with the proxied args
 		Object retval = targetMethod.invoke( this.invocationTarget, args );
 
-		if( retval == null )
+		if( this.logger.isDebugEnabled() )
 		{
-			this.logger.debug( "Returned type is null." );
-		}
-		else
-		{
-			this.logger.debug( "Returned type is " + retval.getClass().getName() + ". Trying to auto-proxy" );
+			if( retval == null )
+			{
+				this.logger.debug( "Returned type is null." );
+			}
+			else
+			{
+				this.logger.debug( "Returned type is " + retval.getClass().getName() + ". Trying to auto-proxy" );
+			}
 		}
 		
 		// Auto-proxy the object if we can, and return.
@@ -112,7 +127,7 @@ public class GenericObjectInvocationHandler extends Object implements
 	 * @param x
 	 * @return
 	 */
-	private Object forwardAutoProxy( Object target )
+	Object forwardAutoProxy( Object target )
 	{
 		// Use the class loader for this class to load the proxy interfaces
 		return autoProxy( target, this.getClass().getClassLoader() );
@@ -162,35 +177,22 @@ public class GenericObjectInvocationHandler extends Object implements
 			targetClassLoader = ClassLoader.getSystemClassLoader();
 		}
 		
-		try 
+		// If we can cast the object to a local type of the exact same name,
+		// we don't need to proxy it. Otherwise it's obviously a different class loader.
+		Class<?> clazz = this.bindings.getClass( target.getClass().getName(), targetClassLoader );
+		if( clazz != null && clazz.isInstance( target ) )
 		{
-			// If we can cast the object to a local type of the exact same name,
-			// we don't need to proxy it.
-			Class<?> clazz = targetClassLoader.loadClass( target.getClass().getName() );
-			if( clazz != null )
+			if( this.logger.isDebugEnabled() )
 			{
-				Object retval = clazz.cast( target );
-				
 				String classLoaderName = "couldn't get classloader name";
 				if( clazz.getClassLoader() != null )
 				{
-					if( clazz.getClassLoader().getClass() != null )
-					{
-						classLoaderName = clazz.getClassLoader().getClass().getName();
-					}
+					classLoaderName = clazz.getClassLoader().getClass().getName();
 				}
 				
 				this.logger.debug( "Resolved class to local class name: " + clazz.getName() + ". Class loader: " + classLoaderName );
-				return retval;
 			}
-		} 
-		catch (ClassNotFoundException e) 
-		{
-			// Otherwise, we need to proxy it.
-		}
-		catch (ClassCastException e)
-		{
-			// Obviously a different class loader.
+			return target;
 		}
 		
 		if( target.getClass().isEnum() )
@@ -200,9 +202,13 @@ public class GenericObjectInvocationHandler extends Object implements
 			 * to resolve it to a local value, because you can't cast a proxy
 			 * to an enum value. Ech!
 			 */
-			try 
+			if( clazz == null )
+			{
+				this.logger.error( "Target class for enum " + target.getClass().getName() + " not found... Returning original object. This will probably cause a ClassCastException." );
+				return target;
+			}
+			else
 			{
-				Class<?> clazz = targetClassLoader.loadClass( target.getClass().getName() );
 				if( !clazz.isEnum() )
 				{
 					this.logger.error( "Target class: " + clazz.getName() + " is not an enum, but original class: " + target.getClass().getName() + " is. Returning original object. This will probably cause a ClassCastException." );
@@ -217,11 +223,6 @@ public class GenericObjectInvocationHandler extends Object implements
 					Enum<?> e = (Enum<?>)target;
 					return Enum.valueOf( enumClass, e.name() );
 				}
-			} 
-			catch (ClassNotFoundException e) 
-			{
-				this.logger.error( "Target class for enum " + target.getClass().getName() + " not found... Returning original object. This will probably cause a ClassCastException." );
-				return target;
 			}
 		}
 		
@@ -231,30 +232,23 @@ public class GenericObjectInvocationHandler extends Object implements
 		}
 		
 		// All other methods failed. We need to build a proxy to access this object.
-		this.logger.debug( "Couldn't resolve " + target.getClass().getName() + " to a local class. Going to build a proxy" );
-				
-		List<Class<?>> targetInterfaces = buildInterfaceList( target.getClass() );
-		List<Class<?>> proxyInterfaces = new Vector<Class<?>>();
-		
-		for( Class<?> clazz : targetInterfaces )
+		if( this.logger.isDebugEnabled() )
 		{
-			try
-			{
-				proxyInterfaces.add( targetClassLoader.loadClass( clazz.getName() ) );
-				this.logger.trace( "Added interface " + clazz.getName() + " for proxy" );
-			}
-			catch( ClassNotFoundException e )
-			{
-				// Class not found remotely. Just means we can't proxy it.
-			}
+			this.logger.debug( "Couldn't resolve " + target.getClass().getName() + " to a local class. Going to build a proxy" );
 		}
 		
-		if( proxyInterfaces.size() > 0 )
+		// The interfaces are only resolved once per class and class loader.
+		Class<?>[] proxyInterfaces = this.bindings.getProxyInterfaces( target.getClass(), targetClassLoader );
+		
+		if( proxyInterfaces.length > 0 )
 		{
-			this.logger.debug( "Auto-proxying for type " + target.getClass().getName() + ". " + proxyInterfaces.size() + " matching interfaces." );
+			if( this.logger.isDebugEnabled() )
+			{
+				this.logger.debug( "Auto-proxying for type " + target.getClass().getName() + ". " + proxyInterfaces.length + " matching interfaces." );
+			}
 			
-			// We got at least 1 interface on the class that can be proxied. Auto-proxy it.
-			return Proxy.newProxyInstance( this.getClass().getClassLoader(), proxyInterfaces.toArray(new Class<?>[]{}), new GenericObjectInvocationHandler( target ) );
+			// We got at least 1 interface on the class that can be proxied. Auto-proxy it, sharing our bindings.
+			return Proxy.newProxyInstance( this.getClass().getClassLoader(), proxyInterfaces, new GenericObjectInvocationHandler( target, this.bindings ) );
 		}
 		else
 		{
@@ -264,46 +258,4 @@ public class GenericObjectInvocationHandler extends Object implements
 		}
 	}
 	
-	/**
-	 * Builds a list of interfaces implemented by the target class, its parent 
-	 * class(es) and any interfaces implemented by these interfaces.
-	 * @param targetClass
-	 * @return
-	 */
-	private List<Class<?>> buildInterfaceList( Class<?> targetClass )
-	{
-		List<Class<?>> interfaces = new Vector<Class<?>>();
-		
-		// No support for arrays here.
-		if( targetClass.isArray() || targetClass.isEnum() )
-		{
-			throw new UnsupportedOperationException( "Request for interface list for Array or Enum. This is a bug in implementation, and should never occur." );
-		}
-		
-		// Recurse to build the list of interfaces
-		buildInterfaceListRecurse( interfaces, targetClass );
-		
-		return interfaces;
-	}
-	
-	private void buildInterfaceListRecurse( List<Class<?>> list, Class<?> clazz )
-	{
-		// If it's an interface, add it
-		if( clazz.isInterface() )
-		{
-			list.add( clazz );
-		}
-		// If it's not an interface, it might have a parent class. Recurse to that.
-		else if( clazz.getSuperclass() != null )
-		{
-			buildInterfaceListRecurse( list, clazz.getSuperclass() );
-		}
-		
-		// Recurse to interfaces implemented by this class/interface.
-		for( Class<?> interfayse : clazz.getInterfaces() )
-		{
-			buildInterfaceListRecurse( list, interfayse );
-		}
-	}
-	
 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Caches the classes, methods and interfaces resolved across class loaders
+ * 		by GenericObjectInvocationHandler.
+ */
+
+package com.qut.middleware.spep.filter.proxy;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the classes, methods and interfaces resolved across class loaders by GenericObjectInvocationHandler, so that
+ * each is looked up once per (method or class, class loader) pair rather than on every call.
+ * 
+ * A cache is shared by an invocation handler and every handler created to proxy its return values. It holds strong
+ * references to the classes and class loaders it has seen, so it should live no longer than the object it was created
+ * to proxy for.
+ */
+public class MethodBindingCache
+{
+	/* Marks a class name which could not be loaded, so that the failed lookup is not repeated */
+	private static final Object CLASS_NOT_FOUND = new Object();
+
+	private ConcurrentMap<BindingKey, Method> targetMethods;
+	private ConcurrentMap<BindingKey, Object> classes;
+	private ConcurrentMap<BindingKey, Class<?>[]> proxyInterfaces;
+
+	/**
+	 * Default constructor.
+	 */
+	public MethodBindingCache()
+	{
+		this.targetMethods = new ConcurrentHashMap<BindingKey, Method>();
+		this.classes = new ConcurrentHashMap<BindingKey, Object>();
+		this.proxyInterfaces = new ConcurrentHashMap<BindingKey, Class<?>[]>();
+	}
+
+	/**
+	 * Resolves the method on the target class matching a method declared by a local interface. Parameter types are
+	 * matched by name through the target's class loader.
+	 * 
+	 * @param method The local method being called.
+	 * @param targetClass The class of the object the call is made on.
+	 * @return The target method.
+	 * @throws ClassNotFoundException if a parameter type does not exist for the target class loader.
+	 * @throws NoSuchMethodException if the target class has no matching public method.
+	 */
+	public Method getTargetMethod(Method method, Class<?> targetClass) throws ClassNotFoundException, NoSuchMethodException
+	{
+		BindingKey key = new BindingKey(method, targetClass);
+		Method targetMethod = this.targetMethods.get(key);
+
+		if (targetMethod == null)
+		{
+			ClassLoader targetClassLoader = classLoaderFor(targetClass);
+
+			// Build list of the parameters expected on the remote side so we can resolve the method.
+			Class<?>[] localParameters = method.getParameterTypes();
+			Class<?>[] parameters = new Class<?>[localParameters.length];
+			for (int i = 0; i < localParameters.length; ++i)
+			{
+				parameters[i] = localParameters[i].isPrimitive() ? localParameters[i] : targetClassLoader.loadClass(localParameters[i].getName());
+			}
+
+			targetMethod = targetClass.getMethod(method.getName(), parameters);
+			this.targetMethods.put(key, targetMethod);
+		}
+
+		return targetMethod;
+	}
+
+	/**
+	 * Loads a class by name through the given class loader.
+	 * 
+	 * @param className The name of the class.
+	 * @param classLoader The class loader to load it with.
+	 * @return The class, or null if it does not exist for that class loader.
+	 */
+	public Class<?> getClass(String className, ClassLoader classLoader)
+	{
+		BindingKey key = new BindingKey(className, classLoader);
+		Object clazz = this.classes.get(key);
+
+		if (clazz == null)
+		{
+			try
+			{
+				clazz = classLoader.loadClass(className);
+			}
+			catch (ClassNotFoundException e)
+			{
+				clazz = CLASS_NOT_FOUND;
+			}
+
+			this.classes.put(key, clazz);
+		}
+
+		return (clazz == CLASS_NOT_FOUND) ? null : (Class<?>) clazz;
+	}
+
+	/**
+	 * Resolves the interfaces implemented by the target class, its parent class(es) and those interfaces, which also
+	 * exist for the given class loader.
+	 * 
+	 * @param targetClass The class of the object to be proxied.
+	 * @param classLoader The class loader to resolve the interfaces with.
+	 * @return The interfaces a proxy for the object can implement. The array is empty if there are none, and must not
+	 *         be modified.
+	 */
+	public Class<?>[] getProxyInterfaces(Class<?> targetClass, ClassLoader classLoader)
+	{
+		BindingKey key = new BindingKey(targetClass, classLoader);
+		Class<?>[] interfaces = this.proxyInterfaces.get(key);
+
+		if (interfaces == null)
+		{
+			List<Class<?>> resolved = new ArrayList<Class<?>>();
+			for (Class<?> clazz : buildInterfaceList(targetClass))
+			{
+				Class<?> localClass = getClass(clazz.getName(), classLoader);
+
+				// Not found means we can't proxy for that interface.
+				if (localClass != null && !resolved.contains(localClass))
+				{
+					resolved.add(localClass);
+				}
+			}
+
+			interfaces = resolved.toArray(new Class<?>[resolved.size()]);
+			this.proxyInterfaces.put(key, interfaces);
+		}
+
+		return interfaces;
+	}
+
+	/**
+	 * @param clazz The class.
+	 * @return The class loader that loaded it, or the system class loader for bootstrap classes.
+	 */
+	static ClassLoader classLoaderFor(Class<?> clazz)
+	{
+		ClassLoader classLoader = clazz.getClassLoader();
+		return (classLoader == null) ? ClassLoader.getSystemClassLoader() : classLoader;
+	}
+
+	/**
+	 * Builds a list of interfaces implemented by the target class, its parent 
+	 * class(es) and any interfaces implemented by these interfaces.
+	 * @param targetClass
+	 * @return
+	 */
+	private List<Class<?>> buildInterfaceList(Class<?> targetClass)
+	{
+		List<Class<?>> interfaces = new ArrayList<Class<?>>();
+
+		// No support for arrays here.
+		if (targetClass.isArray() || targetClass.isEnum())
+		{
+			throw new UnsupportedOperationException("Request for interface list for Array or Enum. This is a bug in implementation, and should never occur.");
+		}
+
+		// Recurse to build the list of interfaces
+		buildInterfaceListRecurse(interfaces, targetClass);
+
+		return interfaces;
+	}
+
+	private void buildInterfaceListRecurse(List<Class<?>> list, Class<?> clazz)
+	{
+		// If it's an interface, add it
+		if (clazz.isInterface())
+		{
+			list.add(clazz);
+		}
+		// If it's not an interface, it might have a parent class. Recurse to that.
+		else if (clazz.getSuperclass() != null)
+		{
+			buildInterfaceListRecurse(list, clazz.getSuperclass());
+		}
+
+		// Recurse to interfaces implemented by this class/interface.
+		for (Class<?> interfayse : clazz.getInterfaces())
+		{
+			buildInterfaceListRecurse(list, interfayse);
+		}
+	}
+
+	/* Pairs a method, class or class name with the class or class loader it is resolved against. */
+	private static final class BindingKey
+	{
+		private final Object subject;
+		private final Object context;
+		private final int hashCode;
+
+		BindingKey(Object subject, Object context)
+		{
+			this.subject = subject;
+			this.context = context;
+			this.hashCode = 31 * subject.hashCode() + System.identityHashCode(context);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return this.hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof BindingKey))
+				return false;
+
+			BindingKey other = (BindingKey) obj;
+			return this.context == other.context && this.subject.equals(other.subject);
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Calls the SPEP in another web application through methods bound once,
+ * 		when the filter is first used.
+ */
+
+package com.qut.middleware.spep.filter.proxy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.List;
+
+import javax.servlet.http.Cookie;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qut.middleware.spep.SPEPProxy;
+import com.qut.middleware.spep.sessions.PrincipalSession;
+
+/**
+ * Adapts an SPEPProxy loaded by another class loader to the local SPEPProxy interface.
+ * 
+ * The methods called on every request are bound to the remote object when the adapter is created. They take only
+ * String arguments, so no classes are loaded, no methods looked up and no arguments proxied when they are called, and
+ * authorization decisions are mapped to the local enum by ordinal. The remaining methods go through a
+ * GenericObjectInvocationHandler sharing the same bindings.
+ */
+public class SPEPProxyAdapter implements SPEPProxy
+{
+	private Logger logger = LoggerFactory.getLogger(SPEPProxyAdapter.class);
+
+	private Object spep;
+	private GenericObjectInvocationHandler handler;
+	private SPEPProxy genericProxy;
+
+	private Method isStarted;
+	private Method getTokenName;
+	private Method getEsoeGlobalTokenName;
+	private Method verifySession;
+	private Method makeAuthzDecision;
+	private Method makeAuthzDecisionAction;
+	private Method getAuthzStateVersion;
+
+	/* Local decision for each remote decision, indexed by the remote ordinal */
+	private decision[] decisions;
+
+	/**
+	 * @param spep The SPEPProxy object from the SPEP web application. Must not be null.
+	 * @throws ClassNotFoundException if the SPEP class loader does not have a parameter type of SPEPProxy.
+	 * @throws NoSuchMethodException if the SPEP object does not implement SPEPProxy.
+	 */
+	public SPEPProxyAdapter(Object spep) throws ClassNotFoundException, NoSuchMethodException
+	{
+		MethodBindingCache bindings = new MethodBindingCache();
+
+		this.spep = spep;
+		this.handler = new GenericObjectInvocationHandler(spep, bindings);
+		this.genericProxy = (SPEPProxy) Proxy.newProxyInstance(SPEPProxyAdapter.class.getClassLoader(), new Class<?>[] { SPEPProxy.class }, this.handler);
+
+		Class<?> spepClass = spep.getClass();
+		this.isStarted = bindings.getTargetMethod(SPEPProxy.class.getMethod("isStarted"), spepClass); //$NON-NLS-1$
+		this.getTokenName = bindings.getTargetMethod(SPEPProxy.class.getMethod("getTokenName"), spepClass); //$NON-NLS-1$
+		this.getEsoeGlobalTokenName = bindings.getTargetMethod(SPEPProxy.class.getMethod("getEsoeGlobalTokenName"), spepClass); //$NON-NLS-1$
+		this.verifySession = bindings.getTargetMethod(SPEPProxy.class.getMethod("verifySession", String.class), spepClass); //$NON-NLS-1$
+		this.makeAuthzDecision = bindings.getTargetMethod(SPEPProxy.class.getMethod("makeAuthzDecision", String.class, String.class), spepClass); //$NON-NLS-1$
+		this.makeAuthzDecisionAction = bindings.getTargetMethod(SPEPProxy.class.getMethod("makeAuthzDecision", String.class, String.class, String.class), spepClass); //$NON-NLS-1$
+
+		try
+		{
+			this.getAuthzStateVersion = bindings.getTargetMethod(SPEPProxy.class.getMethod("getAuthzStateVersion"), spepClass); //$NON-NLS-1$
+		}
+		catch (NoSuchMethodException e)
+		{
+			// An older SPEP still works, the filter just can't remember anything between requests
+			this.logger.warn("SPEP does not report its authorization state version, authorization decisions will not be remembered. The SPEP and filter versions may not match."); //$NON-NLS-1$
+			this.getAuthzStateVersion = null;
+		}
+
+		Object[] remoteDecisions = this.makeAuthzDecision.getReturnType().getEnumConstants();
+		this.decisions = new decision[remoteDecisions.length];
+		for (int i = 0; i < remoteDecisions.length; ++i)
+		{
+			String name = ((Enum<?>) remoteDecisions[i]).name();
+			try
+			{
+				this.decisions[i] = decision.valueOf(name);
+			}
+			catch (IllegalArgumentException e)
+			{
+				this.logger.error("SPEP decision " + name + " does not exist for this filter, it will be treated as an error decision. The SPEP and filter versions may not match."); //$NON-NLS-1$ //$NON-NLS-2$
+				this.decisions[i] = decision.error;
+			}
+		}
+	}
+
+	/* Calls a bound method on the SPEP object, rethrowing whatever it throws. */
+	private Object invoke(Method method, Object... args)
+	{
+		try
+		{
+			return method.invoke(this.spep, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+
+			throw new UndeclaredThrowableException(cause);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new UndeclaredThrowableException(e);
+		}
+	}
+
+	public boolean isStarted()
+	{
+		return ((Boolean) invoke(this.isStarted)).booleanValue();
+	}
+
+	public String getTokenName()
+	{
+		return (String) invoke(this.getTokenName);
+	}
+
+	public String getEsoeGlobalTokenName()
+	{
+		return (String) invoke(this.getEsoeGlobalTokenName);
+	}
+
+	public PrincipalSession verifySession(String sessionID)
+	{
+		return (PrincipalSession) this.handler.forwardAutoProxy(invoke(this.verifySession, sessionID));
+	}
+
+	public decision makeAuthzDecision(String sessionID, String resource)
+	{
+		return localDecision(invoke(this.makeAuthzDecision, sessionID, resource));
+	}
+
+	public decision makeAuthzDecision(String sessionID, String resource, String action)
+	{
+		return localDecision(invoke(this.makeAuthzDecisionAction, sessionID, resource, action));
+	}
+
+	public long getAuthzStateVersion()
+	{
+		if (this.getAuthzStateVersion == null)
+			return -1;
+
+		return ((Long) invoke(this.getAuthzStateVersion)).longValue();
+	}
+
+	private decision localDecision(Object remoteDecision)
+	{
+		if (remoteDecision == null)
+			return null;
+
+		return this.decisions[((Enum<?>) remoteDecision).ordinal()];
+	}
+
+	public String getDefaultUrl()
+	{
+		return this.genericProxy.getDefaultUrl();
+	}
+
+	public defaultAction getLazyInitDefaultAction()
+	{
+		return this.genericProxy.getLazyInitDefaultAction();
+	}
+
+	public List<String> getLazyInitResources()
+	{
+		return this.genericProxy.getLazyInitResources();
+	}
+
+	public List<Cookie> getLogoutClearCookies()
+	{
+		return this.genericProxy.getLogoutClearCookies();
+	}
+
+	public String getServiceHost()
+	{
+		return this.genericProxy.getServiceHost();
+	}
+
+	public String getSsoRedirect()
+	{
+		return this.genericProxy.getSsoRedirect();
+	}
+
+	public boolean isLazyInit()
+	{
+		return this.genericProxy.isLazyInit();
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Compares the per request cost of the SPEPFilter calls to an SPEP in
+ * 		another class loader for each way of proxying it.
+ */
+package com.qut.middleware.spep.filter.proxy;
+
+import java.lang.reflect.Proxy;
+
+import org.junit.Test;
+
+import com.qut.middleware.spep.SPEPProxy;
+import com.qut.middleware.spep.sessions.PrincipalSession;
+
+@SuppressWarnings("nls")
+public class SPEPProxyBenchmarkTest
+{
+	private static final long WARMUP_MILLIS = 1000;
+	private static final long MEASURE_MILLIS = 2000;
+	private static final String RESOURCE = "/secure/index.jsp";
+
+	/* Supplies the SPEPProxy used for one request */
+	private interface SPEPSource
+	{
+		public SPEPProxy getSPEP() throws Exception;
+	}
+
+	@Test
+	public void testBenchmark() throws Exception
+	{
+		final Object remoteSPEP = RemoteSPEP.createIsolated();
+		final SPEPProxy cachedProxy = (SPEPProxy) Proxy.newProxyInstance(SPEPProxy.class.getClassLoader(), new Class<?>[] { SPEPProxy.class }, new GenericObjectInvocationHandler(remoteSPEP));
+		final SPEPProxy adapter = new SPEPProxyAdapter(remoteSPEP);
+		final SPEPProxy localSPEP = new RemoteSPEP();
+
+		// A new proxy and binding cache per request, as the filter used to create, so nothing is reused between requests
+		SPEPSource perRequest = new SPEPSource()
+		{
+			public SPEPProxy getSPEP()
+			{
+				return (SPEPProxy) Proxy.newProxyInstance(SPEPProxy.class.getClassLoader(), new Class<?>[] { SPEPProxy.class }, new GenericObjectInvocationHandler(remoteSPEP));
+			}
+		};
+		SPEPSource cached = new SPEPSource()
+		{
+			public SPEPProxy getSPEP()
+			{
+				return cachedProxy;
+			}
+		};
+		SPEPSource adapted = new SPEPSource()
+		{
+			public SPEPProxy getSPEP()
+			{
+				return adapter;
+			}
+		};
+		SPEPSource local = new SPEPSource()
+		{
+			public SPEPProxy getSPEP()
+			{
+				return localSPEP;
+			}
+		};
+
+		SPEPSource[] sources = { perRequest, cached, adapted, local };
+		String[] names = { "Generic proxy per request", "Generic proxy with cached bindings", "SPEPProxyAdapter", "Shared interfaces, no proxy" };
+
+		System.out.println("proxy\tns/request");
+		for (int i = 0; i < sources.length; i++)
+		{
+			System.out.println(names[i] + "\t" + measure(sources[i]));
+		}
+	}
+
+	/* Average nanoseconds per request */
+	private long measure(SPEPSource source) throws Exception
+	{
+		long warmupEnd = System.currentTimeMillis() + WARMUP_MILLIS;
+		while (System.currentTimeMillis() < warmupEnd)
+			run(source, 100);
+
+		long requests = 0;
+		long start = System.nanoTime();
+		long end = start + MEASURE_MILLIS * 1000000L;
+		long now;
+		while ((now = System.nanoTime()) < end)
+		{
+			run(source, 100);
+			requests += 100;
+		}
+
+		return (now - start) / requests;
+	}
+
+	/* The SPEP calls SPEPFilter makes for an authenticated, permitted request */
+	private void run(SPEPSource source, int count) throws Exception
+	{
+		for (int i = 0; i < count; i++)
+		{
+			SPEPProxy spep = source.getSPEP();
+			if (!spep.isStarted())
+				throw new IllegalStateException();
+
+			spep.getTokenName();
+			spep.getEsoeGlobalTokenName();
+
+			PrincipalSession session = spep.verifySession(RemoteSPEP.SESSION_ID);
+			session.getAttributes();
+
+			if (spep.makeAuthzDecision(RemoteSPEP.SESSION_ID, RESOURCE) != SPEPProxy.decision.permit)
+				throw new IllegalStateException();
+
+			spep.verifySession(RemoteSPEP.SESSION_ID);
+		}
+	}
+}
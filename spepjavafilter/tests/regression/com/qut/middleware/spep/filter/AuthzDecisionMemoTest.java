@@ -0,0 +1,226 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Tests the filter's memo of permit decisions and its per request context.
+ */
+
+package com.qut.middleware.spep.filter;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.junit.Test;
+
+import com.qut.middleware.spep.ConfigurationConstants;
+import com.qut.middleware.spep.SPEPProxy;
+import com.qut.middleware.spep.filter.proxy.RemoteSPEP;
+import com.qut.middleware.spep.sessions.PrincipalSession;
+
+@SuppressWarnings("nls")
+public class AuthzDecisionMemoTest
+{
+	private static final String SESSION_ID = RemoteSPEP.SESSION_ID;
+	private static final String RESOURCE = "/secure/index.jsp";
+
+	@Test
+	public void testPermitRemembered()
+	{
+		AuthzDecisionMemo memo = new AuthzDecisionMemo(60000);
+		PrincipalSession session = new RemoteSPEP.Session();
+
+		assertNull(memo.getPermitted(SESSION_ID, RESOURCE, 1));
+
+		memo.putPermitted(SESSION_ID, session, RESOURCE, 1);
+		assertSame(session, memo.getPermitted(SESSION_ID, RESOURCE, 1));
+		assertNull("Only the permitted resource is remembered", memo.getPermitted(SESSION_ID, "/secure/other.jsp", 1));
+		assertNull("Only the session it was permitted for", memo.getPermitted("_other", RESOURCE, 1));
+
+		memo.invalidate(SESSION_ID);
+		assertNull(memo.getPermitted(SESSION_ID, RESOURCE, 1));
+	}
+
+	@Test
+	public void testVersionChange()
+	{
+		AuthzDecisionMemo memo = new AuthzDecisionMemo(60000);
+		PrincipalSession session = new RemoteSPEP.Session();
+
+		memo.putPermitted(SESSION_ID, session, RESOURCE, 1);
+		assertNull("Logout or cache clear discards the memo", memo.getPermitted(SESSION_ID, RESOURCE, 2));
+		assertEquals(0, memo.size());
+		assertNull(memo.getPermitted(SESSION_ID, RESOURCE, 1));
+
+		memo.putPermitted(SESSION_ID, session, RESOURCE, -1);
+		assertEquals("Nothing is remembered when the version is not tracked", 0, memo.size());
+	}
+
+	@Test
+	public void testExpiry()
+	{
+		AuthzDecisionMemo memo = new AuthzDecisionMemo(60000);
+
+		PrincipalSession ending = createMock(PrincipalSession.class);
+		expect(ending.getSessionNotOnOrAfter()).andReturn(new Date(System.currentTimeMillis() - 1)).anyTimes();
+		replay(ending);
+
+		memo.putPermitted(SESSION_ID, ending, RESOURCE, 1);
+		assertNull("Never outlives the session", memo.getPermitted(SESSION_ID, RESOURCE, 1));
+
+		memo.putPermitted(SESSION_ID, new RemoteSPEP.Session(), RESOURCE, 1);
+		memo.putPermitted("_other", new RemoteSPEP.Session(), RESOURCE, 1);
+		assertEquals(0, memo.sweep(System.currentTimeMillis()));
+		assertEquals(2, memo.sweep(System.currentTimeMillis() + 60000));
+		assertEquals(0, memo.size());
+	}
+
+	@Test
+	public void testResourcesBounded()
+	{
+		AuthzDecisionMemo memo = new AuthzDecisionMemo(60000);
+		PrincipalSession session = new RemoteSPEP.Session();
+
+		for (int i = 0; i <= AuthzDecisionMemo.MAX_RESOURCES; i++)
+			memo.putPermitted(SESSION_ID, session, "/secure/" + i, 1);
+
+		assertSame(session, memo.getPermitted(SESSION_ID, "/secure/" + (AuthzDecisionMemo.MAX_RESOURCES - 1), 1));
+		assertNull(memo.getPermitted(SESSION_ID, "/secure/" + AuthzDecisionMemo.MAX_RESOURCES, 1));
+	}
+
+	@Test
+	public void testFilterRemembersPermit() throws Exception
+	{
+		FilterConfig filterConfig = createMock(FilterConfig.class);
+		ServletContext servletContext = createMock(ServletContext.class);
+		ServletContext spepServletContext = createMock(ServletContext.class);
+		SPEPProxy spep = createMock(SPEPProxy.class);
+		HttpSession session = createMock(HttpSession.class);
+		HttpServletResponse response = createMock(HttpServletResponse.class);
+		FilterChain chain = createMock(FilterChain.class);
+
+		expect(filterConfig.getInitParameter("spep-context")).andReturn("/spep").anyTimes();
+		expect(filterConfig.getInitParameter("authz-memo-lifetime")).andReturn("30").anyTimes();
+		expect(filterConfig.getServletContext()).andReturn(servletContext).anyTimes();
+		expect(servletContext.getContext("/spep")).andReturn(spepServletContext).anyTimes();
+		expect(spepServletContext.getAttribute(ConfigurationConstants.SPEP_PROXY)).andReturn(spep).anyTimes();
+		expect(session.getAttribute(SPEPFilter.ATTRIBUTES)).andReturn(new WORMHashMap<String, List<Object>>()).anyTimes();
+
+		expect(spep.isStarted()).andReturn(Boolean.TRUE).anyTimes();
+		expect(spep.getTokenName()).andReturn(RemoteSPEP.TOKEN_NAME).anyTimes();
+		expect(spep.getEsoeGlobalTokenName()).andReturn(RemoteSPEP.ESOE_GLOBAL_TOKEN_NAME).anyTimes();
+		expect(spep.getAuthzStateVersion()).andReturn(Long.valueOf(1)).times(2);
+		expect(spep.getAuthzStateVersion()).andReturn(Long.valueOf(2)).once();
+
+		// one lookup and one decision for the first request, nothing for the second, both again after the version changes
+		expect(spep.verifySession(SESSION_ID)).andReturn(new RemoteSPEP.Session()).times(2);
+		expect(spep.makeAuthzDecision(SESSION_ID, "/secure/a b.jsp")).andReturn(SPEPProxy.decision.permit).times(2);
+
+		chain.doFilter(isA(HttpServletRequest.class), eq(response));
+		expectLastCall().times(3);
+
+		replay(filterConfig);
+		replay(servletContext);
+		replay(spepServletContext);
+		replay(spep);
+		replay(session);
+		replay(response);
+		replay(chain);
+
+		SPEPFilter spepFilter = new SPEPFilter();
+		spepFilter.init(filterConfig);
+
+		for (int i = 0; i < 3; i++)
+		{
+			HttpServletRequest request = createMock(HttpServletRequest.class);
+			expect(request.getCookies()).andReturn(new Cookie[] { new Cookie(RemoteSPEP.TOKEN_NAME, SESSION_ID) }).anyTimes();
+			expect(request.getRequestURI()).andReturn("/secure/a%20b.jsp").anyTimes();
+			expect(request.getQueryString()).andReturn(null).anyTimes();
+			expect(request.getSession()).andReturn(session).anyTimes();
+			expect(request.getAttribute(AuthzRequestContext.REQUEST_ATTRIBUTE)).andReturn(null).once();
+			request.setAttribute(eq(AuthzRequestContext.REQUEST_ATTRIBUTE), isA(AuthzRequestContext.class));
+			expectLastCall().once();
+			replay(request);
+
+			spepFilter.doFilter(request, response, chain);
+			verify(request);
+		}
+
+		verify(spep);
+		verify(chain);
+	}
+
+	@Test
+	public void testRequestContext()
+	{
+		HttpServletRequest request = createMock(HttpServletRequest.class);
+		expect(request.getAttribute(AuthzRequestContext.REQUEST_ATTRIBUTE)).andReturn(null).once();
+		request.setAttribute(eq(AuthzRequestContext.REQUEST_ATTRIBUTE), isA(AuthzRequestContext.class));
+		expectLastCall().once();
+		replay(request);
+
+		AuthzRequestContext context = AuthzRequestContext.getContext(request, SESSION_ID);
+		verify(request);
+
+		context.setRequestedResource("/secure/a%20b.jsp");
+		context.setResource("/secure/a b.jsp");
+		context.setDecision(SPEPProxy.decision.permit);
+
+		// the same request seen again keeps its decision
+		request = createMock(HttpServletRequest.class);
+		expect(request.getAttribute(AuthzRequestContext.REQUEST_ATTRIBUTE)).andReturn(context).once();
+		replay(request);
+
+		assertSame(context, AuthzRequestContext.getContext(request, SESSION_ID));
+		context.setRequestedResource("/secure/a%20b.jsp");
+		assertEquals("/secure/a b.jsp", context.getResource());
+		assertEquals(SPEPProxy.decision.permit, context.getDecision());
+		verify(request);
+
+		// forwarded elsewhere, the decision is made again
+		context.setRequestedResource("/secure/c.jsp");
+		assertNull(context.getResource());
+		assertNull(context.getDecision());
+
+		// a different session gets a new context
+		request = createMock(HttpServletRequest.class);
+		expect(request.getAttribute(AuthzRequestContext.REQUEST_ATTRIBUTE)).andReturn(context).once();
+		request.setAttribute(eq(AuthzRequestContext.REQUEST_ATTRIBUTE), isA(AuthzRequestContext.class));
+		expectLastCall().once();
+		replay(request);
+
+		assertNotSame(context, AuthzRequestContext.getContext(request, "_other"));
+		verify(request);
+	}
+}
@@ -114,6 +114,7 @@ public class SPEPFilterTest
 	{
 		FilterConfig filterConfig = createMock( FilterConfig.class );
 		expect( filterConfig.getInitParameter( this.spepContextName ) ).andReturn( this.spepContext ).once();
+		expect( filterConfig.getInitParameter( "authz-memo-lifetime" ) ).andReturn( null ).anyTimes();
 		
 		ServletContext servletContext = createMock( ServletContext.class );
 		expect( filterConfig.getServletContext() ).andReturn( servletContext ).anyTimes();
@@ -123,6 +124,9 @@ public class SPEPFilterTest
 
 		HttpServletRequest request = createMock( HttpServletRequest.class );
 		HttpServletResponse response = createMock( HttpServletResponse.class );
+		expect( request.getAttribute( AuthzRequestContext.REQUEST_ATTRIBUTE ) ).andReturn( null ).anyTimes();
+		request.setAttribute( eq( AuthzRequestContext.REQUEST_ATTRIBUTE ), notNull() );
+		expectLastCall().anyTimes();
 		
 		response.setStatus( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
 		expectLastCall().atLeastOnce();
@@ -171,6 +175,7 @@ public class SPEPFilterTest
 	{
 		FilterConfig filterConfig = createMock( FilterConfig.class );
 		expect( filterConfig.getInitParameter( this.spepContextName ) ).andReturn( this.spepContext ).once();
+		expect( filterConfig.getInitParameter( "authz-memo-lifetime" ) ).andReturn( null ).anyTimes();
 		
 		ServletContext servletContext = createMock( ServletContext.class );
 		expect( filterConfig.getServletContext() ).andReturn( servletContext ).anyTimes();
@@ -180,6 +185,9 @@ public class SPEPFilterTest
 
 		HttpServletRequest request = createMock( HttpServletRequest.class );
 		HttpServletResponse response = createMock( HttpServletResponse.class );
+		expect( request.getAttribute( AuthzRequestContext.REQUEST_ATTRIBUTE ) ).andReturn( null ).anyTimes();
+		request.setAttribute( eq( AuthzRequestContext.REQUEST_ATTRIBUTE ), notNull() );
+		expectLastCall().anyTimes();
 		
 		expect( request.getCookies() ).andReturn( new Cookie[]{} ).anyTimes();
 		expect( request.getRequestURI() ).andReturn( this.requestURI ).anyTimes();
@@ -257,6 +265,7 @@ public class SPEPFilterTest
 
 		FilterConfig filterConfig = createMock( FilterConfig.class );
 		expect( filterConfig.getInitParameter( this.spepContextName ) ).andReturn( this.spepContext ).once();
+		expect( filterConfig.getInitParameter( "authz-memo-lifetime" ) ).andReturn( null ).anyTimes();
 		
 		ServletContext servletContext = createMock( ServletContext.class );
 		expect( filterConfig.getServletContext() ).andReturn( servletContext ).anyTimes();
@@ -266,6 +275,9 @@ public class SPEPFilterTest
 
 		HttpServletRequest request = createMock( HttpServletRequest.class );
 		HttpServletResponse response = createMock( HttpServletResponse.class );
+		expect( request.getAttribute( AuthzRequestContext.REQUEST_ATTRIBUTE ) ).andReturn( null ).anyTimes();
+		request.setAttribute( eq( AuthzRequestContext.REQUEST_ATTRIBUTE ), notNull() );
+		expectLastCall().anyTimes();
 		
 		expect( request.getCookies() ).andReturn( new Cookie[]{(Cookie)cookie1.clone(), (Cookie)cookie3.clone()} ).anyTimes();
 		expect( request.getRequestURI() ).andReturn( this.requestURI ).anyTimes();
@@ -370,6 +382,7 @@ public class SPEPFilterTest
 
 		FilterConfig filterConfig = createMock( FilterConfig.class );
 		expect( filterConfig.getInitParameter( this.spepContextName ) ).andReturn( this.spepContext ).once();
+		expect( filterConfig.getInitParameter( "authz-memo-lifetime" ) ).andReturn( null ).anyTimes();
 		
 		ServletContext servletContext = createMock( ServletContext.class );
 		expect( filterConfig.getServletContext() ).andReturn( servletContext ).anyTimes();
@@ -379,6 +392,9 @@ public class SPEPFilterTest
 
 		HttpServletRequest request = createMock( HttpServletRequest.class );
 		HttpServletResponse response = createMock( HttpServletResponse.class );
+		expect( request.getAttribute( AuthzRequestContext.REQUEST_ATTRIBUTE ) ).andReturn( null ).anyTimes();
+		request.setAttribute( eq( AuthzRequestContext.REQUEST_ATTRIBUTE ), notNull() );
+		expectLastCall().anyTimes();
 		
 		expect( request.getCookies() ).andReturn( new Cookie[]{(Cookie)cookie1.clone(), (Cookie)cookie3.clone()} ).anyTimes();
 		expect( request.getRequestURI() ).andReturn( this.requestURI ).anyTimes();
@@ -470,6 +486,7 @@ public class SPEPFilterTest
 	{
 		FilterConfig filterConfig = createMock( FilterConfig.class );
 		expect( filterConfig.getInitParameter( this.spepContextName ) ).andReturn( this.spepContext ).once();
+		expect( filterConfig.getInitParameter( "authz-memo-lifetime" ) ).andReturn( null ).anyTimes();
 		
 		ServletContext servletContext = createMock( ServletContext.class );
 		expect( filterConfig.getServletContext() ).andReturn( servletContext ).anyTimes();
@@ -479,6 +496,9 @@ public class SPEPFilterTest
 
 		HttpServletRequest request = createMock( HttpServletRequest.class );
 		HttpServletResponse response = createMock( HttpServletResponse.class );
+		expect( request.getAttribute( AuthzRequestContext.REQUEST_ATTRIBUTE ) ).andReturn( null ).anyTimes();
+		request.setAttribute( eq( AuthzRequestContext.REQUEST_ATTRIBUTE ), notNull() );
+		expectLastCall().anyTimes();
 		
 		Cookie sessionCookie = new Cookie( this.spepTokenName, this.sessionID );
 		
@@ -574,6 +594,7 @@ public class SPEPFilterTest
 		
 		FilterConfig filterConfig = createMock( FilterConfig.class );
 		expect( filterConfig.getInitParameter( this.spepContextName ) ).andReturn( this.spepContext ).once();
+		expect( filterConfig.getInitParameter( "authz-memo-lifetime" ) ).andReturn( null ).anyTimes();
 		
 		ServletContext servletContext = createMock( ServletContext.class );
 		expect( filterConfig.getServletContext() ).andReturn( servletContext ).anyTimes();
@@ -583,6 +604,9 @@ public class SPEPFilterTest
 
 		HttpServletRequest request = createMock( HttpServletRequest.class );
 		HttpServletResponse response = createMock( HttpServletResponse.class );
+		expect( request.getAttribute( AuthzRequestContext.REQUEST_ATTRIBUTE ) ).andReturn( null ).anyTimes();
+		request.setAttribute( eq( AuthzRequestContext.REQUEST_ATTRIBUTE ), notNull() );
+		expectLastCall().anyTimes();
 		
 		Cookie sessionCookie = new Cookie( this.spepTokenName, this.sessionID );
 		
@@ -674,6 +698,7 @@ public class SPEPFilterTest
 	{
 		FilterConfig filterConfig = createMock( FilterConfig.class );
 		expect( filterConfig.getInitParameter( this.spepContextName ) ).andReturn( this.spepContext ).once();
+		expect( filterConfig.getInitParameter( "authz-memo-lifetime" ) ).andReturn( null ).anyTimes();
 		
 		ServletContext servletContext = createMock( ServletContext.class );
 		expect( filterConfig.getServletContext() ).andReturn( servletContext ).anyTimes();
@@ -683,6 +708,9 @@ public class SPEPFilterTest
 
 		HttpServletRequest request = createMock( HttpServletRequest.class );
 		HttpServletResponse response = createMock( HttpServletResponse.class );
+		expect( request.getAttribute( AuthzRequestContext.REQUEST_ATTRIBUTE ) ).andReturn( null ).anyTimes();
+		request.setAttribute( eq( AuthzRequestContext.REQUEST_ATTRIBUTE ), notNull() );
+		expectLastCall().anyTimes();
 		
 		Cookie sessionCookie = new Cookie( this.spepTokenName, this.sessionID );
 		
@@ -777,6 +805,7 @@ public class SPEPFilterTest
 	{
 		FilterConfig filterConfig = createMock( FilterConfig.class );
 		expect( filterConfig.getInitParameter( this.spepContextName ) ).andReturn( this.spepContext ).once();
+		expect( filterConfig.getInitParameter( "authz-memo-lifetime" ) ).andReturn( null ).anyTimes();
 		
 		ServletContext servletContext = createMock( ServletContext.class );
 		expect( filterConfig.getServletContext() ).andReturn( servletContext ).anyTimes();
@@ -786,6 +815,9 @@ public class SPEPFilterTest
 
 		HttpServletRequest request = createMock( HttpServletRequest.class );
 		HttpServletResponse response = createMock( HttpServletResponse.class );
+		expect( request.getAttribute( AuthzRequestContext.REQUEST_ATTRIBUTE ) ).andReturn( null ).anyTimes();
+		request.setAttribute( eq( AuthzRequestContext.REQUEST_ATTRIBUTE ), notNull() );
+		expectLastCall().anyTimes();
 		
 		Cookie sessionCookie = new Cookie( this.spepTokenName, this.sessionID );
 		
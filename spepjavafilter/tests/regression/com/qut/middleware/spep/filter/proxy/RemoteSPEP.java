@@ -0,0 +1,259 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: A fixed SPEPProxy which can be loaded with its own copy of the SPEP
+ * 		interfaces, as the SPEP web application would see them.
+ */
+package com.qut.middleware.spep.filter.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+
+import com.qut.middleware.spep.SPEPProxy;
+import com.qut.middleware.spep.sessions.PrincipalSession;
+
+@SuppressWarnings("nls")
+public class RemoteSPEP implements SPEPProxy
+{
+	public static final String SESSION_ID = "_8d7f9a8d7f98a7df-remote";
+	public static final String ESOE_SESSION_ID = "_9a8sd7f98a7sdf9a-esoe";
+	public static final String TOKEN_NAME = "spep-session";
+	public static final String ESOE_GLOBAL_TOKEN_NAME = "_saml_idp";
+	public static final String THROW_ACTION = "throw";
+	public static final long AUTHZ_STATE_VERSION = 7;
+
+	/**
+	 * Creates a RemoteSPEP through a class loader with its own copy of SPEPProxy and PrincipalSession, so that it
+	 * cannot be cast to the SPEPProxy seen by the caller.
+	 * 
+	 * @return The RemoteSPEP instance.
+	 */
+	public static Object createIsolated() throws Exception
+	{
+		ClassLoader classLoader = new IsolatingClassLoader(RemoteSPEP.class.getClassLoader(), SPEPProxy.class.getName(), PrincipalSession.class.getName(), RemoteSPEP.class.getName());
+		return classLoader.loadClass(RemoteSPEP.class.getName()).newInstance();
+	}
+
+	public boolean isStarted()
+	{
+		return true;
+	}
+
+	public String getTokenName()
+	{
+		return TOKEN_NAME;
+	}
+
+	public String getEsoeGlobalTokenName()
+	{
+		return ESOE_GLOBAL_TOKEN_NAME;
+	}
+
+	public PrincipalSession verifySession(String sessionID)
+	{
+		return SESSION_ID.equals(sessionID) ? new Session() : null;
+	}
+
+	public decision makeAuthzDecision(String sessionID, String resource)
+	{
+		if (!SESSION_ID.equals(sessionID))
+			return decision.error;
+
+		return resource.startsWith("/secure/") ? decision.permit : decision.deny;
+	}
+
+	public decision makeAuthzDecision(String sessionID, String resource, String action)
+	{
+		if (THROW_ACTION.equals(action))
+			throw new IllegalStateException("Authorization failed");
+
+		return makeAuthzDecision(sessionID, resource);
+	}
+
+	public long getAuthzStateVersion()
+	{
+		return AUTHZ_STATE_VERSION;
+	}
+
+	public List<Cookie> getLogoutClearCookies()
+	{
+		return new ArrayList<Cookie>();
+	}
+
+	public boolean isLazyInit()
+	{
+		return false;
+	}
+
+	public List<String> getLazyInitResources()
+	{
+		return new ArrayList<String>();
+	}
+
+	public defaultAction getLazyInitDefaultAction()
+	{
+		return defaultAction.deny;
+	}
+
+	public String getServiceHost()
+	{
+		return "http://spep.imaginarycorp.com";
+	}
+
+	public String getSsoRedirect()
+	{
+		return "/spep/sso?redirectURL={0}";
+	}
+
+	public String getDefaultUrl()
+	{
+		return "/";
+	}
+
+	public static class Session implements PrincipalSession
+	{
+		private Map<String, List<Object>> attributes;
+
+		public Session()
+		{
+			this.attributes = new HashMap<String, List<Object>>();
+			List<Object> uid = new ArrayList<Object>();
+			uid.add("beddoes");
+			this.attributes.put("uid", uid);
+		}
+
+		public List<String> getSessionIDList()
+		{
+			List<String> sessionIDs = new ArrayList<String>();
+			sessionIDs.add(SESSION_ID);
+			return sessionIDs;
+		}
+
+		public String getEsoeSessionID()
+		{
+			return ESOE_SESSION_ID;
+		}
+
+		public void setEsoeSessionID(String esoeSessionID)
+		{
+			// Fixed value
+		}
+
+		public Date getSessionNotOnOrAfter()
+		{
+			return new Date(System.currentTimeMillis() + 60000);
+		}
+
+		public void setSessionNotOnOrAfter(Date sessionNotOnOrAfter)
+		{
+			// Fixed value
+		}
+
+		public Map<String, List<Object>> getAttributes()
+		{
+			return this.attributes;
+		}
+
+		public void addESOESessionIndexAndLocalSessionID(String esoeSessionIndex, String localSessionID)
+		{
+			// Fixed value
+		}
+
+		public Map<String, String> getEsoeSessionIndex()
+		{
+			return new HashMap<String, String>();
+		}
+	}
+
+	/* Defines its own copy of the named classes and their nested classes, and delegates everything else. */
+	private static class IsolatingClassLoader extends ClassLoader
+	{
+		private String[] classNames;
+
+		IsolatingClassLoader(ClassLoader parent, String... classNames)
+		{
+			super(parent);
+			this.classNames = classNames;
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+		{
+			boolean isolated = false;
+			for (String className : this.classNames)
+			{
+				if (name.equals(className) || name.startsWith(className + "$"))
+					isolated = true;
+			}
+
+			if (!isolated)
+				return super.loadClass(name, resolve);
+
+			Class<?> clazz = findLoadedClass(name);
+			if (clazz == null)
+			{
+				byte[] classBytes = readClass(name);
+				clazz = defineClass(name, classBytes, 0, classBytes.length);
+			}
+
+			if (resolve)
+				resolveClass(clazz);
+
+			return clazz;
+		}
+
+		private byte[] readClass(String name) throws ClassNotFoundException
+		{
+			InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+			if (in == null)
+				throw new ClassNotFoundException(name);
+
+			try
+			{
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) != -1)
+					out.write(buffer, 0, read);
+
+				return out.toByteArray();
+			}
+			catch (IOException e)
+			{
+				throw new ClassNotFoundException(name, e);
+			}
+			finally
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+					// Nothing more to read
+				}
+			}
+		}
+	}
+}
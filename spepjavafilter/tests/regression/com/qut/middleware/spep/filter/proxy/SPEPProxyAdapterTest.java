@@ -0,0 +1,140 @@
+/*
+ * Copyright 2008, Queensland University of Technology
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Creation Date: 18/10/2008
+ *
+ * Purpose: Tests calls to an SPEP loaded by another class loader, through the adapter,
+ * 		the generic proxy and the filter Initializer.
+ */
+package com.qut.middleware.spep.filter.proxy;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletContext;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qut.middleware.spep.ConfigurationConstants;
+import com.qut.middleware.spep.SPEPProxy;
+import com.qut.middleware.spep.filter.Initializer;
+import com.qut.middleware.spep.sessions.PrincipalSession;
+
+@SuppressWarnings("nls")
+public class SPEPProxyAdapterTest
+{
+	private Object remoteSPEP;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		this.remoteSPEP = RemoteSPEP.createIsolated();
+		assertFalse(this.remoteSPEP instanceof SPEPProxy);
+	}
+
+	private void assertBehaviour(SPEPProxy spep)
+	{
+		assertTrue(spep.isStarted());
+		assertEquals(RemoteSPEP.TOKEN_NAME, spep.getTokenName());
+		assertEquals(RemoteSPEP.ESOE_GLOBAL_TOKEN_NAME, spep.getEsoeGlobalTokenName());
+
+		PrincipalSession session = spep.verifySession(RemoteSPEP.SESSION_ID);
+		assertEquals(RemoteSPEP.ESOE_SESSION_ID, session.getEsoeSessionID());
+		assertEquals("beddoes", session.getAttributes().get("uid").get(0));
+		assertNull(spep.verifySession("_unknown"));
+
+		assertEquals(SPEPProxy.decision.permit, spep.makeAuthzDecision(RemoteSPEP.SESSION_ID, "/secure/index.jsp"));
+		assertEquals(SPEPProxy.decision.deny, spep.makeAuthzDecision(RemoteSPEP.SESSION_ID, "/admin/index.jsp", "GET"));
+		assertEquals(SPEPProxy.decision.error, spep.makeAuthzDecision("_unknown", "/secure/index.jsp"));
+		assertEquals(RemoteSPEP.AUTHZ_STATE_VERSION, spep.getAuthzStateVersion());
+
+		assertEquals(SPEPProxy.defaultAction.deny, spep.getLazyInitDefaultAction());
+		assertEquals(0, spep.getLogoutClearCookies().size());
+		assertFalse(spep.isLazyInit());
+	}
+
+	@Test
+	public void testAdapter() throws Exception
+	{
+		SPEPProxyAdapter adapter = new SPEPProxyAdapter(this.remoteSPEP);
+
+		assertBehaviour(adapter);
+
+		// Each call is independent of the last
+		assertBehaviour(adapter);
+	}
+
+	@Test
+	public void testGenericProxy() throws Exception
+	{
+		SPEPProxy spep = (SPEPProxy) Proxy.newProxyInstance(SPEPProxy.class.getClassLoader(), new Class<?>[] { SPEPProxy.class }, new GenericObjectInvocationHandler(this.remoteSPEP));
+
+		assertBehaviour(spep);
+		assertBehaviour(spep);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAdapterException() throws Exception
+	{
+		new SPEPProxyAdapter(this.remoteSPEP).makeAuthzDecision(RemoteSPEP.SESSION_ID, "/secure/index.jsp", RemoteSPEP.THROW_ACTION);
+	}
+
+	@Test
+	public void testInitializerReusesProxy() throws Exception
+	{
+		ServletContext context = createMock(ServletContext.class);
+		expect(context.getAttribute(eq(ConfigurationConstants.SPEP_PROXY))).andReturn(this.remoteSPEP).times(2);
+		replay(context);
+
+		SPEPProxy spep = Initializer.init(context);
+		assertTrue(spep instanceof SPEPProxyAdapter);
+		assertSame(spep, Initializer.init(context));
+		assertBehaviour(spep);
+
+		verify(context);
+
+		// A redeployed SPEP gets a new proxy
+		Object redeployedSPEP = RemoteSPEP.createIsolated();
+		context = createMock(ServletContext.class);
+		expect(context.getAttribute(eq(ConfigurationConstants.SPEP_PROXY))).andReturn(redeployedSPEP).once();
+		replay(context);
+
+		assertFalse(spep == Initializer.init(context));
+		verify(context);
+	}
+
+	@Test
+	public void testInitializerSharedInterfaces() throws Exception
+	{
+		SPEPProxy localSPEP = new RemoteSPEP();
+
+		ServletContext context = createMock(ServletContext.class);
+		expect(context.getAttribute(eq(ConfigurationConstants.SPEP_PROXY))).andReturn(localSPEP).once();
+		replay(context);
+
+		assertSame(localSPEP, Initializer.init(context));
+		verify(context);
+	}
+}